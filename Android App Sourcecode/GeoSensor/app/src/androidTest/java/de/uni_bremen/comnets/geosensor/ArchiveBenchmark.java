@@ -0,0 +1,271 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import de.uni_bremen.comnets.geosensor.archive.ArchiveBlock;
+import de.uni_bremen.comnets.geosensor.archive.ArchiveReader;
+import de.uni_bremen.comnets.geosensor.archive.BlockStatistics;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the archive format to csv on the field test tracks: the size of the files and the
+ * time needed to scan them for the mean temperature, once for all DataRecords and once for the
+ * last tenth of the time exported. The csv file is parsed like a program reading it would,
+ * the archive is read column-wise by the ArchiveReader, skipping the blocks outside of the time
+ * by their statistics.
+ *
+ * The records of the tracks are repeated with a receive time a second apart until there are
+ * enough of them. They are created when read by the ExportEngine, so the database is not used.
+ * The tracks are short and repeated records compress better than new measurements, so the
+ * archive of real data will be somewhat larger than here.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ArchiveBenchmark {
+    private static final int RECORDS = 100000;
+    private static final long START_TIME = 1496311200000L;
+    private static final String TEMPERATURE = "temperature";
+
+    private final List<DataRecord> trackRecords = new ArrayList<>();
+    private File csvFile;
+    private File archiveFile;
+    private File stateDirectory;
+    private long[] ids;
+
+    @Before
+    public void readTracks() throws IOException, ParseException {
+        AssetManager assets = InstrumentationRegistry.getContext().getAssets();
+        List<byte[]> messages = new ArrayList<>();
+        for (String name : assets.list("")) {
+            if (name.endsWith("matlab.csv")) {
+                messages.addAll(TransducerSimulator.readCsvTrack(assets.open(name)));
+            }
+        }
+        assertFalse("The field test tracks are missing", messages.isEmpty());
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (byte[] message : messages) {
+            trackRecords.add(protocolParser.parse(message, 0, message.length, new Date()));
+        }
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        csvFile = new File(context.getCacheDir(), "ArchiveBenchmark.csv");
+        archiveFile = new File(context.getCacheDir(), "ArchiveBenchmark.gsa");
+        stateDirectory = new File(context.getCacheDir(), "ArchiveBenchmark");
+        ids = new long[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            ids[i] = i;
+        }
+    }
+
+    @After
+    public void deleteFiles() {
+        //noinspection ResultOfMethodCallIgnored
+        csvFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        archiveFile.delete();
+        ExportEngine.deleteCheckpoint(stateDirectory);
+    }
+
+    @Test
+    public void compareToCsv() throws IOException {
+        int maxLocationCount = 0;
+        int maxMeasureDataCount = 0;
+        for (DataRecord dataRecord : trackRecords) {
+            maxLocationCount = Math.max(maxLocationCount, dataRecord.getLocations().size());
+            maxMeasureDataCount = Math.max(maxMeasureDataCount,
+                    dataRecord.getMeasureData().size());
+        }
+
+        long start = System.nanoTime();
+        assertTrue(export(new CsvFormatter(',', '.', false, maxLocationCount,
+                maxMeasureDataCount), csvFile));
+        double csvExport = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        assertTrue(export(new ArchiveFormatter(), archiveFile));
+        double archiveExport = (System.nanoTime() - start) / 1e6;
+
+        // The last tenth of the time exported
+        long from = START_TIME + RECORDS * 9L / 10 * 1000;
+        double[] expected = {meanTemperature(0), meanTemperature(from)};
+
+        start = System.nanoTime();
+        assertEquals(expected[0], scanCsv(0), 1e-6);
+        double csvScan = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        assertEquals(expected[1], scanCsv(from), 1e-6);
+        double csvScanLast = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        assertEquals(expected[0], scanArchive(0), 1e-6);
+        double archiveScan = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        assertEquals(expected[1], scanArchive(from), 1e-6);
+        double archiveScanLast = (System.nanoTime() - start) / 1e6;
+
+        assertTrue(archiveFile.length() < csvFile.length());
+
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "%d records: csv %d bytes, " +
+                        "archive %d bytes (%.1f %%); export csv %.0f ms, archive %.0f ms; mean " +
+                        "temperature csv %.0f ms, archive %.0f ms; of the last tenth csv %.0f ms, " +
+                        "archive %.0f ms", RECORDS, csvFile.length(), archiveFile.length(),
+                100.0 * archiveFile.length() / csvFile.length(), csvExport, archiveExport,
+                csvScan, archiveScan, csvScanLast, archiveScanLast));
+    }
+
+    /**
+     * Export the DataRecords repeated from the tracks
+     * @param format The format of the file
+     * @param target The file written
+     * @return true if the export has been completed
+     */
+    private boolean export(ExportFormat format, File target) throws IOException {
+        return new ExportEngine(stateDirectory, new ExportEngine.Source() {
+            @Override
+            public List<DataRecord> read(long[] ids) {
+                List<DataRecord> dataRecords = new ArrayList<>(ids.length);
+                for (long id : ids) {
+                    dataRecords.add(getDataRecord(id));
+                }
+                return dataRecords;
+            }
+        }, new ExportEngine.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+            }
+        }, ExportEngine.defaultThreads()).export(ids, format, target);
+    }
+
+    /**
+     * @param id The ID of the DataRecord, from 0 on
+     * @return The DataRecord of the tracks received a second after the one before
+     */
+    private DataRecord getDataRecord(long id) {
+        DataRecord dataRecord = trackRecords.get((int) (id % trackRecords.size()));
+        return new DataRecord(dataRecord.getLocations(), dataRecord.getMeasureData(),
+                dataRecord.getArduinoSoftware(), dataRecord.getArduinoTime(),
+                dataRecord.getComment(), new Date(START_TIME + id * 1000), id);
+    }
+
+    /**
+     * @param from The first receive time counted
+     * @return The mean temperature of the DataRecords, computed from the DataRecords themselves
+     */
+    private double meanTemperature(long from) {
+        double sum = 0;
+        int count = 0;
+        for (long id : ids) {
+            DataRecord dataRecord = getDataRecord(id);
+            if (dataRecord.getReceiveTime().getTime() < from) {
+                continue;
+            }
+            for (MeasureData measureData : dataRecord.getMeasureData()) {
+                if (TEMPERATURE.equals(measureData.getType())) {
+                    sum += measureData.getValue();
+                    count++;
+                }
+            }
+        }
+        return sum / count;
+    }
+
+    /**
+     * Read the csv file line by line. The receive time is compared as text, which is fine for
+     * the format of the dates.
+     * @param from The first receive time counted
+     * @return The mean temperature
+     */
+    private double scanCsv(long from) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(csvFile)));
+        try {
+            String[] titles = reader.readLine().split(",");
+            List<Integer> typeColumns = new ArrayList<>();
+            for (int i = 0; i < titles.length; i++) {
+                if (titles[i].startsWith(DataLab.MeasureDataEntry.COLUMN_TYPE + "_")) {
+                    typeColumns.add(i);
+                }
+            }
+            // The receive time is the first cell of a line
+            String fromText = from > 0 ? new CsvFormatter(',', '.', false, 0, 0)
+                    .getOneLine(getDataRecord((from - START_TIME) / 1000)).split(",")[0] : "";
+
+            double sum = 0;
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cells = line.split(",", -1);
+                if (cells[0].compareTo(fromText) < 0) {
+                    continue;
+                }
+                for (int column : typeColumns) {
+                    if (TEMPERATURE.equals(cells[column])) {
+                        sum += Double.parseDouble(cells[column + 3]);
+                        count++;
+                    }
+                }
+            }
+            return sum / count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the types and the values of the blocks which may contain the receive times
+     * @param from The first receive time counted
+     * @return The mean temperature
+     */
+    private double scanArchive(long from) throws IOException {
+        ArchiveReader reader = new ArchiveReader(archiveFile);
+        try {
+            double sum = 0;
+            int count = 0;
+            for (int i = 0; i < reader.getBlockCount(); i++) {
+                BlockStatistics statistics = reader.getStatistics(i);
+                if (!statistics.mayContainReceiveTime(from, Long.MAX_VALUE)
+                        || !statistics.getTypes().contains(TEMPERATURE)) {
+                    continue;
+                }
+                ArchiveBlock block = reader.readBlock(i);
+                long[] receiveTimes = block.getReceiveTimes();
+                int[] offsets = block.getMeasureDataOffsets();
+                String[] types = block.getTypes();
+                double[] values = block.getValues();
+                for (int record = 0; record < block.getRecordCount(); record++) {
+                    if (receiveTimes[record] < from) {
+                        continue;
+                    }
+                    for (int j = offsets[record]; j < offsets[record + 1]; j++) {
+                        if (TEMPERATURE.equals(types[j])) {
+                            sum += values[j];
+                            count++;
+                        }
+                    }
+                }
+            }
+            return sum / count;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.res.AssetManager;
+import android.location.Location;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the BinaryMessageDecoder with the frames of the BinaryMessageEncoder (which does the same
+ * as the firmware) and compares the size and the decoding speed with the JSON messages of the
+ * protocol test suite.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BinaryMessageDecoderTest {
+    /** The baud rate of the bluetooth module used by the firmware */
+    private static final int BAUD_RATE = 38400;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> messages = new ArrayList<>();
+
+    @Before
+    public void readMessages() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getContext().getAssets();
+        for (String name : assets.list("")) {
+            if (!name.endsWith(".json")) {
+                continue;
+            }
+            InputStream inputStream = assets.open(name);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            inputStream.close();
+            names.add(name);
+            messages.add(content.toByteArray());
+        }
+        assertFalse("The protocol test suite is missing", messages.isEmpty());
+    }
+
+    /**
+     * Every valid message of the protocol test suite is sent in binary and compared with the
+     * result of the JSON parser. The sizes of both are logged.
+     */
+    @Test
+    public void sameRecordsAsJson() throws Exception {
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (int i = 0; i < messages.size(); i++) {
+            DataRecord expected;
+            try {
+                expected = protocolParser.parse(messages.get(i), 0, messages.get(i).length,
+                        new Date(0));
+            } catch (ParseException e) {
+                continue;
+            }
+            if (expected == null || !fitsIntoBinary(expected)) {
+                continue;
+            }
+            BinaryMessageEncoder encoder = new BinaryMessageEncoder();
+            BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+            byte[] schema = encoder.schema(expected);
+            byte[] sample = encoder.sample(expected);
+            assertNull(decode(decoder, schema));
+            assertSameRecord(names.get(i), expected, decode(decoder, sample));
+
+            Log.i(getClass().getSimpleName(), String.format("%s: JSON %d bytes, binary %d bytes " +
+                    "(schema %d bytes once)", names.get(i), messages.get(i).length + 1,
+                    sample.length, schema.length));
+        }
+    }
+
+    /**
+     * A long series of samples sent with delta through the FrameReader. The values are chosen so
+     * the frames contain many bytes that have to be escaped.
+     */
+    @Test
+    public void deltasThroughFrameReader() throws Exception {
+        Random random = new Random(6);
+        BinaryMessageEncoder encoder = new BinaryMessageEncoder();
+        List<DataRecord> records = randomWalk(random, 2000);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(encoder.schema(records.get(0)));
+        for (DataRecord record : records) {
+            stream.write(encoder.sample(record));
+            encoder.acknowledge();
+        }
+        int bytesPerSample = (stream.size() / records.size());
+
+        FrameReader frameReader = new FrameReader(new ByteArrayInputStream(stream.toByteArray()),
+                new FrameBufferPool(1));
+        BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+        FrameBuffer frame = frameReader.readFrame();
+        assertNull(decode(decoder, frame));
+        for (DataRecord record : records) {
+            frame = frameReader.readFrame();
+            assertSameRecord("sample", record, decode(decoder, frame));
+        }
+        assertNull(frameReader.readFrame());
+        Log.i(getClass().getSimpleName(), "Random walk: " + bytesPerSample + " bytes per sample");
+    }
+
+    /**
+     * If an acknowledgement gets lost, the next samples still refer to the last sample
+     * acknowledged, which the decoder keeps. A new decoder (after reconnecting) does not know it,
+     * so it asks for the schema, after which everything is sent without delta.
+     */
+    @Test
+    public void resynchronizesAfterReconnecting() throws Exception {
+        List<DataRecord> records = randomWalk(new Random(7), 5);
+        BinaryMessageEncoder encoder = new BinaryMessageEncoder();
+        BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+
+        // A sample without schema can not be decoded
+        byte[] sample = encoder.sample(records.get(0));
+        assertInvalid(decoder, sample);
+        assertTrue(decoder.isSchemaRequired());
+        assertNull(decode(decoder, encoder.schema(records.get(0))));
+        assertFalse(decoder.isSchemaRequired());
+        assertSameRecord("resent", records.get(0), decode(decoder, encoder.resend()));
+        encoder.acknowledge(decoder.getSequenceNumber());
+
+        // The acknowledgement of this one gets lost, the next one still refers to the first
+        assertSameRecord("decoded", records.get(1), decode(decoder, encoder.sample(records.get(1))));
+        assertSameRecord("delta", records.get(2), decode(decoder, encoder.sample(records.get(2))));
+        encoder.acknowledge(decoder.getSequenceNumber());
+        assertEquals(0, encoder.getWindowSize());
+
+        // After reconnecting the reference is unknown
+        decoder = new BinaryMessageDecoder();
+        assertInvalid(decoder, encoder.sample(records.get(3)));
+        assertTrue(decoder.isSchemaRequired());
+        assertNull(decode(decoder, encoder.schema(records.get(3))));
+        assertSameRecord("resent", records.get(3), decode(decoder, encoder.resend()));
+        encoder.acknowledge(decoder.getSequenceNumber());
+        assertSameRecord("delta", records.get(4), decode(decoder, encoder.sample(records.get(4))));
+    }
+
+    /**
+     * Samples are sent through a link losing and damaging frames as well as acknowledgements,
+     * with up to four samples on the way. The app side works like the BluetoothReceiverService.
+     * Every sample must be delivered exactly once.
+     */
+    @Test
+    public void slidingWindowOverLossyLink() throws Exception {
+        final int window = 4;
+        Random random = new Random(9);
+        List<DataRecord> records = randomWalk(random, 1000);
+        BinaryMessageEncoder encoder = new BinaryMessageEncoder();
+        BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+        DeliveryWindow deliveryWindow = new DeliveryWindow();
+        // The frames on the way to the app and the ACK (sequence number) and NAK (-1 - sequence
+        // number, Integer.MIN_VALUE for a plain NAK) on the way back
+        Deque<byte[]> frames = new ArrayDeque<>();
+        Deque<Integer> commands = new ArrayDeque<>();
+        Map<Long, DataRecord> delivered = new HashMap<>();
+
+        assertNull(decode(decoder, encoder.schema(records.get(0))));
+        int next = 0;
+        int transmissions = 0;
+        for (int step = 0; step < 100000 && (next < records.size() || encoder.getWindowSize() > 0);
+             step++) {
+            // The transducer sends new samples while the window is not full
+            while (next < records.size() && encoder.getWindowSize() < window) {
+                frames.add(encoder.sample(records.get(next++)));
+            }
+            // The oldest sample is sent again after a timeout
+            if (frames.isEmpty() && commands.isEmpty()) {
+                frames.add(encoder.resend());
+            }
+
+            while (!frames.isEmpty()) {
+                byte[] frame = frames.poll();
+                transmissions++;
+                int loss = random.nextInt(10);
+                if (loss == 0) {
+                    continue;
+                }
+                if (loss == 1) {
+                    frame = frame.clone();
+                    frame[1 + random.nextInt(frame.length - 2)] ^= 0x40;
+                }
+                DataRecord dataRecord;
+                try {
+                    dataRecord = decode(decoder, frame);
+                } catch (ParseException e) {
+                    assertFalse(decoder.isSchemaRequired());
+                    commands.add(Integer.MIN_VALUE);
+                    continue;
+                }
+                if (deliveryWindow.receive(decoder.getSequenceNumber(), dataRecord.getArduinoTime())) {
+                    assertNull("Delivered twice",
+                            delivered.put(dataRecord.getArduinoTime(), dataRecord));
+                    for (int i = 0; i < deliveryWindow.getMissingCount(); i++) {
+                        commands.add(-1 - deliveryWindow.getMissing(i));
+                    }
+                }
+                commands.addFirst(deliveryWindow.getAcknowledgement());
+            }
+
+            while (!commands.isEmpty()) {
+                int command = commands.poll();
+                if (random.nextInt(10) == 0) {
+                    continue;
+                }
+                if (command >= 0) {
+                    encoder.acknowledge(command);
+                } else {
+                    byte[] frame = command == Integer.MIN_VALUE ? encoder.resend()
+                            : encoder.resend(-1 - command);
+                    if (frame != null) {
+                        frames.add(frame);
+                    }
+                }
+            }
+        }
+
+        assertEquals(records.size(), delivered.size());
+        for (DataRecord record : records) {
+            assertSameRecord("delivered", record, delivered.get(record.getArduinoTime()));
+        }
+        Log.i(getClass().getSimpleName(), String.format("Lossy link: %d transmissions for %d " +
+                "samples, %d duplicates", transmissions, records.size(),
+                deliveryWindow.getDuplicates()));
+    }
+
+    /**
+     * Damaged frames are always rejected and do not change the state of the decoder
+     */
+    @Test
+    public void rejectsDamagedFrames() throws Exception {
+        List<DataRecord> records = randomWalk(new Random(8), 2);
+        BinaryMessageEncoder encoder = new BinaryMessageEncoder();
+        BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+        assertNull(decode(decoder, encoder.schema(records.get(0))));
+        assertSameRecord("first", records.get(0), decode(decoder, encoder.sample(records.get(0))));
+        encoder.acknowledge();
+
+        byte[] sample = encoder.sample(records.get(1));
+        for (int i = 0; i < sample.length - 1; i++) {
+            for (int bit = 0; bit < 8; bit++) {
+                byte[] damaged = sample.clone();
+                damaged[i] ^= 1 << bit;
+                assertInvalid(decoder, damaged);
+            }
+            byte[] truncated = new byte[i + 1];
+            System.arraycopy(sample, 0, truncated, 0, i);
+            truncated[i] = FrameReader.END_OF_TEXT;
+            assertInvalid(decoder, truncated);
+        }
+        assertSameRecord("second", records.get(1), decode(decoder, sample));
+    }
+
+    /**
+     * Compares the bytes per sample and the samples per second of both protocols, for decoding
+     * as well as for the transmission at the baud rate of the bluetooth module
+     */
+    @Test
+    public void benchmark() throws Exception {
+        byte[] json = null;
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equals("basis.json")) {
+                json = messages.get(i);
+            }
+        }
+        assertNotNull(json);
+        ProtocolParser protocolParser = new ProtocolParser();
+        DataRecord record = protocolParser.parse(json, 0, json.length, new Date(0));
+
+        // The samples are sent with delta to the previous one
+        BinaryMessageEncoder encoder = new BinaryMessageEncoder();
+        BinaryMessageDecoder decoder = new BinaryMessageDecoder();
+        decode(decoder, encoder.schema(record));
+        decode(decoder, encoder.sample(record));
+        encoder.acknowledge();
+        byte[] sample = encoder.sample(record);
+
+        int iterations = 20000;
+        for (int j = 0; j < iterations / 4; j++) {
+            protocolParser.parse(json, 0, json.length, new Date(0));
+            decode(decoder, resendable(encoder, record));
+        }
+        long start = System.nanoTime();
+        for (int j = 0; j < iterations; j++) {
+            protocolParser.parse(json, 0, json.length, new Date(0));
+        }
+        long jsonNanos = System.nanoTime() - start;
+        byte[][] frames = new byte[iterations][];
+        for (int j = 0; j < iterations; j++) {
+            frames[j] = resendable(encoder, record);
+        }
+        start = System.nanoTime();
+        for (int j = 0; j < iterations; j++) {
+            decoder.decode(frames[j], 0, frames[j].length - 1, new Date(0));
+        }
+        long binaryNanos = System.nanoTime() - start;
+
+        int jsonBytes = json.length + 1;
+        Log.i(getClass().getSimpleName(), String.format("JSON: %d bytes per sample, %.0f samples/s " +
+                        "decoded, %.1f samples/s at %d baud", jsonBytes, iterations / (jsonNanos / 1e9),
+                BAUD_RATE / 10.0 / jsonBytes, BAUD_RATE));
+        Log.i(getClass().getSimpleName(), String.format("Binary: %d bytes per sample, %.0f samples/s " +
+                        "decoded, %.1f samples/s at %d baud", sample.length, iterations / (binaryNanos / 1e9),
+                BAUD_RATE / 10.0 / sample.length, BAUD_RATE));
+        assertTrue(sample.length * 10 < jsonBytes);
+    }
+
+    /**
+     * @return A new sample with the same content as the last one, acknowledged right away
+     */
+    private static byte[] resendable(BinaryMessageEncoder encoder, DataRecord record) {
+        byte[] frame = encoder.sample(record);
+        encoder.acknowledge();
+        return frame;
+    }
+
+    /**
+     * Build a series of records like the ones sent by the demonstration device, but with values
+     * changing randomly. Some of the records have no position, some have values that are not a
+     * number.
+     */
+    private static List<DataRecord> randomWalk(Random random, int count) {
+        List<DataRecord> records = new ArrayList<>();
+        double latitude = 53.10367584;
+        double longitude = 8.85041809;
+        double altitude = -4.6;
+        long time = 1491357943000L;
+        long arduinoTime = 52142;
+        double[] values = {21, 28, 22.75};
+        for (int i = 0; i < count; i++) {
+            latitude += random.nextGaussian() * 1e-4;
+            longitude += random.nextGaussian() * 1e-4;
+            altitude += random.nextGaussian();
+            time += random.nextInt(100000) * 1000L;
+            arduinoTime += random.nextInt(100000);
+            List<Location> locations = new ArrayList<>();
+            if (random.nextInt(10) != 0) {
+                Location location = new Location("ArduinoGPS");
+                location.setLatitude(Math.rint(latitude * 1e7) / 1e7);
+                location.setLongitude(Math.rint(longitude * 1e7) / 1e7);
+                location.setAltitude(Math.rint(altitude * 100) / 100);
+                location.setTime(time);
+                locations.add(location);
+            }
+            List<MeasureData> measureData = new ArrayList<>();
+            for (int j = 0; j < values.length; j++) {
+                values[j] += Math.rint(random.nextGaussian() * 100) / 1e4;
+                measureData.add(new MeasureData("type" + j, "sensor" + j, "name" + j,
+                        random.nextInt(20) == 0 ? Double.NaN : values[j], "unit" + j));
+            }
+            records.add(new DataRecord(locations, measureData, "GeoSensor Template",
+                    arduinoTime, "random walk", new Date(0), -1));
+        }
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * @return false if the record contains more than 255 sensors or strings which are too long or
+     *      not ASCII. The firmware does not send these.
+     */
+    private static boolean fitsIntoBinary(DataRecord dataRecord) {
+        List<String> strings = new ArrayList<>();
+        strings.add(dataRecord.getArduinoSoftware());
+        strings.add(dataRecord.getComment());
+        for (MeasureData measureData : dataRecord.getMeasureData()) {
+            strings.add(measureData.getType());
+            strings.add(measureData.getSensor());
+            strings.add(measureData.getName());
+            strings.add(measureData.getUnit());
+        }
+        for (String string : strings) {
+            if (string.length() > 255 || !string.matches("\\p{ASCII}*")) {
+                return false;
+            }
+        }
+        return dataRecord.getMeasureData().size() <= 255;
+    }
+
+    private static DataRecord decode(BinaryMessageDecoder decoder, byte[] frame)
+            throws ParseException {
+        // The FrameReader removes the End of Text character
+        assertTrue(BinaryFrameCodec.isBinaryFrame(frame, 0, frame.length - 1));
+        return decoder.decode(frame, 0, frame.length - 1, new Date(0));
+    }
+
+    private static DataRecord decode(BinaryMessageDecoder decoder, FrameBuffer frame)
+            throws ParseException {
+        assertTrue(BinaryFrameCodec.isBinaryFrame(frame.getBytes(), 0, frame.getLength()));
+        DataRecord dataRecord = decoder.decode(frame.getBytes(), 0, frame.getLength(),
+                new Date(0));
+        frame.recycle();
+        return dataRecord;
+    }
+
+    private static void assertInvalid(BinaryMessageDecoder decoder, byte[] frame) {
+        try {
+            decoder.decode(frame, 0, frame.length - 1, new Date(0));
+            fail("Damaged frame accepted");
+        } catch (ParseException ignored) {
+        }
+    }
+
+    /**
+     * Compare two records, allowing for the resolution of the binary protocol
+     */
+    private static void assertSameRecord(String message, DataRecord expected, DataRecord actual) {
+        assertNotNull(message, actual);
+        assertEquals(message, expected.getArduinoSoftware(), actual.getArduinoSoftware());
+        assertEquals(message, expected.getComment(), actual.getComment());
+        assertEquals(message, expected.getArduinoTime() & 0xFFFFFFFFL, actual.getArduinoTime());
+        assertEquals(message, expected.getLocations().size(), actual.getLocations().size());
+        for (int i = 0; i < expected.getLocations().size(); i++) {
+            Location e = expected.getLocations().get(i);
+            Location a = actual.getLocations().get(i);
+            assertEquals(message, e.getLatitude(), a.getLatitude(), 0.6e-7);
+            assertEquals(message, e.getLongitude(), a.getLongitude(), 0.6e-7);
+            assertEquals(message, e.getAltitude(), a.getAltitude(), 0.006);
+            // The hundredths of a second are not sent by the firmware
+            assertEquals(message, e.getTime() / 1000, a.getTime() / 1000);
+        }
+        assertEquals(message, expected.getMeasureData().size(), actual.getMeasureData().size());
+        for (int i = 0; i < expected.getMeasureData().size(); i++) {
+            MeasureData e = expected.getMeasureData().get(i);
+            MeasureData a = actual.getMeasureData().get(i);
+            assertEquals(message, e.getType(), a.getType());
+            assertEquals(message, e.getSensor(), a.getSensor());
+            assertEquals(message, e.getName(), a.getName());
+            assertEquals(message, e.getUnit(), a.getUnit());
+            if (Double.isNaN(a.getValue())) {
+                // Values out of the range of the protocol are sent as NaN as well
+                assertTrue(message, Double.isNaN(e.getValue())
+                        || Math.abs(e.getValue()) * 1e4 >= Integer.MAX_VALUE);
+            } else {
+                assertEquals(message, e.getValue(), a.getValue(), 0.6e-4);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The BinaryMessageEncoder does the same as the binary protocol implementation of the
+ * GeoSensorTemplate firmware, but takes the data from a DataRecord. It is used to test the
+ * BinaryMessageDecoder.
+ *
+ * Like the firmware, it keeps the samples not acknowledged yet in a window for resending and sends
+ * the differences to the last sample acknowledged. The window is not limited, the caller decides
+ * how many samples are on the way.
+ */
+class BinaryMessageEncoder {
+    /** The decimals of the sensor values, like BINARY_DECIMALS in the firmware */
+    static final int DECIMALS = 4;
+
+    private static final int SENSORS = 6;
+
+    private final TimeZone utc = TimeZone.getTimeZone("UTC");
+
+    /**
+     * A sample not acknowledged yet
+     */
+    private static class Sample {
+        final int number;
+        final int[] values;
+        final boolean position;
+
+        Sample(int number, int[] values, boolean position) {
+            this.number = number;
+            this.values = values;
+            this.position = position;
+        }
+    }
+
+    private int sampleNumber = 0;
+
+    /** The samples not acknowledged yet, the oldest one first */
+    private final List<Sample> window = new ArrayList<>();
+
+    /** The last sample acknowledged */
+    private int[] reference = new int[0];
+    private boolean referenceValid = false;
+    private boolean referencePosition;
+    private int referenceNumber;
+
+    /**
+     * Encode the schema. Like the firmware receiving DC2 this also resets the reference, so the
+     * samples are sent without delta until the next acknowledgement. The firmware sends the
+     * samples in the window again after the schema, here this is done by the caller.
+     * @param dataRecord A record containing the sensors to include
+     * @return The frame including the terminating ETX
+     */
+    byte[] schema(DataRecord dataRecord) {
+        referenceValid = false;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(BinaryMessageDecoder.VERSION);
+        writeString(payload, dataRecord.getArduinoSoftware());
+        writeString(payload, dataRecord.getComment());
+        List<MeasureData> measureData = dataRecord.getMeasureData();
+        payload.write(measureData.size());
+        for (MeasureData data : measureData) {
+            writeString(payload, data.getType());
+            writeString(payload, data.getSensor());
+            writeString(payload, data.getName());
+            writeString(payload, data.getUnit());
+            payload.write(DECIMALS);
+        }
+        return frame(BinaryFrameCodec.TYPE_SCHEMA, payload);
+    }
+
+    /**
+     * Encode a new sample. The sensors must be the same as in the schema.
+     * @param dataRecord The record to encode
+     * @return The frame including the terminating ETX
+     */
+    byte[] sample(DataRecord dataRecord) {
+        List<MeasureData> measureData = dataRecord.getMeasureData();
+        int[] last = new int[SENSORS + measureData.size()];
+        last[0] = (int) dataRecord.getArduinoTime();
+        boolean lastPosition = !dataRecord.getLocations().isEmpty();
+        if (lastPosition) {
+            Location location = dataRecord.getLocations().get(0);
+            last[1] = (int) Math.round(location.getLatitude() * 1e7);
+            last[2] = (int) Math.round(location.getLongitude() * 1e7);
+            last[3] = (int) Math.round(location.getAltitude() * 100);
+            Calendar calendar = Calendar.getInstance(utc);
+            calendar.setTimeInMillis(location.getTime());
+            last[4] = calendar.get(Calendar.DAY_OF_MONTH) * 10000
+                    + (calendar.get(Calendar.MONTH) + 1) * 100 + calendar.get(Calendar.YEAR) % 100;
+            last[5] = calendar.get(Calendar.HOUR_OF_DAY) * 1000000
+                    + calendar.get(Calendar.MINUTE) * 10000 + calendar.get(Calendar.SECOND) * 100;
+        }
+        for (int i = 0; i < measureData.size(); i++) {
+            last[SENSORS + i] = quantize(measureData.get(i).getValue());
+        }
+        Sample sample = new Sample(sampleNumber, last, lastPosition);
+        sampleNumber = (sampleNumber + 1) % DeliveryWindow.SEQUENCE_NUMBERS;
+        window.add(sample);
+        return encode(sample);
+    }
+
+    /**
+     * Encode the oldest sample not acknowledged again, as done when a plain NAK is received or
+     * the acknowledgement times out
+     * @return The frame including the terminating ETX or null if all samples are acknowledged
+     */
+    byte[] resend() {
+        return window.isEmpty() ? null : encode(window.get(0));
+    }
+
+    /**
+     * Encode a sample again, as done when a NAK with a sequence number is received
+     * @param number The sequence number of the sample
+     * @return The frame including the terminating ETX or null if the sample is not in the window
+     */
+    byte[] resend(int number) {
+        for (Sample sample : window) {
+            if (sample.number == number) {
+                return encode(sample);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * All samples sent have been acknowledged, the last one becomes the reference
+     */
+    void acknowledge() {
+        if (!window.isEmpty()) {
+            acknowledge(window.get(window.size() - 1).number);
+        }
+    }
+
+    /**
+     * An ACK with a sequence number has been received. The sample and all samples before it are
+     * removed from the window and the sample becomes the reference.
+     * @param number The sequence number of the sample
+     */
+    void acknowledge(int number) {
+        for (int i = 0; i < window.size(); i++) {
+            Sample sample = window.get(i);
+            if (sample.number == number) {
+                window.subList(0, i + 1).clear();
+                reference = sample.values.clone();
+                referenceValid = true;
+                referencePosition = sample.position;
+                referenceNumber = sample.number;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of samples not acknowledged yet
+     */
+    int getWindowSize() {
+        return window.size();
+    }
+
+    private byte[] encode(Sample sample) {
+        int[] last = sample.values;
+        boolean delta = referenceValid && reference.length == last.length;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(sample.number);
+        payload.write((sample.position ? BinaryMessageDecoder.FLAG_POSITION : 0)
+                | (delta ? BinaryMessageDecoder.FLAG_DELTA : 0));
+        if (delta) {
+            payload.write(referenceNumber);
+        }
+        writeNumber(payload, last, 0, delta);
+        if (sample.position) {
+            for (int i = 1; i < SENSORS; i++) {
+                writeNumber(payload, last, i, delta && referencePosition);
+            }
+        }
+        for (int i = SENSORS; i < last.length; i++) {
+            writeNumber(payload, last, i, delta);
+        }
+        return frame(BinaryFrameCodec.TYPE_SAMPLE, payload);
+    }
+
+    private void writeNumber(ByteArrayOutputStream out, int[] last, int index, boolean delta) {
+        int number = delta ? last[index] - reference[index] : last[index];
+        int zigzag = (number << 1) ^ (number >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.write((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.write(zigzag);
+    }
+
+    private static int quantize(double value) {
+        double scaled = Math.rint(value * Math.pow(10, DECIMALS));
+        if (Double.isNaN(scaled) || scaled <= Integer.MIN_VALUE || scaled > Integer.MAX_VALUE) {
+            return BinaryMessageDecoder.NOT_A_NUMBER;
+        }
+        return (int) scaled;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String string) {
+        // Like the firmware, longer strings are cut off
+        int length = Math.min(string.length(), 255);
+        out.write(length);
+        for (int i = 0; i < length; i++) {
+            out.write(string.charAt(i));
+        }
+    }
+
+    private static byte[] frame(byte type, ByteArrayOutputStream payload) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        BinaryFrameCodec.wrap(type, payload.toByteArray(), 0, payload.size(), frame);
+        return frame.toByteArray();
+    }
+}
@@ -0,0 +1,203 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.location.Location;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the time and the peak heap of exporting 10000, 100000 and 1000000 DataRecords to a
+ * csv file by the ExportEngine, like the CSVWriter does. The baseline builds the whole table in
+ * memory before writing it, like the CSVWriter did before; it is left out for a million
+ * DataRecords, which do not fit into the heap of most devices. The DataRecords are saved to a separate database, so the data of the user is not
+ * touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CsvExportBenchmark {
+    private static final String DATABASE_NAME = "CsvExportBenchmark.db";
+    private static final int[] SIZES = {10000, 100000, 1000000};
+    /** The largest size the baseline is measured for */
+    private static final int MAX_BASELINE_SIZE = 100000;
+    private static final int BATCH_SIZE = 10000;
+    /** How often the heap is sampled while exporting */
+    private static final long SAMPLE_MILLIS = 10;
+
+    private Context context;
+    private DataLab dataLab;
+    private File stateDirectory;
+    private File file;
+
+    @Before
+    public void createDatabase() {
+        FilterState.resetFilter();
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        dataLab = new DataLab(context, DATABASE_NAME);
+        stateDirectory = new File(context.getCacheDir(), "CsvExportBenchmarkState");
+        file = new File(context.getCacheDir(), "CsvExportBenchmark.csv");
+    }
+
+    @After
+    public void deleteDatabase() {
+        dataLab.close();
+        context.deleteDatabase(DATABASE_NAME);
+        ExportEngine.deleteCheckpoint(stateDirectory);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void export() throws Exception {
+        int saved = 0;
+        for (int size : SIZES) {
+            saveDataRecords(saved, size);
+            saved = size;
+            final long[] ids = dataLab.getFilteredIDs();
+            assertEquals(size, ids.length);
+
+            // The columns of the DataRecords saved, the settings of the user are not used
+            final CsvFormatter formatter = new CsvFormatter(';', ',', false, 2, 3);
+            double[] streaming = measure(new Export() {
+                @Override
+                public void run() throws IOException {
+                    assertTrue(new ExportEngine(stateDirectory, new ExportEngine.Source() {
+                        @Override
+                        public List<DataRecord> read(long[] chunk) {
+                            return dataLab.readDataRecordsFromDatabase(chunk);
+                        }
+                    }, new ExportEngine.Listener() {
+                        @Override
+                        public void onProgress(int done, int total) {
+                        }
+                    }, ExportEngine.defaultThreads()).export(ids, formatter, file));
+                }
+            });
+            long streamingLength = file.length();
+
+            String baseline = "skipped";
+            if (size <= MAX_BASELINE_SIZE) {
+                double[] inMemory = measure(new Export() {
+                    @Override
+                    public void run() throws IOException {
+                        // Every DataRecord and the whole table are kept in memory at once
+                        List<DataRecord> dataRecords =
+                                dataLab.readDataRecordsFromDatabase(ids);
+                        StringBuilder table = new StringBuilder(formatter.getTitleLine());
+                        table.append("\r\n");
+                        for (DataRecord dataRecord : dataRecords) {
+                            formatter.appendOneLine(dataRecord, table);
+                            table.append("\r\n");
+                        }
+                        FileOutputStream outputStream = new FileOutputStream(file);
+                        try {
+                            outputStream.write(table.toString().getBytes());
+                        } finally {
+                            outputStream.close();
+                        }
+                        assertEquals(ids.length, dataRecords.size());
+                    }
+                });
+                assertEquals(streamingLength, file.length());
+                baseline = String.format(Locale.US, "%.0f ms, peak heap %.1f MB",
+                        inMemory[0], inMemory[1]);
+            }
+
+            Log.i(getClass().getSimpleName(), String.format(Locale.US, "Export of %d records " +
+                            "(%.1f MB): streaming %.0f ms, peak heap %.1f MB; in memory %s",
+                    size, streamingLength / 1e6, streaming[0], streaming[1], baseline));
+        }
+    }
+
+    /**
+     * Save DataRecords with two locations and three measured values each
+     * @param from The number of the first DataRecord
+     * @param to The number after the last DataRecord
+     */
+    private void saveDataRecords(int from, int to) {
+        List<DataRecord> batch = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            List<Location> locations = new ArrayList<>();
+            for (int j = 0; j < 2; j++) {
+                Location location = new Location(j == 0 ? "ArduinoGPS" : "fused");
+                location.setLatitude(53.1 + i * 1e-6);
+                location.setLongitude(8.8 + i * 1e-6);
+                location.setAltitude(10 + j);
+                location.setAccuracy(5 + j);
+                location.setTime(i * 1000L + j);
+                locations.add(location);
+            }
+            List<MeasureData> measureData = new ArrayList<>();
+            measureData.add(new MeasureData("temperature", "DS18B20", "sensor0", i % 30 + 0.25, "°C"));
+            measureData.add(new MeasureData("humidity", "DHT22", "sensor1", i % 100, "%"));
+            measureData.add(new MeasureData("pressure", "BMP180", "sensor2", 1013.25, "hPa"));
+            batch.add(new DataRecord(locations, measureData, "GeoSensorTemplate", i, "Benchmark",
+                    new Date(i * 1000L), -1));
+            if (batch.size() == BATCH_SIZE) {
+                dataLab.saveDataRecords(batch);
+                batch.clear();
+            }
+        }
+        dataLab.saveDataRecords(batch);
+    }
+
+    private interface Export {
+        void run() throws IOException;
+    }
+
+    /**
+     * Run an export while sampling the heap used
+     * @param export The export
+     * @return The time taken in milliseconds and the peak heap used in megabytes
+     */
+    private static double[] measure(Export export) throws IOException, InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        final long[] peak = {runtime.totalMemory() - runtime.freeMemory()};
+        final boolean[] running = {true};
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (running) {
+                        if (!running[0]) {
+                            return;
+                        }
+                        peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory());
+                    }
+                    try {
+                        Thread.sleep(SAMPLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        sampler.start();
+        long start = System.nanoTime();
+        try {
+            export.run();
+        } finally {
+            synchronized (running) {
+                running[0] = false;
+            }
+            sampler.join();
+        }
+        return new double[]{(System.nanoTime() - start) / 1e6, peak[0] / 1e6};
+    }
+}
@@ -0,0 +1,208 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.annotation.SuppressLint;
+import android.location.Location;
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the time and the objects allocated per line for formatting DataRecords as csv, once
+ * by the CsvFormatter and once with a DecimalFormat, a SimpleDateFormat and a new StringBuilder
+ * for every line like the CSVWriter did before. Both must produce the same lines. The DataRecords
+ * are kept in memory, so only the formatting is measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CsvFormatterBenchmark {
+    private static final int RECORDS = 10000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+    private static final char[] DECIMAL_SEPARATORS = {'.', ','};
+
+    private final List<DataRecord> dataRecords = new ArrayList<>();
+
+    @Before
+    public void createDataRecords() {
+        Random random = new Random(42);
+        for (int i = 0; i < RECORDS; i++) {
+            List<Location> locations = new ArrayList<>();
+            for (int j = 0; j < 2; j++) {
+                Location location = new Location(j == 0 ? "ArduinoGPS" : "fused");
+                location.setLatitude(53.1 + random.nextDouble() * 0.1);
+                location.setLongitude(8.8 + random.nextDouble() * 0.1);
+                location.setAltitude(random.nextInt(1000) / 10.0);
+                location.setAccuracy(random.nextFloat() * 20);
+                location.setTime(1500000000000L + i * 1000L + j);
+                locations.add(location);
+            }
+            List<MeasureData> measureData = new ArrayList<>();
+            measureData.add(new MeasureData("temperature", "DS18B20", "sensor0",
+                    random.nextInt(600) / 16.0 - 5, "°C"));
+            measureData.add(new MeasureData("humidity", "DHT22", "sensor1",
+                    random.nextInt(1000) / 10.0, "%"));
+            measureData.add(new MeasureData("pressure", "BMP180", "sensor2",
+                    950 + random.nextInt(10000) / 100.0, "hPa"));
+            dataRecords.add(new DataRecord(locations, measureData, "GeoSensorTemplate", i,
+                    "Benchmark", new Date(1500000000000L + i * 1000L), i));
+        }
+    }
+
+    @Test
+    public void formatLines() {
+        for (char decimalSeparator : DECIMAL_SEPARATORS) {
+            final CsvFormatter formatter = new CsvFormatter(';', decimalSeparator, false, 2, 3);
+            final LegacyFormatter legacyFormatter = new LegacyFormatter(';', decimalSeparator, 2, 3);
+
+            StringBuilder line = new StringBuilder();
+            for (DataRecord dataRecord : dataRecords) {
+                line.setLength(0);
+                formatter.appendOneLine(dataRecord, line);
+                assertEquals(legacyFormatter.getOneLine(dataRecord), line.toString());
+            }
+
+            double[] fast = measure(new Format() {
+                private final StringBuilder line = new StringBuilder();
+
+                @Override
+                public void run(DataRecord dataRecord) {
+                    line.setLength(0);
+                    formatter.appendOneLine(dataRecord, line);
+                }
+            });
+            double[] legacy = measure(new Format() {
+                @Override
+                public void run(DataRecord dataRecord) {
+                    legacyFormatter.getOneLine(dataRecord);
+                }
+            });
+
+            Log.i(getClass().getSimpleName(), String.format(Locale.US, "Formatting a line with " +
+                            "decimal mark '%c': CsvFormatter %.0f ns, %.1f allocations; " +
+                            "DecimalFormat and SimpleDateFormat %.0f ns, %.1f allocations",
+                    decimalSeparator, fast[0], fast[1], legacy[0], legacy[1]));
+        }
+    }
+
+    private interface Format {
+        void run(DataRecord dataRecord);
+    }
+
+    /**
+     * Format all DataRecords a few times to warm up, then measure the following rounds
+     * @param format Formats a line
+     * @return The time per line in nanoseconds and the objects allocated per line
+     */
+    @SuppressWarnings("deprecation")
+    private double[] measure(Format format) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (DataRecord dataRecord : dataRecords) {
+                format.run(dataRecord);
+            }
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (DataRecord dataRecord : dataRecords) {
+                format.run(dataRecord);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        double lines = (double) ROUNDS * dataRecords.size();
+        return new double[]{nanos / lines, Debug.getThreadAllocCount() / lines};
+    }
+
+    /**
+     * Formats the DataRecords like the CSVWriter did before the CsvFieldFormatter
+     */
+    private static class LegacyFormatter {
+        private final char separator;
+        private final int maxLocationCount;
+        private final int maxMeasureDataCount;
+        private final NumberFormat numberFormat;
+        @SuppressLint("SimpleDateFormat")
+        private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        LegacyFormatter(char separator, char decimalSeparator, int maxLocationCount,
+                        int maxMeasureDataCount) {
+            this.separator = separator;
+            this.maxLocationCount = maxLocationCount;
+            this.maxMeasureDataCount = maxMeasureDataCount;
+            DecimalFormatSymbols decimalFormatSymbols = new DecimalFormatSymbols();
+            decimalFormatSymbols.setDecimalSeparator(decimalSeparator);
+            numberFormat = new DecimalFormat("############.############", decimalFormatSymbols);
+        }
+
+        String getOneLine(DataRecord dataRecord) {
+            StringBuilder result = new StringBuilder();
+            result.append(dateFormat.format(dataRecord.getReceiveTime()));
+            result.append(separator);
+            result.append(dataRecord.getComment());
+            result.append(separator);
+            result.append(dataRecord.getArduinoSoftware());
+            result.append(separator);
+            result.append(dataRecord.getArduinoTime());
+            result.append(separator);
+
+            for (int i = 0; i < maxLocationCount; i++) {
+                if (i < dataRecord.getLocations().size()) {
+                    Location loc = dataRecord.getLocations().get(i);
+                    result.append(numberFormat.format(loc.getLatitude()));
+                    result.append(separator);
+                    result.append(numberFormat.format(loc.getLongitude()));
+                    result.append(separator);
+                    result.append(dateFormat.format(loc.getTime()));
+                    result.append(separator);
+                    result.append(loc.getProvider());
+                    result.append(separator);
+                    result.append(numberFormat.format(loc.getAltitude()));
+                    result.append(separator);
+                    result.append(numberFormat.format(loc.getAccuracy()));
+                    result.append(separator);
+                } else {
+                    result.append(separator).append(separator).append(separator)
+                            .append(separator).append(separator).append(separator);
+                }
+            }
+
+            for (int i = 0; i < maxMeasureDataCount; i++) {
+                if (i < dataRecord.getMeasureData().size()) {
+                    MeasureData measureData = dataRecord.getMeasureData().get(i);
+                    result.append(measureData.getType());
+                    result.append(separator);
+                    result.append(measureData.getName());
+                    result.append(separator);
+                    result.append(measureData.getSensor());
+                    result.append(separator);
+                    result.append(numberFormat.format(measureData.getValue()));
+                    result.append(separator);
+                    result.append(measureData.getUnit());
+                    result.append(separator);
+                } else {
+                    result.append(separator).append(separator).append(separator)
+                            .append(separator).append(separator);
+                }
+            }
+            return result.toString();
+        }
+    }
+}
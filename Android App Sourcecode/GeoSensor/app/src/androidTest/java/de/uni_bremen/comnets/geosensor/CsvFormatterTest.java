@@ -0,0 +1,78 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the location columns of the csv export. It runs on the device, as the Locations are not
+ * available in local unit tests, the ExportEngineTest exports DataRecords without them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CsvFormatterTest {
+    /** The receive time of the DataRecord, 2017-06-01 10:00:00 UTC */
+    private static final long RECEIVE_TIME = 1496311200000L;
+
+    @Test
+    public void writesAllLocations() {
+        CsvFormatter formatter = new CsvFormatter(';', ',', false, 3, 1);
+        String line = formatter.getOneLine(dataRecord());
+
+        assertEquals(date(RECEIVE_TIME) + ";Test;GeoSensorTemplate;42;"
+                + "53,5;8,25;" + date(RECEIVE_TIME - 10000) + ";ArduinoGPS;12;5;"
+                + "53,25;8,5;" + date(RECEIVE_TIME) + ";network;0;20;"
+                + ";;;;;;"
+                + "temperature;sensor0;DS18B20;21,5;°C;", line);
+    }
+
+    @Test
+    public void writesOnlyTheBestLocation() {
+        CsvFormatter formatter = new CsvFormatter('\t', '.', true, 1, 0);
+        String line = formatter.getOneLine(dataRecord());
+
+        // The gps location is ten seconds older but more accurate
+        assertEquals(date(RECEIVE_TIME) + "\tTest\tGeoSensorTemplate\t42\t"
+                + "53.5\t8.25\t" + date(RECEIVE_TIME - 10000) + "\tArduinoGPS\t12\t5\t", line);
+    }
+
+    /**
+     * @return A DataRecord with a gps and a network location and a single measured value
+     */
+    private static DataRecord dataRecord() {
+        List<Location> locations = new ArrayList<>();
+        locations.add(location("ArduinoGPS", 53.5, 8.25, 12, 5, RECEIVE_TIME - 10000));
+        locations.add(location("network", 53.25, 8.5, 0, 20, RECEIVE_TIME));
+        List<MeasureData> measureData = new ArrayList<>();
+        measureData.add(new MeasureData("temperature", "DS18B20", "sensor0", 21.5, "°C"));
+        return new DataRecord(locations, measureData, "GeoSensorTemplate", 42, "Test",
+                new Date(RECEIVE_TIME), 1);
+    }
+
+    private static Location location(String provider, double latitude, double longitude,
+                                     double altitude, float accuracy, long time) {
+        Location location = new Location(provider);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAltitude(altitude);
+        location.setAccuracy(accuracy);
+        location.setTime(time);
+        return location;
+    }
+
+    /**
+     * @param time The time in milliseconds
+     * @return The time formatted like the CsvFormatter does, in the default time zone
+     */
+    private static String date(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time));
+    }
+}
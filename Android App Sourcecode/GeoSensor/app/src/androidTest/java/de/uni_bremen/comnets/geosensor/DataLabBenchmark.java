@@ -0,0 +1,369 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetManager;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.location.Location;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how many DataRecords per second the DataLab saves and loads on the device. The records
+ * are taken from the field test tracks and saved to a separate database, so the data of the user
+ * is not touched.
+ *
+ * The baseline saves the records like the DataLab did before using compiled statements: every row
+ * inserted with its own ContentValues and its own implicit transaction.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DataLabBenchmark {
+    private static final String DATABASE_NAME = "DataLabBenchmark.db";
+    private static final int RECORDS = 500;
+    private static final int BATCH_SIZE = 50;
+    /** The size of the database the loading is measured on */
+    private static final int LOAD_RECORDS = 100000;
+    /** The records loaded one by one, that would take far too long for all of them */
+    private static final int SINGLE_LOAD_RECORDS = 1000;
+    /** The records loaded at once, all of them would not fit into the memory of every device */
+    private static final int LOAD_SLICE = 10000;
+    /** How long the readers are measured while records are saved */
+    private static final long CONTENTION_MILLIS = 5000;
+    /** The records shown by the list at once */
+    private static final int PAGE_SIZE = 50;
+    /** The number of times the MainActivity is started */
+    private static final int ACTIVITY_STARTS = 5;
+
+    private Context context;
+    private DataLab dataLab;
+    private final List<DataRecord> dataRecords = new ArrayList<>();
+
+    @Before
+    public void createDatabase() throws IOException, ParseException {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        dataLab = new DataLab(context, DATABASE_NAME);
+
+        AssetManager assets = InstrumentationRegistry.getContext().getAssets();
+        List<byte[]> messages = new ArrayList<>();
+        for (String name : assets.list("")) {
+            if (name.endsWith("matlab.csv")) {
+                messages.addAll(TransducerSimulator.readCsvTrack(assets.open(name)));
+            }
+        }
+        assertFalse("The field test tracks are missing", messages.isEmpty());
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (int i = 0; i < RECORDS; i++) {
+            byte[] message = messages.get(i % messages.size());
+            dataRecords.add(protocolParser.parse(message, 0, message.length, new Date()));
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        dataLab.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void saveRecords() {
+        long start = System.nanoTime();
+        for (DataRecord dataRecord : dataRecords) {
+            saveWithoutTransaction(dataLab.getWritableDatabase(), dataRecord);
+        }
+        double baseline = recordsPerSecond(start);
+
+        start = System.nanoTime();
+        for (DataRecord dataRecord : dataRecords) {
+            dataLab.saveDataRecord(dataRecord);
+        }
+        double single = recordsPerSecond(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < dataRecords.size(); i += BATCH_SIZE) {
+            dataLab.saveDataRecords(dataRecords.subList(i,
+                    Math.min(dataRecords.size(), i + BATCH_SIZE)));
+        }
+        double batch = recordsPerSecond(start);
+
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "%d records: %.0f records/s " +
+                "without transaction, %.0f records/s saveDataRecord, %.0f records/s " +
+                "saveDataRecords (%d per batch)", RECORDS, baseline, single, batch, BATCH_SIZE));
+    }
+
+    @Test
+    public void savedRecordsCanBeRead() {
+        dataLab.saveDataRecords(dataRecords.subList(0, BATCH_SIZE));
+        for (DataRecord saved : dataRecords.subList(0, BATCH_SIZE)) {
+            DataRecord read = dataLab.readDataRecordFromDatabase(saved.getDatabaseID());
+            assertNotNull(read);
+            assertEquals(saved.getArduinoTime(), read.getArduinoTime());
+            assertEquals(saved.getReceiveTime(), read.getReceiveTime());
+            assertEquals(saved.getComment(), read.getComment());
+            assertEquals(saved.getLocations().size(), read.getLocations().size());
+            for (int i = 0; i < saved.getLocations().size(); i++) {
+                assertEquals(saved.getLocations().get(i).getLatitude(),
+                        read.getLocations().get(i).getLatitude(), 1e-9);
+                assertEquals(saved.getLocations().get(i).getTime(),
+                        read.getLocations().get(i).getTime());
+            }
+            assertEquals(saved.getMeasureData().size(), read.getMeasureData().size());
+            for (int i = 0; i < saved.getMeasureData().size(); i++) {
+                assertEquals(saved.getMeasureData().get(i).getName(),
+                        read.getMeasureData().get(i).getName());
+                assertEquals(saved.getMeasureData().get(i).getValue(),
+                        read.getMeasureData().get(i).getValue(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void loadRecords() {
+        List<DataRecord> batch = new ArrayList<>(1000);
+        for (int i = 0; i < LOAD_RECORDS; i++) {
+            batch.add(dataRecords.get(i % dataRecords.size()));
+            if (batch.size() == 1000) {
+                dataLab.saveDataRecords(batch);
+                batch.clear();
+            }
+        }
+        FilterState.resetFilter();
+        long[] ids = dataLab.getFilteredIDs();
+        assertEquals(LOAD_RECORDS, ids.length);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < SINGLE_LOAD_RECORDS; i++) {
+            assertNotNull(dataLab.readDataRecordFromDatabase(ids[i]));
+        }
+        double single = SINGLE_LOAD_RECORDS / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        int loaded = 0;
+        for (int i = 0; i < ids.length; i += LOAD_SLICE) {
+            loaded += dataLab.readDataRecordsFromDatabase(Arrays.copyOfRange(ids, i,
+                    Math.min(ids.length, i + LOAD_SLICE))).size();
+        }
+        double bulk = loaded / ((System.nanoTime() - start) / 1e9);
+        assertEquals(LOAD_RECORDS, loaded);
+
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "%d records in the database: " +
+                "%.0f records/s readDataRecordFromDatabase, %.0f records/s " +
+                "readDataRecordsFromDatabase", LOAD_RECORDS, single, bulk));
+    }
+
+    @Test
+    public void bulkLoadKeepsTheOrder() {
+        dataLab.saveDataRecords(dataRecords);
+        long[] ids = new long[dataRecords.size() + 1];
+        for (int i = 0; i < dataRecords.size(); i++) {
+            // Reversed, so the order of the result is not just the one of the database
+            ids[i] = dataRecords.get(dataRecords.size() - 1 - i).getDatabaseID();
+        }
+        // An id not in the database is skipped
+        ids[dataRecords.size()] = -1;
+
+        List<DataRecord> loaded = dataLab.readDataRecordsFromDatabase(ids);
+        assertEquals(dataRecords.size(), loaded.size());
+        for (int i = 0; i < loaded.size(); i++) {
+            DataRecord single = dataLab.readDataRecordFromDatabase(ids[i]);
+            assertEquals(ids[i], loaded.get(i).getDatabaseID());
+            assertEquals(single.getArduinoTime(), loaded.get(i).getArduinoTime());
+            assertEquals(single.getLocations().size(), loaded.get(i).getLocations().size());
+            assertEquals(single.getMeasureData().size(), loaded.get(i).getMeasureData().size());
+        }
+        assertNull(dataLab.readDataRecordFromDatabase(-1));
+    }
+
+    @Test
+    public void deleteOldRecords() {
+        final int records = 20000;
+        List<DataRecord> batch = new ArrayList<>(1000);
+        for (int i = 0; i < records; i++) {
+            DataRecord dataRecord = dataRecords.get(i % dataRecords.size());
+            // The receive time is the number of the record
+            batch.add(new DataRecord(dataRecord.getLocations(), dataRecord.getMeasureData(),
+                    dataRecord.getArduinoSoftware(), dataRecord.getArduinoTime(),
+                    dataRecord.getComment(), new Date(i), -1));
+            if (batch.size() == 1000) {
+                dataLab.saveDataRecords(batch);
+                batch.clear();
+            }
+        }
+        SQLiteDatabase db = dataLab.getWritableDatabase();
+        long locations = DatabaseUtils.queryNumEntries(db, DataLab.LocationEntry.TABLE_LOCATION);
+        long measureData = DatabaseUtils.queryNumEntries(db,
+                DataLab.MeasureDataEntry.TABLE_MEASURE_DATA);
+
+        final int[] progress = new int[2];
+        long start = System.nanoTime();
+        int deleted = dataLab.deleteOldDataRecords(new Date(records / 2 - 1),
+                new DataLab.ProgressListener() {
+                    @Override
+                    public void onProgress(int done, int total) {
+                        assertTrue(done >= progress[0]);
+                        progress[0] = done;
+                        progress[1] = total;
+                    }
+                });
+        double deleteMillis = (System.nanoTime() - start) / 1e6;
+        assertEquals(records / 2, deleted);
+        assertEquals(deleted, progress[0]);
+        assertEquals(deleted, progress[1]);
+
+        // Everything belonging to the DataRecords deleted is gone
+        assertEquals(records / 2, DatabaseUtils.queryNumEntries(db,
+                DataLab.DataRecordEntry.TABLE_DATA_RECORD));
+        assertEquals(locations / 2, DatabaseUtils.queryNumEntries(db,
+                DataLab.LocationEntry.TABLE_LOCATION));
+        assertEquals(measureData / 2, DatabaseUtils.queryNumEntries(db,
+                DataLab.MeasureDataEntry.TABLE_MEASURE_DATA));
+
+        start = System.nanoTime();
+        dataLab.reclaimSpace(null);
+        double vacuumMillis = (System.nanoTime() - start) / 1e6;
+        assertFalse(dataLab.isSpaceReclaimable());
+
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "%d of %d records deleted " +
+                "in %.0f ms, space reclaimed in %.0f ms", deleted, records, deleteMillis,
+                vacuumMillis));
+    }
+
+    @Test
+    public void readersDuringIngest() throws InterruptedException {
+        dataLab.saveDataRecords(dataRecords);
+        FilterState.resetFilter();
+
+        // Write-ahead logging is switched on when the database is opened
+        List<Double> wal = readWhileSaving();
+        dataLab.getWritableDatabase().disableWriteAheadLogging();
+        List<Double> rollbackJournal = readWhileSaving();
+
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "Reading %d records while " +
+                        "saving: median %.1f ms, p99 %.1f ms, max %.1f ms (%d reads) with " +
+                        "write-ahead logging; median %.1f ms, p99 %.1f ms, max %.1f ms (%d reads) " +
+                        "without", PAGE_SIZE, percentile(wal, 0.5), percentile(wal, 0.99),
+                percentile(wal, 1), wal.size(), percentile(rollbackJournal, 0.5),
+                percentile(rollbackJournal, 0.99), percentile(rollbackJournal, 1),
+                rollbackJournal.size()));
+    }
+
+    @Test
+    public void startMainActivity() {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Intent intent = new Intent(context, MainActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        List<Double> millis = new ArrayList<>();
+        for (int i = 0; i < ACTIVITY_STARTS; i++) {
+            long start = System.nanoTime();
+            Activity activity = instrumentation.startActivitySync(intent);
+            instrumentation.waitForIdleSync();
+            millis.add((System.nanoTime() - start) / 1e6);
+            activity.finish();
+            instrumentation.waitForIdleSync();
+        }
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "MainActivity started in " +
+                        "%.0f ms the first time, median %.0f ms", millis.get(0),
+                percentile(millis, 0.5)));
+    }
+
+    /**
+     * Read the newest records like the list does while another thread saves records in batches
+     * like the BluetoothReceiverService does
+     * @return The time of every read in milliseconds
+     */
+    private List<Double> readWhileSaving() throws InterruptedException {
+        final long end = System.currentTimeMillis() + CONTENTION_MILLIS;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (System.currentTimeMillis() < end) {
+                    dataLab.saveDataRecords(dataRecords);
+                }
+            }
+        });
+        writer.start();
+        List<Double> millis = new ArrayList<>();
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            long[] ids = dataLab.getFilteredIDs();
+            dataLab.readDataRecordsFromDatabase(Arrays.copyOf(ids, Math.min(ids.length, PAGE_SIZE)));
+            millis.add((System.nanoTime() - start) / 1e6);
+        }
+        writer.join();
+        return millis;
+    }
+
+    private static double percentile(List<Double> values, double percentile) {
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get((int) Math.ceil(percentile * sorted.size()) - 1);
+    }
+
+    private double recordsPerSecond(long start) {
+        return dataRecords.size() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Save a record the way the DataLab did before: every insert is a transaction of its own
+     */
+    private static void saveWithoutTransaction(SQLiteDatabase db, DataRecord dr) {
+        ContentValues data = new ContentValues();
+        data.put(DataLab.DataRecordEntry.COLUMN_ARDUINO_SOFTWARE, dr.getArduinoSoftware());
+        data.put(DataLab.DataRecordEntry.COLUMN_ARDUINO_TIME, dr.getArduinoTime());
+        data.put(DataLab.DataRecordEntry.COLUMN_RECEIVE_TIME, dr.getReceiveTime().getTime());
+        data.put(DataLab.DataRecordEntry.COLUMN_COMMENT, dr.getComment());
+        long id = db.insert(DataLab.DataRecordEntry.TABLE_DATA_RECORD, null, data);
+
+        for (Location location : dr.getLocations()) {
+            ContentValues loc = new ContentValues();
+            loc.put(DataLab.LocationEntry.COLUMN_LATITUDE, location.getLatitude());
+            loc.put(DataLab.LocationEntry.COLUMN_LONGITUDE, location.getLongitude());
+            loc.put(DataLab.LocationEntry.COLUMN_HAS_ALTITUDE, location.hasAltitude());
+            loc.put(DataLab.LocationEntry.COLUMN_ALTITUDE, location.getAltitude());
+            loc.put(DataLab.LocationEntry.COLUMN_TIME, location.getTime());
+            loc.put(DataLab.LocationEntry.COLUMN_HAS_ACCURACY, location.hasAccuracy());
+            loc.put(DataLab.LocationEntry.COLUMN_ACCURACY, location.getAccuracy());
+            loc.put(DataLab.LocationEntry.COLUMN_PROVIDER, location.getProvider());
+            long locationID = db.insert(DataLab.LocationEntry.TABLE_LOCATION, null, loc);
+            ContentValues map = new ContentValues();
+            map.put("location_id", locationID);
+            map.put("data_record_id", id);
+            db.insert("data_record_location_map", null, map);
+        }
+
+        for (MeasureData md : dr.getMeasureData()) {
+            ContentValues values = new ContentValues();
+            values.put(DataLab.MeasureDataEntry.COLUMN_TYPE, md.getType());
+            values.put(DataLab.MeasureDataEntry.COLUMN_SENSOR, md.getSensor());
+            values.put(DataLab.MeasureDataEntry.COLUMN_NAME, md.getName());
+            values.put(DataLab.MeasureDataEntry.COLUMN_VALUE, md.getValue());
+            values.put(DataLab.MeasureDataEntry.COLUMN_UNIT, md.getUnit());
+            long measureDataID = db.insert(DataLab.MeasureDataEntry.TABLE_MEASURE_DATA, null, values);
+            ContentValues map = new ContentValues();
+            map.put("measure_data_id", measureDataID);
+            map.put("data_record_id", id);
+            db.insert("data_record_measure_data_map", null, map);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Creates databases in the layout of version 19 (without indexes and foreign keys), measures the
+ * filter query, upgrades them with the DataLab and measures opening and filtering again.
+ * Every DataRecord has one Location and three MeasureData objects like a typical transducer.
+ *
+ * The largest database takes several minutes to create.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DataLabMigrationBenchmark {
+    private static final String DATABASE_NAME = "DataLabMigrationBenchmark.db";
+    private static final int[] SIZES = {10000, 100000, 1000000};
+    /** The filter selects this part of all DataRecords */
+    private static final double FILTER_RATIO = 0.01;
+    private static final int MEASURE_DATA = 3;
+
+    private Context context;
+
+    @Before
+    public void deleteDatabase() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void resetFilter() {
+        FilterState.resetFilter();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeAndFilter() {
+        for (int size : SIZES) {
+            context.deleteDatabase(DATABASE_NAME);
+            createVersion19(size);
+
+            // The same query as getFilteredIDs on the old layout
+            SQLiteDatabase old = SQLiteDatabase.openDatabase(
+                    context.getDatabasePath(DATABASE_NAME).getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            long start = System.nanoTime();
+            Cursor cursor = old.rawQuery("SELECT _id FROM data_record WHERE receive_time >= ? " +
+                    "AND receive_time <= ? ORDER BY receive_time DESC", new String[]{"0",
+                    Long.toString(filterEnd(size))});
+            int oldCount = cursor.getCount();
+            cursor.close();
+            double oldFilterMillis = (System.nanoTime() - start) / 1e6;
+            old.close();
+
+            DataLab dataLab = new DataLab(context, DATABASE_NAME);
+            start = System.nanoTime();
+            dataLab.getWritableDatabase();
+            double upgradeMillis = (System.nanoTime() - start) / 1e6;
+            dataLab.close();
+
+            start = System.nanoTime();
+            dataLab.getWritableDatabase();
+            double openMillis = (System.nanoTime() - start) / 1e6;
+
+            FilterState.setStartTime(new Date(0));
+            FilterState.setEndTime(new Date(filterEnd(size)));
+            start = System.nanoTime();
+            long[] ids = dataLab.getFilteredIDs();
+            double filterMillis = (System.nanoTime() - start) / 1e6;
+            assertEquals(oldCount, ids.length);
+
+            // Deleting a DataRecord removes everything belonging to it
+            dataLab.deleteDataRecord(ids[0]);
+            SQLiteDatabase db = dataLab.getReadableDatabase();
+            assertEquals(size - 1, count(db, "data_record"));
+            assertEquals(size - 1, count(db, "location"));
+            assertEquals((size - 1) * MEASURE_DATA, count(db, "measure_data"));
+            assertEquals(size - 1, count(db, "data_record_location_map"));
+            dataLab.close();
+
+            Log.i(getClass().getSimpleName(), String.format(Locale.US, "%d records: filter " +
+                            "(%d records) %.1f ms before, %.1f ms after the upgrade; upgrade " +
+                            "%.0f ms, open %.1f ms", size, ids.length, oldFilterMillis,
+                    filterMillis, upgradeMillis, openMillis));
+        }
+    }
+
+    private static long filterEnd(int size) {
+        return (long) (size * FILTER_RATIO);
+    }
+
+    private static long count(SQLiteDatabase db, String table) {
+        return db.compileStatement("SELECT COUNT(*) FROM " + table).simpleQueryForLong();
+    }
+
+    /**
+     * Create a database with the tables of version 19. The receive time of a DataRecord is its
+     * number, so the filter selects a known part of them.
+     * @param size The number of DataRecords
+     */
+    private void createVersion19(int size) {
+        SQLiteDatabase db = context.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE data_record(_id INTEGER PRIMARY KEY, arduino_software TEXT, " +
+                "arduino_time INTEGER, receive_time INTEGER, comment TEXT)");
+        db.execSQL("CREATE TABLE location(_id INTEGER PRIMARY KEY, lat REAL, lng REAL, " +
+                "has_altitude INTEGER, altitude REAL, time INTEGER, has_accuracy INTEGER, " +
+                "accuracy REAL, provider TEXT)");
+        db.execSQL("CREATE TABLE measure_data(_id INTEGER PRIMARY KEY, type TEXT, sensor TEXT, " +
+                "name TEXT, value REAL, unit TEXT)");
+        db.execSQL("CREATE TABLE data_record_location_map(_id INTEGER PRIMARY KEY, " +
+                "location_id INTEGER, data_record_id INTEGER)");
+        db.execSQL("CREATE TABLE data_record_measure_data_map(_id INTEGER PRIMARY KEY, " +
+                "measure_data_id INTEGER, data_record_id INTEGER)");
+        db.setVersion(19);
+
+        SQLiteStatement dataRecord = db.compileStatement("INSERT INTO data_record(" +
+                "arduino_software, arduino_time, receive_time, comment) VALUES " +
+                "('GeoSensorTemplate', ?, ?, 'Benchmark')");
+        SQLiteStatement location = db.compileStatement("INSERT INTO location(lat, lng, " +
+                "has_altitude, altitude, time, has_accuracy, accuracy, provider) VALUES " +
+                "(?, ?, 1, 10, ?, 0, 0, 'ArduinoGPS')");
+        SQLiteStatement locationMap = db.compileStatement("INSERT INTO " +
+                "data_record_location_map(location_id, data_record_id) VALUES (?, ?)");
+        SQLiteStatement measureData = db.compileStatement("INSERT INTO measure_data(type, " +
+                "sensor, name, value, unit) VALUES ('temperature', 'DS18B20', ?, ?, '°C')");
+        SQLiteStatement measureDataMap = db.compileStatement("INSERT INTO " +
+                "data_record_measure_data_map(measure_data_id, data_record_id) VALUES (?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < size; i++) {
+                dataRecord.bindLong(1, i * 1000L);
+                dataRecord.bindLong(2, i);
+                long id = dataRecord.executeInsert();
+                location.bindDouble(1, 53 + i * 1e-6);
+                location.bindDouble(2, 8.8 + i * 1e-6);
+                location.bindLong(3, i);
+                locationMap.bindLong(1, location.executeInsert());
+                locationMap.bindLong(2, id);
+                locationMap.executeInsert();
+                for (int j = 0; j < MEASURE_DATA; j++) {
+                    measureData.bindString(1, "sensor" + j);
+                    measureData.bindDouble(2, i + j);
+                    measureDataMap.bindLong(1, measureData.executeInsert());
+                    measureDataMap.bindLong(2, id);
+                    measureDataMap.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+    }
+}
@@ -0,0 +1,65 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests choosing the best location of a DataRecord. It runs on the device, as the Locations are
+ * not available in local unit tests; the rating itself is tested by the DataRecordTest.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DataRecordLocationTest {
+    private static final long RECEIVE_TIME = 1500000000000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void prefersRecentToOldLocations() {
+        // More than 2^31 milliseconds away from the receive time
+        List<Location> locations = new ArrayList<>();
+        locations.add(location(RECEIVE_TIME - 30 * DAY, 1));
+        locations.add(location(RECEIVE_TIME - 1000, 20));
+        DataRecord dataRecord = new DataRecord(locations, new ArrayList<MeasureData>(), "Test", 0,
+                "", new Date(RECEIVE_TIME), -1);
+        assertSame(locations.get(1), dataRecord.getLocation());
+    }
+
+    @Test
+    public void keepsTheFirstOfEqualLocations() {
+        List<Location> locations = new ArrayList<>();
+        locations.add(location(RECEIVE_TIME - 1000, 10));
+        locations.add(location(RECEIVE_TIME + 1000, 10));
+        DataRecord dataRecord = new DataRecord(locations, new ArrayList<MeasureData>(), "Test", 0,
+                "", new Date(RECEIVE_TIME), -1);
+        assertSame(locations.get(0), dataRecord.getLocation());
+    }
+
+    @Test
+    public void usesTheBestLocationSet() {
+        List<Location> locations = new ArrayList<>();
+        locations.add(location(RECEIVE_TIME, 10));
+        locations.add(location(RECEIVE_TIME + 1500, 10));
+        DataRecord dataRecord = new DataRecord(locations, new ArrayList<MeasureData>(), "Test", 0,
+                "", new Date(RECEIVE_TIME), 1);
+        dataRecord.setBestLocation(locations.get(1));
+        assertSame(locations.get(1), dataRecord.getLocation());
+        assertEquals(locations.get(1).getLatitude(), dataRecord.getLatitude(), 0);
+    }
+
+    private static Location location(long time, float accuracy) {
+        Location location = new Location("ArduinoGPS");
+        location.setLatitude(53.1 + time % 1000 * 1e-6);
+        location.setLongitude(8.8);
+        location.setTime(time);
+        location.setAccuracy(accuracy);
+        return location;
+    }
+}
@@ -0,0 +1,193 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.res.AssetManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the throughput and the heap use of the FrameReader on the device when replaying the
+ * messages of the protocol test suite (Tests/protocol, included as assets of the test
+ * application) through a local stream.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameReaderBenchmark {
+    private final List<byte[]> messages = new ArrayList<>();
+
+    @Before
+    public void readMessages() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getContext().getAssets();
+        for (String name : assets.list("")) {
+            if (!name.endsWith(".json")) {
+                continue;
+            }
+            InputStream inputStream = assets.open(name);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            inputStream.close();
+            messages.add(content.toByteArray());
+        }
+        assertFalse("The protocol test suite is missing", messages.isEmpty());
+    }
+
+    /**
+     * Replays the protocol messages and reports the peak and steady-state heap use. For
+     * comparison, the messages are also handled the way the receiver did before the buffers were
+     * pooled: a fresh 2 MB buffer for every message which was decoded completely.
+     */
+    @Test
+    public void replayHeapUse() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            stream.write(message);
+            stream.write(FrameReader.END_OF_TEXT);
+        }
+        byte[] replay = stream.toByteArray();
+
+        HeapMonitor unpooled = new HeapMonitor();
+        for (int i = 0; i < 1000 / messages.size(); i++) {
+            InputStream inputStream = new ByteArrayInputStream(replay);
+            int data;
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024 * 2);
+            while ((data = inputStream.read()) != -1) {
+                if (data == FrameReader.END_OF_TEXT) {
+                    assertTrue(new String(buffer.array(), "US-ASCII").trim().startsWith("{"));
+                    buffer = ByteBuffer.allocate(1024 * 1024 * 2);
+                    unpooled.sample();
+                } else {
+                    buffer.put((byte) data);
+                }
+            }
+        }
+        unpooled.report("unpooled 2 MB buffers");
+
+        FrameBufferPool frameBufferPool = new FrameBufferPool(4);
+        HeapMonitor pooled = new HeapMonitor();
+        for (int i = 0; i < 50000 / messages.size(); i++) {
+            FrameReader frameReader = new FrameReader(new ByteArrayInputStream(replay),
+                    frameBufferPool);
+            FrameBuffer frame;
+            while ((frame = frameReader.readFrame()) != null) {
+                assertTrue(frame.decodeASCII().trim().startsWith("{"));
+                frame.recycle();
+                pooled.sample();
+            }
+        }
+        pooled.report("pooled frame buffers");
+        assertEquals(1, frameBufferPool.getAllocatedCount());
+    }
+
+    /**
+     * Replays the protocol messages through a pipe at different rates and reports the achieved
+     * throughput. No message may get lost on the way.
+     */
+    @Test
+    public void replayThroughput() throws Exception {
+        int[] rates = {1000, 5000, 20000, 0};
+        for (int rate : rates) {
+            int count = rate == 0 ? 50000 : rate;
+            long start = System.nanoTime();
+            int received = replay(count, rate);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            assertEquals(count, received);
+            Log.i(getClass().getSimpleName(), String.format(Locale.US, "Target %s frames/s, " +
+                    "received %d frames at %.0f frames/s",
+                    rate == 0 ? "unlimited" : Integer.toString(rate), received,
+                    received / seconds));
+        }
+    }
+
+    /**
+     * Write the protocol messages into a pipe from a separate thread and read them back
+     * @param count the number of messages to send
+     * @param rate the number of messages per second (0 for as fast as possible)
+     * @return the number of messages received
+     */
+    private int replay(final int count, final int rate) throws Exception {
+        final PipedOutputStream outputStream = new PipedOutputStream();
+        PipedInputStream inputStream = new PipedInputStream(outputStream, 64 * 1024);
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        if (rate > 0) {
+                            long due = start + i * 1000000000L / rate;
+                            while (System.nanoTime() < due) {
+                                Thread.sleep(0, 100000);
+                            }
+                        }
+                        outputStream.write(messages.get(i % messages.size()));
+                        outputStream.write(FrameReader.END_OF_TEXT);
+                    }
+                    outputStream.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        sender.start();
+
+        FrameReader frameReader = new FrameReader(inputStream, new FrameBufferPool(4));
+        int received = 0;
+        FrameBuffer frame;
+        while ((frame = frameReader.readFrame()) != null) {
+            frame.recycle();
+            received++;
+        }
+        sender.join();
+        return received;
+    }
+
+    /**
+     * Samples the used heap while messages are handled. The first half of the samples is
+     * considered warm-up, the steady state is the average of the second half.
+     */
+    private static class HeapMonitor {
+        private final Runtime runtime = Runtime.getRuntime();
+        private final long start = System.nanoTime();
+        private final List<Long> samples = new ArrayList<>();
+        private long peak = 0;
+
+        void sample() {
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            peak = Math.max(peak, used);
+            samples.add(used);
+        }
+
+        void report(String name) {
+            long steady = 0;
+            List<Long> secondHalf = samples.subList(samples.size() / 2, samples.size());
+            for (long sample : secondHalf) {
+                steady += sample / secondHalf.size();
+            }
+            Log.i(FrameReaderBenchmark.class.getSimpleName(), String.format(Locale.US,
+                    "Heap (%s): %d frames in %.2f s, peak %.1f MB, steady state %.1f MB", name,
+                    samples.size(), (System.nanoTime() - start) / 1e9, peak / 1048576.0,
+                    steady / 1048576.0));
+        }
+    }
+}
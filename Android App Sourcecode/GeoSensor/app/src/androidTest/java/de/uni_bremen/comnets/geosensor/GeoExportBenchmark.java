@@ -0,0 +1,118 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how many DataRecords per second the ExportEngine writes as GeoJSON, GPX and KML, with
+ * csv as the baseline. The records of the field test tracks are repeated with a receive time a
+ * second apart until there are enough of them. They are created when read by the ExportEngine,
+ * so only the formatting and writing is measured, not the database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GeoExportBenchmark {
+    private static final int RECORDS = 100000;
+    private static final long START_TIME = 1496311200000L;
+
+    private final List<DataRecord> trackRecords = new ArrayList<>();
+    private File target;
+    private File stateDirectory;
+    private long[] ids;
+
+    @Before
+    public void readTracks() throws IOException, ParseException {
+        AssetManager assets = InstrumentationRegistry.getContext().getAssets();
+        List<byte[]> messages = new ArrayList<>();
+        for (String name : assets.list("")) {
+            if (name.endsWith("matlab.csv")) {
+                messages.addAll(TransducerSimulator.readCsvTrack(assets.open(name)));
+            }
+        }
+        assertFalse("The field test tracks are missing", messages.isEmpty());
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (byte[] message : messages) {
+            trackRecords.add(protocolParser.parse(message, 0, message.length, new Date()));
+        }
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        target = new File(context.getCacheDir(), "GeoExportBenchmark");
+        stateDirectory = new File(context.getCacheDir(), "GeoExportBenchmarkState");
+        ids = new long[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            ids[i] = i;
+        }
+    }
+
+    @After
+    public void deleteFiles() {
+        //noinspection ResultOfMethodCallIgnored
+        target.delete();
+        ExportEngine.deleteCheckpoint(stateDirectory);
+    }
+
+    @Test
+    public void exportRecords() throws IOException {
+        int maxMeasureDataCount = 0;
+        for (DataRecord dataRecord : trackRecords) {
+            maxMeasureDataCount = Math.max(maxMeasureDataCount,
+                    dataRecord.getMeasureData().size());
+        }
+        ExportFormat[] formats = {new CsvFormatter(',', '.', true, 1, maxMeasureDataCount),
+                new GeoJsonFormatter(), new GpxFormatter(), new KmlFormatter()};
+
+        StringBuilder results = new StringBuilder();
+        for (ExportFormat format : formats) {
+            // Once to warm up
+            export(format);
+            long start = System.nanoTime();
+            export(format);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            results.append(String.format(Locale.US, "; %s %.0f records/s, %d bytes",
+                    format.getFileExtension(), RECORDS / seconds, target.length()));
+        }
+        Log.i(getClass().getSimpleName(), RECORDS + " records" + results);
+    }
+
+    /**
+     * Export the DataRecords repeated from the tracks
+     * @param format The format of the file
+     */
+    private void export(ExportFormat format) throws IOException {
+        assertTrue(new ExportEngine(stateDirectory, new ExportEngine.Source() {
+            @Override
+            public List<DataRecord> read(long[] ids) {
+                List<DataRecord> dataRecords = new ArrayList<>(ids.length);
+                for (long id : ids) {
+                    DataRecord dataRecord = trackRecords.get((int) (id % trackRecords.size()));
+                    dataRecords.add(new DataRecord(dataRecord.getLocations(),
+                            dataRecord.getMeasureData(), dataRecord.getArduinoSoftware(),
+                            dataRecord.getArduinoTime(), dataRecord.getComment(),
+                            new Date(START_TIME + id * 1000), id));
+                }
+                return dataRecords;
+            }
+        }, new ExportEngine.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+            }
+        }, ExportEngine.defaultThreads()).export(ids, format, target));
+    }
+}
@@ -0,0 +1,247 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exports DataRecords created on the fly as GeoJSON, GPX and KML and reads the files again by
+ * a JSON and an XML parser. It runs on the device, as the DataRecords have Locations and the
+ * JSON parser is the one of Android.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GeoFormatterTest {
+    private static final int RECORDS = 2 * ExportEngine.CHUNK_SIZE + 10;
+    /** The receive time of the first DataRecord, 2017-06-01 10:00:00 UTC */
+    private static final long START_TIME = 1496311200000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File stateDirectory;
+    private File target;
+    private long[] ids;
+
+    @Before
+    public void createIDs() throws IOException {
+        stateDirectory = new File(folder.getRoot(), "state");
+        target = folder.newFile("export");
+        ids = new long[RECORDS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+    }
+
+    @Test
+    public void writesAFeatureCollection() throws IOException, JSONException {
+        export(new GeoJsonFormatter(), ids, -1);
+        JSONObject collection = new JSONObject(read(target));
+        assertEquals("FeatureCollection", collection.getString("type"));
+        JSONArray features = collection.getJSONArray("features");
+        assertEquals(RECORDS, features.length());
+
+        JSONObject feature = features.getJSONObject(1);
+        assertEquals("Feature", feature.getString("type"));
+        JSONArray coordinates = feature.getJSONObject("geometry").getJSONArray("coordinates");
+        assertEquals(8.8 - 1e-5, coordinates.getDouble(0), 1e-12);
+        assertEquals(53.1 + 1e-5, coordinates.getDouble(1), 1e-12);
+        assertEquals(1, coordinates.getDouble(2), 0);
+        JSONObject properties = feature.getJSONObject("properties");
+        assertEquals("2017-06-01T10:00:01Z", properties.getString("receive_time"));
+        assertEquals("Test \"1\"\n<&>", properties.getString("comment"));
+        assertEquals(1, properties.getLong("arduino_time"));
+        assertEquals(4.5, properties.getDouble("accuracy"), 0);
+        assertEquals(1.25, properties.getDouble("air-temperature"), 0);
+        assertEquals("deg C", properties.getString("air-temperature_unit"));
+        assertEquals(1, properties.getDouble("air-temperature_1"), 0);
+        assertEquals(1, properties.getDouble("humidity"), 0);
+        assertTrue(properties.isNull("missing"));
+        // A sensor named like a fixed property or like the unit of a sensor before
+        assertEquals(1.5, properties.getDouble("comment_4"), 0);
+        assertEquals("deg C", properties.getString("comment_4_unit"));
+        assertEquals(2, properties.getDouble("humidity_unit_5"), 0);
+
+        // Every tenth DataRecord has no location
+        assertTrue(features.getJSONObject(10).isNull("geometry"));
+    }
+
+    @Test
+    public void resumesAFeatureCollection() throws IOException, JSONException {
+        try {
+            export(new GeoJsonFormatter(), ids, 1);
+            fail("The failing chunk has been written");
+        } catch (IllegalStateException e) {
+            // Like the process being killed after the first chunk
+        }
+        new ExportEngine(stateDirectory, new RecordSource(-1), new NoListener(), 2).resume();
+        JSONArray features = new JSONObject(read(target)).getJSONArray("features");
+        assertEquals(RECORDS, features.length());
+        assertEquals("2017-06-01T10:33:29Z", features.getJSONObject(RECORDS - 1)
+                .getJSONObject("properties").getString("receive_time"));
+
+        // Nothing to export is an empty collection
+        export(new GeoJsonFormatter(), new long[0], -1);
+        assertEquals(0, new JSONObject(read(target)).getJSONArray("features").length());
+    }
+
+    @Test
+    public void writesATrack() throws Exception {
+        export(new GpxFormatter(), ids, -1);
+        Document gpx = parse(target);
+        assertEquals("gpx", gpx.getDocumentElement().getLocalName());
+        NodeList points = gpx.getElementsByTagNameNS("http://www.topografix.com/GPX/1/1",
+                "trkpt");
+        assertEquals(RECORDS - (RECORDS + 9) / 10, points.getLength());
+
+        Element point = (Element) points.item(0);
+        assertEquals(53.1 + 1e-5, Double.parseDouble(point.getAttribute("lat")), 1e-12);
+        assertEquals(8.8 - 1e-5, Double.parseDouble(point.getAttribute("lon")), 1e-12);
+        assertEquals("2017-06-01T10:00:01Z", text(point, "time"));
+        assertEquals("1", text(point, "ele"));
+        NodeList measures = point.getElementsByTagNameNS(
+                "https://github.com/ComNets-Bremen/GeoSensor", "measure");
+        // The value missing is left out
+        assertEquals(5, measures.getLength());
+        Element measure = (Element) measures.item(0);
+        assertEquals("temperature", measure.getAttribute("type"));
+        assertEquals("deg C", measure.getAttribute("unit"));
+        assertEquals("1.25", measure.getTextContent());
+    }
+
+    @Test
+    public void writesPlacemarks() throws Exception {
+        export(new KmlFormatter(), ids, -1);
+        Document kml = parse(target);
+        NodeList placemarks = kml.getElementsByTagNameNS("http://www.opengis.net/kml/2.2",
+                "Placemark");
+        assertEquals(RECORDS - (RECORDS + 9) / 10, placemarks.getLength());
+
+        Element placemark = (Element) placemarks.item(0);
+        assertEquals("2017-06-01T10:00:01Z", text(placemark, "when"));
+        String[] coordinates = text(placemark, "coordinates").split(",");
+        assertEquals(8.8 - 1e-5, Double.parseDouble(coordinates[0]), 1e-12);
+        assertEquals(53.1 + 1e-5, Double.parseDouble(coordinates[1]), 1e-12);
+        NodeList data = placemark.getElementsByTagName("Data");
+        int found = 0;
+        for (int i = 0; i < data.getLength(); i++) {
+            Element element = (Element) data.item(i);
+            if (element.getAttribute("name").equals("comment")) {
+                assertEquals("Test \"1\"\n<&>", text(element, "value"));
+                found++;
+            } else if (element.getAttribute("name").equals("comment_4")) {
+                assertEquals("1.5", text(element, "value"));
+                found++;
+            }
+        }
+        assertEquals(2, found);
+    }
+
+    private void export(ExportFormat format, long[] ids, int failingChunk) throws IOException {
+        assertTrue(new ExportEngine(stateDirectory, new RecordSource(failingChunk),
+                new NoListener(), 2).export(ids, format, target));
+    }
+
+    private static String read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return new String(bytes, GeoFormatter.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Document parse(File file) throws ParserConfigurationException, IOException,
+            SAXException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        return builder.parse(file);
+    }
+
+    private static String text(Element element, String name) {
+        return element.getElementsByTagNameNS("*", name).item(0).getTextContent();
+    }
+
+    private static class NoListener implements ExportEngine.Listener {
+        @Override
+        public void onProgress(int done, int total) {
+        }
+    }
+
+    /**
+     * Creates a DataRecord for every ID a second apart, failing for one chunk if requested.
+     * Every tenth DataRecord has no location.
+     */
+    private static class RecordSource implements ExportEngine.Source {
+        private final int failingChunk;
+
+        /**
+         * @param failingChunk The chunk to fail reading, -1 for none
+         */
+        RecordSource(int failingChunk) {
+            this.failingChunk = failingChunk;
+        }
+
+        @Override
+        public List<DataRecord> read(long[] ids) {
+            List<DataRecord> dataRecords = new ArrayList<>();
+            for (long id : ids) {
+                if (id / ExportEngine.CHUNK_SIZE == failingChunk) {
+                    throw new IllegalStateException("Database not available");
+                }
+                List<Location> locations = new ArrayList<>();
+                if (id % 10 != 0) {
+                    Location location = new Location("ArduinoGPS");
+                    location.setLatitude(53.1 + id * 1e-5);
+                    location.setLongitude(8.8 - id * 1e-5);
+                    location.setAltitude(id % 50);
+                    location.setAccuracy(4.5f);
+                    location.setTime(START_TIME + id * 1000L);
+                    locations.add(location);
+                }
+                List<MeasureData> measureData = new ArrayList<>();
+                measureData.add(new MeasureData("temperature", "DS18B20", "air-temperature",
+                        id % 30 + 0.25, "deg C"));
+                measureData.add(new MeasureData("temperature", "DHT11", "air-temperature",
+                        id % 30, "deg C"));
+                measureData.add(new MeasureData("humidity", "DHT11", "", id % 100, "%"));
+                measureData.add(new MeasureData("pressure", "BMP180", "missing", Double.NaN,
+                        "hPa"));
+                measureData.add(new MeasureData("temperature", "BMP180", "comment",
+                        id % 30 + 0.5, "deg C"));
+                measureData.add(new MeasureData("humidity", "BME280", "humidity_unit",
+                        id % 100 + 1, "%"));
+                dataRecords.add(new DataRecord(locations, measureData, "GeoSensorTemplate", id,
+                        "Test \"" + id + "\"\n<&>", new Date(START_TIME + id * 1000L), id));
+            }
+            return dataRecords;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.res.AssetManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the receive, parse and save path of the app (the TransducerReceiver) against the
+ * TransducerSimulator, replaying the protocol test suite and the field test tracks. Reports the
+ * sustained messages per second, the latency from receiving a message until it has been saved and
+ * the number of messages sent again.
+ *
+ * The records are saved to memory, so this measures the app without the database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IngestLoadTest {
+    private final List<byte[]> messages = new ArrayList<>();
+
+    @Before
+    public void readMessages() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getContext().getAssets();
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (String name : assets.list("")) {
+            if (name.endsWith(".json")) {
+                byte[] message = readAll(assets.open(name));
+                // Messages the app rejects would be sent again forever
+                try {
+                    if (protocolParser.parse(message, 0, message.length, new Date()) != null) {
+                        messages.add(message);
+                    }
+                } catch (ParseException ignored) {
+                }
+            } else if (name.endsWith("matlab.csv")) {
+                messages.addAll(TransducerSimulator.readCsvTrack(assets.open(name)));
+            }
+        }
+        assertFalse("The test messages are missing", messages.isEmpty());
+    }
+
+    @Test
+    public void asFastAsAcknowledged() throws Exception {
+        Result result = run(2000, 0, 0, 0, new Random(1));
+        assertEquals(2000, result.saved);
+        assertEquals(0, result.simulator.getNegativeAcknowledgements());
+    }
+
+    @Test
+    public void damagedMessagesAreSentAgain() throws Exception {
+        Result result = run(2000, 0, 0, 0.05, new Random(2));
+        // Every damaged message is answered with a NAK, the resent one is saved
+        assertEquals(2000, result.saved);
+        assertEquals(result.simulator.getDamaged(), result.simulator.getNegativeAcknowledgements());
+    }
+
+    @Test
+    public void fixedRateWithJitter() throws Exception {
+        Result result = run(200, 50, 10, 0.02, new Random(3));
+        assertEquals(200, result.saved);
+    }
+
+    /**
+     * The result of a run
+     */
+    private static class Result {
+        TransducerSimulator simulator;
+        int saved;
+    }
+
+    /**
+     * Replay the messages through the simulator and the TransducerReceiver connected by pipes
+     * @param count The number of messages to send
+     * @param rate The messages per second, 0 for as fast as possible
+     * @param jitterMillis The maximum random delay of a message
+     * @param corruptionRatio The probability a message is damaged
+     * @param random The source of the jitter and the damages
+     * @return The result of the run
+     */
+    private Result run(final int count, double rate, long jitterMillis, double corruptionRatio,
+                       Random random) throws Exception {
+        PipedOutputStream transducerOutput = new PipedOutputStream();
+        PipedInputStream appInput = new PipedInputStream(transducerOutput, 64 * 1024);
+        PipedOutputStream appOutput = new PipedOutputStream();
+        PipedInputStream transducerInput = new PipedInputStream(appOutput, 1024);
+        // A pipe only wakes up the reader on flush, the bluetooth stream sends immediately
+        OutputStream appCommands = new FilterOutputStream(appOutput) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                out.flush();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                out.flush();
+            }
+        };
+
+        final TransducerSimulator simulator = new TransducerSimulator(messages, transducerInput,
+                transducerOutput, random);
+        simulator.setRate(rate);
+        simulator.setJitterMillis(jitterMillis);
+        simulator.setCorruptionRatio(corruptionRatio);
+        // The resend timeout of the firmware is far longer than the latency here
+        simulator.setResendTimeoutMillis(2000);
+
+        LatencySink sink = new LatencySink(count);
+        TransducerReceiver receiver = new TransducerReceiver(appInput, appCommands,
+                new FrameBufferPool(4), new DeliveryWindow(), sink);
+
+        final Exception[] simulatorException = new Exception[1];
+        Thread simulatorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    simulator.run(count);
+                } catch (IOException | InterruptedException e) {
+                    simulatorException[0] = e;
+                }
+            }
+        }, "simulator");
+
+        long start = System.nanoTime();
+        simulatorThread.start();
+        receiver.receive();
+        IngestPipeline<DataRecord> pipeline = receiver.getPipeline();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+        long nanos = System.nanoTime() - start;
+        simulatorThread.join();
+        appOutput.close();
+        if (simulatorException[0] != null) {
+            throw simulatorException[0];
+        }
+
+        long[] latencies = sink.getLatencies();
+        Arrays.sort(latencies);
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "%d messages (rate %s, " +
+                        "jitter %d ms, corruption %.0f%%): %.0f messages/s, receive to save " +
+                        "p50 %d ms p99 %d ms max %d ms; %s; %s", count,
+                rate > 0 ? rate + "/s" : "unlimited", jitterMillis, corruptionRatio * 100,
+                sink.getSaved() / (nanos / 1e9), percentile(latencies, 0.5),
+                percentile(latencies, 0.99), latencies.length > 0 ? latencies[latencies.length - 1] : 0,
+                simulator, pipeline.getStatistics()));
+
+        Result result = new Result();
+        result.simulator = simulator;
+        result.saved = sink.getSaved();
+        return result;
+    }
+
+    /**
+     * The LatencySink keeps the time from receiving a message until its batch has been saved
+     */
+    private static class LatencySink implements TransducerReceiver.RecordSink {
+        private final long[] latencies;
+        private volatile int saved = 0;
+
+        LatencySink(int expected) {
+            latencies = new long[expected];
+        }
+
+        @Override
+        public void save(List<DataRecord> batch) {
+        }
+
+        @Override
+        public void saved(List<DataRecord> batch) {
+            long now = System.currentTimeMillis();
+            int count = saved;
+            for (DataRecord dataRecord : batch) {
+                if (count < latencies.length) {
+                    latencies[count] = now - dataRecord.getReceiveTime().getTime();
+                }
+                count++;
+            }
+            saved = count;
+        }
+
+        int getSaved() {
+            return saved;
+        }
+
+        long[] getLatencies() {
+            return Arrays.copyOf(latencies, Math.min(saved, latencies.length));
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            content.write(buffer, 0, count);
+        }
+        inputStream.close();
+        return content.toByteArray();
+    }
+}
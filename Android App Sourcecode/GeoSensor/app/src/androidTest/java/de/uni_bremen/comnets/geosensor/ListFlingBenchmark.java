@@ -0,0 +1,230 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Flings through the main list showing 50000 DataRecords and reports the frame times, once with
+ * the DataAdapter loading pages in the background and once with an adapter reading every
+ * DataRecord on the main thread like the DataAdapter did before. The DataRecords are saved to a
+ * separate database, so the data of the user is not touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ListFlingBenchmark {
+    private static final String DATABASE_NAME = "ListFlingBenchmark.db";
+    private static final int RECORDS = 50000;
+    private static final int FLING_VELOCITY = 20000;
+    /** The list is flung at most this often, should reach the end long before */
+    private static final int MAX_FLINGS = 200;
+    private static final long FLING_MILLIS = 500;
+    /** A frame taking longer than this is noticed by the user */
+    private static final double JANK_MILLIS = 1000.0 / 60;
+
+    private Context context;
+    private DataLab dataLab;
+    private Instrumentation instrumentation;
+    private Activity activity;
+
+    @Before
+    public void createDatabase() {
+        FilterState.resetFilter();
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        dataLab = new DataLab(context, DATABASE_NAME);
+
+        List<DataRecord> batch = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            Location location = new Location("ArduinoGPS");
+            location.setLatitude(53.1 + i * 1e-6);
+            location.setLongitude(8.8 + i * 1e-6);
+            location.setTime(i * 1000L);
+            List<MeasureData> measureData = new ArrayList<>();
+            measureData.add(new MeasureData("temperature", "DS18B20", "sensor0", i % 30, "°C"));
+            measureData.add(new MeasureData("humidity", "DHT22", "sensor1", i % 100, "%"));
+            batch.add(new DataRecord(Collections.singletonList(location), measureData,
+                    "GeoSensorTemplate", i, "Benchmark", new Date(i * 1000L), -1));
+            if (batch.size() == 1000) {
+                dataLab.saveDataRecords(batch);
+                batch.clear();
+            }
+        }
+
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        Intent intent = new Intent(context, MainActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        activity = instrumentation.startActivitySync(intent);
+        instrumentation.waitForIdleSync();
+    }
+
+    @After
+    public void deleteDatabase() {
+        activity.finish();
+        instrumentation.waitForIdleSync();
+        dataLab.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void flingThroughTheList() throws InterruptedException {
+        DataAdapter dataAdapter = new DataAdapter(activity, dataLab);
+        // The IDs are read in the background and set on the main thread
+        for (int i = 0; i < 100 && dataAdapter.getItemCount() != RECORDS; i++) {
+            SystemClock.sleep(50);
+            instrumentation.waitForIdleSync();
+        }
+        assertEquals(RECORDS, dataAdapter.getItemCount());
+        List<Double> paged = fling(dataAdapter);
+        dataAdapter.close();
+        List<Double> synchronous = fling(new SynchronousAdapter());
+
+        Log.i(getClass().getSimpleName(), String.format(Locale.US, "Fling through %d records: " +
+                        "paged median %.1f ms, p90 %.1f ms, p99 %.1f ms, %d of %d frames janky; " +
+                        "synchronous median %.1f ms, p90 %.1f ms, p99 %.1f ms, %d of %d frames " +
+                        "janky", RECORDS,
+                percentile(paged, 0.5), percentile(paged, 0.9), percentile(paged, 0.99),
+                janky(paged), paged.size(),
+                percentile(synchronous, 0.5), percentile(synchronous, 0.9),
+                percentile(synchronous, 0.99), janky(synchronous), synchronous.size()));
+    }
+
+    /**
+     * Show the adapter in the main list and fling through it to the end
+     * @param adapter The adapter
+     * @return The time between frames in milliseconds
+     */
+    private List<Double> fling(final RecyclerView.Adapter<?> adapter) throws InterruptedException {
+        final RecyclerView list = (RecyclerView) activity.findViewById(R.id.MainList);
+        final FrameRecorder frameRecorder = new FrameRecorder();
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                list.setAdapter(adapter);
+                list.scrollToPosition(0);
+            }
+        });
+        instrumentation.waitForIdleSync();
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(frameRecorder);
+            }
+        });
+        for (int i = 0; i < MAX_FLINGS && list.canScrollVertically(1); i++) {
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    list.fling(0, FLING_VELOCITY);
+                }
+            });
+            SystemClock.sleep(FLING_MILLIS);
+        }
+        frameRecorder.stop();
+        instrumentation.waitForIdleSync();
+        assertFalse("The end of the list has not been reached", list.canScrollVertically(1));
+        return frameRecorder.getFrameMillis();
+    }
+
+    private static int janky(List<Double> frameMillis) {
+        int janky = 0;
+        for (double millis : frameMillis) {
+            if (millis > JANK_MILLIS) {
+                janky++;
+            }
+        }
+        return janky;
+    }
+
+    private static double percentile(List<Double> values, double percentile) {
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get((int) Math.ceil(percentile * sorted.size()) - 1);
+    }
+
+    /**
+     * Records the time between the frames drawn until stopped
+     */
+    private static class FrameRecorder implements Choreographer.FrameCallback {
+        private final List<Double> frameMillis = new ArrayList<>();
+        private volatile boolean stopped = false;
+        private long lastFrameNanos = 0;
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (lastFrameNanos != 0) {
+                frameMillis.add((frameTimeNanos - lastFrameNanos) / 1e6);
+            }
+            lastFrameNanos = frameTimeNanos;
+            if (!stopped) {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        /**
+         * @return The frame times, call after stop() and waiting for the main thread
+         */
+        List<Double> getFrameMillis() {
+            return frameMillis;
+        }
+    }
+
+    /**
+     * Reads every DataRecord from the database when its element is shown, like the DataAdapter
+     * did before the DataRecordPager
+     */
+    private class SynchronousAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        private final long[] ids = dataLab.getFilteredIDs();
+
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View element = LayoutInflater.from(activity).inflate(R.layout.main_list_element,
+                    parent, false);
+            return new RecyclerView.ViewHolder(element) {};
+        }
+
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+            DataRecord dataRecord = dataLab.readDataRecordFromDatabase(ids[position]);
+            TextView date = (TextView) holder.itemView.findViewById(R.id.listItemDate);
+            TextView coordinates = (TextView) holder.itemView.findViewById(R.id.listItemSecondLine);
+            date.setText(dataRecord.getDate().toString());
+            coordinates.setText(dataRecord.getFormattedLatitude() + " " +
+                    dataRecord.getFormattedLongitude());
+        }
+
+        @Override
+        public int getItemCount() {
+            return ids.length;
+        }
+    }
+}
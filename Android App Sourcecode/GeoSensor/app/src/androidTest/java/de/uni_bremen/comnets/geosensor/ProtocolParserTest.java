@@ -0,0 +1,181 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.res.AssetManager;
+import android.location.Location;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the ProtocolParser with the org.json based parser using the messages of the protocol
+ * test suite (Tests/protocol, included as assets of the test application) and measures the time
+ * both need per message.
+ *
+ * This runs on the device as the results depend on the Android implementation of org.json.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProtocolParserTest {
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> messages = new ArrayList<>();
+
+    @Before
+    public void readMessages() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getContext().getAssets();
+        for (String name : assets.list("")) {
+            if (!name.endsWith(".json")) {
+                continue;
+            }
+            InputStream inputStream = assets.open(name);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            inputStream.close();
+            names.add(name);
+            messages.add(content.toByteArray());
+        }
+        assertFalse("The protocol test suite is missing", messages.isEmpty());
+    }
+
+    @Test
+    public void sameResultsAsOrgJson() throws Exception {
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] message = messages.get(i);
+            assertEquals(names.get(i), parseTree(message), parse(protocolParser, message));
+
+            // Remains of an earlier message before the { are ignored
+            byte[] garbage = "\u0003\r\n}xx".getBytes("US-ASCII");
+            byte[] withGarbage = new byte[garbage.length + message.length];
+            System.arraycopy(garbage, 0, withGarbage, 0, garbage.length);
+            System.arraycopy(message, 0, withGarbage, garbage.length, message.length);
+            assertEquals(names.get(i), parseTree(withGarbage), parse(protocolParser, withGarbage));
+
+            // Incomplete messages must be rejected the same way
+            for (int length = 0; length < message.length; length += 97) {
+                byte[] truncated = new byte[length];
+                System.arraycopy(message, 0, truncated, 0, length);
+                assertEquals(names.get(i), parseTree(truncated), parse(protocolParser, truncated));
+            }
+        }
+    }
+
+    @Test
+    public void sameConversionsAsOrgJson() throws Exception {
+        String[] values = {"0", "-0", "-0.0", "1e5", "0.1", "22.75", "-4.60", "2155261",
+                "59572515262", "12345678901234567890", "1e400", "true", "null", "\"13\"",
+                "\"abc\"", "\"\\u00e4\\n\"", "{}", "[1,[2]]", "0123", "'single'", "unquoted"};
+        String[] templates = {
+                "{\"sensors\":{\"s\":{\"value\":%s,\"unit\":%s}},\"comment\":%s}",
+                "{\"position\":{\"valid\":%s,\"latitude\":%s,\"date\":%s},\"sensors\":{}}",
+                "{\"position\":{\"altitude\":%s,\"time\":%s},\"sensors\":{\"s\":%s}}",
+                "{\"arduino_time\":%s,\"arduino_software\":%s,\"sensors\":{\"%s\":{}}}"};
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (String template : templates) {
+            for (String value : values) {
+                byte[] message = String.format(template, value, value, value).getBytes("US-ASCII");
+                assertEquals(new String(message), parseTree(message),
+                        parse(protocolParser, message));
+            }
+        }
+    }
+
+    /**
+     * A simple benchmark of both parsers. Each message is parsed repeatedly after a warm-up.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        ProtocolParser protocolParser = new ProtocolParser();
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] message = messages.get(i);
+            int iterations = 2000;
+            for (int j = 0; j < iterations / 4; j++) {
+                parseTree(message);
+                parse(protocolParser, message);
+            }
+            long start = System.nanoTime();
+            for (int j = 0; j < iterations; j++) {
+                parseTree(message);
+            }
+            long tree = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int j = 0; j < iterations; j++) {
+                parse(protocolParser, message);
+            }
+            long streaming = System.nanoTime() - start;
+            Log.i(getClass().getSimpleName(), String.format("%s: org.json %.1f us, " +
+                    "ProtocolParser %.1f us per message", names.get(i),
+                    tree / 1000.0 / iterations, streaming / 1000.0 / iterations));
+        }
+    }
+
+    /**
+     * The way messages were parsed before the ProtocolParser was introduced
+     */
+    private static String parseTree(byte[] message) throws Exception {
+        String jsonString = new String(message, "US-ASCII").trim();
+        if (!jsonString.contains("{")) {
+            return "no JSON";
+        }
+        try {
+            return describe(ProtocolParser.parseTree(
+                    jsonString.substring(jsonString.indexOf("{")), new Date(0)));
+        } catch (ParseException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static String parse(ProtocolParser protocolParser, byte[] message) {
+        try {
+            DataRecord dataRecord = protocolParser.parse(message, 0, message.length, new Date(0));
+            return dataRecord == null ? "no JSON" : describe(dataRecord);
+        } catch (ParseException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * @return A string containing all information of the DataRecord
+     */
+    private static String describe(DataRecord dataRecord) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(dataRecord.getArduinoSoftware()).append('|')
+                .append(dataRecord.getArduinoTime()).append('|')
+                .append(dataRecord.getComment()).append('|')
+                .append(dataRecord.getReceiveTime().getTime());
+        for (Location location : dataRecord.getLocations()) {
+            builder.append("\n").append(location.getProvider())
+                    .append(' ').append(Double.doubleToLongBits(location.getLatitude()))
+                    .append(' ').append(Double.doubleToLongBits(location.getLongitude()))
+                    .append(' ').append(location.hasAltitude())
+                    .append(' ').append(Double.doubleToLongBits(location.getAltitude()))
+                    .append(' ').append(location.hasAccuracy())
+                    .append(' ').append(Float.floatToIntBits(location.getAccuracy()))
+                    .append(' ').append(location.getTime());
+        }
+        for (MeasureData measureData : dataRecord.getMeasureData()) {
+            builder.append("\n").append(measureData.getType())
+                    .append('|').append(measureData.getSensor())
+                    .append('|').append(measureData.getName())
+                    .append('|').append(Double.doubleToLongBits(measureData.getValue()))
+                    .append('|').append(measureData.getUnit());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,124 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Location;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Applies a RetentionPolicy to a separate database and checks that the rollups contain the same
+ * minimum, maximum, mean and count as the DataRecords they replace.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RetentionEngineTest {
+    private static final String DATABASE_NAME = "RetentionEngineTest.db";
+    private static final long DAY = 24 * DataLab.RollupEntry.RESOLUTION_HOUR;
+    /** Three days of DataRecords, one every ten seconds */
+    private static final int RECORDS = 3 * 24 * 360;
+    private static final long INTERVAL = 10000;
+
+    private Context context;
+    private DataLab dataLab;
+    private long now;
+
+    @Before
+    public void createDatabase() {
+        FilterState.resetFilter();
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        dataLab = new DataLab(context, DATABASE_NAME);
+
+        now = 100 * DAY;
+        List<DataRecord> dataRecords = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            long time = now - i * INTERVAL;
+            Location location = new Location("ArduinoGPS");
+            location.setLatitude(53.1);
+            location.setLongitude(8.8);
+            location.setTime(time);
+            List<MeasureData> measureData = new ArrayList<>();
+            measureData.add(new MeasureData("temperature", "DS18B20", "sensor0", i % 7, "°C"));
+            dataRecords.add(new DataRecord(Collections.singletonList(location), measureData,
+                    "GeoSensorTemplate", i, "Test", new Date(time), -1));
+        }
+        dataLab.saveDataRecords(dataRecords);
+    }
+
+    @After
+    public void deleteDatabase() {
+        dataLab.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void disabledPolicyKeepsEverything() {
+        RetentionEngine engine = new RetentionEngine(dataLab, new RetentionPolicy(0, 365));
+        assertTrue(engine.run(now));
+        assertEquals(0, engine.getDataRecords());
+        assertEquals(RECORDS, dataLab.getFilteredIDs().length);
+    }
+
+    @Test
+    public void rollupsKeepTheStatistics() {
+        RetentionPolicy policy = new RetentionPolicy(1, 2);
+        RetentionEngine engine = new RetentionEngine(dataLab, policy);
+        assertTrue(engine.run(now));
+
+        long rawCutoff = policy.getRawCutoff(now);
+        int kept = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            if (now - i * INTERVAL >= rawCutoff) {
+                kept++;
+            }
+        }
+        assertEquals(RECORDS - kept, engine.getDataRecords());
+        assertEquals(kept, dataLab.getFilteredIDs().length);
+
+        Cursor cursor = dataLab.getReadableDatabase().rawQuery("SELECT SUM(count), MIN(minimum), " +
+                "MAX(maximum), SUM(mean * count) FROM measure_data_rollup", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(RECORDS - kept, cursor.getLong(0));
+            assertEquals(0, cursor.getDouble(1), 0);
+            assertEquals(6, cursor.getDouble(2), 0);
+            double sum = 0;
+            for (int i = kept; i < RECORDS; i++) {
+                sum += i % 7;
+            }
+            assertEquals(sum, cursor.getDouble(3), 1e-6);
+        } finally {
+            cursor.close();
+        }
+
+        // Nothing older than the minute cutoff is kept per minute
+        Cursor minutes = dataLab.getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " +
+                "measure_data_rollup WHERE resolution = ? AND start_time < ?", new String[]{
+                Long.toString(DataLab.RollupEntry.RESOLUTION_MINUTE),
+                Long.toString(policy.getMinuteCutoff(now))});
+        try {
+            assertTrue(minutes.moveToFirst());
+            assertEquals(0, minutes.getLong(0));
+        } finally {
+            minutes.close();
+        }
+
+        // A second run has nothing to do
+        engine = new RetentionEngine(dataLab, policy);
+        assertTrue(engine.run(now));
+        assertEquals(0, engine.getDataRecords());
+        assertEquals(0, engine.getRollups());
+    }
+}
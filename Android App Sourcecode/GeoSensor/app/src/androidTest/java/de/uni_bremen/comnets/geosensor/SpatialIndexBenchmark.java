@@ -0,0 +1,162 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.location.Location;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the bounding box and radius queries of the DataLab on one million positions spread
+ * over the surroundings of Bremen. The baseline reads the same positions by scanning the
+ * position table, like every query had to before the index. The DataRecords are saved to a
+ * separate database, so the data of the user is not touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SpatialIndexBenchmark {
+    private static final String DATABASE_NAME = "SpatialIndexBenchmark.db";
+    private static final int RECORDS = 1000000;
+    private static final int BATCH_SIZE = 10000;
+    /** The positions are spread over a square of this size in degrees */
+    private static final double AREA = 1;
+    private static final double SOUTH = 52.6;
+    private static final double WEST = 8.3;
+    /** The sizes of the bounding boxes queried in degrees, from a street to the whole area */
+    private static final double[] BOX_SIZES = {0.001, 0.01, 0.1, 1};
+    /** The radiuses queried in meters */
+    private static final double[] RADIUSES = {100, 1000, 10000};
+    private static final int QUERIES = 20;
+
+    private Context context;
+    private DataLab dataLab;
+    private final Random random = new Random(42);
+
+    @Before
+    public void createDatabase() {
+        FilterState.resetFilter();
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        dataLab = new DataLab(context, DATABASE_NAME);
+
+        List<DataRecord> batch = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            Location location = new Location("ArduinoGPS");
+            location.setLatitude(SOUTH + random.nextDouble() * AREA);
+            location.setLongitude(WEST + random.nextDouble() * AREA);
+            location.setTime(i * 1000L);
+            batch.add(new DataRecord(Collections.singletonList(location),
+                    new ArrayList<MeasureData>(), "GeoSensorTemplate", i, "Benchmark",
+                    new Date(i * 1000L), -1));
+            if (batch.size() == BATCH_SIZE) {
+                dataLab.saveDataRecords(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        dataLab.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void boundingBoxQueries() {
+        for (double size : BOX_SIZES) {
+            List<Double> indexed = new ArrayList<>();
+            List<Double> scanned = new ArrayList<>();
+            long found = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                double south = SOUTH + random.nextDouble() * (AREA - size);
+                double west = WEST + random.nextDouble() * (AREA - size);
+
+                long start = System.nanoTime();
+                int count = dataLab.readPositions(south, west, south + size, west + size).size();
+                indexed.add((System.nanoTime() - start) / 1e6);
+
+                start = System.nanoTime();
+                assertEquals(count, scan(south, west, south + size, west + size));
+                scanned.add((System.nanoTime() - start) / 1e6);
+                found += count;
+            }
+            Log.i(getClass().getSimpleName(), String.format(Locale.US, "Box of %.3f degrees " +
+                            "(%d positions on average): indexed median %.1f ms, p90 %.1f ms; " +
+                            "scan median %.1f ms, p90 %.1f ms", size, found / QUERIES,
+                    percentile(indexed, 0.5), percentile(indexed, 0.9),
+                    percentile(scanned, 0.5), percentile(scanned, 0.9)));
+        }
+    }
+
+    @Test
+    public void radiusQueries() {
+        for (double radius : RADIUSES) {
+            List<Double> millis = new ArrayList<>();
+            long found = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                double latitude = SOUTH + AREA / 4 + random.nextDouble() * AREA / 2;
+                double longitude = WEST + AREA / 4 + random.nextDouble() * AREA / 2;
+
+                long start = System.nanoTime();
+                List<RecordPosition> positions = dataLab.readPositionsWithin(latitude, longitude,
+                        radius);
+                millis.add((System.nanoTime() - start) / 1e6);
+                found += positions.size();
+
+                float[] distance = new float[1];
+                for (RecordPosition position : positions) {
+                    Location.distanceBetween(latitude, longitude, position.getLatitude(),
+                            position.getLongitude(), distance);
+                    assertTrue(distance[0] <= radius);
+                }
+            }
+            Log.i(getClass().getSimpleName(), String.format(Locale.US, "Radius of %.0f m " +
+                            "(%d positions on average): median %.1f ms, p90 %.1f ms", radius,
+                    found / QUERIES, percentile(millis, 0.5), percentile(millis, 0.9)));
+        }
+    }
+
+    /**
+     * Count the positions within a bounding box without using the index of the geohashes
+     */
+    private int scan(double south, double west, double north, double east) {
+        SQLiteDatabase db = dataLab.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT p.data_record_id, p.lat, p.lng FROM "
+                + "data_record_position p NOT INDEXED JOIN data_record r "
+                + "ON r._id = p.data_record_id WHERE p.lat BETWEEN ? AND ? "
+                + "AND p.lng BETWEEN ? AND ? AND r.receive_time BETWEEN ? AND ?", new String[]{
+                Double.toString(south), Double.toString(north), Double.toString(west),
+                Double.toString(east), Long.toString(FilterState.getStartTime().getTime()),
+                Long.toString(FilterState.getEndTime().getTime())});
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    private static double percentile(List<Double> values, double percentile) {
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get((int) Math.ceil(percentile * sorted.size()) - 1);
+    }
+}
@@ -0,0 +1,361 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * The TransducerSimulator behaves like the GeoSensorTemplate firmware sending JSON (with
+ * SRAM_RESEND), so the receiving side of the app can be tested without a bluetooth module. It is
+ * connected to any pair of streams, for example pipes or the streams of a local socket.
+ *
+ * The messages are replayed from a list, either at a given rate (like a transducer triggered
+ * periodically) or as fast as possible, in which case the next message is sent as soon as the
+ * previous one has been acknowledged. The last message is sent again on NAK or when it has not
+ * been acknowledged within the resend timeout. DC1 triggers the next message. Like the older
+ * firmware, the offer of the binary protocol (DC2) is ignored.
+ *
+ * Messages can be delayed randomly (jitter) and damaged with a given probability. A damaged
+ * message is cut off in the middle, as if bytes had been lost on the way.
+ */
+class TransducerSimulator {
+    private static final byte END_OF_TEXT = FrameReader.END_OF_TEXT;
+
+    private final List<byte[]> messages;
+    private final InputStream commandStream;
+    private final OutputStream outputStream;
+    private final Random random;
+
+    /** The messages per second, 0 for as fast as the acknowledgements arrive */
+    private double rate = 0;
+    private long jitterMillis = 0;
+    private double corruptionRatio = 0;
+    private long resendTimeoutMillis = 5000;
+
+    private final Object lock = new Object();
+    /** The message waiting for an acknowledgement or null */
+    private byte[] lastMessage = null;
+    private long lastSentMillis;
+    private int triggers = 0;
+
+    private volatile int sent = 0;
+    private volatile int acknowledged = 0;
+    private volatile int negativeAcknowledgements = 0;
+    private volatile int timeoutResends = 0;
+    private volatile int damaged = 0;
+    private volatile int overwritten = 0;
+
+    /**
+     * @param messages The messages to replay, without the terminating ETX
+     * @param commandStream The stream the commands of the app are read from
+     * @param outputStream The stream the messages are written to
+     * @param random The source of the jitter and the damages
+     */
+    TransducerSimulator(List<byte[]> messages, InputStream commandStream,
+                        OutputStream outputStream, Random random) {
+        this.messages = messages;
+        this.commandStream = commandStream;
+        this.outputStream = outputStream;
+        this.random = random;
+    }
+
+    /**
+     * @param rate The messages per second, 0 for sending the next message as soon as the previous
+     *             one has been acknowledged
+     */
+    void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @param jitterMillis The maximum random delay added before a message is sent
+     */
+    void setJitterMillis(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param corruptionRatio The probability a message (or a resent one) is damaged
+     */
+    void setCorruptionRatio(double corruptionRatio) {
+        this.corruptionRatio = corruptionRatio;
+    }
+
+    /**
+     * @param resendTimeoutMillis The time after which a message not acknowledged is sent again
+     */
+    void setResendTimeoutMillis(long resendTimeoutMillis) {
+        this.resendTimeoutMillis = resendTimeoutMillis;
+    }
+
+    /**
+     * Send the messages. The commands of the app are handled by a separate thread meanwhile.
+     * Returns when all messages have been sent and the last one has been acknowledged, then the
+     * output stream is closed.
+     * @param count The number of messages to send, the list is repeated if necessary
+     * @throws IOException If writing fails
+     * @throws InterruptedException If the thread is interrupted
+     */
+    void run(int count) throws IOException, InterruptedException {
+        Thread commandThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readCommands();
+            }
+        }, "TransducerSimulator commands");
+        commandThread.setDaemon(true);
+        commandThread.start();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            synchronized (lock) {
+                if (rate > 0) {
+                    // A new measurement replaces the one not acknowledged yet, like the firmware
+                    long due = start + (long) (i * 1000 / rate);
+                    while (System.currentTimeMillis() < due && triggers == 0) {
+                        lock.wait(Math.max(1, due - System.currentTimeMillis()));
+                        resendIfTimedOut();
+                    }
+                    if (lastMessage != null) {
+                        overwritten++;
+                    }
+                } else {
+                    while (lastMessage != null) {
+                        lock.wait(Math.max(1, lastSentMillis + resendTimeoutMillis
+                                - System.currentTimeMillis()));
+                        resendIfTimedOut();
+                    }
+                }
+                if (triggers > 0) {
+                    triggers--;
+                }
+                // Not sent yet, so there is nothing to acknowledge or resend while waiting
+                lastMessage = null;
+            }
+            byte[] message = messages.get(i % messages.size());
+            if (jitterMillis > 0) {
+                Thread.sleep((long) (random.nextDouble() * jitterMillis));
+            }
+            synchronized (lock) {
+                lastMessage = message;
+                send(message);
+                sent++;
+            }
+        }
+
+        synchronized (lock) {
+            while (lastMessage != null) {
+                lock.wait(Math.max(1, lastSentMillis + resendTimeoutMillis
+                        - System.currentTimeMillis()));
+                resendIfTimedOut();
+            }
+        }
+        outputStream.close();
+    }
+
+    /** @return The number of messages sent, not counting the ones sent again */
+    int getSent() {
+        return sent;
+    }
+
+    /** @return The number of acknowledgements received */
+    int getAcknowledged() {
+        return acknowledged;
+    }
+
+    /** @return The number of messages sent again because of a NAK */
+    int getNegativeAcknowledgements() {
+        return negativeAcknowledgements;
+    }
+
+    /** @return The number of messages sent again because the acknowledgement did not arrive */
+    int getTimeoutResends() {
+        return timeoutResends;
+    }
+
+    /** @return The number of messages damaged on purpose */
+    int getDamaged() {
+        return damaged;
+    }
+
+    /** @return The number of messages replaced by the next one before being acknowledged */
+    int getOverwritten() {
+        return overwritten;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d sent, %d acknowledged, %d damaged, %d resent on NAK, " +
+                        "%d resent on timeout, %d overwritten", sent, acknowledged, damaged,
+                negativeAcknowledgements, timeoutResends, overwritten);
+    }
+
+    private void readCommands() {
+        try {
+            int command;
+            while ((command = commandStream.read()) != -1) {
+                synchronized (lock) {
+                    switch (command) {
+                        case TransducerReceiver.ACKNOWLEDGE:
+                            if (lastMessage != null) {
+                                acknowledged++;
+                                lastMessage = null;
+                            }
+                            break;
+                        case TransducerReceiver.NEGATIVE_ACKNOWLEDGE:
+                            if (lastMessage != null) {
+                                negativeAcknowledgements++;
+                                send(lastMessage);
+                            }
+                            break;
+                        case TransducerReceiver.DEVICE_CONTROL_1:
+                            triggers++;
+                            break;
+                        default:
+                            // DC2 and sequence numbers belong to the binary protocol
+                            break;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException ignored) {
+            // The app has closed the connection
+        }
+    }
+
+    /** Must be called holding the lock */
+    private void resendIfTimedOut() throws IOException {
+        if (lastMessage != null && System.currentTimeMillis() - lastSentMillis >= resendTimeoutMillis) {
+            timeoutResends++;
+            send(lastMessage);
+        }
+    }
+
+    /** Must be called holding the lock */
+    private void send(byte[] message) throws IOException {
+        lastSentMillis = System.currentTimeMillis();
+        int length = message.length;
+        if (random.nextDouble() < corruptionRatio) {
+            // Cut off somewhere between the first { and the last }, which is always invalid
+            int first = indexOf(message, (byte) '{');
+            int last = lastIndexOf(message, (byte) '}');
+            if (first >= 0 && last > first) {
+                damaged++;
+                length = first + 1 + random.nextInt(last - first);
+            }
+        }
+        outputStream.write(message, 0, length);
+        outputStream.write(END_OF_TEXT);
+        outputStream.flush();
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte b) {
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Convert a track exported from the app (the matlab format of Tests/field test and gps) into
+     * the JSON messages the transducer sent. The ArduinoGPS location becomes the position.
+     * @param inputStream The CSV file
+     * @return The messages in the order of the file, without the terminating ETX
+     * @throws IOException If reading fails or the file has an unexpected format
+     */
+    static List<byte[]> readCsvTrack(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream,
+                Charset.forName("UTF-8")));
+        String header = reader.readLine();
+        if (header == null) {
+            throw new IOException("The track is empty");
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : header.split(",")) {
+            columns.add(column.trim());
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+
+        List<byte[]> messages = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] values = line.split(",", -1);
+            StringBuilder json = new StringBuilder("{\n");
+            if ("ArduinoGPS".equals(value(columns, values, "provider_0"))) {
+                try {
+                    calendar.setTime(dateFormat.parse(value(columns, values, "time_0")));
+                } catch (ParseException e) {
+                    throw new IOException("Invalid time in the track: " + line);
+                }
+                json.append("\"position\": {\"valid\": true, \"latitude\": ")
+                        .append(value(columns, values, "lat_0"))
+                        .append(", \"longitude\": ").append(value(columns, values, "lng_0"))
+                        .append(", \"altitude\": ").append(value(columns, values, "altitude_0"))
+                        .append(", \"date\": ").append(calendar.get(Calendar.DAY_OF_MONTH) * 10000
+                        + (calendar.get(Calendar.MONTH) + 1) * 100 + calendar.get(Calendar.YEAR) % 100)
+                        .append(", \"time\": ").append(calendar.get(Calendar.HOUR_OF_DAY) * 1000000
+                        + calendar.get(Calendar.MINUTE) * 10000 + calendar.get(Calendar.SECOND) * 100)
+                        .append("},\n");
+            } else {
+                json.append("\"position\": {\"valid\": false},\n");
+            }
+            json.append("\"sensors\": {\n");
+            for (int i = 0; columns.contains("type_" + i); i++) {
+                if (i > 0) {
+                    json.append(",\n");
+                }
+                json.append("\"sensor").append(i).append("\": {\"type\": \"")
+                        .append(value(columns, values, "type_" + i))
+                        .append("\", \"sensor\": \"").append(value(columns, values, "sensor_" + i))
+                        .append("\", \"name\": \"").append(value(columns, values, "name_" + i))
+                        .append("\", \"value\": ").append(value(columns, values, "value_" + i))
+                        .append(", \"unit\": \"").append(value(columns, values, "unit_" + i))
+                        .append("\"}");
+            }
+            json.append("},\n\"arduino_software\": \"")
+                    .append(value(columns, values, "arduino_software"))
+                    .append("\",\n\"arduino_time\": ").append(value(columns, values, "arduino_time"))
+                    .append(",\n\"comment\": \"").append(value(columns, values, "comment"))
+                    .append("\"\n}\n");
+            messages.add(json.toString().getBytes(Charset.forName("UTF-8")));
+        }
+        reader.close();
+        return messages;
+    }
+
+    private static String value(List<String> columns, String[] values, String column)
+            throws IOException {
+        int index = columns.indexOf(column);
+        if (index < 0 || index >= values.length) {
+            throw new IOException("Column missing in the track: " + column);
+        }
+        return values[index].trim();
+    }
+}
@@ -24,6 +24,8 @@ public class App extends Application {
     public void onCreate() {
         super.onCreate();
         App.context = getApplicationContext();
+        // Old data is summarized in the background if the user has chosen to
+        RetentionScheduler.schedule(this);
     }
 
     /**
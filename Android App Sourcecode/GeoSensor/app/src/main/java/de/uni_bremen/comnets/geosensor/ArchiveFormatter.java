@@ -0,0 +1,101 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import de.uni_bremen.comnets.geosensor.archive.ArchiveRecord;
+import de.uni_bremen.comnets.geosensor.archive.ArchiveWriter;
+import de.uni_bremen.comnets.geosensor.archive.BlockEncoder;
+
+/**
+ * The ArchiveFormatter writes DataRecords in the columnar archive format of the archive library,
+ * which can be read by the ArchiveReader on any Java VM. Every chunk of the ExportEngine becomes
+ * a block of the archive, the index of the blocks is the trailer.
+ *
+ * The archive is meant for keeping the measurements, so all locations of a DataRecord are
+ * written, whatever the csv settings are.
+ */
+class ArchiveFormatter implements ExportFormat {
+    /** The type of the archive format in the checkpoint of the ExportEngine */
+    static final int TYPE = 1;
+
+    // Reused for every DataRecord of the chunk
+    private final ArchiveRecord archiveRecord = new ArchiveRecord();
+
+    /**
+     * @return A new ArchiveFormatter, there are no settings to copy
+     */
+    @Override
+    public ArchiveFormatter copy() {
+        return new ArchiveFormatter();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    @Override
+    public byte[] getHeader() {
+        return ArchiveWriter.getHeader();
+    }
+
+    /**
+     * @param dataRecords The DataRecords of a chunk
+     * @return A block containing the DataRecords
+     */
+    @Override
+    public byte[] formatChunk(List<DataRecord> dataRecords) {
+        BlockEncoder encoder = new BlockEncoder();
+        for (DataRecord dataRecord : dataRecords) {
+            encoder.add(toArchiveRecord(dataRecord));
+        }
+        return encoder.finish();
+    }
+
+    /**
+     * @param file The archive written so far
+     * @return The index of the blocks in the file
+     */
+    @Override
+    public byte[] getTrailer(RandomAccessFile file) throws IOException {
+        return ArchiveWriter.getIndex(file);
+    }
+
+    @Override
+    public void writeSettings(DataOutputStream out) {
+    }
+
+    @Override
+    public String getMimeType() {
+        return "application/octet-stream";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "gsa";
+    }
+
+    /**
+     * @param dataRecord The DataRecord
+     * @return The reused ArchiveRecord filled with the data of the DataRecord
+     */
+    private ArchiveRecord toArchiveRecord(DataRecord dataRecord) {
+        archiveRecord.set(dataRecord.getReceiveTime().getTime(), dataRecord.getArduinoTime(),
+                dataRecord.getArduinoSoftware(), dataRecord.getComment());
+        for (Location location : dataRecord.getLocations()) {
+            archiveRecord.addLocation(location.getLatitude(), location.getLongitude(),
+                    location.getTime(), location.getProvider(), location.getAltitude(),
+                    location.getAccuracy());
+        }
+        for (MeasureData measureData : dataRecord.getMeasureData()) {
+            archiveRecord.addMeasureData(measureData.getType(), measureData.getName(),
+                    measureData.getSensor(), measureData.getValue(), measureData.getUnit());
+        }
+        return archiveRecord;
+    }
+}
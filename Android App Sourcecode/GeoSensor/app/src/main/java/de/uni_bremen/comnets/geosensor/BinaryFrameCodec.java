@@ -0,0 +1,170 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.io.ByteArrayOutputStream;
+import java.text.ParseException;
+
+/**
+ * The BinaryFrameCodec handles the framing of the compact binary protocol.
+ *
+ * The app offers the binary protocol by sending DC2 after connecting. Transducers not supporting
+ * it ignore the DC2 and keep sending JSON, newer ones answer with a schema frame and send binary
+ * frames from then on. Both kinds of messages are terminated by End of Text, so they are received
+ * by the same FrameReader and told apart by their first byte.
+ *
+ * A binary frame looks like this (the length and the CRC are little endian):
+ *
+ *     SOH | type | length (2 bytes) | payload (length bytes) | CRC (2 bytes) | ETX
+ *
+ * The CRC is the CRC-16/CCITT-FALSE of the type, the length and the payload. To keep ETX
+ * unambiguous, every ETX or DLE byte between the SOH and the final ETX is sent as DLE followed by
+ * the byte XOR 0x20.
+ *
+ * The contents of the payload are decoded by the BinaryMessageDecoder.
+ */
+class BinaryFrameCodec {
+    /** Start of Heading, the first byte of every binary frame */
+    static final byte START_OF_HEADING = 0x01;
+    /** Data Link Escape, precedes escaped bytes */
+    static final byte DATA_LINK_ESCAPE = 0x10;
+    /** Device Control 2, sent by the app to offer the binary protocol or to request the schema */
+    static final byte DEVICE_CONTROL_2 = 0x12;
+
+    /** The frame types */
+    static final byte TYPE_SCHEMA = 'S';
+    static final byte TYPE_SAMPLE = 'D';
+
+    /** The bytes of a frame besides the payload: SOH, type, length and CRC */
+    static final int OVERHEAD = 6;
+
+    /** Escaped bytes are XORed with this value */
+    private static final int ESCAPE_MASK = 0x20;
+
+    private BinaryFrameCodec() {
+    }
+
+    /**
+     * Check if a message received is a binary frame. Line breaks before the frame are ignored, as
+     * they might be left over from a previous JSON message.
+     * @param bytes The array containing the message
+     * @param offset The index of the first byte of the message
+     * @param length The length of the message
+     * @return true if the message is a binary frame, false if it should be parsed as JSON
+     */
+    static boolean isBinaryFrame(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] == START_OF_HEADING) {
+                return true;
+            }
+            if (bytes[i] != '\r' && bytes[i] != '\n') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the escaping of a frame and check its length and CRC.
+     * @param bytes The array containing the message, starting with the SOH (after line breaks)
+     *              and without the terminating ETX
+     * @param offset The index of the first byte of the message
+     * @param length The length of the message
+     * @param destination The array the type and the payload are written to. It needs to be at
+     *                    least as long as the message.
+     * @return The number of bytes written to destination: the type followed by the payload
+     * @throws ParseException If the frame is damaged
+     */
+    static int unwrap(byte[] bytes, int offset, int length, byte[] destination)
+            throws ParseException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && bytes[i] != START_OF_HEADING) {
+            i++;
+        }
+        i++;
+
+        int count = 0;
+        while (i < end) {
+            byte b = bytes[i++];
+            if (b == DATA_LINK_ESCAPE) {
+                if (i == end) {
+                    throw new ParseException("Invalid binary frame", count);
+                }
+                b = (byte) (bytes[i++] ^ ESCAPE_MASK);
+            }
+            destination[count++] = b;
+        }
+
+        // type, length and CRC
+        if (count < 5) {
+            throw new ParseException("Invalid binary frame", count);
+        }
+        int payloadLength = (destination[1] & 0xFF) | (destination[2] & 0xFF) << 8;
+        if (payloadLength != count - 5) {
+            throw new ParseException("Invalid binary frame length", count);
+        }
+        int crc = (destination[count - 2] & 0xFF) | (destination[count - 1] & 0xFF) << 8;
+        if (crc != crc16(destination, 0, count - 2)) {
+            throw new ParseException("Invalid binary frame CRC", count);
+        }
+
+        // The length is not needed anymore, the payload is moved directly behind the type
+        System.arraycopy(destination, 3, destination, 1, payloadLength);
+        return payloadLength + 1;
+    }
+
+    /**
+     * Build a frame including the escaping and the terminating ETX.
+     * This is what the transducer does, the app itself never sends frames.
+     * @param type The type of the frame
+     * @param payload The array containing the payload
+     * @param offset The index of the first byte of the payload
+     * @param length The length of the payload
+     * @param out The stream the frame is written to
+     */
+    static void wrap(byte type, byte[] payload, int offset, int length, ByteArrayOutputStream out) {
+        byte[] header = {type, (byte) length, (byte) (length >> 8)};
+        int crc = crc16(header, 0, header.length);
+        crc = crc16(crc, payload, offset, length);
+
+        out.write(START_OF_HEADING);
+        writeEscaped(header, 0, header.length, out);
+        writeEscaped(payload, offset, length, out);
+        writeEscaped(new byte[] {(byte) crc, (byte) (crc >> 8)}, 0, 2, out);
+        out.write(FrameReader.END_OF_TEXT);
+    }
+
+    /**
+     * Calculate the CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF). This is the
+     * same as _crc_xmodem_update() of the AVR libc starting with 0xFFFF.
+     * @param bytes The array containing the data
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return The CRC
+     */
+    static int crc16(byte[] bytes, int offset, int length) {
+        return crc16(0xFFFF, bytes, offset, length);
+    }
+
+    private static int crc16(int crc, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (bytes[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    private static void writeEscaped(byte[] bytes, int offset, int length,
+                                     ByteArrayOutputStream out) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == FrameReader.END_OF_TEXT || b == DATA_LINK_ESCAPE) {
+                out.write(DATA_LINK_ESCAPE);
+                out.write(b ^ ESCAPE_MASK);
+            } else {
+                out.write(b);
+            }
+        }
+    }
+}
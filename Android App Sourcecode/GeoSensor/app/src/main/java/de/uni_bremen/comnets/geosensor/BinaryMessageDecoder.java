@@ -0,0 +1,295 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The BinaryMessageDecoder reads the binary frames sent by transducers supporting the compact
+ * binary protocol (see BinaryFrameCodec for the framing).
+ *
+ * Most of a JSON message consists of keys, sensor names and units which are the same in every
+ * message. In the binary protocol these are sent only once per connection in a schema frame:
+ *
+ *     version (1) | arduino_software | comment | sensor count |
+ *     for every sensor: type | sensor | name | unit | decimals
+ *
+ * Strings are sent as a length byte followed by the ASCII characters. The schema is followed by
+ * sample frames containing only numbers:
+ *
+ *     number | flags | [base] | arduino_time | [latitude | longitude | altitude | date | time] |
+ *     the value of every sensor in the order of the schema
+ *
+ * The number is the sequence number of the sample (modulo 128, see DeliveryWindow). All numbers
+ * after the flags are 32 bit integers
+ * sent as zigzag encoded variable length integers (7 bits per byte, least significant first).
+ * The latitude and longitude are given in 1e-7 degrees, the altitude in centimeters, the date
+ * and time in the format of TinyGPS++. The sensor values are multiplied by 10^decimals, the
+ * smallest integer stands for NaN. The position is only included if the POSITION flag is set.
+ *
+ * If the DELTA flag is set, every number is the difference to the same number of the sample given
+ * by base. This is the last sample the transducer has received an acknowledgement for. As several
+ * samples can be on the way, the decoder keeps every sample decoded by its sequence number. If
+ * the base is not known (for example because the transducer has been connected to another app in
+ * the meantime), the sample can not be decoded. In this case the app sends DC2 before the NAK,
+ * which makes the transducer send the schema again and all numbers without delta until the next
+ * acknowledgement.
+ *
+ * Bytes following the known contents of a frame are ignored, so they can be used for extensions.
+ *
+ * A BinaryMessageDecoder holds the state of a single connection and is not thread-safe.
+ */
+class BinaryMessageDecoder {
+    /** The version of the schema frame */
+    static final int VERSION = 1;
+
+    /** The position is included in the sample */
+    static final int FLAG_POSITION = 0x01;
+    /** The numbers are differences to the sample given by base */
+    static final int FLAG_DELTA = 0x02;
+
+    /** The value sent for a sensor value that is not a number */
+    static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+
+    /** More decimals can not be represented in 32 bits anyway */
+    private static final int MAX_DECIMALS = 9;
+
+    /** The indices of the numbers of a sample, the sensor values follow */
+    private static final int ARDUINO_TIME = 0;
+    private static final int LATITUDE = 1;
+    private static final int LONGITUDE = 2;
+    private static final int ALTITUDE = 3;
+    private static final int DATE = 4;
+    private static final int TIME = 5;
+    private static final int SENSORS = 6;
+
+    /**
+     * The description of a sensor taken from the schema
+     */
+    private static class Sensor {
+        final String type;
+        final String sensor;
+        final String name;
+        final String unit;
+        /** The value sent is divided by this */
+        final double scale;
+
+        Sensor(String type, String sensor, String name, String unit, int decimals) {
+            this.type = type;
+            this.sensor = sensor;
+            this.name = name;
+            this.unit = unit;
+            this.scale = Math.pow(10, decimals);
+        }
+    }
+
+    private final GpsTimeDecoder gpsTimeDecoder = new GpsTimeDecoder();
+
+    /** The frame currently decoded without the escaping */
+    private byte[] buffer = new byte[256];
+    private int position;
+    private int limit;
+
+    /** The schema, the sensors are null until a schema frame has been received */
+    private String arduinoSoftware;
+    private String comment;
+    private Sensor[] sensors = null;
+
+    /** The numbers of the sample currently decoded */
+    private int[] values;
+    /** The numbers of the samples decoded by sequence number, they might become the base */
+    private final int[][] samples = new int[DeliveryWindow.SEQUENCE_NUMBERS][];
+    private final boolean[] samplesValid = new boolean[DeliveryWindow.SEQUENCE_NUMBERS];
+    private final boolean[] samplesPosition = new boolean[DeliveryWindow.SEQUENCE_NUMBERS];
+    /** The numbers of the base of the sample currently decoded */
+    private int[] reference;
+
+    /** The sequence number of the last sample decoded */
+    private int sequenceNumber = -1;
+
+    /** Set if a sample could not be decoded as the schema or the reference is missing */
+    private boolean schemaRequired = false;
+
+    /**
+     * Decode a binary frame
+     * @param bytes The array containing the message
+     * @param offset The index of the first byte of the message
+     * @param length The length of the message
+     * @param receiveTime The time the message was received
+     * @return The DataRecord of a sample frame or null for a schema frame
+     * @throws ParseException If the frame is invalid or can not be decoded
+     */
+    DataRecord decode(byte[] bytes, int offset, int length, Date receiveTime)
+            throws ParseException {
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        limit = BinaryFrameCodec.unwrap(bytes, offset, length, buffer);
+        position = 1;
+
+        switch (buffer[0]) {
+            case BinaryFrameCodec.TYPE_SCHEMA:
+                readSchema();
+                return null;
+            case BinaryFrameCodec.TYPE_SAMPLE:
+                return readSample(receiveTime);
+            default:
+                throw new ParseException("Unknown binary frame type", 0);
+        }
+    }
+
+    /**
+     * @return true if the last sample could not be decoded because the schema or the reference
+     *      sample is missing. The transducer has to be asked to send the schema again.
+     */
+    boolean isSchemaRequired() {
+        return schemaRequired;
+    }
+
+    /**
+     * @return The sequence number of the last sample decoded successfully
+     */
+    int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    private void readSchema() throws ParseException {
+        if (readByte() != VERSION) {
+            throw new ParseException("Unsupported binary protocol version", position);
+        }
+        String arduinoSoftware = readString();
+        String comment = readString();
+        Sensor[] sensors = new Sensor[readByte()];
+        for (int i = 0; i < sensors.length; i++) {
+            String type = readString();
+            String sensor = readString();
+            String name = readString();
+            String unit = readString();
+            int decimals = readByte();
+            if (decimals > MAX_DECIMALS) {
+                throw new ParseException("Invalid number of decimals", position);
+            }
+            sensors[i] = new Sensor(type, sensor, name, unit, decimals);
+        }
+
+        // The transducer starts again without delta after sending the schema
+        this.arduinoSoftware = arduinoSoftware;
+        this.comment = comment;
+        this.sensors = sensors;
+        values = new int[SENSORS + sensors.length];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new int[SENSORS + sensors.length];
+            samplesValid[i] = false;
+        }
+        schemaRequired = false;
+    }
+
+    private DataRecord readSample(Date receiveTime) throws ParseException {
+        if (sensors == null) {
+            schemaRequired = true;
+            throw new ParseException("Binary sample received before the schema", 0);
+        }
+        int number = readByte();
+        if (number >= DeliveryWindow.SEQUENCE_NUMBERS) {
+            throw new ParseException("Invalid sequence number", position);
+        }
+        int flags = readByte();
+        boolean delta = (flags & FLAG_DELTA) != 0;
+        boolean hasPosition = (flags & FLAG_POSITION) != 0;
+        boolean referencePosition = false;
+        if (delta) {
+            int base = readByte();
+            if (base >= DeliveryWindow.SEQUENCE_NUMBERS || !samplesValid[base]) {
+                schemaRequired = true;
+                throw new ParseException("Binary sample relative to an unknown sample", 0);
+            }
+            reference = samples[base];
+            referencePosition = samplesPosition[base];
+        }
+
+        values[ARDUINO_TIME] = readNumber(ARDUINO_TIME, delta);
+        if (hasPosition) {
+            boolean positionDelta = delta && referencePosition;
+            for (int i = LATITUDE; i <= TIME; i++) {
+                values[i] = readNumber(i, positionDelta);
+            }
+        }
+        for (int i = SENSORS; i < values.length; i++) {
+            values[i] = readNumber(i, delta);
+        }
+
+        List<Location> locations = new ArrayList<>();
+        if (hasPosition) {
+            Location loc = new Location("ArduinoGPS");
+            loc.setLatitude(values[LATITUDE] / 1e7);
+            loc.setLongitude(values[LONGITUDE] / 1e7);
+            loc.setAltitude(values[ALTITUDE] / 100.0);
+            loc.setTime(gpsTimeDecoder.decode(values[DATE] & 0xFFFFFFFFL,
+                    values[TIME] & 0xFFFFFFFFL));
+            locations.add(loc);
+        }
+        List<MeasureData> measureData = new ArrayList<>(sensors.length);
+        for (int i = 0; i < sensors.length; i++) {
+            Sensor sensor = sensors[i];
+            int value = values[SENSORS + i];
+            measureData.add(new MeasureData(sensor.type, sensor.sensor, sensor.name,
+                    value == NOT_A_NUMBER ? Double.NaN : value / sensor.scale, sensor.unit));
+        }
+
+        // The sample has been decoded completely, it might be the base of the next ones
+        System.arraycopy(values, 0, samples[number], 0, values.length);
+        samplesValid[number] = true;
+        samplesPosition[number] = hasPosition;
+        sequenceNumber = number;
+
+        return new DataRecord(locations, measureData, arduinoSoftware,
+                values[ARDUINO_TIME] & 0xFFFFFFFFL, comment, receiveTime, -1);
+    }
+
+    /**
+     * Read a number of a sample
+     * @param index The index of the number in the sample
+     * @param delta true if the number is the difference to the reference
+     * @return The number
+     */
+    private int readNumber(int index, boolean delta) throws ParseException {
+        int number = readVarint();
+        // zigzag decoding, the differences are calculated modulo 2^32 by both sides
+        number = (number >>> 1) ^ -(number & 1);
+        return delta ? reference[index] + number : number;
+    }
+
+    private int readVarint() throws ParseException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new ParseException("Invalid number in binary frame", position);
+    }
+
+    private int readByte() throws ParseException {
+        if (position >= limit) {
+            throw new ParseException("Binary frame too short", position);
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @SuppressWarnings("deprecation")
+    private String readString() throws ParseException {
+        int length = readByte();
+        if (position + length > limit) {
+            throw new ParseException("Binary frame too short", position);
+        }
+        // The strings only contain ASCII characters
+        String result = new String(buffer, 0, position, length);
+        position += length;
+        return result;
+    }
+}
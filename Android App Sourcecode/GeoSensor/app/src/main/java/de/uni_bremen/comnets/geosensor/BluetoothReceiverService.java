@@ -31,11 +31,7 @@ import android.widget.Toast;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.text.ParseException;
-import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -68,6 +64,9 @@ public class BluetoothReceiverService extends Service
     public final static String INTENT_ACQUIRE_MEASURE_DATA = "acquireMeasureData";
     public final static String INTENT_RESEND_MEASURE_DATA = "resendMeasureData";
     public final static String INTENT_DATA_RECORD_RECEIVED = "dataRecordReceived";
+    // The extras of INTENT_DATA_RECORD_RECEIVED: the database IDs and receive times (long[])
+    public final static String EXTRA_DATA_RECORD_IDS = "dataRecordIDs";
+    public final static String EXTRA_RECEIVE_TIMES = "receiveTimes";
 
     // the id given to the notification manager for the ongoing notifications (arbitrary)
     private final static int ONGOING_NOTIFICATION_ID = 1;
@@ -78,12 +77,20 @@ public class BluetoothReceiverService extends Service
     // objects used for the bluetooth communication
     // declared volatile as different threads are used for the bluetooth operations
     private volatile DataLab dataLab;
+    private volatile DeviceLocationRequester deviceLocationRequester;
     private final BluetoothAdapter bluetoothAdapter;
     private volatile BluetoothDevice bluetoothDevice;
     private volatile BluetoothSocket bluetoothSocket;
     private volatile InputStream inputStream;
     private volatile OutputStream outputStream;
 
+    // the buffers for the received messages are reused for all connections
+    private final FrameBufferPool frameBufferPool = new FrameBufferPool(4);
+
+    // the binary samples received, kept for all connections to recognize samples sent again
+    private final DeliveryWindow deliveryWindow = new DeliveryWindow();
+    private final DatabaseRecordSink databaseRecordSink = new DatabaseRecordSink();
+
     // this LocationListener is used if the gps position is logged by the Android device
     private final BluetoothServiceLocationListener locationListener
             = new BluetoothServiceLocationListener();
@@ -122,7 +129,9 @@ public class BluetoothReceiverService extends Service
 
         // the DataLab is used to write to the database
         // is needs the context and thus can not be created in the constructor
-        dataLab = new DataLab(getApplicationContext());
+        dataLab = DataLab.get(this);
+        // connects to the location services only when the first location is requested
+        deviceLocationRequester = new DeviceLocationRequester(this, dataLab);
 
         // in order to not always ask the shared preferences before something is done,
         // this class holds local variables representing some relevant preferences
@@ -215,6 +224,7 @@ public class BluetoothReceiverService extends Service
         }
         stopForeground(true);
         unregisterReceiver(broadcastReceiver);
+        deviceLocationRequester.disconnect();
 
         super.onDestroy();
     }
@@ -376,157 +386,105 @@ public class BluetoothReceiverService extends Service
     }
 
     /**
-     * This method starts a thread that repeatedly polls the data stream to get hold of the data
-     * transmitted. The thread does poll every two seconds which is sufficient as the operating
-     * system buffers the streams. According to the protocol, when an End of Text character is
-     * received, the incoming data is given to the parser.
+     * This method starts a thread that receives the data transmitted. According to the protocol,
+     * when an End of Text character is received, the incoming data is handed to the
+     * IngestPipeline of the TransducerReceiver which parses and saves it in separate threads.
+     * This way the receiver thread is not blocked by a slow database, though a transducer using
+     * the JSON protocol still waits for the ACK sent once its message has been saved.
      */
     private void startReceiverThread(){
+        // The acknowledgements must go to the connection the message was received from
+        final OutputStream connectionOutputStream = outputStream;
+        final InputStream connectionInputStream = inputStream;
+
         Thread receiverWorkerThread = new Thread(new Runnable(){
             @Override
             public void run() {
-                // The size limit is somewhat arbitrary, but should be sufficient for any use
-                ByteBuffer byteBuffer = ByteBuffer.allocate(1024*1024*2);
+                TransducerReceiver receiver = new TransducerReceiver(connectionInputStream,
+                        connectionOutputStream, frameBufferPool, deliveryWindow,
+                        databaseRecordSink);
                 Log.d(this.getClass().getSimpleName(),"receiverWorkerThread started");
 
-                // The thread can be interrupted if the system decides to kill the service
-                while(state == STATE_CONNECTED && !Thread.currentThread().isInterrupted()) {
-                    try {
-                        boolean byteAvailable = inputStream.available() > 0;
-                        if (byteAvailable) {
-                            int newByte = inputStream.read();
-                            // -1 means there is no data to be read in the stream
-                            if (newByte == -1) {
-                                try {
-                                    // This sleep should not be too long as it directly affects
-                                    // the time needed until a message is received correctly
-                                    Thread.sleep(2000);
-                                } catch (InterruptedException ignored) {
-                                }
-                                Thread.yield();
-                                continue;
-                            }
-                            // The ASCII End of Text character (0x03) marks the end of a JSON object
-                            if (newByte == 0x03) {
-                                handleCompleteJSON(byteBuffer.array());
-                                // As the old message should be handled now, we need an empty buffer
-                                // ByteBuffers can not just be cleared as old data might remain
-                                byteBuffer = ByteBuffer.allocate(1024*1024*2);
-                                // The loop continues as the End of Text byte does not need to be
-                                // put into the buffer
-                                continue;
-                            }
-                            try {
-                                byteBuffer.put((byte) newByte);
-                            } catch (BufferOverflowException e) {
-                                Log.wtf(this.getClass().getCanonicalName(),"The message sent via " +
-                                        "bluetooth was insanely large.");
-                                byteBuffer = ByteBuffer.allocate(1024*1024*8);
-                            }
-                        } else {
-                            Thread.yield();
-                        }
-                    } catch (IOException | NullPointerException e) {
-                        // If another thread closes the socket we get an IOException, but don't want
-                        // to reconnect
-                        synchronized (BluetoothReceiverService.this) {
-                            if (state == STATE_CONNECTED) {
-                                disconnect();
-                            }
-                            break;
+                try {
+                    // This blocks until the connection ends
+                    receiver.receive();
+                } catch (IOException | NullPointerException ignored) {
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                // The thread can be interrupted if the system decides to kill the service.
+                // If another thread closes the socket we get an IOException, but don't want
+                // to reconnect
+                if (!Thread.currentThread().isInterrupted()) {
+                    synchronized (BluetoothReceiverService.this) {
+                        if (state == STATE_CONNECTED) {
+                            disconnect();
                         }
                     }
                 }
+
+                // The messages already received are still saved in the background
+                IngestPipeline<DataRecord> pipeline = receiver.getPipeline();
+                Log.d(this.getClass().getSimpleName(),"receiverWorkerThread stopped, " +
+                        (pipeline != null ? pipeline.getStatistics() : ""));
             }
         });
         receiverWorkerThread.start();
     }
 
     /**
-     * This method handled the incoming data messages.
-     * @param jsonBytes The bytes received via the bluetooth connection
+     * The DatabaseRecordSink saves the records received to the DataLab and informs the user.
      */
-    private synchronized void handleCompleteJSON(final byte[] jsonBytes){
-        // The DataRecord that is generated from the JSON input
-        DataRecord dataRecord;
-        // The bytes can be handled as a string
-        String jsonString = "";
-        try {
-            // This truncates bytes received before the JSON content we want to handle
-            jsonString = new String(jsonBytes, "US-ASCII").trim();
-            // in this case it is not a valid JSON
-            if(!jsonString.contains("{"))
-                return;
-            // everything before the first { is garbage
-            jsonString = jsonString.substring(jsonString.indexOf("{"));
-        } catch (UnsupportedEncodingException e) {
-            // This app does not work on devices not supporting the ASCII charset
-            Log.wtf(this.getClass().getSimpleName(), "THIS SYSTEM DOES NOT SUPPORT ASCII CHARSET");
-        }
-        try {
-            // The data is given to the DataLab to handle the parsing
-            // A DataRecord which is not jet stored in the database is returned
-            dataRecord = dataLab.parseJSON(jsonString , new Date());
-        } catch (ParseException p) {
-            Log.w(this.getClass().getSimpleName(),"JSON Parsing from Bluetooth failed. "+ p.toString() +" This is the " +
-                    "problematic message: \""+jsonString+"\"");
-            // A negative acknowledgement is sent to the Arduino
-            requestResend();
-            return;
+    private class DatabaseRecordSink implements TransducerReceiver.RecordSink {
+        @Override
+        public void save(List<DataRecord> batch) {
+            // The dataRecords are actually saved to the database in a single transaction
+            dataLab.saveDataRecords(batch);
         }
 
-        // The shared preferences contain the
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        /* // This is only useful when the performance of the gps should be compared
-        Boolean gpsEnabled = sharedPreferences.getBoolean(getString(R.string.pref_key_gps_background), false);
-        if (gpsEnabled){
-            synchronized (this){
-                if(locationListener != null && locationListener.last != null) {
-                    dataRecord.addLocation(locationListener.last);
+        @Override
+        public void saved(List<DataRecord> batch) {
+            // The shared preferences contain the settings for the location and the notification
+            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(
+                    BluetoothReceiverService.this);
+            /* // This is only useful when the performance of the gps should be compared
+            Boolean gpsEnabled = sharedPreferences.getBoolean(getString(R.string.pref_key_gps_background), false);
+            if (gpsEnabled){
+                synchronized (this){
+                    if(locationListener != null && locationListener.last != null) {
+                        dataRecord.addLocation(locationListener.last);
+                    }
                 }
-            }
-        } */
-
-        // The dataRecord is actually saved to the database
-        long id = dataLab.saveDataRecord(dataRecord);
-
-        acknowledgeReceive();
-
-        // Asynchronously adding a location is done by the DataLab as the Location should be saved
-        // directly into the database
-        if(sharedPreferences.getBoolean(
-                getString(R.string.pref_key_location_switch),true)){
-            dataLab.requestDeviceLocationAdded(id);
-        }
-
-        // This broadcast is used to redraw the
-        Intent notifyDataSetChanged = new Intent(INTENT_DATA_RECORD_RECEIVED);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(notifyDataSetChanged);
+            } */
 
-        if(sharedPreferences.getBoolean(
-                getString(R.string.pref_key_incoming_data_notification),true)){
-            showReceiveNotification(dataRecord);
-        }
-    }
-
-    /**
-     * When a message has been received correctly, an acknowledge is sent back to the Arduino
-     */
-    private void acknowledgeReceive(){
-        try{
-            outputStream.write(0x06); // ACK
-        } catch (IOException ignored) {
-        }
-    }
+            // The location is added asynchronously and saved directly into the database
+            if(sharedPreferences.getBoolean(
+                    getString(R.string.pref_key_location_switch),true)){
+                for (DataRecord dataRecord : batch) {
+                    deviceLocationRequester.request(dataRecord.getDatabaseID());
+                }
+            }
 
-    /**
-     * When the parsing fails for some reason, the App requests the data to be resend.
-     * The Arduino software may or may not include the means to do so.
-     */
-    private void requestResend(){
-        try{
-            outputStream.write(0x15); // NAK
-        } catch (IOException ignored) {
+            // This broadcast is used to update the lists, once for the whole batch is sufficient.
+            // It contains the DataRecords saved, so the lists do not have to read all IDs again
+            long[] ids = new long[batch.size()];
+            long[] receiveTimes = new long[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                ids[i] = batch.get(i).getDatabaseID();
+                receiveTimes[i] = batch.get(i).getReceiveTime().getTime();
+            }
+            Intent notifyDataSetChanged = new Intent(INTENT_DATA_RECORD_RECEIVED);
+            notifyDataSetChanged.putExtra(EXTRA_DATA_RECORD_IDS, ids);
+            notifyDataSetChanged.putExtra(EXTRA_RECEIVE_TIMES, receiveTimes);
+            LocalBroadcastManager.getInstance(BluetoothReceiverService.this)
+                    .sendBroadcast(notifyDataSetChanged);
+
+            // The notification replaces the previous one, so only the latest record is shown
+            if(sharedPreferences.getBoolean(
+                    getString(R.string.pref_key_incoming_data_notification),true)){
+                showReceiveNotification(batch.get(batch.size() - 1));
+            }
         }
     }
 
@@ -836,7 +794,7 @@ public class BluetoothReceiverService extends Service
                     case (INTENT_ACQUIRE_MEASURE_DATA): {
                         if(state == STATE_CONNECTED) {
                             try{
-                                outputStream.write(0x11); // DC1 Device Control 1
+                                outputStream.write(TransducerReceiver.DEVICE_CONTROL_1);
                             } catch (IOException ignored) { }
                         } else {
                             Toast.makeText(BluetoothReceiverService.this, getString(
@@ -846,7 +804,7 @@ public class BluetoothReceiverService extends Service
                     }
                     case (INTENT_RESEND_MEASURE_DATA): {
                         if(state == STATE_CONNECTED) {
-                            requestResend();
+                            TransducerReceiver.requestResend(outputStream);
                         } else {
                             Toast.makeText(BluetoothReceiverService.this, getString(
                                     R.string.acquireNotConnected), Toast.LENGTH_SHORT).show();
@@ -0,0 +1,188 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A BoundedQueue connects two stages of the IngestPipeline.
+ * It is a ring buffer for exactly one producer thread and one consumer thread, so no locks are
+ * needed: the producer only moves the tail and the consumer only moves the head.
+ *
+ * If the queue is full, put() parks the producer until the consumer has taken an element. This is
+ * the back-pressure of the pipeline: a stage that can not keep up slows down the stages before it
+ * instead of letting the queues grow without limit. In the same way take() parks the consumer
+ * while the queue is empty.
+ *
+ * The queue also remembers when each element was added, so the consumer can find out how long an
+ * element has been waiting.
+ *
+ * @param <E> The type of the elements
+ */
+class BoundedQueue<E> {
+    /** A parked thread checks the queue again after this time even if it was not woken up */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Object[] elements;
+    private final long[] enqueueTimes;
+    private final int mask;
+
+    /** The index of the next element to take, only incremented by the consumer */
+    private final AtomicLong head = new AtomicLong(0);
+    /** The index of the next free slot, only incremented by the producer */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /** The threads currently parked in put() or take(), null if they are not waiting */
+    private volatile Thread waitingProducer = null;
+    private volatile Thread waitingConsumer = null;
+
+    /** The enqueue time of the element taken last, only used by the consumer */
+    private long lastEnqueueTime = 0;
+    /** The number of times the producer had to wait for free space */
+    private volatile long stalls = 0;
+
+    /**
+     * Create an empty queue
+     * @param capacity The minimum number of elements the queue can hold, it is rounded up to the
+     *      next power of two
+     */
+    BoundedQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        elements = new Object[size];
+        enqueueTimes = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element if there is free space. Must only be called by the producer thread.
+     * @param element The element to add
+     * @return true if the element was added, false if the queue is full
+     */
+    boolean offer(E element) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() == elements.length) {
+            return false;
+        }
+        int index = (int) currentTail & mask;
+        elements[index] = element;
+        enqueueTimes[index] = System.nanoTime();
+        // Setting the tail publishes the element to the consumer
+        tail.set(currentTail + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Add an element, waiting for free space if the queue is full.
+     * Must only be called by the producer thread.
+     * @param element The element to add
+     * @throws InterruptedException If the producer thread is interrupted while waiting
+     */
+    void put(E element) throws InterruptedException {
+        if (offer(element)) {
+            return;
+        }
+        stalls++;
+        // The producer is registered before trying again, so the consumer can not miss it
+        waitingProducer = Thread.currentThread();
+        try {
+            while (!offer(element)) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waitingProducer = null;
+        }
+    }
+
+    /**
+     * Take the oldest element if there is one. Must only be called by the consumer thread.
+     * @return The oldest element or null if the queue is empty
+     */
+    E poll() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        int index = (int) currentHead & mask;
+        @SuppressWarnings("unchecked")
+        E element = (E) elements[index];
+        elements[index] = null;
+        lastEnqueueTime = enqueueTimes[index];
+        // Setting the head gives the slot back to the producer
+        head.set(currentHead + 1);
+
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return element;
+    }
+
+    /**
+     * Take the oldest element, waiting for one if the queue is empty.
+     * Must only be called by the consumer thread.
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return The oldest element or null if the time has passed without an element arriving
+     * @throws InterruptedException If the consumer thread is interrupted while waiting
+     */
+    E take(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null) {
+            return element;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((element = poll()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return element;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Must only be called by the consumer thread after an element has been taken.
+     * @return The System.nanoTime() when the element taken last was added to the queue
+     */
+    long getLastEnqueueTime() {
+        return lastEnqueueTime;
+    }
+
+    /**
+     * @return The number of elements currently waiting (may be outdated immediately)
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return The maximum number of elements
+     */
+    int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * @return The number of times the producer had to wait because the queue was full
+     */
+    long getStalls() {
+        return stalls;
+    }
+}
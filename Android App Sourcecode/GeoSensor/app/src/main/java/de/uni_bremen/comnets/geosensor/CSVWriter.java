@@ -1,81 +1,137 @@
 package de.uni_bremen.comnets.geosensor;
 
 import android.annotation.SuppressLint;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.location.Location;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.v4.content.FileProvider;
 import android.support.v7.app.AlertDialog;
+import android.support.v7.app.NotificationCompat;
 import android.support.v7.preference.PreferenceManager;
 import android.util.Log;
+import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.text.DateFormat;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
 
 /**
  * The csvWriter has capabilities to export data from the databse to a csv-file and
  * save it to either private storage (to give a file provider uri) or to public storage (to transfer
  * using usb or open from a third-party file manager.
+ *
+ * Instead of csv, the user may choose the archive format, which stores the DataRecords
+ * column-wise and compressed for keeping them and reading them by the archive library, or
+ * GeoJSON, GPX and KML for geographic information systems.
+ *
+ * The file is written by an ExportEngine: the DataRecords are read and formatted in chunks by a
+ * few threads and written while the export goes on, so the memory needed does not depend on the
+ * number of DataRecords exported. The progress is shown in a notification which allows to cancel
+ * the export. An export interrupted by the process being killed can be resumed.
  * Created by Eike Trumann on 02.03.17.
  */
 class CSVWriter {
+    /** The action of the broadcast sent by the notification to cancel the export */
+    private static final String ACTION_CANCEL_EXPORT =
+            "de.uni_bremen.comnets.geosensor.CANCEL_EXPORT";
+    private static final int PROGRESS_NOTIFICATION_ID = 3;
+
+    /** The export running, only one export runs at a time */
+    private static volatile ExportEngine runningExport = null;
+
     // This is the list of IDs given by the caller to be included in the export
     private final long[] dataRecordIDs;
 
-    // This list contains all the data records meant to be exported
-    private LinkedList<DataRecord> dataRecordList;
+    // The DataLab the DataRecords are read from
+    private final DataLab dataLab;
 
     // The context must be provided in order to gain access to the file system and show dialogs
     private final Context context;
 
-    // These are the number of Locations and DataRecords that should be included in the csv export
-    private int maxLocationCount;
-    private int maxMeasureDataCount;
-
     // The Separator is chosen by the user
     private final char CSV_SEPARATOR;
+    // The decimal mark is chosen by the user as well
+    private final char decimalSeparator;
     // This is also a user setting limiting the number of exported locations to one
     private final boolean onlyExportBestLocation;
-    // The numberFormat is used to allow the user to choose the decimal mark
-    private final NumberFormat numberFormat;
-
-    // The DateFormat is fixed and can not be changed by the user to allow consistent
-    // machine- unf human-readability
-    @SuppressLint("SimpleDateFormat")
-    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    // The format of the file: csv, archive, geojson, gpx or kml
+    private final String exportFormat;
 
     /**
      * A CSVWriter object is always bound to a fixed set of DataRecords it writes to a file.
      * @param context the Activity context launching the export
-     * @param dataRecordIDs a list of database IDs that should be included in the export
+     * @param dataRecordIDs a list of database IDs that should be included in the export, null
+     *                      for the DataRecords corresponding to the filter when the export starts
      */
     CSVWriter(Context context, long[] dataRecordIDs){
+        this(context, DataLab.get(context), dataRecordIDs);
+    }
+
+    /**
+     * A CSVWriter reading the DataRecords from the given DataLab, for example in tests which must
+     * not touch the data of the user
+     * @param context the Activity context launching the export
+     * @param dataLab the DataLab the DataRecords are read from
+     * @param dataRecordIDs a list of database IDs that should be included in the export, null
+     *                      for the DataRecords corresponding to the filter when the export starts
+     */
+    CSVWriter(Context context, DataLab dataLab, long[] dataRecordIDs){
         this.context = context;
+        this.dataLab = dataLab;
         this.dataRecordIDs = dataRecordIDs;
 
         // The cell separators and the decimal separator are saved in the shared preferences
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         CSV_SEPARATOR = sharedPreferences.getString(context.getString(R.string.pref_key_csv_separator),",").charAt(0);
         onlyExportBestLocation = sharedPreferences.getBoolean(context.getString(R.string.pref_key_export_best_position),false);
-        char decimalSeparator = sharedPreferences.getString(context.getString(R.string.pref_key_decimal_mark),".").charAt(0);
-        DecimalFormatSymbols decimalFormatSymbols = new DecimalFormatSymbols();
-        decimalFormatSymbols.setDecimalSeparator(decimalSeparator);
-        numberFormat = new DecimalFormat( "############.############" , decimalFormatSymbols);
+        decimalSeparator = sharedPreferences.getString(context.getString(R.string.pref_key_decimal_mark),".").charAt(0);
+        exportFormat = sharedPreferences.getString(context.getString(R.string.pref_key_export_format),"csv");
+    }
+
+    /**
+     * Export the DataRecords corresponding to the filter. If an export has been interrupted
+     * before, the user is asked whether to resume it instead.
+     * @param context the Activity context launching the export
+     */
+    static void exportFiltered(final Context context){
+        if (runningExport != null) {
+            Toast.makeText(context, R.string.export_already_running, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (!ExportEngine.hasCheckpoint(getStateDirectory(context))) {
+            new CSVWriter(context, null).export();
+            return;
+        }
+
+        AlertDialog alertDialog = new AlertDialog.Builder(context).create();
+        alertDialog.setTitle(context.getString(R.string.export_resume_title));
+        alertDialog.setMessage(context.getString(R.string.export_resume_message));
+        alertDialog.setButton(AlertDialog.BUTTON_POSITIVE, context.getString(R.string.export_resume),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        new CSVWriter(context, null).resume();
+                    }
+                });
+        alertDialog.setButton(AlertDialog.BUTTON_NEGATIVE, context.getString(R.string.export_new),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        new CSVWriter(context, null).export();
+                    }
+                });
+        alertDialog.show();
     }
 
     /**
@@ -87,295 +143,278 @@ class CSVWriter {
      * The export format is generated according to the format set by the user in the preferences.
      */
     void export(){
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                DataLab dataLab = new DataLab(context);
-                dataRecordList = new LinkedList<>();
-                for (long dataRecordID : dataRecordIDs) {
-                    dataRecordList.add(dataLab.readDataRecordFromDatabase(dataRecordID));
-                }
+        run(false);
+    }
 
-                if (onlyExportBestLocation){
-                    maxLocationCount = 1;
-                } else {
-                    maxLocationCount = maxLocationCount();
-                }
+    /**
+     * Resume the export interrupted before and hand the file over like export() does.
+     */
+    void resume(){
+        run(true);
+    }
 
-                maxMeasureDataCount = maxMeasureDataCount();
+    /**
+     * Run the export in the background
+     * @param resume true to resume the export interrupted before
+     */
+    private void run(final boolean resume){
+        final ExportEngine engine = new ExportEngine(getStateDirectory(context),
+                new ExportEngine.Source() {
+                    @Override
+                    public List<DataRecord> read(long[] ids) {
+                        return dataLab.readDataRecordsFromDatabase(ids);
+                    }
+                }, new ProgressNotification(), ExportEngine.defaultThreads());
+        runningExport = engine;
 
-                if(android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
-                    Intent exportIntent = new Intent(Intent.ACTION_SEND);
-                    exportIntent.putExtra(Intent.EXTRA_STREAM, getPrivateStorageFileURI());
-                    exportIntent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                    exportIntent.setType("text/csv");
-                    try {
-                        context.startActivity(exportIntent);
-                    } catch (ActivityNotFoundException e) {
-                        new Handler(Looper.getMainLooper()).post(new Runnable() {
-                            public void run() {
-                                AlertDialog alertDialog = new AlertDialog.Builder(context).create();
-                                alertDialog.setTitle(context.getString(R.string.no_export_application));
-                                alertDialog.setMessage(context.getString(R.string.no_export_application_message));
-                                alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
-                                        new DialogInterface.OnClickListener() {
-                                            public void onClick(DialogInterface dialog, int which) {
-                                                dialog.dismiss();
-                                            }
-                                        });
-                                alertDialog.show();
-                            }
-                        });
+        // The notification cancels the export by a broadcast to the application
+        final Context applicationContext = context.getApplicationContext();
+        final BroadcastReceiver cancelReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                engine.cancel();
+            }
+        };
+        applicationContext.registerReceiver(cancelReceiver, new IntentFilter(ACTION_CANCEL_EXPORT));
 
-                    }
-                } else {
-                    final String path = saveFile();
-                    new Handler(Looper.getMainLooper()).post(new Runnable() {
-                        public void run() {
-                            AlertDialog alertDialog = new AlertDialog.Builder(context).create();
-                            alertDialog.setTitle(context.getString(R.string.saved_file));
-                            alertDialog.setMessage(String.format(context.getString(R.string.saved_file_message),path));
-                            alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
-                                    new DialogInterface.OnClickListener() {
-                                        public void onClick(DialogInterface dialog, int which) {
-                                            dialog.dismiss();
-                                        }
-                                    });
-                            alertDialog.show();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File exportFile = null;
+                boolean failed = false;
+                try {
+                    if (resume) {
+                        exportFile = engine.resume();
+                    } else {
+                        // A track is ordered by time, whatever order the list shows. The IDs are
+                        // read once, so the columns counted are the ones of the DataRecords
+                        // exported.
+                        long[] ids = "gpx".equals(exportFormat) ? getIDs(true) : getIDs();
+                        ExportFormat format = getFormat(ids);
+                        exportFile = newExportFile(format.getFileExtension());
+                        if (!engine.export(ids, format, exportFile)) {
+                            exportFile = null;
                         }
-                    });
+                    }
+                } catch (IOException e) {
+                    Log.w(this.getClass().getSimpleName(), e.toString());
+                    exportFile = null;
+                    failed = true;
+                } catch (RuntimeException e) {
+                    // For example the database could not be read by a worker of the engine
+                    Log.w(this.getClass().getSimpleName(), "The export failed", e);
+                    exportFile = null;
+                    failed = true;
+                } finally {
+                    applicationContext.unregisterReceiver(cancelReceiver);
+                    NotificationManager notificationManager = (NotificationManager)
+                            context.getSystemService(Context.NOTIFICATION_SERVICE);
+                    notificationManager.cancel(PROGRESS_NOTIFICATION_ID);
+                    runningExport = null;
+                }
+                if (exportFile != null) {
+                    handOver(exportFile, engine.getFormat().getMimeType());
+                } else if (failed) {
+                    showFailure();
                 }
             }
         }).start();
     }
 
     /**
-     * Maximum number of Locations included in any of the DataRecords
-     * @return The number of Location the DataRecord having the most Locations has
+     * Tell the user that the export failed and whether it can be resumed. The checkpoint is kept
+     * by the ExportEngine, so exporting again offers to resume.
      */
-    private int maxLocationCount(){
-        int maxResult = 0;
-        for (DataRecord dataRecord: dataRecordList) {
-            if (dataRecord.getLocations().size() > maxResult){
-                maxResult = dataRecord.getLocations().size();
+    private void showFailure(){
+        final boolean resumable = ExportEngine.hasCheckpoint(getStateDirectory(context));
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            public void run() {
+                AlertDialog alertDialog = new AlertDialog.Builder(context).create();
+                alertDialog.setTitle(context.getString(R.string.export_failed));
+                alertDialog.setMessage(context.getString(resumable
+                        ? R.string.export_failed_resumable_message
+                        : R.string.export_failed_message));
+                alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                dialog.dismiss();
+                            }
+                        });
+                alertDialog.show();
             }
-        }
-        return maxResult;
+        });
     }
 
     /**
-     * Maximum number of MeasureData objects included in any of the DataRecords
-     * @return The number of MeasureData objects the DataRecord having the most has
+     * Offer the exported file to other apps or show where it has been saved
+     * @param exportFile The file exported
+     * @param mimeType The type of the file
      */
-    private int maxMeasureDataCount(){
-        int maxResult = 0;
-        for (DataRecord dataRecord: dataRecordList) {
-            if (dataRecord.getMeasureData().size() > maxResult){
-                maxResult = dataRecord.getMeasureData().size();
+    private void handOver(File exportFile, String mimeType){
+        if(android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            Intent exportIntent = new Intent(Intent.ACTION_SEND);
+            exportIntent.putExtra(Intent.EXTRA_STREAM, FileProvider.getUriForFile(context,
+                    "de.uni_bremen.comnets.geosensor.MainActivity", exportFile));
+            exportIntent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            exportIntent.setType(mimeType);
+            try {
+                context.startActivity(exportIntent);
+            } catch (ActivityNotFoundException e) {
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    public void run() {
+                        AlertDialog alertDialog = new AlertDialog.Builder(context).create();
+                        alertDialog.setTitle(context.getString(R.string.no_export_application));
+                        alertDialog.setMessage(context.getString(R.string.no_export_application_message));
+                        alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
+                                new DialogInterface.OnClickListener() {
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        dialog.dismiss();
+                                    }
+                                });
+                        alertDialog.show();
+                    }
+                });
+
             }
+        } else {
+            final String path = exportFile.getAbsolutePath();
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                public void run() {
+                    AlertDialog alertDialog = new AlertDialog.Builder(context).create();
+                    alertDialog.setTitle(context.getString(R.string.saved_file));
+                    alertDialog.setMessage(String.format(context.getString(R.string.saved_file_message),path));
+                    alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
+                            new DialogInterface.OnClickListener() {
+                                public void onClick(DialogInterface dialog, int which) {
+                                    dialog.dismiss();
+                                }
+                            });
+                    alertDialog.show();
+                }
+            });
         }
-        return maxResult;
     }
 
     /**
-     * Get an URI linking to the exported data in the private storage of this app
-     * @return an URI linking to the exported data in the private storage of this app
+     * Shows the progress of the export in a notification which allows to cancel it
      */
-    private Uri getPrivateStorageFileURI(){
-        File exportPath = new File(context.getFilesDir(), "export");
-        //noinspection ResultOfMethodCallIgnored
-        exportPath.mkdir();
-        String filename = "GeoSensor.csv";
-        saveToFile(exportPath, filename);
-        File exportFile = new File(exportPath, filename);
-        return FileProvider.getUriForFile(context, "de.uni_bremen.comnets.geosensor.MainActivity", exportFile);
+    private class ProgressNotification implements ExportEngine.Listener {
+        private final NotificationManager notificationManager = (NotificationManager)
+                context.getSystemService(Context.NOTIFICATION_SERVICE);
+        private final NotificationCompat.Builder builder;
+        private int lastPercent = -1;
+
+        ProgressNotification() {
+            Intent cancelIntent = new Intent(ACTION_CANCEL_EXPORT);
+            cancelIntent.setPackage(context.getPackageName());
+            PendingIntent cancelPendingIntent = PendingIntent.getBroadcast(context, 0,
+                    cancelIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+            builder = new NotificationCompat.Builder(context);
+            builder.setContentTitle(context.getString(R.string.export_running))
+                    .setSmallIcon(android.R.drawable.stat_sys_upload)
+                    .setOngoing(true)
+                    .setOnlyAlertOnce(true)
+                    .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                            context.getString(R.string.export_cancel), cancelPendingIntent);
+        }
+
+        /**
+         * Update the notification whenever another percent is done
+         */
+        @Override
+        public void onProgress(int done, int total) {
+            int percent = total > 0 ? (int) (100L * done / total) : 100;
+            if (percent == lastPercent) {
+                return;
+            }
+            lastPercent = percent;
+            builder.setProgress(100, percent, false);
+            notificationManager.notify(PROGRESS_NOTIFICATION_ID, builder.build());
+        }
     }
 
     /**
-     * Get an URI linking to the exported data in the public storage of this app
-     * @return an URI linking to the exported data in the public storage of this app
+     * @return The IDs to export, read from the database if none have been given
      */
-    private Uri getExternalStorageFileURI(){
-        File exportPath = new File(context.getExternalFilesDir(null), "GeoSensor");
-        //noinspection ResultOfMethodCallIgnored
-        exportPath.mkdir();
-        @SuppressLint("SimpleDateFormat")
-        final DateFormat exportDateFormat = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss");
-        String filename = "GeoSensor Export "+exportDateFormat.format(new Date())+".csv";
-        saveToFile(exportPath, filename);
-        File exportFile = new File(exportPath, filename);
-        return Uri.fromFile(exportFile);
+    private long[] getIDs(){
+        return dataRecordIDs != null ? dataRecordIDs : dataLab.getFilteredIDs();
     }
 
     /**
-     * Save the complete csv table into a file on the external storage
-     * @return The absolute path of the exported file
+     * @param oldestFirst true to read the IDs ordered by ascending receive time, false for
+     *                    descending
+     * @return The IDs to export, read from the database in the given order if none have been
+     *         given; the IDs given are kept in their order
      */
-    private String saveFile(){
-        File exportPath = new File(Environment.getExternalStorageDirectory(), "GeoSensor");
-        //noinspection ResultOfMethodCallIgnored
-        exportPath.mkdir();
-        @SuppressLint("SimpleDateFormat")
-        final DateFormat exportDateFormat = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss");
-        String filename = "GeoSensor Export "+exportDateFormat.format(new Date())+".csv";
-        saveToFile(exportPath, filename);
-        File exportFile = new File(exportPath, filename);
-        return exportFile.getAbsolutePath();
+    private long[] getIDs(boolean oldestFirst){
+        return dataRecordIDs != null ? dataRecordIDs : dataLab.getFilteredIDs(oldestFirst);
     }
 
     /**
-     * Save the table to the filename specified
-     * This method might fail on versions after Android 4.4
-     * and requires a runtime permission in versions after Android 6.0
-     * @param exportPath The path to be used
-     * @param filename The filename.
+     * @param ids The IDs of the DataRecords exported
+     * @return The format chosen by the user
      */
-    private void saveToFile(File exportPath, String filename){
-        File exportFile = new File(exportPath, filename);
-        try {
-            //noinspection ResultOfMethodCallIgnored
-            exportFile.createNewFile();
-            FileOutputStream outputStream = new FileOutputStream(exportFile);
-            outputStream.write(getTable().getBytes());
-            outputStream.flush();
-            outputStream.close();
-        } catch (Exception e) {
-            Log.w(this.getClass().getSimpleName(),e.toString());
+    private ExportFormat getFormat(long[] ids){
+        switch (exportFormat) {
+            case "archive":
+                return new ArchiveFormatter();
+            case "geojson":
+                return new GeoJsonFormatter();
+            case "gpx":
+                return new GpxFormatter();
+            case "kml":
+                return new KmlFormatter();
+            default:
+                return getFormatter(ids);
         }
     }
 
     /**
-     * Get a string containing the complete csv data to be exported
-     * @return
+     * Create the csv formatter for the settings of the user. The number of columns is found by
+     * counting in the database.
+     * @param ids The IDs of the DataRecords exported
+     * @return The formatter
      */
-    private String getTable(){
-        StringBuilder result = new StringBuilder();
-        result.append(getTitleLine());
-        result.append("\r\n");
-
-        for(DataRecord dataRecord: dataRecordList){
-            result.append(getOneLine(dataRecord));
-            result.append("\r\n");
+    private CsvFormatter getFormatter(long[] ids){
+        int maxLocationCount;
+        if (onlyExportBestLocation){
+            maxLocationCount = 1;
+        } else {
+            maxLocationCount = dataLab.getMaxLocationCount(ids);
         }
-
-        return result.toString();
+        return new CsvFormatter(CSV_SEPARATOR, decimalSeparator, onlyExportBestLocation,
+                maxLocationCount, dataLab.getMaxMeasureDataCount(ids));
     }
 
     /**
-     * Generate the column titles for the csv file
-     * @return The title line (no trailing newline)
+     * @param context Any context
+     * @return The directory the checkpoint of the export is saved in
      */
-    private String getTitleLine(){
-        StringBuilder result = new StringBuilder();
-
-        // General Info
-        result.append(DataLab.DataRecordEntry.COLUMN_RECEIVE_TIME);
-        result.append(CSV_SEPARATOR);
-        result.append(DataLab.DataRecordEntry.COLUMN_COMMENT);
-        result.append(CSV_SEPARATOR);
-        result.append(DataLab.DataRecordEntry.COLUMN_ARDUINO_SOFTWARE);
-        result.append(CSV_SEPARATOR);
-        result.append(DataLab.DataRecordEntry.COLUMN_ARDUINO_TIME);
-        result.append(CSV_SEPARATOR);
-
-        // Locations
-        for (int i = 0; i < maxLocationCount; i++){
-            result.append(DataLab.LocationEntry.COLUMN_LATITUDE);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.LocationEntry.COLUMN_LONGITUDE);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.LocationEntry.COLUMN_TIME);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.LocationEntry.COLUMN_PROVIDER);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.LocationEntry.COLUMN_ALTITUDE);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.LocationEntry.COLUMN_ACCURACY);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-        }
-
-        // MeasureData
-        for (int i = 0; i < maxMeasureDataCount; i++){
-            result.append(DataLab.MeasureDataEntry.COLUMN_TYPE);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.MeasureDataEntry.COLUMN_NAME);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.MeasureDataEntry.COLUMN_SENSOR);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.MeasureDataEntry.COLUMN_VALUE);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-            result.append(DataLab.MeasureDataEntry.COLUMN_UNIT);
-            result.append("_").append(i).append(CSV_SEPARATOR);
-        }
-
-        return result.toString();
+    private static File getStateDirectory(Context context){
+        return new File(context.getFilesDir(), "export_state");
     }
 
     /**
-     * Get a line describing the given DataRecord
-     * @param dataRecord The DataRecord object containing the data to be exported
-     * @return A single line containing the data formatted as csv
+     * Get the file a new export is written to. Since Android 4.4 KitKat, this is a file in the
+     * private storage of this app, given to other apps by the FileProvider. On older versions,
+     * it is a new file on the external storage. The external storage requires a runtime
+     * permission in versions after Android 6.0.
+     * @param extension The file name extension of the format
+     * @return The file
      */
-    private String getOneLine(DataRecord dataRecord){
-        StringBuilder result = new StringBuilder();
-
-        // General Info
-        result.append(dateFormat.format(dataRecord.getReceiveTime()));
-        result.append(CSV_SEPARATOR);
-        result.append(dataRecord.getComment());
-        result.append(CSV_SEPARATOR);
-        result.append(dataRecord.getArduinoSoftware());
-        result.append(CSV_SEPARATOR);
-        result.append(dataRecord.getArduinoTime());
-        result.append(CSV_SEPARATOR);
-
-        // Locations
-        for (int i = 0; i < maxLocationCount; i++){
-            if(i < dataRecord.getLocations().size()) {
-                Location loc;
-                if(onlyExportBestLocation){
-                    loc = dataRecord.getLocation();
-                } else {
-                    loc = dataRecord.getLocations().get(i);
-                }
-                result.append(numberFormat.format(loc.getLatitude()));
-                result.append(CSV_SEPARATOR);
-                result.append(numberFormat.format(loc.getLongitude()));
-                result.append(CSV_SEPARATOR);
-                result.append(dateFormat.format(loc.getTime()));
-                result.append(CSV_SEPARATOR);
-                result.append(loc.getProvider());
-                result.append(CSV_SEPARATOR);
-                result.append(numberFormat.format(loc.getAltitude()));
-                result.append(CSV_SEPARATOR);
-                result.append(numberFormat.format(loc.getAccuracy()));
-                result.append(CSV_SEPARATOR);
-            } else {
-                result.append(CSV_SEPARATOR).append(CSV_SEPARATOR).append(CSV_SEPARATOR)
-                        .append(CSV_SEPARATOR).append(CSV_SEPARATOR).append(CSV_SEPARATOR);
-            }
-
-        }
-
-        // MeasureData
-        for (int i = 0; i < maxMeasureDataCount; i++){
-            if(i < dataRecord.getMeasureData().size()) {
-                MeasureData measureData = dataRecord.getMeasureData().get(i);
-                result.append(measureData.getType());
-                result.append(CSV_SEPARATOR);
-                result.append(measureData.getName());
-                result.append(CSV_SEPARATOR);
-                result.append(measureData.getSensor());
-                result.append(CSV_SEPARATOR);
-                result.append(numberFormat.format(measureData.getValue()));
-                result.append(CSV_SEPARATOR);
-                result.append(measureData.getUnit());
-                result.append(CSV_SEPARATOR);
-                } else {
-                result.append(CSV_SEPARATOR).append(CSV_SEPARATOR).append(CSV_SEPARATOR)
-                        .append(CSV_SEPARATOR).append(CSV_SEPARATOR);
-            }
+    private File newExportFile(String extension){
+        if(android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            File exportPath = new File(context.getFilesDir(), "export");
+            //noinspection ResultOfMethodCallIgnored
+            exportPath.mkdir();
+            return new File(exportPath, "GeoSensor." + extension);
         }
-        return result.toString();
+        File exportPath = new File(Environment.getExternalStorageDirectory(), "GeoSensor");
+        //noinspection ResultOfMethodCallIgnored
+        exportPath.mkdir();
+        @SuppressLint("SimpleDateFormat")
+        final DateFormat exportDateFormat = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss");
+        String filename = "GeoSensor Export "+exportDateFormat.format(new Date())+"."+extension;
+        return new File(exportPath, filename);
     }
 }
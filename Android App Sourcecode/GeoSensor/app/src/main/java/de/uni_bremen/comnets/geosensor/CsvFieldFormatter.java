@@ -0,0 +1,297 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.text.DateFormat;
+import java.text.NumberFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * The CsvFieldFormatter formats the numbers and the dates of the csv export exactly like the
+ * NumberFormat and the DateFormat it is created with, but without creating objects for every
+ * value: the digits are written straight into the line.
+ *
+ * The number format must be the DecimalFormat "############.############" used by the export,
+ * rounding to at most twelve decimals. A double is rounded exactly, using its binary value. The
+ * formats round the shortest decimal representing the double instead, which is less than half
+ * an ulp away; both agree unless the double is that close to halfway between two results.
+ * These values, very small or large ones and anything else not handled are formatted by the
+ * NumberFormat itself.
+ *
+ * The date format must be the SimpleDateFormat "yyyy-MM-dd HH:mm:ss", of the default time zone for
+ * the csv export.
+ * The date of the day is kept, as the DataRecords of an export mostly follow each other. Dates
+ * outside of the years 1583 to 9999 are formatted by the DateFormat, as the calendar changes
+ * before and the year grows longer after.
+ *
+ * Platforms and locales differ in details like the zero before the decimal mark or the digits
+ * used, so a few values are formatted both ways when the CsvFieldFormatter is created. If they
+ * differ, everything is formatted by the formats.
+ *
+ * A CsvFieldFormatter is not thread-safe, just like the formats.
+ */
+class CsvFieldFormatter {
+    /** The number of decimals the number format rounds to */
+    static final int DECIMALS = 12;
+    private static final long DECIMALS_FACTOR = 1000000000000L;
+    /** The number of bits of a double below the binary point needed to round exactly */
+    private static final int MIN_FRACTION_BITS = 41;
+    /** The most bits below the binary point which can be multiplied by ten within a long */
+    private static final int MAX_FRACTION_BITS = 59;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+    /** The range of days formatted, from 1583-01-01 to 9999-12-31 */
+    private static final long FIRST_DAY = -141349;
+    private static final long LAST_DAY = 2932896;
+
+    private final NumberFormat numberFormat;
+    private final DateFormat dateFormat;
+    private final char decimalSeparator;
+    private final TimeZone timeZone;
+    private final char[] digits = new char[20];
+
+    // The platform may or may not write a zero in front of the decimal mark of numbers below one
+    private final boolean leadingZero;
+    private final boolean fastNumbers;
+    private final boolean fastDates;
+
+    // The day last formatted and its date
+    private long day = Long.MIN_VALUE;
+    private final char[] date = new char[10];
+
+    /**
+     * @param numberFormat The DecimalFormat "############.############" with the decimal mark
+     *                     chosen by the user
+     * @param dateFormat The SimpleDateFormat "yyyy-MM-dd HH:mm:ss" of any time zone
+     * @param decimalSeparator The decimal mark of the number format
+     */
+    CsvFieldFormatter(NumberFormat numberFormat, DateFormat dateFormat, char decimalSeparator) {
+        this.numberFormat = numberFormat;
+        this.dateFormat = dateFormat;
+        this.decimalSeparator = decimalSeparator;
+        this.timeZone = dateFormat.getTimeZone();
+
+        String half = numberFormat.format(0.5);
+        leadingZero = half.isEmpty() || half.charAt(0) != decimalSeparator;
+        fastNumbers = agreesOnNumbers(0.5, -0.5, 0, 1, -1, 0.1, 53.0791234, -8.8123456789, 23.25,
+                1013.25, 3.9000000953674316, 4095.999, 101325, 1.5e15, 0.0123);
+        fastDates = agreesOnDates(0, 1500000000123L, 1600000000999L, System.currentTimeMillis());
+    }
+
+    /**
+     * Append a number like the number format does
+     * @param line The line the number is appended to
+     * @param value The number
+     */
+    void appendNumber(StringBuilder line, double value) {
+        if (!fastNumbers || !appendFastNumber(line, value)) {
+            line.append(numberFormat.format(value));
+        }
+    }
+
+    /**
+     * Append a date like the date format does
+     * @param line The line the date is appended to
+     * @param millis The date in milliseconds since 1970
+     */
+    void appendDate(StringBuilder line, long millis) {
+        if (!fastDates || !appendFastDate(line, millis)) {
+            line.append(dateFormat.format(new Date(millis)));
+        }
+    }
+
+    /**
+     * Format the number if it is within the values handled
+     * @param line The line the number is appended to
+     * @param value The number
+     * @return false if nothing has been appended
+     */
+    private boolean appendFastNumber(StringBuilder line, double value) {
+        // value = mantissa * 2^exponent
+        long bits = Double.doubleToRawLongBits(value);
+        int biasedExponent = (int) ((bits >>> 52) & 0x7ff);
+        long mantissa = bits & 0xfffffffffffffL;
+        if (biasedExponent == 0 || biasedExponent == 0x7ff) {
+            // Zero, subnormal, infinite or not a number; only zero is common
+            if (value == 0 && bits == 0) {
+                line.append('0');
+                return true;
+            }
+            return false;
+        }
+        mantissa |= 1L << 52;
+        int exponent = biasedExponent - 1075;
+
+        long integer;
+        long fraction;
+        int fractionBits = -exponent;
+        if (exponent == 0) {
+            // Every integer up to 2^53 is written with all its digits
+            integer = mantissa;
+            fraction = 0;
+        } else if (exponent > 0 || fractionBits > MAX_FRACTION_BITS) {
+            return false;
+        } else {
+            integer = mantissa >>> fractionBits;
+            fraction = mantissa & ((1L << fractionBits) - 1);
+        }
+
+        long decimals = 0;
+        if (fraction != 0) {
+            if (fractionBits < MIN_FRACTION_BITS) {
+                return false;
+            }
+            long mask = (1L << fractionBits) - 1;
+            for (int i = 0; i < DECIMALS; i++) {
+                fraction *= 10;
+                decimals = decimals * 10 + (fraction >>> fractionBits);
+                fraction &= mask;
+            }
+            // The rest of the fraction, in parts of the last decimal, and half of it. One ulp of
+            // the double is DECIMALS_FACTOR parts.
+            long half = 1L << (fractionBits - 1);
+            if (Math.abs(fraction - half) <= DECIMALS_FACTOR / 2) {
+                return false;
+            }
+            if (fraction > half) {
+                decimals++;
+                if (decimals == DECIMALS_FACTOR) {
+                    decimals = 0;
+                    integer++;
+                }
+            }
+        }
+
+        if (bits < 0) {
+            line.append('-');
+        }
+        if (integer != 0 || decimals == 0 || leadingZero) {
+            appendDigits(line, integer, 1);
+        }
+        if (decimals != 0) {
+            int length = DECIMALS;
+            while (decimals % 10 == 0) {
+                decimals /= 10;
+                length--;
+            }
+            line.append(decimalSeparator);
+            appendDigits(line, decimals, length);
+        }
+        return true;
+    }
+
+    /**
+     * Format the date if it is within the days handled
+     * @param line The line the date is appended to
+     * @param millis The date in milliseconds since 1970
+     * @return false if nothing has been appended
+     */
+    private boolean appendFastDate(StringBuilder line, long millis) {
+        long local = millis + timeZone.getOffset(millis);
+        long localDay = floorDiv(local, MILLIS_PER_DAY);
+        if (localDay != day) {
+            if (localDay < FIRST_DAY || localDay > LAST_DAY) {
+                return false;
+            }
+            setDay(localDay);
+        }
+        int millisOfDay = (int) (local - localDay * MILLIS_PER_DAY);
+        int seconds = millisOfDay / 1000;
+
+        line.append(date);
+        line.append(' ');
+        appendTwoDigits(line, seconds / 3600);
+        line.append(':');
+        appendTwoDigits(line, seconds / 60 % 60);
+        line.append(':');
+        appendTwoDigits(line, seconds % 60);
+        return true;
+    }
+
+    /**
+     * Keep the date of a day, using the proleptic Gregorian calendar
+     * @param localDay The day, counted from 1970-01-01
+     */
+    private void setDay(long localDay) {
+        // Days since 0000-03-01, so the leap day is the last day of a year
+        long days = localDay + 719468;
+        long era = floorDiv(days, 146097);
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        date[0] = (char) ('0' + year / 1000);
+        date[1] = (char) ('0' + year / 100 % 10);
+        date[2] = (char) ('0' + year / 10 % 10);
+        date[3] = (char) ('0' + year % 10);
+        date[4] = '-';
+        date[5] = (char) ('0' + month / 10);
+        date[6] = (char) ('0' + month % 10);
+        date[7] = '-';
+        date[8] = (char) ('0' + dayOfMonth / 10);
+        date[9] = (char) ('0' + dayOfMonth % 10);
+        day = localDay;
+    }
+
+    /**
+     * Append the decimal digits of a number
+     * @param line The line the digits are appended to
+     * @param value The number, not negative
+     * @param minLength The number of digits at least, filled with leading zeros
+     */
+    private void appendDigits(StringBuilder line, long value, int minLength) {
+        int position = digits.length;
+        while (value != 0 || digits.length - position < minLength) {
+            digits[--position] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        line.append(digits, position, digits.length - position);
+    }
+
+    private static void appendTwoDigits(StringBuilder line, int value) {
+        line.append((char) ('0' + value / 10));
+        line.append((char) ('0' + value % 10));
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        if ((dividend % divisor != 0) && ((dividend < 0) != (divisor < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+
+    /**
+     * @param values Numbers to check
+     * @return true if all of them are formatted like the number format does
+     */
+    private boolean agreesOnNumbers(double... values) {
+        StringBuilder line = new StringBuilder();
+        for (double value : values) {
+            line.setLength(0);
+            if (appendFastNumber(line, value)
+                    && !line.toString().equals(numberFormat.format(value))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param dates Dates in milliseconds since 1970 to check
+     * @return true if all of them are formatted like the date format does
+     */
+    private boolean agreesOnDates(long... dates) {
+        StringBuilder line = new StringBuilder();
+        for (long millis : dates) {
+            line.setLength(0);
+            if (appendFastDate(line, millis)
+                    && !line.toString().equals(dateFormat.format(new Date(millis)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,277 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.annotation.SuppressLint;
+import android.location.Location;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+/**
+ * The CsvFormatter formats DataRecords as lines of a csv file, using the separator and the
+ * decimal mark chosen by the user and a fixed number of location and measure data columns.
+ * The lines are appended to a buffer given by the caller, which can be reused for many lines;
+ * the numbers and dates are written into it by a CsvFieldFormatter.
+ *
+ * A CsvFormatter is not thread-safe, the formats it uses are not. Threads formatting in parallel
+ * use a copy each.
+ */
+class CsvFormatter implements ExportFormat {
+    /** The type of the csv format in the checkpoint of the ExportEngine */
+    static final int TYPE = 0;
+
+    // The Separator is chosen by the user
+    private final char separator;
+    // The decimal mark is chosen by the user as well
+    private final char decimalSeparator;
+    // This is also a user setting limiting the number of exported locations to one
+    private final boolean onlyExportBestLocation;
+    // These are the number of Locations and DataRecords that should be included in the csv export
+    private final int maxLocationCount;
+    private final int maxMeasureDataCount;
+
+    // Formats the numbers and dates like the formats below, which are used for the values it
+    // does not handle
+    private final CsvFieldFormatter fieldFormatter;
+
+    /**
+     * @param separator The separator of the cells
+     * @param decimalSeparator The decimal mark
+     * @param onlyExportBestLocation true if only the best location of a DataRecord is exported
+     * @param maxLocationCount The number of locations columns, 1 if only the best location is
+     *                         exported
+     * @param maxMeasureDataCount The number of measure data columns
+     */
+    CsvFormatter(char separator, char decimalSeparator, boolean onlyExportBestLocation,
+                 int maxLocationCount, int maxMeasureDataCount){
+        this.separator = separator;
+        this.decimalSeparator = decimalSeparator;
+        this.onlyExportBestLocation = onlyExportBestLocation;
+        this.maxLocationCount = maxLocationCount;
+        this.maxMeasureDataCount = maxMeasureDataCount;
+
+        // The numberFormat is used to allow the user to choose the decimal mark
+        DecimalFormatSymbols decimalFormatSymbols = new DecimalFormatSymbols();
+        decimalFormatSymbols.setDecimalSeparator(decimalSeparator);
+        NumberFormat numberFormat = new DecimalFormat( "############.############" , decimalFormatSymbols);
+
+        // The DateFormat is fixed and can not be changed by the user to allow consistent
+        // machine- unf human-readability
+        @SuppressLint("SimpleDateFormat")
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        fieldFormatter = new CsvFieldFormatter(numberFormat, dateFormat, decimalSeparator);
+    }
+
+    /**
+     * Read the settings saved by writeSettings
+     * @param in The checkpoint
+     * @return A CsvFormatter with the settings read
+     * @throws IOException if the checkpoint can not be read
+     */
+    static CsvFormatter readSettings(DataInputStream in) throws IOException {
+        return new CsvFormatter(in.readChar(), in.readChar(), in.readBoolean(), in.readInt(),
+                in.readInt());
+    }
+
+    /**
+     * @return A CsvFormatter with the same settings, for use by another thread
+     */
+    @Override
+    public CsvFormatter copy(){
+        return new CsvFormatter(separator, decimalSeparator, onlyExportBestLocation,
+                maxLocationCount, maxMeasureDataCount);
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    /**
+     * @return The title line
+     */
+    @Override
+    public byte[] getHeader() {
+        // The default charset is the one the CSVWriter has always used
+        return (getTitleLine() + "\r\n").getBytes();
+    }
+
+    /**
+     * @param dataRecords The DataRecords of a chunk
+     * @return A line per DataRecord
+     */
+    @Override
+    public byte[] formatChunk(List<DataRecord> dataRecords) {
+        StringBuilder lines = new StringBuilder();
+        for (DataRecord dataRecord : dataRecords) {
+            appendOneLine(dataRecord, lines);
+            lines.append("\r\n");
+        }
+        return lines.toString().getBytes();
+    }
+
+    /**
+     * @return Nothing, a csv file ends with its last line
+     */
+    @Override
+    public byte[] getTrailer(RandomAccessFile file) {
+        return new byte[0];
+    }
+
+    @Override
+    public void writeSettings(DataOutputStream out) throws IOException {
+        out.writeChar(separator);
+        out.writeChar(decimalSeparator);
+        out.writeBoolean(onlyExportBestLocation);
+        out.writeInt(maxLocationCount);
+        out.writeInt(maxMeasureDataCount);
+    }
+
+    @Override
+    public String getMimeType() {
+        return "text/csv";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "csv";
+    }
+
+    /**
+     * Generate the column titles for the csv file
+     * @return The title line (no trailing newline)
+     */
+    String getTitleLine(){
+        StringBuilder result = new StringBuilder();
+
+        // General Info
+        result.append(DataLab.DataRecordEntry.COLUMN_RECEIVE_TIME);
+        result.append(separator);
+        result.append(DataLab.DataRecordEntry.COLUMN_COMMENT);
+        result.append(separator);
+        result.append(DataLab.DataRecordEntry.COLUMN_ARDUINO_SOFTWARE);
+        result.append(separator);
+        result.append(DataLab.DataRecordEntry.COLUMN_ARDUINO_TIME);
+        result.append(separator);
+
+        // Locations
+        for (int i = 0; i < maxLocationCount; i++){
+            result.append(DataLab.LocationEntry.COLUMN_LATITUDE);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.LocationEntry.COLUMN_LONGITUDE);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.LocationEntry.COLUMN_TIME);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.LocationEntry.COLUMN_PROVIDER);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.LocationEntry.COLUMN_ALTITUDE);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.LocationEntry.COLUMN_ACCURACY);
+            result.append("_").append(i).append(separator);
+        }
+
+        // MeasureData
+        for (int i = 0; i < maxMeasureDataCount; i++){
+            result.append(DataLab.MeasureDataEntry.COLUMN_TYPE);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.MeasureDataEntry.COLUMN_NAME);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.MeasureDataEntry.COLUMN_SENSOR);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.MeasureDataEntry.COLUMN_VALUE);
+            result.append("_").append(i).append(separator);
+            result.append(DataLab.MeasureDataEntry.COLUMN_UNIT);
+            result.append("_").append(i).append(separator);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Get a line describing the given DataRecord
+     * @param dataRecord The DataRecord object containing the data to be exported
+     * @return A single line containing the data formatted as csv (no trailing newline)
+     */
+    String getOneLine(DataRecord dataRecord){
+        StringBuilder result = new StringBuilder();
+        appendOneLine(dataRecord, result);
+        return result.toString();
+    }
+
+    /**
+     * Append a line describing the given DataRecord
+     * @param dataRecord The DataRecord object containing the data to be exported
+     * @param result The buffer the line is appended to (no trailing newline)
+     */
+    void appendOneLine(DataRecord dataRecord, StringBuilder result){
+        List<Location> locations = dataRecord.getLocations();
+        List<MeasureData> measureDataList = dataRecord.getMeasureData();
+
+        // General Info
+        fieldFormatter.appendDate(result, dataRecord.getReceiveTime().getTime());
+        result.append(separator);
+        result.append(dataRecord.getComment());
+        result.append(separator);
+        result.append(dataRecord.getArduinoSoftware());
+        result.append(separator);
+        result.append(dataRecord.getArduinoTime());
+        result.append(separator);
+
+        // Locations
+        int locationCount = locations.size();
+        for (int i = 0; i < maxLocationCount; i++){
+            if(i < locationCount) {
+                Location loc;
+                if(onlyExportBestLocation){
+                    loc = dataRecord.getLocation();
+                } else {
+                    loc = locations.get(i);
+                }
+                fieldFormatter.appendNumber(result, loc.getLatitude());
+                result.append(separator);
+                fieldFormatter.appendNumber(result, loc.getLongitude());
+                result.append(separator);
+                fieldFormatter.appendDate(result, loc.getTime());
+                result.append(separator);
+                result.append(loc.getProvider());
+                result.append(separator);
+                fieldFormatter.appendNumber(result, loc.getAltitude());
+                result.append(separator);
+                fieldFormatter.appendNumber(result, loc.getAccuracy());
+                result.append(separator);
+            } else {
+                result.append(separator).append(separator).append(separator)
+                        .append(separator).append(separator).append(separator);
+            }
+
+        }
+
+        // MeasureData
+        int measureDataCount = measureDataList.size();
+        for (int i = 0; i < maxMeasureDataCount; i++){
+            if(i < measureDataCount) {
+                MeasureData measureData = measureDataList.get(i);
+                result.append(measureData.getType());
+                result.append(separator);
+                result.append(measureData.getName());
+                result.append(separator);
+                result.append(measureData.getSensor());
+                result.append(separator);
+                fieldFormatter.appendNumber(result, measureData.getValue());
+                result.append(separator);
+                result.append(measureData.getUnit());
+                result.append(separator);
+            } else {
+                result.append(separator).append(separator).append(separator)
+                        .append(separator).append(separator);
+            }
+        }
+    }
+}
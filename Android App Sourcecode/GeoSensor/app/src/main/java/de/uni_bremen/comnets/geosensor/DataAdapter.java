@@ -2,6 +2,9 @@ package de.uni_bremen.comnets.geosensor;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.ListUpdateCallback;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -10,28 +13,105 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The DataAdapter transfers the data into the main list elements.
  * Per performance reasons, a RecyclerView is used and the ViewHolders are therefore reused.
+ * The DataRecords are loaded in pages by a DataRecordPager in the background and formatted
+ * there into DataRecordRows, the elements not loaded yet show a placeholder.
+ *
+ * The list is updated element by element: the DataRecords received are added to the IDs shown,
+ * the ones deleted are removed and after a filter change the new IDs are compared to the old ones
+ * in the background. Every update
+ * is computed on the background thread based on the previous one and applied on the main thread
+ * in the same order.
  */
 class DataAdapter extends RecyclerView.Adapter {
-    private long[] dataRecordIDs;
     private DataLab dataLab;
     private Context context;
+    private final ExecutorService executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DataRecordPager<DataRecordRow> pager;
+    /** The IDs shown after all updates computed so far, only used by the background thread */
+    private long[] latestIDs;
+
+    /** Forwards the changes found by a DataRecordIDsDiff to the list */
+    private final ListUpdateCallback listUpdateCallback = new ListUpdateCallback() {
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            notifyItemRangeChanged(position, count, payload);
+        }
+    };
 
     /**
      * Construct a DataAdapter
      * @param context The activity context of the list this should be used with.
      * @param dataLab A DataLab used to access the data in the database.
      */
-    DataAdapter(Context context, DataLab dataLab){
+    DataAdapter(Context context, final DataLab dataLab){
         this.dataLab = dataLab;
         this.context = context;
 
-        // Get the IDs of the elements that are shown in the list
-        dataRecordIDs = dataLab.getFilteredIDs();
+        // A single thread, the pages are loaded in the order requested. The formats are only
+        // used by this thread.
+        executor = Executors.newSingleThreadExecutor();
+        final DateFormat dateFormat = android.text.format.DateFormat.getDateFormat(context);
+        final DateFormat timeFormat = android.text.format.DateFormat.getTimeFormat(context);
+        final String locationLabel = context.getString(R.string.location);
+        final String noLocation = context.getString(R.string.no_location_data);
+        pager = new DataRecordPager<>(new DataRecordPager.Loader<DataRecordRow>() {
+            @Override
+            public List<DataRecordRow> load(long[] ids) {
+                List<DataRecordRow> rows = new ArrayList<>(ids.length);
+                for (DataRecord dataRecord : dataLab.readDataRecordsFromDatabase(ids)) {
+                    rows.add(new DataRecordRow(dataRecord, dateFormat, timeFormat,
+                            locationLabel, noLocation));
+                }
+                return rows;
+            }
+
+            @Override
+            public long getID(DataRecordRow row) {
+                return row.getDatabaseID();
+            }
+        }, executor, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        }, new DataRecordPager.Listener() {
+            @Override
+            public void onPageLoaded(int from, int to) {
+                notifyItemRangeChanged(from, to - from);
+            }
+        }, DataRecordPager.PAGE_SIZE, DataRecordPager.PREFETCH_PAGES, DataRecordPager.CACHE_SIZE);
+
+        // The list starts empty, the IDs of the elements shown are read in the background
+        latestIDs = new long[0];
+        pager.setIDs(latestIDs);
         this.setHasStableIds(true);
+        refreshList();
     }
 
     /**
@@ -55,35 +135,26 @@ class DataAdapter extends RecyclerView.Adapter {
      */
     @Override
     public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
-        // Read the appropriate DataRecord from the database
-        DataRecord dataRecord = dataLab.readDataRecordFromDatabase(dataRecordIDs[position]);
-
-        // Date and time
-        View element = ((ViewHolder) holder).getMainListElement();
-        TextView date = (TextView) element.findViewById(R.id.listItemDate);
-        TextView time = (TextView) element.findViewById(R.id.listItemTime);
-        TextView coordinates = (TextView) element.findViewById(R.id.listItemSecondLine);
-
-        DateFormat dateFormat = android.text.format.DateFormat.getDateFormat(context);
-        DateFormat timeFormat = android.text.format.DateFormat.getTimeFormat(context);
-
-        date.setText(dateFormat.format(dataRecord.getDate()));
-        time.setText(timeFormat.format(dataRecord.getDate()));
-
-        // Show the location if it exists.
-        if(dataRecord.hasLocation()){
-            coordinates.setText(context.getString(R.string.location) + ": " + dataRecord.getFormattedLatitude() + " " + dataRecord.getFormattedLongitude());
-        } else {
-            coordinates.setText(context.getString(R.string.no_location_data));
+        // The row is null if the DataRecord is still being loaded
+        DataRecordRow row = pager.get(position);
+        ViewHolder viewHolder = (ViewHolder) holder;
+
+        if (row == null) {
+            viewHolder.date.setText(context.getString(R.string.loading_data_record));
+            viewHolder.time.setText("");
+            viewHolder.coordinates.setText("");
+            viewHolder.setMeasureDataCount(0);
+            return;
         }
 
-        // Show all the measured values, adding enough lines for each measured value
-        LinearLayout measureDataLayout = (LinearLayout) element.findViewById(R.id.list_item_measure_data);
-        measureDataLayout.removeAllViewsInLayout();
-        for (MeasureData measureData : dataRecord.getMeasureData()) {
-            TextView textView = new TextView(context);
-            textView.setText(measureData.toString());
-            measureDataLayout.addView(textView);
+        viewHolder.date.setText(row.getDate());
+        viewHolder.time.setText(row.getTime());
+        viewHolder.coordinates.setText(row.getCoordinates());
+
+        // Show all the measured values, the lines of the previous DataRecord are reused
+        viewHolder.setMeasureDataCount(row.getMeasureDataCount());
+        for (int i = 0; i < row.getMeasureDataCount(); i++) {
+            viewHolder.measureDataLines.get(i).setText(row.getMeasureData(i));
         }
     }
 
@@ -94,7 +165,7 @@ class DataAdapter extends RecyclerView.Adapter {
      */
     @Override
     public long getItemId(int i) {
-        return dataRecordIDs[i];
+        return pager.getID(i);
     }
 
     /**
@@ -103,32 +174,181 @@ class DataAdapter extends RecyclerView.Adapter {
      */
     @Override
     public int getItemCount() {
-        return dataRecordIDs.length;
+        return pager.size();
+    }
+
+    /**
+     * Get the new IDs of the dataRecords to be shown when something like a filter has changed.
+     * The IDs are read and compared to the ones shown in the background, only the elements
+     * inserted or removed are updated. If the sort order has changed, the whole list is.
+     */
+    void refreshList(){
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long[] newIDs = dataLab.getFilteredIDs();
+                final DataRecordIDsDiff diff = DataRecordIDsDiff.calculate(latestIDs, newIDs);
+                latestIDs = newIDs;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pager.setIDs(newIDs);
+                        if (diff == null) {
+                            notifyDataSetChanged();
+                        } else {
+                            diff.dispatchUpdatesTo(listUpdateCallback);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Add DataRecords just received to the list if the filter matches. They are the newest ones,
+     * so they are shown at the top or the bottom of the list depending on the sort order.
+     * @param ids The IDs of the DataRecords in the order received
+     * @param receiveTimes The receive times of the DataRecords in the same order
+     */
+    void addDataRecords(final long[] ids, long[] receiveTimes){
+        final long[] matching = new long[ids.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (receiveTimes[i] >= FilterState.getStartTime().getTime()
+                    && receiveTimes[i] <= FilterState.getEndTime().getTime()) {
+                matching[count++] = ids[i];
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        final int added = count;
+        final boolean oldestFirst = FilterState.isOldestFirst();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long[] newIDs = new long[latestIDs.length + added];
+                final int position;
+                if (oldestFirst) {
+                    position = latestIDs.length;
+                    System.arraycopy(latestIDs, 0, newIDs, 0, latestIDs.length);
+                    System.arraycopy(matching, 0, newIDs, position, added);
+                } else {
+                    position = 0;
+                    for (int i = 0; i < added; i++) {
+                        newIDs[i] = matching[added - 1 - i];
+                    }
+                    System.arraycopy(latestIDs, 0, newIDs, added, latestIDs.length);
+                }
+                latestIDs = newIDs;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pager.setIDs(newIDs);
+                        notifyItemRangeInserted(position, added);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Remove deleted DataRecords from the list. The DataRecords not shown are ignored.
+     * @param ids The IDs of the DataRecords deleted
+     */
+    void removeDataRecords(long[] ids){
+        final long[] deleted = ids.clone();
+        Arrays.sort(deleted);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long[] newIDs = new long[latestIDs.length];
+                // The ranges removed as pairs of position and count, the positions of the list
+                // after the ranges before have been removed
+                final int[] ranges = new int[2 * Math.min(deleted.length, latestIDs.length)];
+                int count = 0;
+                int rangeCount = 0;
+                for (int i = 0; i < latestIDs.length; i++) {
+                    if (Arrays.binarySearch(deleted, latestIDs[i]) < 0) {
+                        newIDs[count++] = latestIDs[i];
+                    } else if (rangeCount > 0 && ranges[2 * rangeCount - 2] == count) {
+                        ranges[2 * rangeCount - 1]++;
+                    } else {
+                        ranges[2 * rangeCount] = count;
+                        ranges[2 * rangeCount + 1] = 1;
+                        rangeCount++;
+                    }
+                }
+                if (rangeCount == 0) {
+                    return;
+                }
+                final int removedRanges = rangeCount;
+                latestIDs = Arrays.copyOf(newIDs, count);
+                final long[] shownIDs = latestIDs;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pager.setIDs(shownIDs);
+                        for (int i = 0; i < removedRanges; i++) {
+                            notifyItemRangeRemoved(ranges[2 * i], ranges[2 * i + 1]);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * Get the new IDs of the dataRecords to be shown when something like a filter has changed
+     * Load the DataRecords shown again, they might have been modified in another activity
      */
-    void refreshList(){dataRecordIDs = dataLab.getFilteredIDs();}
+    void reloadDataRecords(){
+        pager.clear();
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    /**
+     * Stop loading DataRecords when the list is not needed anymore
+     */
+    void close(){executor.shutdownNow();}
 
     /**
      * The ViewHolder class used by the elements of the list.
      * It is used to add an onClickListener to the elements.
      */
     private static class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener{
-        // each data item is just a string in this case
-        private View mainListElement;
         private Context context;
+        // the views are only looked up once
+        private final TextView date;
+        private final TextView time;
+        private final TextView coordinates;
+        private final LinearLayout measureDataLayout;
+        /** The lines for the measured values, kept when not needed by the current DataRecord */
+        private final List<TextView> measureDataLines = new ArrayList<>();
 
         ViewHolder(View mainListElement, Context context) {
             super(mainListElement);
-            this.mainListElement = mainListElement;
             this.context = context;
+            date = (TextView) mainListElement.findViewById(R.id.listItemDate);
+            time = (TextView) mainListElement.findViewById(R.id.listItemTime);
+            coordinates = (TextView) mainListElement.findViewById(R.id.listItemSecondLine);
+            measureDataLayout = (LinearLayout) mainListElement.findViewById(R.id.list_item_measure_data);
             mainListElement.setOnClickListener(this);
         }
 
-        View getMainListElement(){
-            return mainListElement;
+        /**
+         * Show the given number of lines for the measured values. Lines are only added if there
+         * have never been as many, the others are hidden.
+         * @param count The number of measured values
+         */
+        void setMeasureDataCount(int count){
+            while (measureDataLines.size() < count) {
+                TextView textView = new TextView(context);
+                measureDataLines.add(textView);
+                measureDataLayout.addView(textView);
+            }
+            for (int i = 0; i < measureDataLines.size(); i++) {
+                measureDataLines.get(i).setVisibility(i < count ? View.VISIBLE : View.GONE);
+            }
         }
 
         /**
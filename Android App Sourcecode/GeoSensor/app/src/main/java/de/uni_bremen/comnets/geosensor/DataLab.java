@@ -2,56 +2,79 @@ package de.uni_bremen.comnets.geosensor;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.provider.BaseColumns;
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.util.Log;
+import android.support.v4.content.LocalBroadcastManager;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.location.LocationServices;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.Map;
 
 /**
  * Database access helper for GeoSensor App.
  * This class provides the methods to access the database and handle the data objects.
- * This includes parsing the JSON data received from the bluetooth connection.
+ * The JSON data received from the bluetooth connection is parsed by the ProtocolParser.
+ *
+ * There is a single DataLab for the whole app, see get(). The database uses write-ahead logging,
+ * so the activities can read while the BluetoothReceiverService is writing.
  *
  * Created by Eike on 18.02.2017.
  * Inspired bz Vogella
  */
-class DataLab extends SQLiteOpenHelper implements
-        GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener{
+class DataLab extends SQLiteOpenHelper {
 
     /** The database name is the filename on the filesystem. */
     private static final String DATABASE_NAME = "MeasureData.db";
-    /** The version indicates a data format and must be adjusted if the database structure is changed*/
-    private static final int DATABASE_VERSION = 19;
-    /** If localisation is switched on, an API client is needed to access Googles FusedLocationProvider*/
-    private GoogleApiClient googleApiClient;
-    /** A DataLab needs a context to exist. It seems the Application context works well.*/
-    private Context context;
+    /**
+     * The version indicates a data format and must be adjusted if the database structure is changed.
+     * onUpgrade has to migrate every older version to the current one.
+     * 20: Indexes, foreign keys and triggers deleting the rows belonging to a DataRecord
+     * 21: The rollup table
+     * 22: The position table
+     * 23: The best location of every DataRecord
+     */
+    private static final int DATABASE_VERSION = 23;
+    /** The number of DataRecords read by a single query */
+    private static final int READ_CHUNK_SIZE = 500;
+    /** The number of DataRecords deleted in a single transaction */
+    private static final int DELETE_CHUNK_SIZE = 1000;
+    /** The mean radius of the earth in meters, used to find the bounds of a circle */
+    private static final double EARTH_RADIUS = 6371000;
+    /** The number of free pages released at once by reclaimSpace */
+    private static final int VACUUM_CHUNK_PAGES = 256;
+    /** The DataLab shared by all components of the app, created by the first call of get() */
+    private static DataLab instance = null;
+
+    /**
+     * Broadcast after DataRecords have been deleted, with the IDs in
+     * BluetoothReceiverService.EXTRA_DATA_RECORD_IDS, so the lists can remove them
+     */
+    static final String INTENT_DATA_RECORDS_DELETED = "dataRecordsDeleted";
+
+    /** The context the broadcasts are sent with */
+    private final Context context;
+
+    /**
+     * The compiled statements used to save DataRecords. They belong to the database they have been
+     * compiled for and are only used while holding the lock of this DataLab.
+     */
+    private SQLiteDatabase statementDatabase = null;
+    private SQLiteStatement insertDataRecord;
+    private SQLiteStatement insertLocation;
+    private SQLiteStatement insertMeasureData;
+    private SQLiteStatement insertDataRecordLocation;
+    private SQLiteStatement insertDataRecordMeasureData;
+    private SQLiteStatement insertPosition;
+    private SQLiteStatement updateBestLocation;
 
     /** The columns to represent a DataRecord object in the database*/
     static final class DataRecordEntry implements BaseColumns {
@@ -63,7 +86,13 @@ class DataLab extends SQLiteOpenHelper implements
         static final String COLUMN_ARDUINO_TIME = "arduino_time";
         static final String COLUMN_COMMENT = "comment";
         static final String COLUMN_RECEIVE_TIME = "receive_time";
-        static final String[] COLUMNS = {COLUMN_ID,COLUMN_ARDUINO_SOFTWARE,COLUMN_ARDUINO_TIME, COLUMN_RECEIVE_TIME, COLUMN_COMMENT};
+        /** The id of the Location chosen by DataRecord.getLocation(), null without locations */
+        static final String COLUMN_BEST_LOCATION_ID = "best_location_id";
+        /** The score of the best Location, see DataRecord.locationScore() */
+        static final String COLUMN_BEST_LOCATION_SCORE = "best_location_score";
+        static final String[] COLUMNS = {COLUMN_ID,COLUMN_ARDUINO_SOFTWARE,COLUMN_ARDUINO_TIME,
+                COLUMN_RECEIVE_TIME, COLUMN_COMMENT, COLUMN_BEST_LOCATION_ID,
+                COLUMN_BEST_LOCATION_SCORE};
     }
 
     /** The columns to represent a Location object in the database*/
@@ -113,23 +142,71 @@ class DataLab extends SQLiteOpenHelper implements
         private static final String[] COLUMNS = {COLUMN_ID,COLUMN_MEASURE_DATA_ID,COLUMN_MEASURE_DATA_ID};
     }
 
+    /**
+     * The columns of the position table, the spatial index of the DataRecords. It contains the
+     * best location of every DataRecord having a location (as chosen by DataRecord.getLocation())
+     * and its geohash, which is indexed. Positions within a bounding box are found by searching
+     * the index for the ranges of geohashes covering the box.
+     */
+    static final class PositionEntry {
+        static final String TABLE_POSITION = "data_record_position";
+        static final String COLUMN_DATA_RECORD_ID = "data_record_id";
+        static final String COLUMN_LATITUDE = "lat";
+        static final String COLUMN_LONGITUDE = "lng";
+        static final String COLUMN_GEOHASH = "geohash";
+    }
 
     /**
-     * A separate DataLab might be instantiated for any activity needing it.
+     * The columns of the rollups. A rollup summarizes the values of a sensor (given by type,
+     * sensor, name and unit) received within a period of time. The values replaced by NaN are
+     * not counted.
+     */
+    static final class RollupEntry implements BaseColumns {
+        static final String TABLE_ROLLUP = "measure_data_rollup";
+        static final String COLUMN_ID = "_id";
+        /** The length of the period in milliseconds */
+        static final String COLUMN_RESOLUTION = "resolution";
+        /** The receive time the period starts at, a multiple of the resolution */
+        static final String COLUMN_START_TIME = "start_time";
+        static final String COLUMN_TYPE = "type";
+        static final String COLUMN_SENSOR = "sensor";
+        static final String COLUMN_NAME = "name";
+        static final String COLUMN_UNIT = "unit";
+        static final String COLUMN_MINIMUM = "minimum";
+        static final String COLUMN_MAXIMUM = "maximum";
+        static final String COLUMN_MEAN = "mean";
+        static final String COLUMN_COUNT = "count";
+
+        static final long RESOLUTION_MINUTE = 60 * 1000;
+        static final long RESOLUTION_HOUR = 60 * RESOLUTION_MINUTE;
+    }
+
+
+    /**
+     * Get the DataLab of the app. It is created on the first call and kept open as long as the
+     * process lives, so there is only one connection pool and one set of compiled statements.
+     * Android closes the database when the process ends.
      *
-     * @param context Application or arbitrary Activity context. Activity contexts might leak memory.
+     * @param context Any context, only the application context is kept
+     * @return The DataLab shared by all components
      */
-    DataLab(Context context){
-        super(context,DATABASE_NAME,null,DATABASE_VERSION);
+    static synchronized DataLab get(Context context){
+        if (instance == null) {
+            instance = new DataLab(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return instance;
+    }
 
+    /**
+     * A DataLab using another database file, for example for tests which must not touch the data
+     * of the user. The app itself uses get().
+     *
+     * @param context Application or arbitrary Activity context. Activity contexts might leak memory.
+     * @param databaseName The filename of the database or null for a database in memory
+     */
+    DataLab(Context context, String databaseName){
+        super(context,databaseName,null,DATABASE_VERSION);
         this.context = context;
-
-        googleApiClient = new GoogleApiClient.Builder(context)
-                .addApi(LocationServices.API)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
-        googleApiClient.connect();
     }
 
     /**
@@ -147,7 +224,9 @@ class DataLab extends SQLiteOpenHelper implements
                 + DataRecordEntry.COLUMN_ARDUINO_SOFTWARE + " TEXT,"
                 + DataRecordEntry.COLUMN_ARDUINO_TIME + " INTEGER,"
                 + DataRecordEntry.COLUMN_RECEIVE_TIME + " INTEGER,"
-                + DataRecordEntry.COLUMN_COMMENT + " TEXT"
+                + DataRecordEntry.COLUMN_COMMENT + " TEXT,"
+                + DataRecordEntry.COLUMN_BEST_LOCATION_ID + " INTEGER,"
+                + DataRecordEntry.COLUMN_BEST_LOCATION_SCORE + " INTEGER"
                 + ")";
         database.execSQL(createDataRecordTable);
 
@@ -176,80 +255,421 @@ class DataLab extends SQLiteOpenHelper implements
                 + ")";
         database.execSQL(createMeasureDataTable);
 
+        createMapTables(database, "");
+        createIndexes(database);
+        createRollupTable(database);
+        createPositionTable(database);
+    }
+
+    /**
+     * Creates the tables mapping Locations and MeasureData objects to DataRecords.
+     *
+     * A map row is deleted together with its DataRecord (foreign key with ON DELETE CASCADE) and
+     * a trigger deletes the Location or MeasureData object of a map row deleted. So deleting a
+     * DataRecord removes everything belonging to it.
+     * There is no foreign key from the map tables to the Location and MeasureData tables as
+     * SQLite would have to search the map table for every Location or MeasureData object deleted.
+     * @param database The database
+     * @param suffix Appended to the table names, used while migrating the tables
+     */
+    private static void createMapTables(SQLiteDatabase database, String suffix){
         String createDataRecordLocationMap = "CREATE TABLE " +
-                DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP + "("
+                DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP + suffix + "("
                 + DataRecordLocationMap.COLUMN_ID + " INTEGER PRIMARY KEY,"
                 + DataRecordLocationMap.COLUMN_LOCATION_ID + " INTEGER,"
-                + DataRecordLocationMap.COLUMN_DATA_RECORD_ID + " INTEGER"
+                + DataRecordLocationMap.COLUMN_DATA_RECORD_ID + " INTEGER REFERENCES "
+                + DataRecordEntry.TABLE_DATA_RECORD + "(" + DataRecordEntry.COLUMN_ID
+                + ") ON DELETE CASCADE"
                 + ")";
         database.execSQL(createDataRecordLocationMap);
 
         String createDataRecordMeasureDataMap = "CREATE TABLE " +
-                DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP + "("
+                DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP + suffix + "("
                 + DataRecordMeasureDataMap.COLUMN_ID + " INTEGER PRIMARY KEY,"
                 + DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID  + " INTEGER,"
-                + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID + " INTEGER"
+                + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID + " INTEGER REFERENCES "
+                + DataRecordEntry.TABLE_DATA_RECORD + "(" + DataRecordEntry.COLUMN_ID
+                + ") ON DELETE CASCADE"
                 + ")";
         database.execSQL(createDataRecordMeasureDataMap);
     }
 
     /**
-     * Upgrades the database to a new version.
-     * Warning: this implementation deletes all database contents.
+     * Creates the indexes and the triggers. On large tables, creating an index once is much
+     * faster than updating it for every row copied, so the migration calls this after copying.
+     * @param database The database
+     */
+    private static void createIndexes(SQLiteDatabase database){
+        // The filter selects and orders by receive time, the _id is part of every index
+        database.execSQL("CREATE INDEX IF NOT EXISTS data_record_receive_time ON "
+                + DataRecordEntry.TABLE_DATA_RECORD + "(" + DataRecordEntry.COLUMN_RECEIVE_TIME + ")");
+        // The map tables are searched by DataRecord, the indexes also contain the other id so
+        // the map tables themselves do not have to be read
+        database.execSQL("CREATE INDEX IF NOT EXISTS data_record_location_map_data_record ON "
+                + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP + "("
+                + DataRecordLocationMap.COLUMN_DATA_RECORD_ID + ","
+                + DataRecordLocationMap.COLUMN_LOCATION_ID + ")");
+        database.execSQL("CREATE INDEX IF NOT EXISTS data_record_measure_data_map_data_record ON "
+                + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP + "("
+                + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID + ","
+                + DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID + ")");
+
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS data_record_location_map_delete AFTER DELETE ON "
+                + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP + " BEGIN DELETE FROM "
+                + LocationEntry.TABLE_LOCATION + " WHERE " + LocationEntry.COLUMN_ID + " = OLD."
+                + DataRecordLocationMap.COLUMN_LOCATION_ID + "; END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS data_record_measure_data_map_delete AFTER DELETE ON "
+                + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP + " BEGIN DELETE FROM "
+                + MeasureDataEntry.TABLE_MEASURE_DATA + " WHERE " + MeasureDataEntry.COLUMN_ID
+                + " = OLD." + DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID + "; END");
+    }
+
+    /**
+     * Enables write-ahead logging and the foreign keys, SQLite leaves them switched off by default.
+     * With write-ahead logging, the readers use connections of their own and do not wait for a
+     * transaction of the writer. The writes all use the primary connection, which has the
+     * foreign keys enabled.
+     * (onConfigure, setWriteAheadLoggingEnabled and setForeignKeyConstraintsEnabled require API 16)
+     * @param database The database just opened
+     */
+    @Override
+    public void onOpen(SQLiteDatabase database){
+        super.onOpen(database);
+        if (!database.isReadOnly()) {
+            database.enableWriteAheadLogging();
+            database.execSQL("PRAGMA foreign_keys = ON");
+        }
+    }
+
+    /**
+     * Upgrades the database to a new version. The data is kept, each step migrates the tables
+     * to the next version. The whole upgrade runs in a single transaction, so a database is
+     * either upgraded completely or not at all.
      * @param database The database to upgrade
      * @param oldVersion old version number
      * @param newVersion new version number
      */
     @Override
     public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion){
-        // rebuildDatabase();
+        // The older versions had the same tables as version 19
+        if (oldVersion < 20) {
+            upgradeToVersion20(database);
+        }
+        if (oldVersion < 21) {
+            createRollupTable(database);
+        }
+        if (oldVersion < 22) {
+            createPositionTable(database);
+        }
+        if (oldVersion < 23) {
+            database.execSQL("ALTER TABLE " + DataRecordEntry.TABLE_DATA_RECORD + " ADD COLUMN "
+                    + DataRecordEntry.COLUMN_BEST_LOCATION_ID + " INTEGER");
+            database.execSQL("ALTER TABLE " + DataRecordEntry.TABLE_DATA_RECORD + " ADD COLUMN "
+                    + DataRecordEntry.COLUMN_BEST_LOCATION_SCORE + " INTEGER");
+            // Fills the position table of version 22 as well
+            writeBestLocations(database, null, null);
+        }
+    }
+
+    /**
+     * Creates the position table. A position is deleted together with its DataRecord; the
+     * DataRecord id is the primary key, so SQLite finds it without an index of its own.
+     * The index of the geohashes contains the coordinates as well, so the positions within a
+     * bounding box are found without reading the table itself.
+     * @param database The database
+     */
+    private static void createPositionTable(SQLiteDatabase database){
+        database.execSQL("CREATE TABLE " + PositionEntry.TABLE_POSITION + "("
+                + PositionEntry.COLUMN_DATA_RECORD_ID + " INTEGER PRIMARY KEY REFERENCES "
+                + DataRecordEntry.TABLE_DATA_RECORD + "(" + DataRecordEntry.COLUMN_ID
+                + ") ON DELETE CASCADE,"
+                + PositionEntry.COLUMN_LATITUDE + " REAL,"
+                + PositionEntry.COLUMN_LONGITUDE + " REAL,"
+                + PositionEntry.COLUMN_GEOHASH + " INTEGER"
+                + ")");
+        database.execSQL("CREATE INDEX " + PositionEntry.TABLE_POSITION + "_geohash ON "
+                + PositionEntry.TABLE_POSITION + "(" + PositionEntry.COLUMN_GEOHASH + ","
+                + PositionEntry.COLUMN_LATITUDE + "," + PositionEntry.COLUMN_LONGITUDE + ")");
+    }
+
+    /**
+     * Chooses the best location of DataRecords like DataRecord.getLocation() does and writes it to
+     * the DataRecords and the position table, replacing the ones written before. The DataRecords
+     * are read one after the other, so this works for any number of them.
+     * @param database The writable database
+     * @param selection A condition on the DataRecords (table alias r) or null for all of them
+     * @param selectionArgs The arguments of the condition
+     */
+    private static void writeBestLocations(SQLiteDatabase database, String selection,
+                                           String[] selectionArgs){
+        SQLiteStatement insert = database.compileStatement(insertPositionSql());
+        SQLiteStatement update = database.compileStatement("UPDATE "
+                + DataRecordEntry.TABLE_DATA_RECORD + " SET "
+                + DataRecordEntry.COLUMN_BEST_LOCATION_ID + " = ?, "
+                + DataRecordEntry.COLUMN_BEST_LOCATION_SCORE + " = ? WHERE "
+                + DataRecordEntry.COLUMN_ID + " = ?");
+        Cursor cursor = database.rawQuery("SELECT r." + DataRecordEntry.COLUMN_ID
+                + ", r." + DataRecordEntry.COLUMN_RECEIVE_TIME
+                + ", l." + LocationEntry.COLUMN_LATITUDE
+                + ", l." + LocationEntry.COLUMN_LONGITUDE
+                + ", l." + LocationEntry.COLUMN_TIME
+                + ", l." + LocationEntry.COLUMN_HAS_ACCURACY
+                + ", l." + LocationEntry.COLUMN_ACCURACY
+                + ", l." + LocationEntry.COLUMN_ID
+                + " FROM " + DataRecordEntry.TABLE_DATA_RECORD + " r JOIN "
+                + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP + " m ON m."
+                + DataRecordLocationMap.COLUMN_DATA_RECORD_ID + " = r." + DataRecordEntry.COLUMN_ID
+                + " JOIN " + LocationEntry.TABLE_LOCATION + " l ON l." + LocationEntry.COLUMN_ID
+                + " = m." + DataRecordLocationMap.COLUMN_LOCATION_ID
+                + (selection != null ? " WHERE " + selection : "")
+                + " ORDER BY r." + DataRecordEntry.COLUMN_ID
+                + ", m." + DataRecordLocationMap.COLUMN_ID, selectionArgs);
+        try {
+            long id = -1;
+            long lowest = Long.MAX_VALUE;
+            long locationID = -1;
+            double latitude = 0;
+            double longitude = 0;
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) != id) {
+                    if (id >= 0) {
+                        writeBestLocation(update, insert, id, locationID, lowest, latitude,
+                                longitude);
+                    }
+                    id = cursor.getLong(0);
+                    lowest = Long.MAX_VALUE;
+                }
+                // The database represents false as 0 and true as 1
+                long score = DataRecord.locationScore(cursor.getLong(1), cursor.getLong(4),
+                        cursor.getInt(5) != 0, cursor.getFloat(6));
+                if (score < lowest) {
+                    lowest = score;
+                    locationID = cursor.getLong(7);
+                    latitude = cursor.getDouble(2);
+                    longitude = cursor.getDouble(3);
+                }
+            }
+            if (id >= 0) {
+                writeBestLocation(update, insert, id, locationID, lowest, latitude, longitude);
+            }
+        } finally {
+            cursor.close();
+            insert.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Write the best location of a DataRecord to the DataRecord and the position table
+     * @param update The statement updating the DataRecord
+     * @param insert The statement inserting the position
+     * @param dataRecordID The database ID of the DataRecord
+     * @param locationID The database ID of the Location
+     * @param score The score of the Location
+     * @param latitude The latitude of the Location
+     * @param longitude The longitude of the Location
+     */
+    private static void writeBestLocation(SQLiteStatement update, SQLiteStatement insert,
+                                          long dataRecordID, long locationID, long score,
+                                          double latitude, double longitude){
+        update.bindLong(1, locationID);
+        update.bindLong(2, score);
+        update.bindLong(3, dataRecordID);
+        update.executeUpdateDelete();
+        bindPosition(insert, dataRecordID, latitude, longitude);
+        insert.executeInsert();
+    }
+
+    /**
+     * @return The statement inserting or replacing the position of a DataRecord
+     */
+    private static String insertPositionSql(){
+        return "INSERT OR REPLACE INTO " + PositionEntry.TABLE_POSITION
+                + "(" + PositionEntry.COLUMN_DATA_RECORD_ID + ","
+                + PositionEntry.COLUMN_LATITUDE + ","
+                + PositionEntry.COLUMN_LONGITUDE + ","
+                + PositionEntry.COLUMN_GEOHASH + ") VALUES (?,?,?,?)";
+    }
+
+    /**
+     * Binds the position of a DataRecord to the statement inserting it
+     * @param statement The statement
+     * @param dataRecordID The database ID of the DataRecord
+     * @param latitude The latitude of its best location
+     * @param longitude The longitude of its best location
+     */
+    private static void bindPosition(SQLiteStatement statement, long dataRecordID,
+                                     double latitude, double longitude){
+        statement.bindLong(1, dataRecordID);
+        statement.bindDouble(2, latitude);
+        statement.bindDouble(3, longitude);
+        statement.bindLong(4, GeoHash.encode(latitude, longitude));
+    }
+
+    /**
+     * Creates the table of the rollups written by the RetentionEngine
+     * @param database The database
+     */
+    private static void createRollupTable(SQLiteDatabase database){
+        database.execSQL("CREATE TABLE " + RollupEntry.TABLE_ROLLUP + "("
+                + RollupEntry.COLUMN_ID + " INTEGER PRIMARY KEY,"
+                + RollupEntry.COLUMN_RESOLUTION + " INTEGER,"
+                + RollupEntry.COLUMN_START_TIME + " INTEGER,"
+                + RollupEntry.COLUMN_TYPE + " TEXT,"
+                + RollupEntry.COLUMN_SENSOR + " TEXT,"
+                + RollupEntry.COLUMN_NAME + " TEXT,"
+                + RollupEntry.COLUMN_UNIT + " TEXT,"
+                + RollupEntry.COLUMN_MINIMUM + " REAL,"
+                + RollupEntry.COLUMN_MAXIMUM + " REAL,"
+                + RollupEntry.COLUMN_MEAN + " REAL,"
+                + RollupEntry.COLUMN_COUNT + " INTEGER"
+                + ")");
+        database.execSQL("CREATE INDEX " + RollupEntry.TABLE_ROLLUP + "_start_time ON "
+                + RollupEntry.TABLE_ROLLUP + "(" + RollupEntry.COLUMN_RESOLUTION + ","
+                + RollupEntry.COLUMN_START_TIME + ")");
+    }
+
+    /**
+     * Adds the foreign keys, the indexes and the triggers. SQLite can not add foreign keys to
+     * existing tables, so the map tables are copied into new ones. Rows belonging to
+     * DataRecords deleted before are left out and orphaned Locations and MeasureData objects are
+     * deleted.
+     * @param database The database to upgrade, the foreign keys are not enabled yet
+     */
+    private static void upgradeToVersion20(SQLiteDatabase database){
+        String suffix = "_new";
+        createMapTables(database, suffix);
+        upgradeMapTableToVersion20(database, DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP,
+                DataRecordLocationMap.COLUMN_LOCATION_ID, LocationEntry.TABLE_LOCATION, suffix);
+        upgradeMapTableToVersion20(database,
+                DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP,
+                DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID, MeasureDataEntry.TABLE_MEASURE_DATA,
+                suffix);
+        createIndexes(database);
+    }
+
+    /**
+     * Copies a map table into the new one, replaces the old one and deletes the rows of the
+     * mapped table not belonging to any DataRecord
+     * @param database The database
+     * @param table The map table
+     * @param column The column of the map table containing the id of the mapped table
+     * @param mappedTable The table of the Location or MeasureData objects
+     * @param suffix The suffix of the new map table
+     */
+    private static void upgradeMapTableToVersion20(SQLiteDatabase database, String table,
+                                                   String column, String mappedTable,
+                                                   String suffix){
+        // The map tables have the same columns in both versions
+        database.execSQL("INSERT INTO " + table + suffix + " SELECT _id, " + column
+                + ", data_record_id FROM " + table + " WHERE data_record_id IN (SELECT "
+                + DataRecordEntry.COLUMN_ID + " FROM " + DataRecordEntry.TABLE_DATA_RECORD + ")");
+        database.execSQL("DROP TABLE " + table);
+        database.execSQL("ALTER TABLE " + table + suffix + " RENAME TO " + table);
+        database.execSQL("DELETE FROM " + mappedTable + " WHERE _id NOT IN (SELECT " + column
+                + " FROM " + table + ")");
     }
 
     /**
      * This method clears all data from the database and puts the basic database layout back in.
      */
-    void rebuildDatabase() {
+    synchronized void rebuildDatabase() {
         SQLiteDatabase database = getWritableDatabase();
+        // The statements are compiled again for the new tables
+        closeStatements();
+        // The map and position tables are dropped first, otherwise dropping the DataRecords would
+        // delete their rows one by one through the foreign keys
+        database.execSQL("DROP TABLE IF EXISTS " + PositionEntry.TABLE_POSITION);
+        database.execSQL("DROP TABLE IF EXISTS " + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP);
+        database.execSQL("DROP TABLE IF EXISTS " + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP);
         database.execSQL("DROP TABLE IF EXISTS " + DataRecordEntry.TABLE_DATA_RECORD);
         database.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_LOCATION);
         database.execSQL("DROP TABLE IF EXISTS " + MeasureDataEntry.TABLE_MEASURE_DATA);
-        database.execSQL("DROP TABLE IF EXISTS " + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP);
-        database.execSQL("DROP TABLE IF EXISTS " + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP);
+        database.execSQL("DROP TABLE IF EXISTS " + RollupEntry.TABLE_ROLLUP);
 
         onCreate(database);
     }
 
     /**
      * Saves a single DataRecord objects and all associated Locations and MeasureData objects into
-     * the Database
+     * the Database. All rows are written in a single transaction using precompiled statements.
      * @param dr The DataRecord to save
      * @return The unique database id of the DataRecord just saved (might be reused if the
      *      DataRecord is deleted
      */
-    long saveDataRecord(DataRecord dr){
-        ContentValues data = new ContentValues();
-        data.put(DataRecordEntry.COLUMN_ARDUINO_SOFTWARE,dr.getArduinoSoftware());
-        data.put(DataRecordEntry.COLUMN_ARDUINO_TIME,dr.getArduinoTime());
-        data.put(DataRecordEntry.COLUMN_RECEIVE_TIME,dr.getReceiveTime().getTime());
-        data.put(DataRecordEntry.COLUMN_COMMENT,dr.getComment());
+    synchronized long saveDataRecord(DataRecord dr){
+        SQLiteDatabase db = prepareStatements();
+        db.beginTransaction();
+        try {
+            long id = insertDataRecord(dr);
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        SQLiteDatabase db = getWritableDatabase();
-        long id = db.insert(DataRecordEntry.TABLE_DATA_RECORD, null, data);
+    /**
+     * Saves several DataRecords in a single transaction. This is much faster than saving them one
+     * by one as the database only needs to write to the disk once.
+     * @param dataRecords The DataRecords to save, their database ids are set afterwards
+     */
+    synchronized void saveDataRecords(List<DataRecord> dataRecords){
+        SQLiteDatabase db = prepareStatements();
+        db.beginTransaction();
+        try {
+            for (DataRecord dr : dataRecords) {
+                insertDataRecord(dr);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        for(Location l:dr.getLocations()){
-            long locationID = saveLocationToDatabase(l);
-            ContentValues map = new ContentValues();
-            map.put(DataRecordLocationMap.COLUMN_LOCATION_ID, locationID);
-            map.put(DataRecordLocationMap.COLUMN_DATA_RECORD_ID, id);
-            db.insert(DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP,null,map);
+    /**
+     * Inserts a DataRecord with its Locations and MeasureData objects using the compiled
+     * statements. Must be called holding the lock inside a transaction.
+     * @param dr The DataRecord to save, the database id is set afterwards
+     * @return The database id of the DataRecord
+     */
+    private long insertDataRecord(DataRecord dr){
+        // The Locations are saved first, so the DataRecord is saved with its best one
+        List<Location> locations = dr.getLocations();
+        long[] locationIDs = new long[locations.size()];
+        for (int i = 0; i < locationIDs.length; i++) {
+            locationIDs[i] = saveLocationToDatabase(locations.get(i));
+        }
+        Location best = locations.isEmpty() ? null : dr.getLocation();
+
+        bindString(insertDataRecord, 1, dr.getArduinoSoftware());
+        insertDataRecord.bindLong(2, dr.getArduinoTime());
+        insertDataRecord.bindLong(3, dr.getReceiveTime().getTime());
+        bindString(insertDataRecord, 4, dr.getComment());
+        if (best != null) {
+            insertDataRecord.bindLong(5, locationIDs[locations.indexOf(best)]);
+            insertDataRecord.bindLong(6, DataRecord.locationScore(dr.getReceiveTime().getTime(),
+                    best.getTime(), best.hasAccuracy(), best.getAccuracy()));
+        } else {
+            insertDataRecord.bindNull(5);
+            insertDataRecord.bindNull(6);
+        }
+        long id = insertDataRecord.executeInsert();
+
+        for (long locationID : locationIDs) {
+            insertDataRecordLocation.bindLong(1, locationID);
+            insertDataRecordLocation.bindLong(2, id);
+            insertDataRecordLocation.executeInsert();
+        }
+        if (best != null) {
+            bindPosition(insertPosition, id, best.getLatitude(), best.getLongitude());
+            insertPosition.executeInsert();
         }
 
         for(MeasureData m:dr.getMeasureData()){
-            long measureDataID = saveMeasureDataToDatabase(m);
-            ContentValues map = new ContentValues();
-            map.put(DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID, measureDataID);
-            map.put(DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID, id);
-            db.insert(DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP,null,map);
+            insertDataRecordMeasureData.bindLong(1, saveMeasureDataToDatabase(m));
+            insertDataRecordMeasureData.bindLong(2, id);
+            insertDataRecordMeasureData.executeInsert();
         }
 
         dr.setDatabaseID(id);
@@ -257,57 +677,309 @@ class DataLab extends SQLiteOpenHelper implements
         return id;
     }
 
+    /**
+     * Compiles the statements used to save DataRecords unless they have been compiled for the
+     * current database already. Must be called holding the lock.
+     * @return The writable database the statements belong to
+     */
+    private SQLiteDatabase prepareStatements(){
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == statementDatabase) {
+            return db;
+        }
+        // The statements of a database closed meanwhile are released
+        closeStatements();
+        insertDataRecord = db.compileStatement("INSERT INTO " + DataRecordEntry.TABLE_DATA_RECORD
+                + "(" + DataRecordEntry.COLUMN_ARDUINO_SOFTWARE + ","
+                + DataRecordEntry.COLUMN_ARDUINO_TIME + ","
+                + DataRecordEntry.COLUMN_RECEIVE_TIME + ","
+                + DataRecordEntry.COLUMN_COMMENT + ","
+                + DataRecordEntry.COLUMN_BEST_LOCATION_ID + ","
+                + DataRecordEntry.COLUMN_BEST_LOCATION_SCORE + ") VALUES (?,?,?,?,?,?)");
+        insertLocation = db.compileStatement("INSERT INTO " + LocationEntry.TABLE_LOCATION
+                + "(" + LocationEntry.COLUMN_LATITUDE + ","
+                + LocationEntry.COLUMN_LONGITUDE + ","
+                + LocationEntry.COLUMN_HAS_ALTITUDE + ","
+                + LocationEntry.COLUMN_ALTITUDE + ","
+                + LocationEntry.COLUMN_TIME + ","
+                + LocationEntry.COLUMN_HAS_ACCURACY + ","
+                + LocationEntry.COLUMN_ACCURACY + ","
+                + LocationEntry.COLUMN_PROVIDER + ") VALUES (?,?,?,?,?,?,?,?)");
+        insertMeasureData = db.compileStatement("INSERT INTO " + MeasureDataEntry.TABLE_MEASURE_DATA
+                + "(" + MeasureDataEntry.COLUMN_TYPE + ","
+                + MeasureDataEntry.COLUMN_SENSOR + ","
+                + MeasureDataEntry.COLUMN_NAME + ","
+                + MeasureDataEntry.COLUMN_VALUE + ","
+                + MeasureDataEntry.COLUMN_UNIT + ") VALUES (?,?,?,?,?)");
+        insertDataRecordLocation = db.compileStatement("INSERT INTO "
+                + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP
+                + "(" + DataRecordLocationMap.COLUMN_LOCATION_ID + ","
+                + DataRecordLocationMap.COLUMN_DATA_RECORD_ID + ") VALUES (?,?)");
+        insertDataRecordMeasureData = db.compileStatement("INSERT INTO "
+                + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP
+                + "(" + DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID + ","
+                + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID + ") VALUES (?,?)");
+        insertPosition = db.compileStatement(insertPositionSql());
+        // Only replaces the best location by a better one, an equal score keeps the older one
+        updateBestLocation = db.compileStatement("UPDATE " + DataRecordEntry.TABLE_DATA_RECORD
+                + " SET " + DataRecordEntry.COLUMN_BEST_LOCATION_ID + " = ?, "
+                + DataRecordEntry.COLUMN_BEST_LOCATION_SCORE + " = ? WHERE "
+                + DataRecordEntry.COLUMN_ID + " = ? AND ("
+                + DataRecordEntry.COLUMN_BEST_LOCATION_SCORE + " IS NULL OR "
+                + DataRecordEntry.COLUMN_BEST_LOCATION_SCORE + " > ?)");
+        statementDatabase = db;
+        return db;
+    }
+
+    /**
+     * Closes the statements compiled by prepareStatements, so they are compiled again when needed.
+     * Must be called holding the lock.
+     */
+    private void closeStatements(){
+        if (statementDatabase == null) {
+            return;
+        }
+        SQLiteStatement[] statements = {insertDataRecord, insertLocation, insertMeasureData,
+                insertDataRecordLocation, insertDataRecordMeasureData, insertPosition,
+                updateBestLocation};
+        for (SQLiteStatement statement : statements) {
+            statement.close();
+        }
+        statementDatabase = null;
+    }
+
+    /**
+     * Binds a string which might be null to a statement
+     * @param statement The statement
+     * @param index The index of the parameter, starting at 1
+     * @param value The string or null
+     */
+    private static void bindString(SQLiteStatement statement, int index, String value){
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
     /**
      * Reads one DataRecord from the database
      * @param id The primary key ID for the DataRecord
-     * @return The DataRecord read from the database
+     * @return The DataRecord read from the database or null if it does not exist
      */
     DataRecord readDataRecordFromDatabase(long id){
+        List<DataRecord> dataRecords = readDataRecordsFromDatabase(new long[]{id});
+        return dataRecords.isEmpty() ? null : dataRecords.get(0);
+    }
+
+    /**
+     * Reads several DataRecords with their Locations and MeasureData objects from the database.
+     * Instead of querying every Location and MeasureData object on its own, the ids are handled
+     * in chunks and each chunk takes three queries: the records, the locations joined with their
+     * map table and the measure data joined with theirs.
+     * @param ids The primary key IDs of the DataRecords
+     * @return The DataRecords in the order of the ids, ids not found in the database are skipped
+     */
+    List<DataRecord> readDataRecordsFromDatabase(long[] ids){
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(DataRecordEntry.TABLE_DATA_RECORD, DataRecordEntry.COLUMNS," "
-                +DataRecordEntry.COLUMN_ID+" = ?",new String[] {Long.toString(id)},null, null, null, null);
-
-        if (cursor != null && cursor.moveToFirst()) {
-            List<Location> locations = new ArrayList<>();
-            Cursor locationMapCursor = db.query(DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP,
-                    DataRecordLocationMap.COLUMNS, DataRecordLocationMap.COLUMN_DATA_RECORD_ID+"=?",
-                    new String[]{Long.toString(id)},
-                    null, null, null);
-
-            if (locationMapCursor != null && locationMapCursor.moveToFirst()) {
-                do {
-                    int locID = locationMapCursor.getInt(locationMapCursor.getColumnIndex(DataRecordLocationMap.COLUMN_LOCATION_ID));
-                    locations.add(readLocationFromDatabase(locID));
-                } while (locationMapCursor.moveToNext());
-
-                locationMapCursor.close();
+        List<DataRecord> result = new ArrayList<>(ids.length);
+        for (int offset = 0; offset < ids.length; offset += READ_CHUNK_SIZE) {
+            readDataRecordChunk(db, ids, offset, Math.min(ids.length, offset + READ_CHUNK_SIZE),
+                    result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the highest number of Locations any of the given DataRecords has, for example to lay out
+     * the columns of an export without reading the DataRecords
+     * @param ids The primary key IDs of the DataRecords
+     * @return The highest number of Locations, 0 if none of them has a Location
+     */
+    int getMaxLocationCount(long[] ids){
+        return maxMapRows(DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP,
+                DataRecordLocationMap.COLUMN_DATA_RECORD_ID, ids);
+    }
+
+    /**
+     * Get the highest number of MeasureData objects any of the given DataRecords has
+     * @param ids The primary key IDs of the DataRecords
+     * @return The highest number of MeasureData objects, 0 if none of them has any
+     */
+    int getMaxMeasureDataCount(long[] ids){
+        return maxMapRows(DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP,
+                DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID, ids);
+    }
+
+    /**
+     * Count the rows of a map table per DataRecord and get the highest count. The rows are counted
+     * in chunks of ids using the index of the map table, the table itself is not read.
+     * @param table The map table
+     * @param column The column containing the DataRecord id
+     * @param ids The primary key IDs of the DataRecords
+     * @return The highest number of rows belonging to one of the DataRecords
+     */
+    private int maxMapRows(String table, String column, long[] ids){
+        SQLiteDatabase db = getReadableDatabase();
+        int result = 0;
+        for (int offset = 0; offset < ids.length; offset += READ_CHUNK_SIZE) {
+            String in = inList(ids, offset, Math.min(ids.length, offset + READ_CHUNK_SIZE));
+            Cursor cursor = db.rawQuery("SELECT MAX(c) FROM (SELECT COUNT(*) AS c FROM " + table
+                    + " WHERE " + column + in + " GROUP BY " + column + ")", null);
+            try {
+                if (cursor.moveToFirst()) {
+                    result = Math.max(result, cursor.getInt(0));
+                }
+            } finally {
+                cursor.close();
             }
+        }
+        return result;
+    }
 
-            List<MeasureData> measureDataList = new ArrayList<>();
-            Cursor measureDataMapCursor = db.query(DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP,
-                    DataRecordMeasureDataMap.COLUMNS, DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID+"=?",
-                    new String[]{Long.toString(id)}, null, null, null);
-            if (measureDataMapCursor != null && measureDataMapCursor.moveToFirst()) {
-                do {
-                    int mdID = measureDataMapCursor.getInt(measureDataMapCursor.getColumnIndex(DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID));
-                    measureDataList.add(readMeasureDataFromDatabase(mdID));
-                } while (measureDataMapCursor.moveToNext());
-
-                measureDataMapCursor.close();
+    /**
+     * Reads the DataRecords of a chunk of ids
+     * @param db The database
+     * @param ids The primary key IDs of the DataRecords
+     * @param from The index of the first id of the chunk
+     * @param to The index after the last id of the chunk
+     * @param result The list the DataRecords are appended to in the order of the ids
+     */
+    private void readDataRecordChunk(SQLiteDatabase db, long[] ids, int from, int to,
+                                     List<DataRecord> result){
+        String in = inList(ids, from, to);
+
+        // The locations and measure data are collected by the id of their DataRecord
+        Map<Long, List<Location>> locations = new HashMap<>();
+        Map<Long, List<MeasureData>> measureData = new HashMap<>();
+        // The best location of a DataRecord is found by its id
+        Map<Long, Location> locationsByID = new HashMap<>();
+
+        Cursor locationCursor = db.rawQuery("SELECT m." + DataRecordLocationMap.COLUMN_DATA_RECORD_ID
+                + ", l." + LocationEntry.COLUMN_PROVIDER
+                + ", l." + LocationEntry.COLUMN_LATITUDE
+                + ", l." + LocationEntry.COLUMN_LONGITUDE
+                + ", l." + LocationEntry.COLUMN_HAS_ALTITUDE
+                + ", l." + LocationEntry.COLUMN_ALTITUDE
+                + ", l." + LocationEntry.COLUMN_HAS_ACCURACY
+                + ", l." + LocationEntry.COLUMN_ACCURACY
+                + ", l." + LocationEntry.COLUMN_TIME
+                + ", l." + LocationEntry.COLUMN_ID
+                + " FROM " + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP + " m JOIN "
+                + LocationEntry.TABLE_LOCATION + " l ON l." + LocationEntry.COLUMN_ID
+                + " = m." + DataRecordLocationMap.COLUMN_LOCATION_ID
+                + " WHERE m." + DataRecordLocationMap.COLUMN_DATA_RECORD_ID + in
+                + " ORDER BY m." + DataRecordLocationMap.COLUMN_ID, null);
+        try {
+            while (locationCursor.moveToNext()) {
+                Location location = new Location(locationCursor.getString(1));
+                location.setLatitude(locationCursor.getDouble(2));
+                location.setLongitude(locationCursor.getDouble(3));
+                // The database represents false as 0 and true as 1
+                if (locationCursor.getInt(4) != 0)
+                    location.setAltitude(locationCursor.getDouble(5));
+                if (locationCursor.getInt(6) != 0)
+                    location.setAccuracy(locationCursor.getInt(7));
+                location.setTime(locationCursor.getLong(8));
+                listFor(locations, locationCursor.getLong(0)).add(location);
+                locationsByID.put(locationCursor.getLong(9), location);
             }
+        } finally {
+            locationCursor.close();
+        }
 
-            @SuppressWarnings("SpellCheckingInspection")
-            String arduinoSoftware = cursor.getString(cursor.getColumnIndex(DataRecordEntry.COLUMN_ARDUINO_SOFTWARE));
-            @SuppressWarnings("SpellCheckingInspection")
-            long arduinoTime = cursor.getLong(cursor.getColumnIndex(DataRecordEntry.COLUMN_ARDUINO_TIME));
-            Date receiveTime = new Date(cursor.getLong(cursor.getColumnIndex(DataRecordEntry.COLUMN_RECEIVE_TIME)));
-            String comment = cursor.getString(cursor.getColumnIndex(DataRecordEntry.COLUMN_COMMENT));
+        Cursor measureDataCursor = db.rawQuery("SELECT m." + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID
+                + ", d." + MeasureDataEntry.COLUMN_TYPE
+                + ", d." + MeasureDataEntry.COLUMN_SENSOR
+                + ", d." + MeasureDataEntry.COLUMN_NAME
+                + ", d." + MeasureDataEntry.COLUMN_VALUE
+                + ", d." + MeasureDataEntry.COLUMN_UNIT
+                + " FROM " + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP + " m JOIN "
+                + MeasureDataEntry.TABLE_MEASURE_DATA + " d ON d." + MeasureDataEntry.COLUMN_ID
+                + " = m." + DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID
+                + " WHERE m." + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID + in
+                + " ORDER BY m." + DataRecordMeasureDataMap.COLUMN_ID, null);
+        try {
+            while (measureDataCursor.moveToNext()) {
+                listFor(measureData, measureDataCursor.getLong(0)).add(new MeasureData(
+                        measureDataCursor.getString(1), measureDataCursor.getString(2),
+                        measureDataCursor.getString(3), measureDataCursor.getDouble(4),
+                        measureDataCursor.getString(5)));
+            }
+        } finally {
+            measureDataCursor.close();
+        }
 
+        Map<Long, DataRecord> dataRecords = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT " + DataRecordEntry.COLUMN_ID
+                + ", " + DataRecordEntry.COLUMN_ARDUINO_SOFTWARE
+                + ", " + DataRecordEntry.COLUMN_ARDUINO_TIME
+                + ", " + DataRecordEntry.COLUMN_RECEIVE_TIME
+                + ", " + DataRecordEntry.COLUMN_COMMENT
+                + ", " + DataRecordEntry.COLUMN_BEST_LOCATION_ID
+                + " FROM " + DataRecordEntry.TABLE_DATA_RECORD
+                + " WHERE " + DataRecordEntry.COLUMN_ID + in, null);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                List<Location> recordLocations = locations.get(id);
+                List<MeasureData> recordMeasureData = measureData.get(id);
+                DataRecord dataRecord = new DataRecord(
+                        recordLocations != null ? recordLocations : new ArrayList<Location>(),
+                        recordMeasureData != null ? recordMeasureData : new ArrayList<MeasureData>(),
+                        cursor.getString(1), cursor.getLong(2), cursor.getString(4),
+                        new Date(cursor.getLong(3)), id);
+                if (!cursor.isNull(5)) {
+                    dataRecord.setBestLocation(locationsByID.get(cursor.getLong(5)));
+                }
+                dataRecords.put(id, dataRecord);
+            }
+        } finally {
             cursor.close();
+        }
 
-            return new DataRecord(locations, measureDataList, arduinoSoftware, arduinoTime, comment, receiveTime, id);
+        for (int i = from; i < to; i++) {
+            DataRecord dataRecord = dataRecords.get(ids[i]);
+            if (dataRecord != null) {
+                result.add(dataRecord);
+            }
         }
-        return null;
+    }
+
+    /**
+     * Builds the IN clause for a part of an array of ids.
+     * The ids are numbers, so they can be put into the query without binding them. This avoids
+     * the limit of SQLite for the number of bound parameters.
+     * @param ids The database IDs
+     * @param from The index of the first id
+     * @param to The index after the last id
+     * @return " IN (id,id,...)"
+     */
+    private static String inList(long[] ids, int from, int to){
+        StringBuilder in = new StringBuilder(" IN (");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                in.append(',');
+            }
+            in.append(ids[i]);
+        }
+        return in.append(')').toString();
+    }
+
+    /**
+     * Get the list stored for a key, adding an empty one if there is none yet
+     * @param map The map of lists
+     * @param key The key
+     * @param <T> The type of the list elements
+     * @return The list stored for the key
+     */
+    private static <T> List<T> listFor(Map<Long, List<T>> map, long key){
+        List<T> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        return list;
     }
 
     /**
@@ -315,11 +987,21 @@ class DataLab extends SQLiteOpenHelper implements
      * @return An array of database IDs
      */
     long[] getFilteredIDs(){
+        return getFilteredIDs(FilterState.isOldestFirst());
+    }
+
+    /**
+     * Get an array of database IDs for the DataRecords that correspond to the currently set
+     * filters in the given order, for exports which need the order of the receive time
+     * @param oldestFirst true to order by ascending receive time, false for descending
+     * @return An array of database IDs
+     */
+    long[] getFilteredIDs(boolean oldestFirst){
         SQLiteDatabase db = getReadableDatabase();
         String[] columns = {DataRecordEntry._ID};
         String selection = DataRecordEntry.COLUMN_RECEIVE_TIME+" >= ? AND "+DataRecordEntry.COLUMN_RECEIVE_TIME+" <= ?";
         String[] selectionArgs = { Long.toString(FilterState.getStartTime().getTime()), Long.toString(FilterState.getEndTime().getTime()) };
-        String order = DataRecordEntry.COLUMN_RECEIVE_TIME + (FilterState.isOldestFirst() ? " ASC" : " DESC");
+        String order = DataRecordEntry.COLUMN_RECEIVE_TIME + (oldestFirst ? " ASC" : " DESC");
         Cursor cursor = db.query(DataRecordEntry.TABLE_DATA_RECORD, columns, selection,
                 selectionArgs, null, null, order);
 
@@ -336,325 +1018,582 @@ class DataLab extends SQLiteOpenHelper implements
     }
 
     /**
-     * Add a location object to a DataRecord (given by it's database ID)
-     * The location will be saved to the database and linked with the DataRecord database entry
-     * @param l The Location object
-     * @param dataRecordID The ID of the DataRecord the Location should be linked to
+     * Get the positions of the DataRecords that correspond to the currently set filters and whose
+     * best location is within the given bounds. The positions are found using the index of the
+     * position table, so this is cheap enough to call whenever a map is moved.
+     * @param south The southern bound in degrees
+     * @param west The western bound in degrees, east of the eastern bound if the bounds cross the
+     *             180th meridian
+     * @param north The northern bound in degrees
+     * @param east The eastern bound in degrees
+     * @return The positions
      */
-    void addLocation(Location l, long dataRecordID){
-        long locationID = saveLocationToDatabase(l);
-        ContentValues map = new ContentValues();
-        map.put(DataRecordLocationMap.COLUMN_LOCATION_ID, locationID);
-        map.put(DataRecordLocationMap.COLUMN_DATA_RECORD_ID, dataRecordID);
-
-        SQLiteDatabase db = getReadableDatabase();
-        db.insert(DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP,null,map);
-
-
+    List<RecordPosition> readPositions(double south, double west, double north, double east){
+        List<long[]> ranges = GeoHash.cover(south, west, north, east);
+        List<String> selectionArgs = new ArrayList<>();
+        StringBuilder selection = new StringBuilder("(");
+        for (long[] range : ranges) {
+            if (selectionArgs.size() > 0) {
+                selection.append(" OR ");
+            }
+            selection.append("p.").append(PositionEntry.COLUMN_GEOHASH).append(" BETWEEN ? AND ?");
+            selectionArgs.add(Long.toString(range[0]));
+            selectionArgs.add(Long.toString(range[1]));
+        }
+        // The ranges cover more than the bounds
+        selection.append(") AND p.").append(PositionEntry.COLUMN_LATITUDE).append(" BETWEEN ? AND ?");
+        selectionArgs.add(Double.toString(south));
+        selectionArgs.add(Double.toString(north));
+        if (west <= east) {
+            selection.append(" AND p.").append(PositionEntry.COLUMN_LONGITUDE)
+                    .append(" BETWEEN ? AND ?");
+        } else {
+            selection.append(" AND (p.").append(PositionEntry.COLUMN_LONGITUDE)
+                    .append(" >= ? OR p.").append(PositionEntry.COLUMN_LONGITUDE).append(" <= ?)");
+        }
+        selectionArgs.add(Double.toString(west));
+        selectionArgs.add(Double.toString(east));
+        return queryPositions(selection.toString(), selectionArgs);
     }
 
     /**
-     * Posts a DelayedLocationProvider runnable to the main looper.
-     * This means a location will later be added to the given DataRecord in the database
-     * @param dataRecordID The ID of the DataRecord that should have the Location added.
+     * Get the positions of the DataRecords that correspond to the currently set filters and whose
+     * best location is within a distance of a point. The positions within the bounding box of the
+     * circle are read using the index and the ones outside the circle are dropped afterwards.
+     * @param latitude The latitude of the center in degrees
+     * @param longitude The longitude of the center in degrees
+     * @param radius The distance in meters
+     * @return The positions
      */
-    void requestDeviceLocationAdded(final long dataRecordID){
-        class DelayedLocationRunnable extends Thread{
-            @Override
-            public void run(){
-                new DelayedLocationProvider(dataRecordID, DataLab.this, googleApiClient, context);
+    List<RecordPosition> readPositionsWithin(double latitude, double longitude, double radius){
+        double latitudeDelta = Math.toDegrees(radius / EARTH_RADIUS);
+        double south = Math.max(-90, latitude - latitudeDelta);
+        double north = Math.min(90, latitude + latitudeDelta);
+        double west = -180;
+        double east = 180;
+        // Near a pole, the circle contains every longitude
+        double cos = Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north))));
+        if (north < 90 && south > -90 && latitudeDelta / cos < 180) {
+            double longitudeDelta = latitudeDelta / cos;
+            west = longitude - longitudeDelta;
+            east = longitude + longitudeDelta;
+            if (west < -180) {
+                west += 360;
+            }
+            if (east > 180) {
+                east -= 360;
             }
         }
-        new Handler(Looper.getMainLooper()).post(new DelayedLocationRunnable());
 
+        List<RecordPosition> positions = readPositions(south, west, north, east);
+        List<RecordPosition> result = new ArrayList<>();
+        float[] distance = new float[1];
+        for (RecordPosition position : positions) {
+            Location.distanceBetween(latitude, longitude, position.getLatitude(),
+                    position.getLongitude(), distance);
+            if (distance[0] <= radius) {
+                result.add(position);
+            }
+        }
+        return result;
     }
 
     /**
-     * Saves the given location to the database
-     * @param location A Location object
-     * @return The primary key given to the Location object
+     * Query the position table for the DataRecords that correspond to the currently set filters
+     * @param selection A condition on the position table (alias p)
+     * @param selectionArgs The arguments of the condition
+     * @return The positions found
      */
-    private long saveLocationToDatabase(Location location){
-        ContentValues loc = new ContentValues();
-        loc.put(LocationEntry.COLUMN_LATITUDE,location.getLatitude());
-        loc.put(LocationEntry.COLUMN_LONGITUDE,location.getLongitude());
-        loc.put(LocationEntry.COLUMN_HAS_ALTITUDE,location.hasAltitude());
-        loc.put(LocationEntry.COLUMN_ALTITUDE,location.getAltitude());
-        loc.put(LocationEntry.COLUMN_TIME,location.getTime());
-        loc.put(LocationEntry.COLUMN_HAS_ACCURACY,location.hasAccuracy());
-        loc.put(LocationEntry.COLUMN_ACCURACY,location.getAccuracy());
-        loc.put(LocationEntry.COLUMN_PROVIDER,location.getProvider());
-
-        SQLiteDatabase db = getWritableDatabase();
-        return db.insert(LocationEntry.TABLE_LOCATION, null, loc);
+    private List<RecordPosition> queryPositions(String selection, List<String> selectionArgs){
+        SQLiteDatabase db = getReadableDatabase();
+        selectionArgs.add(Long.toString(FilterState.getStartTime().getTime()));
+        selectionArgs.add(Long.toString(FilterState.getEndTime().getTime()));
+        // The unary plus keeps SQLite from using the index of the receive time instead of the
+        // index of the geohashes, the filter usually contains far more DataRecords than the map
+        Cursor cursor = db.rawQuery("SELECT p." + PositionEntry.COLUMN_DATA_RECORD_ID
+                + ", p." + PositionEntry.COLUMN_LATITUDE
+                + ", p." + PositionEntry.COLUMN_LONGITUDE
+                + " FROM " + PositionEntry.TABLE_POSITION + " p JOIN "
+                + DataRecordEntry.TABLE_DATA_RECORD + " r ON r." + DataRecordEntry.COLUMN_ID
+                + " = p." + PositionEntry.COLUMN_DATA_RECORD_ID
+                + " WHERE " + selection
+                + " AND +r." + DataRecordEntry.COLUMN_RECEIVE_TIME + " BETWEEN ? AND ?",
+                selectionArgs.toArray(new String[selectionArgs.size()]));
+        List<RecordPosition> result = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                result.add(new RecordPosition(cursor.getLong(0), cursor.getDouble(1),
+                        cursor.getDouble(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
     }
 
     /**
-     * Reads a Location from the database
-     * Does not link to a DataRecord and therefore should not be used without linking
-     * @param id The primary key for the Location
-     * @return A Location object
+     * Get the bounds of the positions of the DataRecords that correspond to the currently set
+     * filters, for example to show all of them on a map
+     * @return The south, west, north and east bound in degrees or null if there are no positions
      */
-    private Location readLocationFromDatabase(long id){
+    double[] getPositionBounds(){
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(LocationEntry.TABLE_LOCATION, LocationEntry.COLUMNS," "+LocationEntry.COLUMN_ID+" = ?",new String[] {Long.valueOf(id).toString()},null, null, null, null);
-        if (cursor != null) {
-            cursor.moveToFirst();
-        } else {
-            return null;
+        String[] selectionArgs = { Long.toString(FilterState.getStartTime().getTime()),
+                Long.toString(FilterState.getEndTime().getTime()) };
+        Cursor cursor = db.rawQuery("SELECT MIN(p." + PositionEntry.COLUMN_LATITUDE
+                + "), MIN(p." + PositionEntry.COLUMN_LONGITUDE
+                + "), MAX(p." + PositionEntry.COLUMN_LATITUDE
+                + "), MAX(p." + PositionEntry.COLUMN_LONGITUDE
+                + "), COUNT(*) FROM " + PositionEntry.TABLE_POSITION + " p JOIN "
+                + DataRecordEntry.TABLE_DATA_RECORD + " r ON r." + DataRecordEntry.COLUMN_ID
+                + " = p." + PositionEntry.COLUMN_DATA_RECORD_ID
+                + " WHERE r." + DataRecordEntry.COLUMN_RECEIVE_TIME + " BETWEEN ? AND ?",
+                selectionArgs);
+        try {
+            if (!cursor.moveToFirst() || cursor.getLong(4) == 0) {
+                return null;
+            }
+            return new double[]{cursor.getDouble(0), cursor.getDouble(1), cursor.getDouble(2),
+                    cursor.getDouble(3)};
+        } finally {
+            cursor.close();
         }
+    }
 
-        Location location = new Location("Database");
-
+    /**
+     * Add a location object to a DataRecord (given by it's database ID)
+     * The location will be saved to the database and linked with the DataRecord database entry
+     * @param l The Location object
+     * @param dataRecordID The ID of the DataRecord the Location should be linked to
+     */
+    synchronized void addLocation(Location l, long dataRecordID){
+        SQLiteDatabase db = prepareStatements();
+        db.beginTransaction();
         try {
-            location.setProvider(cursor.getString(cursor.getColumnIndex(LocationEntry.COLUMN_PROVIDER)));
-            location.setLatitude(cursor.getDouble(cursor.getColumnIndex(LocationEntry.COLUMN_LATITUDE)));
-            location.setLongitude(cursor.getDouble(cursor.getColumnIndex(LocationEntry.COLUMN_LONGITUDE)));
-            // The database represents false as 0 and true as 1
-            if (cursor.getInt(cursor.getColumnIndex(LocationEntry.COLUMN_HAS_ALTITUDE)) != 0)
-                location.setAltitude(cursor.getDouble(cursor.getColumnIndex(LocationEntry.COLUMN_ALTITUDE)));
-            if(cursor.getInt(cursor.getColumnIndex(LocationEntry.COLUMN_HAS_ACCURACY)) != 0)
-                location.setAccuracy(cursor.getInt(cursor.getColumnIndex(LocationEntry.COLUMN_ACCURACY)));
-            location.setTime(cursor.getLong(cursor.getColumnIndex(LocationEntry.COLUMN_TIME)));
-        } catch (NullPointerException e) {
-            Log.i(this.getClass().getSimpleName(), e.toString());
-            return null;
+            long locationID = saveLocationToDatabase(l);
+            insertDataRecordLocation.bindLong(1, locationID);
+            insertDataRecordLocation.bindLong(2, dataRecordID);
+            insertDataRecordLocation.executeInsert();
+
+            // The new Location replaces the best one of the DataRecord if its score is lower,
+            // the other Locations do not have to be read
+            Cursor cursor = db.rawQuery("SELECT " + DataRecordEntry.COLUMN_RECEIVE_TIME
+                    + " FROM " + DataRecordEntry.TABLE_DATA_RECORD + " WHERE "
+                    + DataRecordEntry.COLUMN_ID + " = ?", new String[]{Long.toString(dataRecordID)});
+            try {
+                if (cursor.moveToFirst()) {
+                    long score = DataRecord.locationScore(cursor.getLong(0), l.getTime(),
+                            l.hasAccuracy(), l.getAccuracy());
+                    updateBestLocation.bindLong(1, locationID);
+                    updateBestLocation.bindLong(2, score);
+                    updateBestLocation.bindLong(3, dataRecordID);
+                    updateBestLocation.bindLong(4, score);
+                    if (updateBestLocation.executeUpdateDelete() > 0) {
+                        bindPosition(insertPosition, dataRecordID, l.getLatitude(),
+                                l.getLongitude());
+                        insertPosition.executeInsert();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
         } finally {
-        cursor.close();
+            db.endTransaction();
         }
+    }
 
-        return location;
+    /**
+     * Saves the given location to the database using the compiled statement.
+     * Must be called holding the lock after prepareStatements().
+     * @param location A Location object
+     * @return The primary key given to the Location object
+     */
+    private long saveLocationToDatabase(Location location){
+        insertLocation.bindDouble(1, location.getLatitude());
+        insertLocation.bindDouble(2, location.getLongitude());
+        // The database represents false as 0 and true as 1
+        insertLocation.bindLong(3, location.hasAltitude() ? 1 : 0);
+        insertLocation.bindDouble(4, location.getAltitude());
+        insertLocation.bindLong(5, location.getTime());
+        insertLocation.bindLong(6, location.hasAccuracy() ? 1 : 0);
+        insertLocation.bindDouble(7, location.getAccuracy());
+        bindString(insertLocation, 8, location.getProvider());
+        return insertLocation.executeInsert();
     }
 
     /**
-     * Saves the given MeasureData object to the database
-     * Does not link to a DataRecord and therefore should not be used without linking
+     * Saves the given MeasureData object to the database using the compiled statement.
+     * Does not link to a DataRecord and therefore should not be used without linking.
+     * Must be called holding the lock after prepareStatements().
      * @param md A MeasureData object
      * @return The primary key given to the MeasureData object
      */
     private long saveMeasureDataToDatabase(MeasureData md){
-        ContentValues data = new ContentValues();
-        data.put(MeasureDataEntry.COLUMN_TYPE,md.getType());
-        data.put(MeasureDataEntry.COLUMN_SENSOR,md.getSensor());
-        data.put(MeasureDataEntry.COLUMN_NAME,md.getName());
-        data.put(MeasureDataEntry.COLUMN_VALUE,md.getValue());
-        data.put(MeasureDataEntry.COLUMN_UNIT,md.getUnit());
-
-        SQLiteDatabase db = getWritableDatabase();
-        return db.insert(MeasureDataEntry.TABLE_MEASURE_DATA, null, data);
+        bindString(insertMeasureData, 1, md.getType());
+        bindString(insertMeasureData, 2, md.getSensor());
+        bindString(insertMeasureData, 3, md.getName());
+        insertMeasureData.bindDouble(4, md.getValue());
+        bindString(insertMeasureData, 5, md.getUnit());
+        return insertMeasureData.executeInsert();
     }
 
     /**
-     * Reads a MeasureData object from the database
-     * @param id Primary Key ID of the MeasureData object
-     * @return A MeasureData object
+     * The ProgressListener is informed about the progress of long operations like deleting many
+     * DataRecords. It is called by the thread running the operation.
      */
-    private MeasureData readMeasureDataFromDatabase(long id){
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(MeasureDataEntry.TABLE_MEASURE_DATA, MeasureDataEntry.COLUMNS," "+MeasureDataEntry.COLUMN_ID+" = ?",new String[] {Long.toString(id)},null, null, null, null);
-
-        if (cursor != null) {
-            cursor.moveToFirst();
-        } else {
-            return null;
-        }
-
-        try {
-            String type = cursor.getString(cursor.getColumnIndex(MeasureDataEntry.COLUMN_TYPE));
-            String sensor = cursor.getString(cursor.getColumnIndex(MeasureDataEntry.COLUMN_SENSOR));
-            String name = cursor.getString(cursor.getColumnIndex(MeasureDataEntry.COLUMN_NAME));
-            Double value = cursor.getDouble(cursor.getColumnIndex(MeasureDataEntry.COLUMN_VALUE));
-            String unit = cursor.getString(cursor.getColumnIndex(MeasureDataEntry.COLUMN_UNIT));
-            return new MeasureData(type, sensor, name, value, unit);
-        } catch (NullPointerException e) {
-            Log.d(this.getClass().getSimpleName(), e.toString());
-            return null;
-        } finally {
-            cursor.close();
-        }
+    interface ProgressListener {
+        /**
+         * @param done The part of the operation done
+         * @param total The size of the whole operation
+         */
+        void onProgress(int done, int total);
     }
 
     /**
-     * This function parses a JSON string into a
-     * @param jsonString the JSON string according to the protocol specification
-     * @param receiveTime the time the JSON string was received
-     * @return The DataRecord parsed
-     * @throws ParseException if the JSON is not formatted right
+     * Delete all DataRecords and the associated Locations and MeasureData objects having a receive
+     * date before the specified date.
+     * THIS CAN NOT BE UNDONE.
+     * @param until Threshold data
+     * @return The number of DataRecords deleted
      */
-    DataRecord parseJSON(String jsonString, Date receiveTime) throws ParseException{
-        JSONObject json;
-        List<Location> locationList = new ArrayList<>(1);
-        List<MeasureData> measureDataList;
-        try {
-            json = new JSONObject(jsonString);
+    int deleteOldDataRecords(Date until){
+        return deleteOldDataRecords(until, null);
+    }
 
-            if(json.has("position")){
-                JSONObject locationJsonObject = json.getJSONObject("position");
-                Location location = parseLocation(locationJsonObject);
-                if (location != null){
-                    locationList.add(location);
+    /**
+     * Delete all DataRecords and the associated Locations and MeasureData objects having a receive
+     * date before the specified date.
+     *
+     * The DataRecords are deleted in chunks. Each chunk is deleted by a few statements in a
+     * transaction of its own, so the receiver can save new DataRecords and the lists can be read
+     * in between. The IDs of every chunk are broadcast once it has been deleted.
+     * THIS CAN NOT BE UNDONE.
+     * @param until Threshold data
+     * @param listener Informed after every chunk, may be null
+     * @return The number of DataRecords deleted
+     */
+    int deleteOldDataRecords(Date until, ProgressListener listener){
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = DataRecordEntry.COLUMN_RECEIVE_TIME + " <= ?";
+        String[] selectionArgs = {Long.toString(until.getTime())};
+        int total = (int) DatabaseUtils.queryNumEntries(db, DataRecordEntry.TABLE_DATA_RECORD,
+                selection, selectionArgs);
+        int deleted = 0;
+        if (listener != null) {
+            listener.onProgress(deleted, total);
+        }
+        while (true) {
+            Cursor cursor = db.query(DataRecordEntry.TABLE_DATA_RECORD,
+                    new String[]{DataRecordEntry.COLUMN_ID}, selection, selectionArgs, null, null,
+                    null, Integer.toString(DELETE_CHUNK_SIZE));
+            long[] ids = new long[cursor.getCount()];
+            try {
+                while (cursor.moveToNext()) {
+                    ids[cursor.getPosition()] = cursor.getLong(0);
                 }
+            } finally {
+                cursor.close();
             }
+            if (ids.length == 0) {
+                return deleted;
+            }
+            deleteDataRecords(db, ids);
+            broadcastDeleted(ids);
+            deleted += ids.length;
+            if (listener != null) {
+                listener.onProgress(Math.min(deleted, total), total);
+            }
+        }
+    }
 
-            measureDataList = parseMeasureData(json.getJSONObject("sensors"));
-
-            String arduinoSoftware = json.optString("arduino_software", "");
-            Long arduinoTime = json.optLong("arduino_time", 0);
-            String comment = json.optString("comment", "");
+    /**
+     * Delete a single DataRecord and the associated MeasureData and Location objects
+     * THIS CAN NOT BE UNDONE.
+     * @param databaseID The database ID of the DataRecord to be removed
+     */
+    void deleteDataRecord(long databaseID) {
+        long[] ids = {databaseID};
+        deleteDataRecords(getWritableDatabase(), ids);
+        broadcastDeleted(ids);
+    }
 
-            return new DataRecord(locationList,measureDataList,arduinoSoftware,arduinoTime,comment,receiveTime,-1);
+    /**
+     * Tell the lists that DataRecords have been deleted, called after the deletion has been
+     * committed
+     * @param ids The database IDs of the DataRecords deleted
+     */
+    private void broadcastDeleted(long[] ids){
+        Intent intent = new Intent(INTENT_DATA_RECORDS_DELETED);
+        intent.putExtra(BluetoothReceiverService.EXTRA_DATA_RECORD_IDS, ids);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
 
-        } catch (JSONException e) {
-            Log.w(this.getClass().getSimpleName(),e.toString());
-            throw new ParseException("Invalid JSON string",0);
+    /**
+     * Delete DataRecords and everything belonging to them in a single transaction.
+     * The Locations and MeasureData objects are deleted by one statement each, deleting the
+     * DataRecords deletes the map rows (see createMapTables). The triggers of the map tables do
+     * not find anything to delete anymore then.
+     * @param db The writable database
+     * @param ids The database IDs of the DataRecords
+     */
+    private static void deleteDataRecords(SQLiteDatabase db, long[] ids){
+        String in = inList(ids, 0, ids.length);
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + LocationEntry.TABLE_LOCATION + " WHERE "
+                    + LocationEntry.COLUMN_ID + " IN (SELECT "
+                    + DataRecordLocationMap.COLUMN_LOCATION_ID + " FROM "
+                    + DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP + " WHERE "
+                    + DataRecordLocationMap.COLUMN_DATA_RECORD_ID + in + ")");
+            db.execSQL("DELETE FROM " + MeasureDataEntry.TABLE_MEASURE_DATA + " WHERE "
+                    + MeasureDataEntry.COLUMN_ID + " IN (SELECT "
+                    + DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID + " FROM "
+                    + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP + " WHERE "
+                    + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID + in + ")");
+            db.execSQL("DELETE FROM " + DataRecordEntry.TABLE_DATA_RECORD + " WHERE "
+                    + DataRecordEntry.COLUMN_ID + in);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
     }
 
     /**
-     * This function parses the Location sub-object included in the JSON message received.
-      * @param json A JSON string of the Location JSON object.
-     * @return The Location ocject parsed from the JSON data. Null id the location is invalid.
-     * @throws ParseException Thrown if the message does not conform to the protocol specification
+     * Summarize the oldest DataRecords received before a time in rollups per minute and delete
+     * them. The rollups of a minute already containing values are merged with the new ones, so
+     * the DataRecords of a minute can be handled by several calls.
+     * @param before The receive time limit, should be a multiple of a minute
+     * @param limit The maximum number of DataRecords handled, all of them in one transaction
+     * @return The number of DataRecords summarized and deleted, 0 if there are no more
      */
-    @SuppressWarnings("SpellCheckingInspection")
-    private Location parseLocation(JSONObject json) throws ParseException  {
+    int rollUpDataRecords(long before, int limit){
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor cursor = db.query(DataRecordEntry.TABLE_DATA_RECORD,
+                new String[]{DataRecordEntry.COLUMN_ID}, DataRecordEntry.COLUMN_RECEIVE_TIME + " < ?",
+                new String[]{Long.toString(before)}, null, null, DataRecordEntry.COLUMN_RECEIVE_TIME,
+                Integer.toString(limit));
+        long[] ids = new long[cursor.getCount()];
         try {
-            if (json.has("valid") && !json.getBoolean("valid")){
-                return null;
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
             }
+        } finally {
+            cursor.close();
+        }
+        if (ids.length == 0) {
+            return 0;
+        }
 
-            Location loc = new Location("ArduinoGPS");
-            loc.setProvider(json.optString("provider", "ArduinoGPS"));
-            loc.setLatitude(json.optDouble("latitude", 0));
-            loc.setLongitude(json.optDouble("longitude", 0));
-            if (json.has("altitude")) {
-                loc.setAltitude(json.getDouble("altitude"));
-            }
-            if (json.has("accuracy")) {
-                loc.setAccuracy((float) json.getDouble("accuracy"));
+        db.beginTransaction();
+        try {
+            Cursor groups = db.rawQuery("SELECT (r." + DataRecordEntry.COLUMN_RECEIVE_TIME + " / "
+                    + RollupEntry.RESOLUTION_MINUTE + ") * " + RollupEntry.RESOLUTION_MINUTE
+                    + ", d." + MeasureDataEntry.COLUMN_TYPE
+                    + ", d." + MeasureDataEntry.COLUMN_SENSOR
+                    + ", d." + MeasureDataEntry.COLUMN_NAME
+                    + ", d." + MeasureDataEntry.COLUMN_UNIT
+                    + ", MIN(d." + MeasureDataEntry.COLUMN_VALUE + ")"
+                    + ", MAX(d." + MeasureDataEntry.COLUMN_VALUE + ")"
+                    + ", AVG(d." + MeasureDataEntry.COLUMN_VALUE + ")"
+                    + ", COUNT(d." + MeasureDataEntry.COLUMN_VALUE + ")"
+                    + " FROM " + DataRecordEntry.TABLE_DATA_RECORD + " r JOIN "
+                    + DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP + " m ON m."
+                    + DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID + " = r." + DataRecordEntry.COLUMN_ID
+                    + " JOIN " + MeasureDataEntry.TABLE_MEASURE_DATA + " d ON d."
+                    + MeasureDataEntry.COLUMN_ID + " = m." + DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID
+                    + " WHERE r." + DataRecordEntry.COLUMN_ID + inList(ids, 0, ids.length)
+                    + " GROUP BY 1, 2, 3, 4, 5", null);
+            try {
+                writeRollups(db, RollupEntry.RESOLUTION_MINUTE, groups);
+            } finally {
+                groups.close();
             }
+            deleteDataRecords(db, ids);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        broadcastDeleted(ids);
+        return ids.length;
+    }
 
-            long date = json.optLong("date", 0);
-            long time = json.optLong("time", 0);
-            // This is the time format delivered by the TinyGPS++ Library
-            DateFormat format = new SimpleDateFormat("ddMMyyHHmmss", Locale.US);
-            // The time given by the GPS receiver is always the GPS time.
-            // The TinyGPS++ library converts it to the Universal Time Coordinated (UTC)
-            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    /**
+     * Merge the oldest rollups per minute starting before a time into rollups per hour. Only the
+     * minutes within a window of time, starting at the hour of the oldest rollup, are merged by
+     * a single call.
+     * @param before The start time limit, must be a multiple of an hour
+     * @param window The length of the window in milliseconds, a multiple of an hour
+     * @return The number of rollups per minute merged and deleted, 0 if there are no more
+     */
+    int rollUpRollups(long before, long window){
+        SQLiteDatabase db = getWritableDatabase();
+        String minute = Long.toString(RollupEntry.RESOLUTION_MINUTE);
+        long first = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN("
+                + RollupEntry.COLUMN_START_TIME + "), -1) FROM " + RollupEntry.TABLE_ROLLUP
+                + " WHERE " + RollupEntry.COLUMN_RESOLUTION + " = ? AND "
+                + RollupEntry.COLUMN_START_TIME + " < ?", new String[]{minute, Long.toString(before)});
+        if (first < 0) {
+            return 0;
+        }
+        long from = first - first % RollupEntry.RESOLUTION_HOUR;
+        String[] range = {minute, Long.toString(from), Long.toString(Math.min(before, from + window))};
+        String selection = RollupEntry.COLUMN_RESOLUTION + " = ? AND "
+                + RollupEntry.COLUMN_START_TIME + " >= ? AND " + RollupEntry.COLUMN_START_TIME + " < ?";
 
+        db.beginTransaction();
+        try {
+            Cursor groups = db.rawQuery("SELECT (" + RollupEntry.COLUMN_START_TIME + " / "
+                    + RollupEntry.RESOLUTION_HOUR + ") * " + RollupEntry.RESOLUTION_HOUR
+                    + ", " + RollupEntry.COLUMN_TYPE
+                    + ", " + RollupEntry.COLUMN_SENSOR
+                    + ", " + RollupEntry.COLUMN_NAME
+                    + ", " + RollupEntry.COLUMN_UNIT
+                    + ", MIN(" + RollupEntry.COLUMN_MINIMUM + ")"
+                    + ", MAX(" + RollupEntry.COLUMN_MAXIMUM + ")"
+                    + ", SUM(" + RollupEntry.COLUMN_MEAN + " * " + RollupEntry.COLUMN_COUNT + ") / SUM("
+                    + RollupEntry.COLUMN_COUNT + ")"
+                    + ", SUM(" + RollupEntry.COLUMN_COUNT + ")"
+                    + " FROM " + RollupEntry.TABLE_ROLLUP + " WHERE " + selection
+                    + " GROUP BY 1, 2, 3, 4, 5", range);
             try {
-                // The Locale is not really relevant
-                // Formats the time to the fpr,at given
-                loc.setTime(format.parse(String.format(Locale.GERMANY, "%06d", date) +
-                        String.format(Locale.GERMANY,"%06d", time/100)).getTime());
-            } catch (ParseException e) {
-                // The date format provided by in the Message must be formatted exactly according
-                // to the specificaiton.
-                throw new ParseException("Wrong date format", 0);
+                writeRollups(db, RollupEntry.RESOLUTION_HOUR, groups);
+            } finally {
+                groups.close();
             }
-
-            return loc;
-
-        } catch (JSONException e) {
-            Log.i(this.getClass().getSimpleName(),e.toString());
-            throw new ParseException("Invalid JSON string", 0);
+            int merged = db.delete(RollupEntry.TABLE_ROLLUP, selection, range);
+            db.setTransactionSuccessful();
+            return merged;
+        } finally {
+            db.endTransaction();
         }
     }
 
     /**
-     * This is a list of all the MeasureData objects that can be read from the sensors object
-     * included in the JSON message
-     * @param json The sensor object included in the JSON message string.
-     * @return A list of MeasureData objects parsed from the sensors JSON sub-object
+     * Add values to the rollups. If there is a rollup for the same sensor and period already,
+     * the values are merged into it.
+     * @param db The database, inside a transaction
+     * @param resolution The length of the periods
+     * @param groups The values to add: start time, type, sensor, name, unit, minimum, maximum,
+     *               mean and count
      */
-    private List<MeasureData> parseMeasureData(JSONObject json){
-        List<MeasureData> list = new LinkedList<>();
-
-        Iterator<String> iterator = json.keys();
-        while(iterator.hasNext()){
-            String key = iterator.next();
-            try{
-                JSONObject obj = json.getJSONObject(key);
-                String type = obj.optString("type",key);
-                String sensor = obj.optString("sensor",key);
-                String name = obj.optString("name",key);
-                double value;
-                try {
-                    value = obj.getDouble("value");
-                } catch (JSONException e) {
-                    value = Double.NaN;
+    private static void writeRollups(SQLiteDatabase db, long resolution, Cursor groups){
+        // IS compares NULL like a value, the strings of a MeasureData object might be missing
+        SQLiteStatement update = db.compileStatement("UPDATE " + RollupEntry.TABLE_ROLLUP + " SET "
+                + RollupEntry.COLUMN_MINIMUM + " = MIN(" + RollupEntry.COLUMN_MINIMUM + ", ?1), "
+                + RollupEntry.COLUMN_MAXIMUM + " = MAX(" + RollupEntry.COLUMN_MAXIMUM + ", ?2), "
+                + RollupEntry.COLUMN_MEAN + " = (" + RollupEntry.COLUMN_MEAN + " * "
+                + RollupEntry.COLUMN_COUNT + " + ?3 * ?4) / (" + RollupEntry.COLUMN_COUNT + " + ?4), "
+                + RollupEntry.COLUMN_COUNT + " = " + RollupEntry.COLUMN_COUNT + " + ?4"
+                + " WHERE " + RollupEntry.COLUMN_RESOLUTION + " = ?5 AND "
+                + RollupEntry.COLUMN_START_TIME + " = ?6 AND "
+                + RollupEntry.COLUMN_TYPE + " IS ?7 AND "
+                + RollupEntry.COLUMN_SENSOR + " IS ?8 AND "
+                + RollupEntry.COLUMN_NAME + " IS ?9 AND "
+                + RollupEntry.COLUMN_UNIT + " IS ?10");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + RollupEntry.TABLE_ROLLUP + "("
+                + RollupEntry.COLUMN_MINIMUM + ","
+                + RollupEntry.COLUMN_MAXIMUM + ","
+                + RollupEntry.COLUMN_MEAN + ","
+                + RollupEntry.COLUMN_COUNT + ","
+                + RollupEntry.COLUMN_RESOLUTION + ","
+                + RollupEntry.COLUMN_START_TIME + ","
+                + RollupEntry.COLUMN_TYPE + ","
+                + RollupEntry.COLUMN_SENSOR + ","
+                + RollupEntry.COLUMN_NAME + ","
+                + RollupEntry.COLUMN_UNIT + ") VALUES (?,?,?,?,?,?,?,?,?,?)");
+        try {
+            while (groups.moveToNext()) {
+                long count = groups.getLong(8);
+                // Only NaN values
+                if (count == 0) {
+                    continue;
+                }
+                bindRollup(update, resolution, groups);
+                if (update.executeUpdateDelete() == 0) {
+                    // There is no rollup for the sensor and period yet
+                    bindRollup(insert, resolution, groups);
+                    insert.executeInsert();
                 }
-                String unit = obj.optString("unit",key);
-                list.add(new MeasureData(type,sensor,name,value,unit));
-
-            } catch (JSONException e) {
-                Log.i(this.getClass().getSimpleName(),e.toString());
             }
+        } finally {
+            update.close();
+            insert.close();
         }
-
-        return list;
     }
 
     /**
-     * Delete all DataRecords and the associated Locations and MeasureData objects having a receive
-     * date before the specified date.
-     * THIS CAN NOT BE UNDONE.
-     * @param until Threshold data
+     * Bind the values of a rollup to the statements of writeRollups, both take them in the same
+     * order
+     * @param statement The update or insert statement
+     * @param resolution The length of the period
+     * @param groups The cursor positioned at the values
      */
-    void deleteOldDataRecords(Date until){
-        SQLiteDatabase db = getWritableDatabase();
-        String[] columns = {DataRecordEntry._ID};
-        String selection = DataRecordEntry.COLUMN_RECEIVE_TIME+" <= ?";
-        String[] selectionArgs = {Long.toString(until.getTime())};
-        Cursor cursor = db.query(DataRecordEntry.TABLE_DATA_RECORD, columns, selection,
-                selectionArgs, null, null, null);
-
-        if (cursor.moveToFirst()) {
-            do {
-                deleteDataRecord(cursor.getLong(cursor.getColumnIndexOrThrow(DataRecordEntry.COLUMN_ID)));
-            } while (cursor.moveToNext());
+    private static void bindRollup(SQLiteStatement statement, long resolution, Cursor groups){
+        statement.bindDouble(1, groups.getDouble(5));
+        statement.bindDouble(2, groups.getDouble(6));
+        statement.bindDouble(3, groups.getDouble(7));
+        statement.bindLong(4, groups.getLong(8));
+        statement.bindLong(5, resolution);
+        statement.bindLong(6, groups.getLong(0));
+        for (int column = 1; column <= 4; column++) {
+            bindString(statement, 6 + column, groups.getString(column));
         }
+    }
 
-        cursor.close();
+    /**
+     * @return true if more than a quarter of the database file is unused, for example after
+     *      many DataRecords have been deleted
+     */
+    boolean isSpaceReclaimable(){
+        SQLiteDatabase db = getWritableDatabase();
+        long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        long total = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        return free * 4 > total;
     }
 
     /**
-     * Delete a single DataRecord and the associated MeasureData and Location objects
-     * THIS CAN NOT BE UNDONE.
-     * @param databaseID The database ID of the DataRecord to be removed
+     * Give the space of deleted DataRecords back to the file system.
+     *
+     * SQLite keeps the pages of deleted rows in the database file for reuse. With incremental
+     * vacuum, the free pages can be released in chunks while the database is in use. A database
+     * has to be vacuumed completely once to switch to incremental vacuum, so that takes longer
+     * the first time.
+     * @param listener Informed about the progress, may be null
      */
-    void deleteDataRecord(long databaseID) {
+    void reclaimSpace(ProgressListener listener){
         SQLiteDatabase db = getWritableDatabase();
-        db.delete(DataRecordEntry.TABLE_DATA_RECORD,"_id=?",new String[]{Long.toString(databaseID)});
+        // 2 means incremental
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2) {
+            if (listener != null) {
+                listener.onProgress(0, 1);
+            }
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            if (listener != null) {
+                listener.onProgress(1, 1);
+            }
+            return;
+        }
 
-        // Delete all associated locations
-        Cursor locationMapCursor = db.query(DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP,
-                DataRecordLocationMap.COLUMNS, DataRecordLocationMap.COLUMN_DATA_RECORD_ID+"=?",
-                new String[]{Long.toString(databaseID)}, null, null, null);
-        if (locationMapCursor != null && locationMapCursor.moveToFirst()) {
-            do {
-                int locID = locationMapCursor.getInt(locationMapCursor.getColumnIndex(DataRecordLocationMap.COLUMN_LOCATION_ID));
-                db.delete(DataRecordLocationMap.TABLE_DATA_RECORD_LOCATION_MAP,"_id=?",new String[]
-                        {Long.toString(locationMapCursor.getInt(locationMapCursor.
-                                getColumnIndex(DataRecordLocationMap.COLUMN_ID)))});
-                db.delete(LocationEntry.TABLE_LOCATION,"_id=?",new String[]{Long.toString(locID)});
-            } while (locationMapCursor.moveToNext());
-            locationMapCursor.close();
-        }
-
-        // Delete all associated MeasureData objects
-        Cursor measureDataMapCursor = db.query(DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP,
-                DataRecordMeasureDataMap.COLUMNS, DataRecordMeasureDataMap.COLUMN_DATA_RECORD_ID+"=?",
-                new String[]{Long.toString(databaseID)}, null, null, null);
-        if (measureDataMapCursor != null && measureDataMapCursor.moveToFirst()) {
-            do {
-                int mdID = measureDataMapCursor.getInt(measureDataMapCursor.getColumnIndex(DataRecordMeasureDataMap.COLUMN_MEASURE_DATA_ID));
-                db.delete(DataRecordMeasureDataMap.TABLE_DATA_RECORD_MEASURE_DATA_MAP,"_id=?",new String[]
-                        {Long.toString(measureDataMapCursor.getInt(measureDataMapCursor.
-                                getColumnIndex(DataRecordMeasureDataMap.COLUMN_ID)))});
-                db.delete(MeasureDataEntry.TABLE_MEASURE_DATA,"_id=?",new String[]{Long.toString(mdID)});
-            } while (measureDataMapCursor.moveToNext());
-            measureDataMapCursor.close();
+        int total = (int) DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        int done = 0;
+        while (done < total) {
+            // Every row of the result is a page released, so the cursor has to be read
+            int released = 0;
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES + ")",
+                    null);
+            try {
+                while (cursor.moveToNext()) {
+                    released++;
+                }
+            } finally {
+                cursor.close();
+            }
+            done = released == 0 ? total : Math.min(total, done + released);
+            if (listener != null) {
+                listener.onProgress(done, total);
+            }
         }
     }
 
@@ -669,38 +1608,4 @@ class DataLab extends SQLiteOpenHelper implements
         cv.put(DataRecordEntry.COLUMN_COMMENT,comment);
         db.update(DataRecordEntry.TABLE_DATA_RECORD, cv, "_id="+dataBaseID, null);
     }
-
-    /**
-     * Finalize this DataLab. This disconnects the ApiClient used to access the Fused Location Prov.
-     * @throws Throwable From super.
-     */
-    @Override
-    protected void finalize() throws Throwable{
-        if(googleApiClient != null) {
-            googleApiClient.disconnect();
-        }
-        SQLiteDatabase db = getWritableDatabase();
-        db.close();
-        super.finalize();
-    }
-
-    /**
-     * Empty method necessary to implement Google API callbacks
-     */
-    @Override
-    public void onConnected(@Nullable Bundle bundle) {}
-
-    /**
-     * Empty method necessary to implement Google API callbacks
-     */
-    @Override
-    public void onConnectionSuspended(int i) {}
-
-    /**
-     * Method necessary to implement Google API callbacks
-     */
-    @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-        Log.w(this.getClass().getSimpleName(),"Google API connection failed");
-    }
 }
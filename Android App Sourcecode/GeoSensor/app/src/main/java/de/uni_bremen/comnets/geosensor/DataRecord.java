@@ -29,6 +29,9 @@ class DataRecord {
 
     private final Date receiveTime;
 
+    /** The best of the locations, chosen when needed first */
+    private Location bestLocation = null;
+
     /** The database primary key used to identify this DataRecord */
     private long databaseID = -1;
 
@@ -93,14 +96,14 @@ class DataRecord {
     }
 
     /** This is the location format used throughout the app */
-    private final int preferredFormat = Location.FORMAT_DEGREES;
+    private static final int preferredFormat = Location.FORMAT_DEGREES;
 
     /**
      * Get the latitude of the best location this data record has as a formatted string
      * @return A string formatted in degrees
      */
     String getFormattedLatitude() {
-        return Location.convert(getLatitude(),preferredFormat)+"°";
+        return formatDegrees(getLatitude());
     }
 
     /**
@@ -108,38 +111,71 @@ class DataRecord {
      * @return A string formatted in degrees
      */
     String getFormattedLongitude() {
-        return Location.convert(getLongitude(),preferredFormat)+"°";
+        return formatDegrees(getLongitude());
+    }
+
+    /**
+     * Format a latitude or longitude the way it is shown throughout the app
+     * @param degrees The latitude or longitude
+     * @return A string formatted in degrees
+     */
+    static String formatDegrees(double degrees) {
+        return Location.convert(degrees,preferredFormat)+"°";
     }
 
     /**
      * Get the suppostly most precise location available for this data record.
      * Locations having a little time difference to the receive time and a higher accuracy are
-     * preferred.
+     * preferred. The location is chosen once; the DataLab saves it with the DataRecord, so the
+     * DataRecords read from the database have it set already.
      * @return A location associated with this DataRecord.
      */
     public Location getLocation() {
-        // Lowest score is best
-        int[] score = new int [locations.size()];
-        for (int i = 0; i < locations.size(); i++){
-            score[i] += (int) Math.abs(receiveTime.getTime() - locations.get(i).getTime());
-            if(locations.get(i).hasAccuracy()){
-                score[i] += 1000 * locations.get(i).getAccuracy();
-            } else {
-                score[i] += 10000;
+        if (bestLocation == null) {
+            // Get the index of the location with the lowest score
+            long lowest = Long.MAX_VALUE;
+            int best = 0;
+            for (int i = 0; i < locations.size(); i++){
+                Location location = locations.get(i);
+                long score = locationScore(receiveTime.getTime(), location.getTime(),
+                        location.hasAccuracy(), location.getAccuracy());
+                if (score < lowest){
+                    lowest = score;
+                    best = i;
+                }
             }
+            bestLocation = locations.get(best);
         }
+        return bestLocation;
+    }
 
-        // Get the index of the smallest number in the array
-        int lowest = Integer.MAX_VALUE;
-        int best = 0;
-        for (int i = 0; i < locations.size(); i++){
-            if (score[i] < lowest){
-                lowest = score[i];
-                best = i;
-            }
-        }
+    /**
+     * Set the best location chosen before, used by the DataLab for the location saved as best
+     * @param bestLocation One of the locations of this DataRecord
+     */
+    void setBestLocation(Location bestLocation) {
+        this.bestLocation = bestLocation;
+    }
 
-        return locations.get(best);
+    /**
+     * Rate a location of a DataRecord, used to find its best location. The DataLab uses the same
+     * rating to choose the best location when saving a DataRecord.
+     * @param receiveTime The receive time of the DataRecord in milliseconds
+     * @param locationTime The time of the location in milliseconds
+     * @param hasAccuracy true if the accuracy of the location is known
+     * @param accuracy The accuracy of the location in meters
+     * @return The score of the location, lowest is best
+     */
+    static long locationScore(long receiveTime, long locationTime, boolean hasAccuracy,
+                              float accuracy) {
+        // A long does not overflow even for locations years away from the receive time
+        long score = Math.abs(receiveTime - locationTime);
+        if (hasAccuracy){
+            score += (long) (1000 * (double) accuracy);
+        } else {
+            score += 10000;
+        }
+        return score;
     }
 
     /**
@@ -216,7 +252,7 @@ class DataRecord {
      */
     void setComment(Context context, String comment){
         this.comment = comment;
-        DataLab dl = new DataLab(context);
+        DataLab dl = DataLab.get(context);
         dl.editComment(databaseID, comment);
     }
 
@@ -0,0 +1,106 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.support.v7.util.ListUpdateCallback;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The DataRecordIDsDiff contains the insertions and removals turning one list of DataRecord IDs
+ * into another, so a list only has to update the elements which actually changed.
+ *
+ * Both lists are sorted by the receive time, so the IDs in both lists keep their order and the
+ * difference can be found in a single pass. DiffUtil would compare the lists without knowing
+ * that, which takes far too long when a filter change removes thousands of DataRecords.
+ */
+class DataRecordIDsDiff {
+    private static final int INSERT = 0;
+    private static final int REMOVE = 1;
+
+    /** The operations in the order they have to be applied: type, position and count */
+    private final List<int[]> operations = new ArrayList<>();
+
+    private DataRecordIDsDiff() {}
+
+    /**
+     * Find the difference between two lists of IDs. This may take a while for long lists and
+     * should not be called on the main thread.
+     * @param oldIDs The IDs shown
+     * @param newIDs The IDs to show
+     * @return The difference or null if the IDs in both lists are not in the same order, for
+     *         example because the sort order has been changed
+     */
+    static DataRecordIDsDiff calculate(long[] oldIDs, long[] newIDs) {
+        Set<Long> oldSet = new HashSet<>(oldIDs.length * 2);
+        for (long id : oldIDs) {
+            oldSet.add(id);
+        }
+        Set<Long> newSet = new HashSet<>(newIDs.length * 2);
+        for (long id : newIDs) {
+            newSet.add(id);
+        }
+
+        DataRecordIDsDiff diff = new DataRecordIDsDiff();
+        // The position in the list with the operations found so far applied
+        int position = 0;
+        int i = 0;
+        int j = 0;
+        while (i < oldIDs.length || j < newIDs.length) {
+            if (i < oldIDs.length && !newSet.contains(oldIDs[i])) {
+                diff.add(REMOVE, position);
+                i++;
+            } else if (j < newIDs.length && !oldSet.contains(newIDs[j])) {
+                diff.add(INSERT, position);
+                position++;
+                j++;
+            } else if (i < oldIDs.length && j < newIDs.length && oldIDs[i] == newIDs[j]) {
+                position++;
+                i++;
+                j++;
+            } else {
+                return null;
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Add an operation for a single element, joined with the previous one if possible
+     * @param type INSERT or REMOVE
+     * @param position The position of the element
+     */
+    private void add(int type, int position) {
+        if (!operations.isEmpty()) {
+            int[] last = operations.get(operations.size() - 1);
+            if (last[0] == type && (type == REMOVE ? last[1] == position
+                    : last[1] + last[2] == position)) {
+                last[2]++;
+                return;
+            }
+        }
+        operations.add(new int[]{type, position, 1});
+    }
+
+    /**
+     * @return true if both lists are the same
+     */
+    boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Inform a list about the changes, in the order they have to be applied
+     * @param callback The list, for example an adapter
+     */
+    void dispatchUpdatesTo(ListUpdateCallback callback) {
+        for (int[] operation : operations) {
+            if (operation[0] == INSERT) {
+                callback.onInserted(operation[1], operation[2]);
+            } else {
+                callback.onRemoved(operation[1], operation[2]);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * The DataRecordPager provides the DataRecords shown by a list without reading the database on
+ * the main thread. The list may keep them in any form, T, for example already formatted. The
+ * list only knows the IDs of the DataRecords; when a position is requested whose DataRecord has
+ * not been loaded yet, the page containing it is loaded in the background and the list is
+ * informed when it is ready. Meanwhile the list shows a placeholder.
+ *
+ * The pages ahead in the direction the list is scrolled are loaded in advance. Pages which are
+ * far away from the current position when their turn comes are skipped, so a fast fling does not
+ * queue up loading all the pages passed by.
+ *
+ * The DataRecords are kept in a cache of limited size, the ones not requested for the longest
+ * time are dropped first. Except for the loading itself, everything happens on the main thread.
+ */
+class DataRecordPager<T> {
+    /** The number of DataRecords loaded at once */
+    static final int PAGE_SIZE = 50;
+    /** The number of pages loaded ahead of the current position */
+    static final int PREFETCH_PAGES = 2;
+    /** The number of DataRecords kept in memory */
+    static final int CACHE_SIZE = 1000;
+
+    /**
+     * Loads DataRecords, called in the background
+     * @param <T> The form the DataRecords are kept in
+     */
+    interface Loader<T> {
+        /**
+         * @param ids The IDs of the DataRecords
+         * @return The DataRecords found
+         */
+        List<T> load(long[] ids);
+
+        /**
+         * @param dataRecord A DataRecord loaded
+         * @return The database ID of the DataRecord
+         */
+        long getID(T dataRecord);
+    }
+
+    /**
+     * Informed on the main thread when DataRecords have been loaded
+     */
+    interface Listener {
+        /**
+         * @param from The first position loaded
+         * @param to The position after the last one loaded
+         */
+        void onPageLoaded(int from, int to);
+    }
+
+    private final Loader<T> loader;
+    private final Executor background;
+    private final Executor main;
+    private final Listener listener;
+    private final int pageSize;
+    private final int prefetchPages;
+    private final Map<Long, T> cache;
+
+    /** The pages being loaded */
+    private final Set<Integer> loading = new HashSet<>();
+    private long[] ids = new long[0];
+    private int lastPosition = 0;
+    /** Incremented whenever the IDs are set, the pages of older IDs are at other positions */
+    private int generation = 0;
+    /** Read by the background thread to skip loading pages not needed anymore */
+    private volatile int currentPage = 0;
+
+    /**
+     * @param loader Loads the DataRecords
+     * @param background The executor the loader is called on
+     * @param main The executor of the main thread, the listener is informed on
+     * @param listener Informed when DataRecords have been loaded
+     * @param pageSize The number of DataRecords loaded at once
+     * @param prefetchPages The number of pages loaded ahead of the current position
+     * @param cacheSize The number of DataRecords kept in memory, at least a few pages
+     */
+    DataRecordPager(Loader<T> loader, Executor background, Executor main, Listener listener,
+                    int pageSize, int prefetchPages, final int cacheSize) {
+        this.loader = loader;
+        this.background = background;
+        this.main = main;
+        this.listener = listener;
+        this.pageSize = pageSize;
+        this.prefetchPages = prefetchPages;
+        // A LinkedHashMap in access order drops the DataRecord used least recently
+        this.cache = new LinkedHashMap<Long, T>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Set the IDs of the DataRecords shown, for example after DataRecords have been added or the
+     * filter has been changed. The DataRecords already loaded are kept, the ones still loading
+     * are reported at their new positions.
+     * @param ids The IDs of the DataRecords in the order shown
+     */
+    void setIDs(long[] ids) {
+        this.ids = ids;
+        loading.clear();
+        generation++;
+    }
+
+    /**
+     * Drop all DataRecords loaded, for example because they might have been modified
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return The IDs of the DataRecords shown, must not be modified
+     */
+    long[] getIDs() {
+        return ids;
+    }
+
+    /**
+     * @return The number of DataRecords shown
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param position The position in the list
+     * @return The ID of the DataRecord shown at the position
+     */
+    long getID(int position) {
+        return ids[position];
+    }
+
+    /**
+     * Get the DataRecord shown at a position. If it has not been loaded yet, the page is loaded
+     * and the listener is informed when it is ready. The pages ahead are loaded as well.
+     * @param position The position in the list
+     * @return The DataRecord or null if it is not loaded yet (or does not exist anymore)
+     */
+    T get(int position) {
+        int direction = position >= lastPosition ? 1 : -1;
+        lastPosition = position;
+        int page = position / pageSize;
+        currentPage = page;
+
+        T dataRecord = cache.get(ids[position]);
+        if (dataRecord == null) {
+            requestPage(page);
+        }
+        for (int i = 1; i <= prefetchPages; i++) {
+            requestPage(page + i * direction);
+        }
+        return dataRecord;
+    }
+
+    /**
+     * Inform the listener about a page loaded for older IDs. The IDs keep their order when
+     * DataRecords are added or removed, so the page is found between the positions of its first
+     * and its last ID.
+     * @param pageIDs The IDs of the page
+     */
+    private void reportMoved(long[] pageIDs) {
+        int from = -1;
+        int to = -1;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == pageIDs[0] || ids[i] == pageIDs[pageIDs.length - 1]) {
+                if (from < 0) {
+                    from = i;
+                }
+                to = i + 1;
+            }
+        }
+        if (from >= 0) {
+            listener.onPageLoaded(from, to);
+        }
+    }
+
+    /**
+     * Load a page unless it exists, has been loaded or is loading
+     * @param page The number of the page
+     */
+    private void requestPage(final int page) {
+        final int from = page * pageSize;
+        if (page < 0 || from >= ids.length || loading.contains(page)) {
+            return;
+        }
+        final int to = Math.min(ids.length, from + pageSize);
+        boolean loaded = true;
+        for (int i = from; i < to && loaded; i++) {
+            loaded = cache.containsKey(ids[i]);
+        }
+        if (loaded) {
+            return;
+        }
+
+        loading.add(page);
+        final long[] pageIDs = Arrays.copyOfRange(ids, from, to);
+        final int pageGeneration = generation;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The list has been scrolled far away meanwhile
+                if (Math.abs(page - currentPage) > prefetchPages + 1) {
+                    main.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (pageGeneration == generation) {
+                                loading.remove(page);
+                            }
+                        }
+                    });
+                    return;
+                }
+
+                final List<T> dataRecords = loader.load(pageIDs);
+                main.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A DataRecord deleted meanwhile is kept as null, so it is not loaded
+                        // again and again
+                        for (long id : pageIDs) {
+                            cache.put(id, null);
+                        }
+                        for (T dataRecord : dataRecords) {
+                            cache.put(loader.getID(dataRecord), dataRecord);
+                        }
+                        if (pageGeneration == generation) {
+                            loading.remove(page);
+                            listener.onPageLoaded(from, to);
+                        } else {
+                            reportMoved(pageIDs);
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
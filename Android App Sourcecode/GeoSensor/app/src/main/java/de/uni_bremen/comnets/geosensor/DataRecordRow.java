@@ -0,0 +1,81 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.text.DateFormat;
+import java.util.List;
+
+/**
+ * A DataRecordRow contains the texts shown by an element of the main list for a DataRecord.
+ * The texts are formatted once in the background when the DataRecord is loaded, so binding an
+ * element on the main thread only has to set them.
+ */
+final class DataRecordRow {
+    private final long databaseID;
+    private final String date;
+    private final String time;
+    private final String coordinates;
+    private final String[] measureData;
+
+    /**
+     * Format the texts for a DataRecord. The formats are not thread-safe, they must only be used
+     * by one thread at a time.
+     * @param dataRecord The DataRecord
+     * @param dateFormat The format of the date
+     * @param timeFormat The format of the time
+     * @param locationLabel The text shown in front of the coordinates
+     * @param noLocation The text shown if there is no location
+     */
+    DataRecordRow(DataRecord dataRecord, DateFormat dateFormat, DateFormat timeFormat,
+                  String locationLabel, String noLocation) {
+        databaseID = dataRecord.getDatabaseID();
+        date = dateFormat.format(dataRecord.getDate());
+        time = timeFormat.format(dataRecord.getDate());
+
+        // The best location is only chosen once
+        if (dataRecord.hasLocation()) {
+            Location location = dataRecord.getLocation();
+            coordinates = locationLabel + ": " + DataRecord.formatDegrees(location.getLatitude())
+                    + " " + DataRecord.formatDegrees(location.getLongitude());
+        } else {
+            coordinates = noLocation;
+        }
+
+        List<MeasureData> measureDataList = dataRecord.getMeasureData();
+        measureData = new String[measureDataList.size()];
+        for (int i = 0; i < measureData.length; i++) {
+            measureData[i] = measureDataList.get(i).toString();
+        }
+    }
+
+    long getDatabaseID() {
+        return databaseID;
+    }
+
+    String getDate() {
+        return date;
+    }
+
+    String getTime() {
+        return time;
+    }
+
+    String getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * @return The number of measured values
+     */
+    int getMeasureDataCount() {
+        return measureData.length;
+    }
+
+    /**
+     * @param i The number of the measured value
+     * @return The type, value and unit of the measured value
+     */
+    String getMeasureData(int i) {
+        return measureData[i];
+    }
+}
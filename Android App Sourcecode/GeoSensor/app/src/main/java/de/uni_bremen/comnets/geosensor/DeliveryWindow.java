@@ -0,0 +1,189 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.util.Arrays;
+
+/**
+ * The DeliveryWindow keeps track of the sequence numbers of the samples received using the binary
+ * protocol, so the transducer can send several samples without waiting for an acknowledgement
+ * for each of them.
+ *
+ * The transducer numbers its samples modulo SEQUENCE_NUMBERS and keeps up to its window size of
+ * them until they are acknowledged. The app acknowledges cumulatively: an ACK carrying a sequence
+ * number acknowledges this sample and all samples before it. If a sample arrives while earlier
+ * ones are missing, the app sends a NAK with the sequence number of every missing sample, so only
+ * these are sent again. The transducer sends the oldest sample not acknowledged again after a
+ * timeout, which covers lost acknowledgements.
+ *
+ * Samples are only acknowledged once they have been saved (see saved()). A sample that could not
+ * be saved is forgotten and requested again, so it is not taken for a duplicate when it arrives.
+ *
+ * A sample that has already been received can arrive again if an acknowledgement got lost, also
+ * on a new connection as the transducer keeps its window. Such duplicates are recognized by their
+ * sequence number together with the arduino_time (which differs after a restart of the
+ * transducer) and are acknowledged again but not saved. A restart of the transducer is recognized
+ * by a sequence number outside of the window or by an arduino_time going backwards. That is why
+ * the window is kept by the service for all connections instead of per connection.
+ *
+ * The methods are synchronized as the pipeline of an old connection might still be busy when the
+ * next connection starts.
+ */
+class DeliveryWindow {
+    /** The number of different sequence numbers */
+    static final int SEQUENCE_NUMBERS = 128;
+    /** The largest window supported. Sequence numbers further ahead are considered as restart. */
+    static final int MAX_WINDOW = SEQUENCE_NUMBERS / 2;
+
+    /** The arduino_time of the samples received by sequence number to recognize duplicates */
+    private final long[] arduinoTimes = new long[SEQUENCE_NUMBERS];
+    private final boolean[] known = new boolean[SEQUENCE_NUMBERS];
+
+    /** The samples received ahead of the next expected one */
+    private final boolean[] receivedAhead = new boolean[SEQUENCE_NUMBERS];
+
+    /** The sequence number expected next or -1 if nothing has been received yet */
+    private int expected = -1;
+    /** The highest sequence number received so far */
+    private int highest;
+
+    /** The samples found missing by the last call of receive() */
+    private final int[] missing = new int[MAX_WINDOW];
+    private int missingCount = 0;
+
+    /** The last acknowledgement sent after the samples have been saved, -1 if none */
+    private int savedAcknowledgement = -1;
+
+    private long duplicates = 0;
+
+    /**
+     * Register a sample received
+     * @param sequence The sequence number of the sample
+     * @param arduinoTime The arduino_time of the sample
+     * @return true if the sample is new and should be saved, false if it is a duplicate
+     */
+    synchronized boolean receive(int sequence, long arduinoTime) {
+        missingCount = 0;
+        if (known[sequence] && arduinoTimes[sequence] == arduinoTime) {
+            duplicates++;
+            return false;
+        }
+        int distance = distance(expected, sequence);
+        // The sample is further ahead than all received before (highest might be behind expected)
+        boolean ahead = distance > distance(expected, highest)
+                || distance(expected, highest) >= MAX_WINDOW;
+        boolean restart = expected == -1 || distance >= MAX_WINDOW
+                || (ahead && arduinoTime < arduinoTimes[highest]);
+        known[sequence] = true;
+        arduinoTimes[sequence] = arduinoTime;
+        if (restart) {
+            // The first sample, or the transducer has been restarted and counts from the start
+            Arrays.fill(receivedAhead, false);
+            expected = next(sequence);
+            highest = sequence;
+            return true;
+        }
+
+        // Samples between the highest received so far and this one are missing
+        if (ahead) {
+            for (int s = next(highest); s != sequence; s = next(s)) {
+                if (distance(expected, s) < MAX_WINDOW && missingCount < missing.length) {
+                    missing[missingCount++] = s;
+                }
+            }
+            highest = sequence;
+        }
+
+        receivedAhead[sequence] = true;
+        while (receivedAhead[expected]) {
+            receivedAhead[expected] = false;
+            expected = next(expected);
+        }
+        return true;
+    }
+
+    /**
+     * @return The sequence number to acknowledge: all samples up to this one have been received,
+     *      -1 if nothing has been received yet
+     */
+    synchronized int getAcknowledgement() {
+        return expected == -1 ? -1 : (expected + SEQUENCE_NUMBERS - 1) % SEQUENCE_NUMBERS;
+    }
+
+    /**
+     * Register that the samples up to an acknowledgement have been saved. The acknowledgement was
+     * taken when the last of the samples was received. If samples before it could not be saved
+     * and have been forgotten since, only the samples up to the first of these are acknowledged.
+     * @param acknowledgement The result of getAcknowledgement() after the last sample saved
+     * @return The sequence number to acknowledge
+     */
+    synchronized int saved(int acknowledgement) {
+        int received = getAcknowledgement();
+        if (received == -1 || distance(acknowledgement, received) >= MAX_WINDOW) {
+            // The acknowledgement is ahead of the samples received without a gap
+            acknowledgement = received;
+        }
+        savedAcknowledgement = acknowledgement;
+        return acknowledgement;
+    }
+
+    /**
+     * @return The sequence number to acknowledge for a duplicate: all samples up to this one have
+     *      been saved, -1 if nothing has been saved yet
+     */
+    synchronized int getSavedAcknowledgement() {
+        return savedAcknowledgement;
+    }
+
+    /**
+     * Forget a sample that could not be saved, so it is accepted when it is sent again. The
+     * samples received after it are not acknowledged until it has arrived again.
+     * @param sequence The sequence number of the sample
+     */
+    synchronized void forget(int sequence) {
+        known[sequence] = false;
+        receivedAhead[sequence] = false;
+        if (expected == -1) {
+            return;
+        }
+        int behind = distance(sequence, expected);
+        if (behind > 0 && behind <= MAX_WINDOW) {
+            // The samples received since are waiting for it again
+            for (int s = next(sequence); s != expected; s = next(s)) {
+                receivedAhead[s] = known[s];
+            }
+            expected = sequence;
+        }
+    }
+
+    /**
+     * @return The number of samples found missing by the last call of receive()
+     */
+    synchronized int getMissingCount() {
+        return missingCount;
+    }
+
+    /**
+     * @param index The index between 0 and getMissingCount() - 1
+     * @return The sequence number of a sample found missing by the last call of receive()
+     */
+    synchronized int getMissing(int index) {
+        return missing[index];
+    }
+
+    /**
+     * @return The number of duplicates received
+     */
+    synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    private static int next(int sequence) {
+        return (sequence + 1) % SEQUENCE_NUMBERS;
+    }
+
+    /**
+     * @return How far to is ahead of from, modulo SEQUENCE_NUMBERS
+     */
+    private static int distance(int from, int to) {
+        return (to - from + SEQUENCE_NUMBERS) % SEQUENCE_NUMBERS;
+    }
+}
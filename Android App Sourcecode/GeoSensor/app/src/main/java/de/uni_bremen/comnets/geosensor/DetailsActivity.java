@@ -31,7 +31,7 @@ public class DetailsActivity extends GeoSensorActivity {
         Toolbar myToolbar = (Toolbar) findViewById(R.id.mainToolbar);
         setSupportActionBar(myToolbar);
 
-        DataLab dl = new DataLab(this);
+        DataLab dl = DataLab.get(this);
         long elementID = getIntent().getLongExtra("id",0);
         dataRecord = dl.readDataRecordFromDatabase(elementID);
 
@@ -113,7 +113,7 @@ public class DetailsActivity extends GeoSensorActivity {
 
         deleteMessageBuilder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int which) {
-                DataLab dl = new DataLab(DetailsActivity.this);
+                DataLab dl = DataLab.get(DetailsActivity.this);
                 dl.deleteDataRecord(dataRecord.getDatabaseID());
                 finish();
             }
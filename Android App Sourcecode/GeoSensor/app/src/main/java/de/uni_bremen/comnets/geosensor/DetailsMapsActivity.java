@@ -40,7 +40,7 @@ public class DetailsMapsActivity extends GeoSensorActivity implements OnMapReady
         Toolbar myToolbar = (Toolbar) findViewById(R.id.mainToolbar);
         setSupportActionBar(myToolbar);
 
-        DataLab dataLab = new DataLab(this);
+        DataLab dataLab = DataLab.get(this);
         dataRecord = dataLab.readDataRecordFromDatabase(getIntent().getLongExtra("dataRecordID",-1));
 
         // Obtain the SupportMapFragment and get notified when the map is ready to be used.
@@ -0,0 +1,116 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The DeviceLocationRequester adds the location of the Android device to DataRecords already
+ * saved, using a DelayedLocationProvider for every DataRecord.
+ *
+ * The GoogleApiClient needed to access the FusedLocationProvider is only created and connected
+ * when the first location is requested. The requests made while it is connecting are kept until
+ * the connection is established. All of this happens on the main looper.
+ */
+class DeviceLocationRequester implements
+        GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener {
+    private final Context context;
+    private final DataLab dataLab;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Only accessed on the main looper */
+    private GoogleApiClient googleApiClient = null;
+    private final List<Long> pendingDataRecordIDs = new ArrayList<>();
+
+    /**
+     * @param context The context used to connect the GoogleApiClient, only the application
+     *                context is kept
+     * @param dataLab The DataLab the locations are saved to
+     */
+    DeviceLocationRequester(Context context, DataLab dataLab) {
+        this.context = context.getApplicationContext();
+        this.dataLab = dataLab;
+    }
+
+    /**
+     * Request the location of the device to be added to a DataRecord. May be called by any thread.
+     * @param dataRecordID The ID of the DataRecord that should have the Location added.
+     */
+    void request(final long dataRecordID) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (googleApiClient == null) {
+                    googleApiClient = new GoogleApiClient.Builder(context)
+                            .addApi(LocationServices.API)
+                            .addConnectionCallbacks(DeviceLocationRequester.this)
+                            .addOnConnectionFailedListener(DeviceLocationRequester.this)
+                            .build();
+                    googleApiClient.connect();
+                }
+                if (googleApiClient.isConnected()) {
+                    new DelayedLocationProvider(dataRecordID, dataLab, googleApiClient, context);
+                } else {
+                    pendingDataRecordIDs.add(dataRecordID);
+                }
+            }
+        });
+    }
+
+    /**
+     * Disconnect the GoogleApiClient if it has been connected. The requests not answered yet
+     * are dropped. May be called by any thread.
+     */
+    void disconnect() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                pendingDataRecordIDs.clear();
+                if (googleApiClient != null) {
+                    googleApiClient.disconnect();
+                    googleApiClient = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Start the requests made while connecting
+     */
+    @Override
+    public void onConnected(@Nullable Bundle bundle) {
+        for (long dataRecordID : pendingDataRecordIDs) {
+            new DelayedLocationProvider(dataRecordID, dataLab, googleApiClient, context);
+        }
+        pendingDataRecordIDs.clear();
+    }
+
+    /**
+     * Empty method necessary to implement Google API callbacks, the client reconnects by itself
+     */
+    @Override
+    public void onConnectionSuspended(int i) {}
+
+    /**
+     * The requests made while connecting can not be answered
+     */
+    @Override
+    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+        Log.w(this.getClass().getSimpleName(), "Google API connection failed, " +
+                pendingDataRecordIDs.size() + " DataRecords without device location");
+        pendingDataRecordIDs.clear();
+        googleApiClient = null;
+    }
+}
@@ -0,0 +1,363 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The ExportEngine writes DataRecords to a file in chunks, formatted by an ExportFormat like csv,
+ * the archive format or GeoJSON. The chunks are read and formatted
+ * in parallel by a few worker threads and written to the file in order by the thread running
+ * the export. Only a few chunks are formatted ahead of the one written next, so the memory
+ * needed does not depend on the size of the export.
+ *
+ * After every chunk written, a checkpoint is saved containing the length of the file so far.
+ * If the process is killed during an export, the export can be resumed: the file is cut back to
+ * the length of the checkpoint and the export continues with the next chunk. The IDs and the
+ * settings of the export are saved with the checkpoint, so the file is completed exactly as it
+ * would have been written in one go. The trailer of the format is written when all chunks are
+ * done; if the process is killed meanwhile, it is written again on resume.
+ */
+class ExportEngine {
+    /** The number of DataRecords per chunk */
+    static final int CHUNK_SIZE = 1000;
+    /** The number of chunks formatted ahead per worker thread */
+    private static final int CHUNKS_AHEAD_PER_THREAD = 2;
+    /** The format of the checkpoint, increased when it changes */
+    private static final int STATE_VERSION = 2;
+    private static final String STATE_FILE = "export.state";
+    private static final String IDS_FILE = "export.ids";
+
+    /**
+     * Reads DataRecords, called by the worker threads at the same time
+     */
+    interface Source {
+        /**
+         * @param ids The IDs of the DataRecords
+         * @return The DataRecords found in the order of the IDs
+         */
+        List<DataRecord> read(long[] ids);
+    }
+
+    /**
+     * Informed by the thread running the export after each chunk written
+     */
+    interface Listener {
+        /**
+         * @param done The number of DataRecords written
+         * @param total The number of DataRecords exported
+         */
+        void onProgress(int done, int total);
+    }
+
+    private final File stateDirectory;
+    private final Source source;
+    private final Listener listener;
+    private final int threads;
+    private volatile boolean cancelled = false;
+    private ExportFormat format = null;
+
+    /**
+     * @param stateDirectory The directory the checkpoint is saved in
+     * @param source Reads the DataRecords
+     * @param listener Informed about the progress
+     * @param threads The number of worker threads formatting the chunks
+     */
+    ExportEngine(File stateDirectory, Source source, Listener listener, int threads) {
+        this.stateDirectory = stateDirectory;
+        this.source = source;
+        this.listener = listener;
+        this.threads = threads;
+    }
+
+    /**
+     * @return The number of worker threads suitable for the device, a few at most as the
+     *         database and the file are shared anyway
+     */
+    static int defaultThreads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Check for an export which has not been completed, for example because the process has been
+     * killed meanwhile
+     * @param stateDirectory The directory the checkpoint is saved in
+     * @return true if there is a checkpoint to resume from
+     */
+    static boolean hasCheckpoint(File stateDirectory) {
+        return new File(stateDirectory, STATE_FILE).exists()
+                && new File(stateDirectory, IDS_FILE).exists();
+    }
+
+    /**
+     * Delete the checkpoint of an export which is not going to be resumed
+     * @param stateDirectory The directory the checkpoint is saved in
+     */
+    static void deleteCheckpoint(File stateDirectory) {
+        //noinspection ResultOfMethodCallIgnored
+        new File(stateDirectory, STATE_FILE).delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(stateDirectory, IDS_FILE).delete();
+    }
+
+    /**
+     * @return The format of the export started or resumed last, null before
+     */
+    ExportFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Stop the export after the chunk currently written. May be called by any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Export DataRecords to a file, replacing a checkpoint saved before. Blocks until the export
+     * is done.
+     * @param ids The IDs of the DataRecords in the order exported
+     * @param format The format of the file
+     * @param target The file written
+     * @return true if the export has been completed, false if it has been cancelled; the file is
+     *         deleted then
+     * @throws IOException if the file can not be written, the checkpoint is kept then
+     */
+    boolean export(long[] ids, ExportFormat format, File target) throws IOException {
+        this.format = format;
+        //noinspection ResultOfMethodCallIgnored
+        stateDirectory.mkdirs();
+        deleteCheckpoint(stateDirectory);
+        writeIDs(ids);
+
+        byte[] header = format.getHeader();
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(0);
+            file.write(header);
+        } finally {
+            file.close();
+        }
+        writeState(target, 0, header.length);
+        return export(ids, target, 0, header.length);
+    }
+
+    /**
+     * Resume the export of the checkpoint. Blocks until the export is done.
+     * @return The file written if the export has been completed, null if it has been cancelled
+     * @throws IOException if the checkpoint can not be read or the file can not be written
+     */
+    File resume() throws IOException {
+        long[] ids = readIDs();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(stateDirectory, STATE_FILE))));
+        File target;
+        int chunk;
+        long length;
+        try {
+            if (in.readInt() != STATE_VERSION) {
+                throw new IOException("Unknown checkpoint version");
+            }
+            target = new File(in.readUTF());
+            format = readFormat(in);
+            chunk = in.readInt();
+            length = in.readLong();
+        } finally {
+            in.close();
+        }
+        return export(ids, target, chunk, length) ? target : null;
+    }
+
+    /**
+     * @param in The checkpoint
+     * @return The format saved with the checkpoint
+     * @throws IOException if the checkpoint can not be read or the format is unknown
+     */
+    private static ExportFormat readFormat(DataInputStream in) throws IOException {
+        int type = in.readInt();
+        switch (type) {
+            case CsvFormatter.TYPE:
+                return CsvFormatter.readSettings(in);
+            case ArchiveFormatter.TYPE:
+                return new ArchiveFormatter();
+            case GeoJsonFormatter.TYPE:
+                return new GeoJsonFormatter();
+            case GpxFormatter.TYPE:
+                return new GpxFormatter();
+            case KmlFormatter.TYPE:
+                return new KmlFormatter();
+            default:
+                throw new IOException("Unknown export format " + type);
+        }
+    }
+
+    /**
+     * Format and write the chunks, starting at the given one, and the trailer. The format is
+     * copied for every chunk.
+     * @param ids The IDs of the DataRecords in the order exported
+     * @param target The file written
+     * @param firstChunk The chunk to start with
+     * @param length The length of the file before the first chunk
+     * @return true if completed, false if cancelled
+     * @throws IOException if the file can not be written
+     */
+    private boolean export(final long[] ids, File target, int firstChunk, long length)
+            throws IOException {
+        int chunks = (ids.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            // A part of a chunk might have been written before the process was killed
+            file.setLength(length);
+            file.seek(length);
+
+            Deque<Future<byte[]>> formatted = new ArrayDeque<>();
+            int next = firstChunk;
+            for (int chunk = firstChunk; chunk < chunks; chunk++) {
+                while (next < chunks && formatted.size() < threads * CHUNKS_AHEAD_PER_THREAD) {
+                    formatted.add(workers.submit(formatChunk(ids, next, format.copy())));
+                    next++;
+                }
+                if (cancelled) {
+                    break;
+                }
+                byte[] bytes = get(formatted.poll());
+                file.write(bytes);
+                length += bytes.length;
+                writeState(target, chunk + 1, length);
+                listener.onProgress(Math.min(ids.length, (chunk + 1) * CHUNK_SIZE), ids.length);
+            }
+            if (!cancelled) {
+                file.write(format.getTrailer(file));
+            }
+        } finally {
+            workers.shutdownNow();
+            file.close();
+        }
+
+        deleteCheckpoint(stateDirectory);
+        if (cancelled) {
+            //noinspection ResultOfMethodCallIgnored
+            target.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param ids The IDs of all DataRecords exported
+     * @param chunk The number of the chunk
+     * @param format The format used by this chunk only
+     * @return The task reading the DataRecords of the chunk and formatting them
+     */
+    private Callable<byte[]> formatChunk(final long[] ids, final int chunk,
+                                         final ExportFormat format) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                List<DataRecord> dataRecords = source.read(Arrays.copyOfRange(ids,
+                        chunk * CHUNK_SIZE, Math.min(ids.length, (chunk + 1) * CHUNK_SIZE)));
+                return format.formatChunk(dataRecords);
+            }
+        };
+    }
+
+    /**
+     * Wait for a chunk to be formatted
+     * @param future The chunk
+     * @return The bytes of the chunk
+     * @throws IOException if the thread has been interrupted
+     */
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while formatting", e);
+        } catch (ExecutionException e) {
+            // Reading the database failed, the checkpoint is kept for another attempt
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Save the IDs of the export, once when it starts
+     * @param ids The IDs
+     * @throws IOException if the file can not be written
+     */
+    private void writeIDs(long[] ids) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(stateDirectory, IDS_FILE))));
+        try {
+            out.writeInt(ids.length);
+            for (long id : ids) {
+                out.writeLong(id);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return The IDs of the export saved with the checkpoint
+     * @throws IOException if the file can not be read
+     */
+    private long[] readIDs() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(stateDirectory, IDS_FILE))));
+        try {
+            long[] ids = new long[in.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = in.readLong();
+            }
+            return ids;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the checkpoint. It is written to another file first and renamed, so there is always
+     * a complete checkpoint even if the process is killed while writing it.
+     * @param target The file written
+     * @param chunk The next chunk to write
+     * @param length The length of the file written so far
+     * @throws IOException if the checkpoint can not be written
+     */
+    private void writeState(File target, int chunk, long length) throws IOException {
+        File temporary = new File(stateDirectory, STATE_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(target.getAbsolutePath());
+            out.writeInt(format.getType());
+            format.writeSettings(out);
+            out.writeInt(chunk);
+            out.writeLong(length);
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(new File(stateDirectory, STATE_FILE))) {
+            throw new IOException("Could not save the export checkpoint");
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * An ExportFormat turns DataRecords into the bytes of an export file for the ExportEngine. The
+ * file consists of a header, the chunks of DataRecords in order and a trailer written when all
+ * chunks are done.
+ *
+ * An ExportFormat need not be thread-safe: every chunk is formatted by a copy of its own.
+ */
+interface ExportFormat {
+    /**
+     * @return The number identifying the format in the checkpoint of the ExportEngine
+     */
+    int getType();
+
+    /**
+     * @return An ExportFormat with the same settings, for use by another thread
+     */
+    ExportFormat copy();
+
+    /**
+     * @return The bytes the file starts with
+     */
+    byte[] getHeader();
+
+    /**
+     * @param dataRecords The DataRecords of a chunk
+     * @return The bytes of the chunk
+     */
+    byte[] formatChunk(List<DataRecord> dataRecords);
+
+    /**
+     * @param file The file written so far, the header and all chunks. The file pointer is at
+     *             its end and may be moved if it is put back.
+     * @return The bytes the file ends with
+     * @throws IOException if the file can not be read
+     */
+    byte[] getTrailer(RandomAccessFile file) throws IOException;
+
+    /**
+     * Save the settings to the checkpoint. They are read by the ExportEngine according to the
+     * type.
+     * @param out The checkpoint
+     * @throws IOException if the checkpoint can not be written
+     */
+    void writeSettings(DataOutputStream out) throws IOException;
+
+    /**
+     * @return The MIME type of the file given to other apps
+     */
+    String getMimeType();
+
+    /**
+     * @return The file name extension, without the dot
+     */
+    String getFileExtension();
+}
@@ -0,0 +1,112 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * A FrameBuffer holds a single message received from the transducer.
+ * The buffer grows as needed and is recycled through a FrameBufferPool once the message has been
+ * handled, so the receiver does not need to allocate new memory for every message.
+ * Only the first getLength() bytes of the backing array belong to the message.
+ */
+class FrameBuffer {
+    /** The pool this buffer is returned to when it is recycled */
+    private final FrameBufferPool pool;
+
+    /** The backing array, it might be larger than the message */
+    private byte[] bytes;
+    /** The number of bytes used by the message */
+    private int length = 0;
+    /** The time the message was received completely in milliseconds since the epoch */
+    private long receiveTime = 0;
+
+    /**
+     * Create an empty FrameBuffer
+     * @param pool The pool the buffer should be returned to when recycled
+     * @param capacity The initial size of the backing array
+     */
+    FrameBuffer(FrameBufferPool pool, int capacity) {
+        this.pool = pool;
+        this.bytes = new byte[capacity];
+    }
+
+    /**
+     * Append some bytes to the message. The backing array grows if necessary.
+     * @param source The array containing the bytes
+     * @param offset The index of the first byte to append
+     * @param count The number of bytes to append
+     */
+    void append(byte[] source, int offset, int count) {
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+        }
+        System.arraycopy(source, offset, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * Get the backing array. Only the first getLength() bytes are part of the message.
+     * The array must not be used after this buffer has been recycled.
+     * @return The backing array
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of bytes in this message
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The size of the backing array
+     */
+    int getCapacity() {
+        return bytes.length;
+    }
+
+    /**
+     * @return The time the message was received completely in milliseconds since the epoch
+     */
+    long getReceiveTime() {
+        return receiveTime;
+    }
+
+    /**
+     * @param receiveTime The time the message was received completely in milliseconds since the
+     *      epoch
+     */
+    void setReceiveTime(long receiveTime) {
+        this.receiveTime = receiveTime;
+    }
+
+    /**
+     * Decode the message as an ASCII string. Only the used part of the buffer is decoded.
+     * @return The message as a string
+     */
+    String decodeASCII() {
+        try {
+            return new String(bytes, 0, length, "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            // US-ASCII is one of the standard charsets every Java platform must support
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Empty the buffer while keeping the backing array
+     */
+    void clear() {
+        length = 0;
+        receiveTime = 0;
+    }
+
+    /**
+     * Return this buffer to its pool. The buffer must not be used anymore afterwards.
+     */
+    void recycle() {
+        pool.release(this);
+    }
+}
@@ -0,0 +1,75 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.util.ArrayDeque;
+
+/**
+ * The FrameBufferPool keeps a small number of FrameBuffers for reuse.
+ * This way receiving a message does not need to allocate memory once the buffers have grown to
+ * the typical message size, which avoids garbage collections during high-rate sampling.
+ *
+ * The pool is thread-safe as the buffers might be recycled by a different thread than the one
+ * receiving the messages.
+ */
+class FrameBufferPool {
+    /** The initial size of new buffers, typical messages are about 850 bytes */
+    static final int INITIAL_CAPACITY = 2048;
+    /** Buffers that have grown larger than this (for an unusual message) are not kept */
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /** The maximum number of idle buffers kept in the pool */
+    private final int maxPooled;
+    /** The idle buffers */
+    private final ArrayDeque<FrameBuffer> pool;
+
+    /** Statistics: the number of buffers allocated and reused */
+    private int allocated = 0;
+    private int reused = 0;
+
+    /**
+     * Create an empty pool
+     * @param maxPooled The maximum number of idle buffers kept for reuse
+     */
+    FrameBufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+        this.pool = new ArrayDeque<>(maxPooled);
+    }
+
+    /**
+     * Get an empty buffer. A pooled buffer is used if available, otherwise a new one is allocated.
+     * @return An empty FrameBuffer
+     */
+    synchronized FrameBuffer acquire() {
+        FrameBuffer frameBuffer = pool.pollFirst();
+        if (frameBuffer != null) {
+            reused++;
+            return frameBuffer;
+        }
+        allocated++;
+        return new FrameBuffer(this, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Return a buffer to the pool. This is normally called through FrameBuffer.recycle().
+     * @param frameBuffer The buffer that is not used anymore
+     */
+    synchronized void release(FrameBuffer frameBuffer) {
+        frameBuffer.clear();
+        if (pool.size() < maxPooled && frameBuffer.getCapacity() <= MAX_RETAINED_CAPACITY) {
+            pool.offerFirst(frameBuffer);
+        }
+    }
+
+    /**
+     * @return The number of buffers allocated by this pool so far
+     */
+    synchronized int getAllocatedCount() {
+        return allocated;
+    }
+
+    /**
+     * @return The number of times a pooled buffer was handed out instead of allocating a new one
+     */
+    synchronized int getReusedCount() {
+        return reused;
+    }
+}
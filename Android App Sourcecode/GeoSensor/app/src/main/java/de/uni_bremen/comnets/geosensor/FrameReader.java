@@ -0,0 +1,150 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The FrameReader splits the byte stream received from the transducer into single messages.
+ * According to the protocol, every message is terminated by the ASCII End of Text character (0x03).
+ *
+ * The stream is read in chunks using blocking bulk reads. This way the receiving thread sleeps
+ * inside the operating system while there is no data instead of polling the stream, and the
+ * delimiter is searched in memory instead of calling read() for every single byte.
+ *
+ * The messages are returned in FrameBuffers taken from a FrameBufferPool. The receiver has to
+ * recycle every buffer once the message has been handled, so the same few buffers are used for
+ * all messages instead of allocating new memory for each of them.
+ *
+ * A FrameReader is not thread-safe and should only be used by the thread receiving the data.
+ */
+class FrameReader {
+    /** The ASCII End of Text character marks the end of a message */
+    static final byte END_OF_TEXT = 0x03;
+    /** Messages larger than this are considered garbage and dropped (same limit as before) */
+    static final int MAX_FRAME_SIZE = 1024 * 1024 * 8;
+
+    /** The chunk size is about the size of a typical message sent by the transducer */
+    private static final int CHUNK_SIZE = 1024;
+
+    /** The stream the data is read from (typically the input stream of the bluetooth socket) */
+    private final InputStream inputStream;
+    /** The pool providing the buffers for the messages */
+    private final FrameBufferPool frameBufferPool;
+
+    /** The chunk buffer is reused for all reads, position and limit mark the unprocessed part */
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkPosition = 0;
+    private int chunkLimit = 0;
+
+    /** The message currently assembled from one or more chunks */
+    private FrameBuffer frame = null;
+    /** This is set if the message currently received exceeded MAX_FRAME_SIZE */
+    private boolean frameOverflow = false;
+
+    /** The number of messages dropped because they were too large */
+    private int droppedFrames = 0;
+
+    /**
+     * Create a FrameReader reading from the given stream.
+     * @param inputStream The stream to read the messages from
+     * @param frameBufferPool The pool providing the buffers for the messages
+     */
+    FrameReader(InputStream inputStream, FrameBufferPool frameBufferPool) {
+        this.inputStream = inputStream;
+        this.frameBufferPool = frameBufferPool;
+    }
+
+    /**
+     * Read the next complete message from the stream.
+     * This method blocks until a message has been received completely.
+     * @return The message without the End of Text character or null if the stream has ended (i.e.
+     *      the connection was closed). The caller has to recycle the buffer when done with it.
+     * @throws IOException If reading from the stream failed, for example if the socket was closed
+     *      by another thread.
+     */
+    FrameBuffer readFrame() throws IOException {
+        if (frame == null) {
+            frame = frameBufferPool.acquire();
+        }
+        while (true) {
+            // Only if the whole chunk has been processed, new data is read from the stream
+            if (chunkPosition == chunkLimit) {
+                int count = inputStream.read(chunk, 0, CHUNK_SIZE);
+                if (count == -1) {
+                    // An incomplete message at the end of the stream is discarded
+                    frame.recycle();
+                    frame = null;
+                    return null;
+                }
+                chunkPosition = 0;
+                chunkLimit = count;
+            }
+
+            int delimiter = indexOfEndOfText();
+            int end = delimiter == -1 ? chunkLimit : delimiter;
+            append(chunkPosition, end - chunkPosition);
+
+            if (delimiter == -1) {
+                // The message is not complete yet, the rest follows with the next chunk
+                chunkPosition = chunkLimit;
+                continue;
+            }
+
+            // The End of Text character does not belong to the message
+            chunkPosition = delimiter + 1;
+
+            if (frameOverflow) {
+                // An overlong message is dropped, but the next one can be received normally
+                frameOverflow = false;
+                frame.clear();
+                droppedFrames++;
+                continue;
+            }
+
+            FrameBuffer result = frame;
+            result.setReceiveTime(System.currentTimeMillis());
+            frame = null;
+            return result;
+        }
+    }
+
+    /**
+     * @return The number of messages dropped as they exceeded MAX_FRAME_SIZE
+     */
+    int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Search the unprocessed part of the chunk for the End of Text character
+     * @return The index of the End of Text character in the chunk or -1 if it is not included
+     */
+    private int indexOfEndOfText() {
+        for (int i = chunkPosition; i < chunkLimit; i++) {
+            if (chunk[i] == END_OF_TEXT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Append a part of the chunk to the message currently received.
+     * The frame buffer grows if necessary, but never beyond MAX_FRAME_SIZE.
+     * @param offset The start index in the chunk
+     * @param length The number of bytes to append
+     */
+    private void append(int offset, int length) {
+        if (frameOverflow || length == 0) {
+            return;
+        }
+        if (frame.getLength() + length > MAX_FRAME_SIZE) {
+            frameOverflow = true;
+            // The content is useless now, a fresh buffer avoids keeping the grown one around
+            frame.recycle();
+            frame = frameBufferPool.acquire();
+            return;
+        }
+        frame.append(chunk, offset, length);
+    }
+}
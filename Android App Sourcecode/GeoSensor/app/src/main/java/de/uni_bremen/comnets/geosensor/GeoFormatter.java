@@ -0,0 +1,200 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * The base of the formats for geographic information systems like QGIS: GeoJSON, GPX and KML.
+ * The files are UTF-8 text with the numbers written with a full stop and the times in UTC as
+ * defined by ISO 8601, whatever the csv settings of the user are. The DataRecords of a chunk
+ * are appended to a buffer one after the other by the subclass.
+ *
+ * A GeoFormatter is not thread-safe, the formats it uses are not. Threads formatting in parallel
+ * use a copy each.
+ */
+abstract class GeoFormatter implements ExportFormat {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** The suffix of the property holding the unit of a measured value */
+    static final String UNIT_SUFFIX = "_unit";
+    /** The names of the properties every DataRecord may have besides its measured values */
+    private static final List<String> FIXED_PROPERTIES = Arrays.asList(
+            DataLab.DataRecordEntry.COLUMN_RECEIVE_TIME, DataLab.DataRecordEntry.COLUMN_COMMENT,
+            DataLab.DataRecordEntry.COLUMN_ARDUINO_SOFTWARE,
+            DataLab.DataRecordEntry.COLUMN_ARDUINO_TIME, DataLab.LocationEntry.COLUMN_PROVIDER,
+            "location_time", DataLab.LocationEntry.COLUMN_ACCURACY);
+
+    // Formats the numbers and times without creating objects for every value. The time is
+    // formatted like the csv date, the T and the Z of ISO 8601 are added afterwards.
+    private final CsvFieldFormatter fieldFormatter;
+    // The property names taken in the DataRecord being formatted, reused for every DataRecord
+    private final Set<String> takenNames = new HashSet<>();
+
+    GeoFormatter() {
+        DecimalFormat numberFormat = new DecimalFormat("############.############",
+                new DecimalFormatSymbols(Locale.US));
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        fieldFormatter = new CsvFieldFormatter(numberFormat, dateFormat, '.');
+    }
+
+    /**
+     * Append the text describing a DataRecord
+     * @param dataRecord The DataRecord
+     * @param result The buffer the text is appended to
+     */
+    abstract void appendRecord(DataRecord dataRecord, StringBuilder result);
+
+    /**
+     * @param dataRecords The DataRecords of a chunk
+     * @return The text of the DataRecords in UTF-8
+     */
+    @Override
+    public byte[] formatChunk(List<DataRecord> dataRecords) {
+        StringBuilder result = new StringBuilder();
+        for (DataRecord dataRecord : dataRecords) {
+            appendRecord(dataRecord, result);
+        }
+        return result.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * The file ends with the text closing the header
+     */
+    @Override
+    public byte[] getTrailer(RandomAccessFile file) throws IOException {
+        return getEnd().getBytes(UTF_8);
+    }
+
+    /**
+     * @return The text the file ends with
+     */
+    abstract String getEnd();
+
+    /**
+     * There are no settings, the formats do not depend on the csv settings
+     */
+    @Override
+    public void writeSettings(DataOutputStream out) {
+    }
+
+    /**
+     * @param dataRecord The DataRecord
+     * @return The best location of the DataRecord, null if it has none
+     */
+    static Location getLocation(DataRecord dataRecord) {
+        return dataRecord.getLocations().isEmpty() ? null : dataRecord.getLocation();
+    }
+
+    /**
+     * Get the names of the properties of the measured values of a DataRecord: the name of the
+     * sensor or the type if there is no name. If the name or the name of its unit is taken
+     * already, by a fixed property or a measured value before, the number of the measured value
+     * is added, and counted up while that is taken as well. This way every property of the
+     * DataRecord has a name of its own.
+     * @param measureDataList The measured values of the DataRecord
+     * @return The names in the order of the measured values
+     */
+    String[] getPropertyNames(List<MeasureData> measureDataList) {
+        takenNames.clear();
+        takenNames.addAll(FIXED_PROPERTIES);
+        String[] names = new String[measureDataList.size()];
+        for (int i = 0; i < names.length; i++) {
+            String name = getName(measureDataList.get(i));
+            String propertyName = name;
+            for (int number = i; takenNames.contains(propertyName)
+                    || takenNames.contains(propertyName + UNIT_SUFFIX); number++) {
+                propertyName = name + "_" + number;
+            }
+            takenNames.add(propertyName);
+            takenNames.add(propertyName + UNIT_SUFFIX);
+            names[i] = propertyName;
+        }
+        return names;
+    }
+
+    /**
+     * @param measureData A measured value
+     * @return The name of the sensor, or the type if there is none
+     */
+    private static String getName(MeasureData measureData) {
+        String name = measureData.getName();
+        if (name == null || name.isEmpty()) {
+            name = measureData.getType();
+        }
+        return name != null ? name : "value";
+    }
+
+    /**
+     * Append a number with a full stop and up to twelve decimals
+     * @param result The buffer the number is appended to
+     * @param value The number, must be finite
+     */
+    void appendNumber(StringBuilder result, double value) {
+        fieldFormatter.appendNumber(result, value);
+    }
+
+    /**
+     * Append a time in UTC like 2017-06-01T11:13:25Z
+     * @param result The buffer the time is appended to
+     * @param millis The time in milliseconds since 1970
+     */
+    void appendTime(StringBuilder result, long millis) {
+        int start = result.length();
+        fieldFormatter.appendDate(result, millis);
+        int space = result.indexOf(" ", start);
+        if (space >= 0) {
+            result.setCharAt(space, 'T');
+        }
+        result.append('Z');
+    }
+
+    /**
+     * Append a text to XML, escaping the characters with a special meaning
+     * @param result The buffer the text is appended to
+     * @param text The text, null is appended as an empty text
+     */
+    static void appendXml(StringBuilder result, String text) {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    result.append("&amp;");
+                    break;
+                case '<':
+                    result.append("&lt;");
+                    break;
+                case '>':
+                    result.append("&gt;");
+                    break;
+                case '"':
+                    result.append("&quot;");
+                    break;
+                case '\'':
+                    result.append("&apos;");
+                    break;
+                default:
+                    // Control characters other than white space are not allowed in XML 1.0
+                    if (c >= ' ' || c == '\t' || c == '\n' || c == '\r') {
+                        result.append(c);
+                    }
+            }
+        }
+    }
+}
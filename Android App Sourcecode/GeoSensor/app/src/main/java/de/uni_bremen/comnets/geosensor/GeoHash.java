@@ -0,0 +1,121 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The GeoHash turns a position into a single number, so positions can be found with an ordinary
+ * database index.
+ *
+ * The latitude and the longitude are divided into 2^BITS steps each and the bits of both are
+ * interleaved, starting with the longitude like a geohash string. Positions with the same leading
+ * bits are within the same cell of a grid, so the positions within a cell are a single range of
+ * numbers. A bounding box is covered by a few cells, each of them queried as a range.
+ */
+class GeoHash {
+    /** The number of bits per coordinate, a step is about 0.6 meters at the equator */
+    static final int BITS = 26;
+    /** The highest number of cells a bounding box is covered with */
+    static final int MAX_CELLS = 32;
+
+    private GeoHash() {}
+
+    /**
+     * @param latitude The latitude in degrees
+     * @param longitude The longitude in degrees
+     * @return The geohash of the position
+     */
+    static long encode(double latitude, double longitude) {
+        return interleave(step(longitude, -180, 360), step(latitude, -90, 180));
+    }
+
+    /**
+     * Get the ranges of geohashes covering a bounding box. The ranges might contain positions
+     * outside the bounding box, those have to be filtered out afterwards.
+     * @param south The southern bound in degrees
+     * @param west The western bound in degrees, east of the eastern bound if the box crosses the
+     *             180th meridian
+     * @param north The northern bound in degrees
+     * @param east The eastern bound in degrees
+     * @return The first and the last geohash of each range, sorted and not overlapping
+     */
+    static List<long[]> cover(double south, double west, double north, double east) {
+        List<long[]> ranges = new ArrayList<>();
+        if (west <= east) {
+            cover(south, west, north, east, ranges);
+        } else {
+            // Two boxes, one on each side of the 180th meridian
+            cover(south, west, north, 180, ranges);
+            cover(south, -180, north, east, ranges);
+        }
+
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Add the ranges covering a bounding box not crossing the 180th meridian. The finest grid
+     * covering the box with at most MAX_CELLS / 2 cells is used, so both boxes of a bounding box
+     * crossing the meridian together stay within MAX_CELLS.
+     */
+    private static void cover(double south, double west, double north, double east,
+                              List<long[]> ranges) {
+        int x0 = step(west, -180, 360);
+        int x1 = step(east, -180, 360);
+        int y0 = step(south, -90, 180);
+        int y1 = step(north, -90, 180);
+        int shift = 0;
+        while (shift < BITS
+                && (long) ((x1 >> shift) - (x0 >> shift) + 1) * ((y1 >> shift) - (y0 >> shift) + 1)
+                > MAX_CELLS / 2) {
+            shift++;
+        }
+
+        for (int x = x0 >> shift; x <= x1 >> shift; x++) {
+            for (int y = y0 >> shift; y <= y1 >> shift; y++) {
+                long first = interleave(x, y) << (2 * shift);
+                ranges.add(new long[]{first, first + (1L << (2 * shift)) - 1});
+            }
+        }
+    }
+
+    /**
+     * @param value A coordinate
+     * @param min The lowest value of the coordinate
+     * @param range The size of the range of the coordinate
+     * @return The step the coordinate is in, values out of range are clamped
+     */
+    private static int step(double value, double min, double range) {
+        long step = (long) Math.floor((value - min) / range * (1 << BITS));
+        return (int) Math.max(0, Math.min((1 << BITS) - 1, step));
+    }
+
+    /**
+     * @param x The step of the longitude
+     * @param y The step of the latitude
+     * @return The bits of both steps interleaved, the highest bit taken from x
+     */
+    private static long interleave(int x, int y) {
+        long result = 0;
+        for (int i = BITS - 1; i >= 0; i--) {
+            result = (result << 2) | (((x >> i) & 1) << 1) | ((y >> i) & 1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * The GeoJsonFormatter writes DataRecords as a GeoJSON FeatureCollection (RFC 7946). Every
+ * DataRecord is a feature: its geometry is the point of the best location, or null if it has no
+ * location, and its properties are the general information, the details of the location and
+ * the measured values, named by the name of the sensor, with their units. Every property of a
+ * feature has a name of its own (see getPropertyNames).
+ *
+ * The features are written with the comma separating them in front, as a chunk does not know
+ * whether a feature has been written before. The comma in front of the first feature is
+ * replaced by a space when the file is completed.
+ */
+class GeoJsonFormatter extends GeoFormatter {
+    /** The type of the GeoJSON format in the checkpoint of the ExportEngine */
+    static final int TYPE = 2;
+
+    private static final String HEADER = "{\"type\":\"FeatureCollection\",\"features\":[";
+
+    @Override
+    public GeoJsonFormatter copy() {
+        return new GeoJsonFormatter();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    @Override
+    public byte[] getHeader() {
+        return HEADER.getBytes(UTF_8);
+    }
+
+    @Override
+    String getEnd() {
+        return "\n]}\n";
+    }
+
+    /**
+     * Remove the comma in front of the first feature
+     * @param file The file written so far
+     * @return The end of the feature collection
+     */
+    @Override
+    public byte[] getTrailer(RandomAccessFile file) throws IOException {
+        long end = file.getFilePointer();
+        int headerLength = getHeader().length;
+        if (end > headerLength) {
+            file.seek(headerLength);
+            if (file.read() == ',') {
+                file.seek(headerLength);
+                file.write(' ');
+            }
+            file.seek(end);
+        }
+        return super.getTrailer(file);
+    }
+
+    @Override
+    void appendRecord(DataRecord dataRecord, StringBuilder result) {
+        result.append(",\n{\"type\":\"Feature\",\"geometry\":");
+        Location location = getLocation(dataRecord);
+        if (location == null) {
+            result.append("null");
+        } else {
+            result.append("{\"type\":\"Point\",\"coordinates\":[");
+            appendNumber(result, location.getLongitude());
+            result.append(',');
+            appendNumber(result, location.getLatitude());
+            if (location.hasAltitude()) {
+                result.append(',');
+                appendNumber(result, location.getAltitude());
+            }
+            result.append("]}");
+        }
+
+        result.append(",\"properties\":{\"").append(DataLab.DataRecordEntry.COLUMN_RECEIVE_TIME)
+                .append("\":\"");
+        appendTime(result, dataRecord.getReceiveTime().getTime());
+        result.append("\",\"").append(DataLab.DataRecordEntry.COLUMN_COMMENT).append("\":");
+        appendString(result, dataRecord.getComment());
+        result.append(",\"").append(DataLab.DataRecordEntry.COLUMN_ARDUINO_SOFTWARE).append("\":");
+        appendString(result, dataRecord.getArduinoSoftware());
+        result.append(",\"").append(DataLab.DataRecordEntry.COLUMN_ARDUINO_TIME).append("\":")
+                .append(dataRecord.getArduinoTime());
+        if (location != null) {
+            result.append(",\"").append(DataLab.LocationEntry.COLUMN_PROVIDER).append("\":");
+            appendString(result, location.getProvider());
+            result.append(",\"location_time\":\"");
+            appendTime(result, location.getTime());
+            result.append('"');
+            if (location.hasAccuracy()) {
+                result.append(",\"").append(DataLab.LocationEntry.COLUMN_ACCURACY).append("\":");
+                appendNumber(result, location.getAccuracy());
+            }
+        }
+
+        List<MeasureData> measureDataList = dataRecord.getMeasureData();
+        String[] names = getPropertyNames(measureDataList);
+        for (int i = 0; i < measureDataList.size(); i++) {
+            MeasureData measureData = measureDataList.get(i);
+            result.append(",\"");
+            appendEscaped(result, names[i]);
+            result.append("\":");
+            double value = measureData.getValue();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                // JSON has no numbers for these
+                result.append("null");
+            } else {
+                appendNumber(result, value);
+            }
+            result.append(",\"");
+            appendEscaped(result, names[i]);
+            result.append(UNIT_SUFFIX).append("\":");
+            appendString(result, measureData.getUnit());
+        }
+        result.append("}}");
+    }
+
+    /**
+     * Append a JSON string in quotes
+     * @param result The buffer the string is appended to
+     * @param text The text, null is written as null
+     */
+    private static void appendString(StringBuilder result, String text) {
+        if (text == null) {
+            result.append("null");
+            return;
+        }
+        result.append('"');
+        appendEscaped(result, text);
+        result.append('"');
+    }
+
+    /**
+     * Append a text to a JSON string, escaping quotes, backslashes and control characters
+     * @param result The buffer the text is appended to
+     * @param text The text
+     */
+    private static void appendEscaped(StringBuilder result, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c == '\n') {
+                result.append("\\n");
+            } else if (c == '\r') {
+                result.append("\\r");
+            } else if (c == '\t') {
+                result.append("\\t");
+            } else if (c < ' ') {
+                result.append("\\u00");
+                result.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+            } else {
+                result.append(c);
+            }
+        }
+    }
+
+    @Override
+    public String getMimeType() {
+        return "application/geo+json";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "geojson";
+    }
+}
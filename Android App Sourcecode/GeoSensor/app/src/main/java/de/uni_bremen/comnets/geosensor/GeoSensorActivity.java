@@ -96,9 +96,7 @@ public abstract class GeoSensorActivity extends AppCompatActivity {
                 return true;
 
             case R.id.action_export: {
-                DataLab dataLab = new DataLab(this);
-                CSVWriter csvWriter = new CSVWriter(this, dataLab.getFilteredIDs());
-                csvWriter.export();
+                CSVWriter.exportFiltered(this);
                 return true;
             }
 
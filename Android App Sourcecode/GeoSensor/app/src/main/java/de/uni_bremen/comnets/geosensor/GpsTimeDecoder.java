@@ -0,0 +1,183 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The GpsTimeDecoder converts the date and time sent by the transducer into milliseconds since
+ * the epoch.
+ *
+ * The transducer sends them as delivered by the TinyGPS++ library: the date as a number in the
+ * format ddMMyy and the time as a number in the format HHmmsscc (cc being hundredths of a second,
+ * which are ignored). The GPS receiver gives the GPS time, TinyGPS++ converts it to UTC.
+ *
+ * Both numbers used to be formatted into a string which was parsed again by a SimpleDateFormat.
+ * The result is now calculated directly and is the same as the one of the lenient
+ * SimpleDateFormat: fields out of range roll over into the next one (the 32nd of January is the
+ * 1st of February) and two digit years are placed into the 100 years starting 80 years ago.
+ * Negative numbers or numbers with more than six digits do not fit into the format, these are
+ * still handled by the SimpleDateFormat.
+ *
+ * As the transducer sends the same date over and over, the start of the last day decoded is
+ * cached. Decoding does not allocate any memory, except for updating the window of the two digit
+ * years once an hour.
+ *
+ * A GpsTimeDecoder is thread-safe.
+ */
+class GpsTimeDecoder {
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /** The largest number fitting into the six digits of the date or the time */
+    private static final long MAX_FIELD = 999999;
+
+    /** How often the window of the two digit years is moved forward */
+    private static final long WINDOW_UPDATE_INTERVAL = MILLIS_PER_HOUR;
+
+    /**
+     * The cached day: the days since the epoch in the lower 32 bits, the date in the next 20 bits
+     * and the lower 11 bits of the first year of the window above. The highest bit is never set,
+     * so the empty cache does not match any date.
+     */
+    private volatile long cachedDay = -1;
+
+    /** The 100 years two digit years are placed into */
+    private volatile CenturyWindow window;
+
+    /**
+     * The 100 years starting 80 years ago, exactly as the SimpleDateFormat determines them
+     */
+    private static class CenturyWindow {
+        /** The start of the window in milliseconds since the epoch */
+        final long start;
+        /** The year the window starts in */
+        final int startYear;
+        /** The time the window has to be updated */
+        final long expires;
+
+        CenturyWindow(long now) {
+            Calendar calendar = Calendar.getInstance(Locale.US);
+            calendar.setTimeInMillis(now);
+            calendar.add(Calendar.YEAR, -80);
+            start = calendar.getTimeInMillis();
+            startYear = calendar.get(Calendar.YEAR);
+            expires = now + WINDOW_UPDATE_INTERVAL;
+        }
+    }
+
+    /**
+     * Convert the date and time sent by the GPS receiver of the transducer
+     * @param date The date in the format ddMMyy
+     * @param time The time in the format HHmmsscc (cc being hundredths of a second)
+     * @return The time in milliseconds since the epoch
+     * @throws ParseException If the date or time are not in the right format
+     */
+    long decode(long date, long time) throws ParseException {
+        long seconds = time / 100;
+        if (date < 0 || date > MAX_FIELD || seconds < 0 || seconds > MAX_FIELD) {
+            return decodeWithFormat(date, time);
+        }
+        long timeOfDay = seconds / 10000 * MILLIS_PER_HOUR
+                + seconds / 100 % 100 * MILLIS_PER_MINUTE
+                + seconds % 100 * MILLIS_PER_SECOND;
+
+        CenturyWindow window = getWindow();
+        int twoDigitYear = (int) (date % 100);
+        int centuryStart = window.startYear % 100;
+        int century = window.startYear - centuryStart;
+
+        if (twoDigitYear == centuryStart) {
+            // Depending on the day this is the first or the last year of the window
+            long result = daysSinceEpoch(date, window.startYear) * MILLIS_PER_DAY + timeOfDay;
+            if (result < window.start) {
+                result = daysSinceEpoch(date, window.startYear + 100) * MILLIS_PER_DAY + timeOfDay;
+            }
+            return result;
+        }
+
+        long key = (window.startYear & 0x7FFL) << 52 | date << 32;
+        long cached = cachedDay;
+        if ((cached & 0xFFFFFFFF00000000L) == key) {
+            return (int) cached * MILLIS_PER_DAY + timeOfDay;
+        }
+
+        int year = century + twoDigitYear + (twoDigitYear < centuryStart ? 100 : 0);
+        int days = daysSinceEpoch(date, year);
+        cachedDay = key | (days & 0xFFFFFFFFL);
+        return days * MILLIS_PER_DAY + timeOfDay;
+    }
+
+    /**
+     * @return The current window of the two digit years
+     */
+    private CenturyWindow getWindow() {
+        CenturyWindow current = window;
+        long now = System.currentTimeMillis();
+        if (current == null || now >= current.expires) {
+            current = new CenturyWindow(now);
+            window = current;
+        }
+        return current;
+    }
+
+    /**
+     * Calculate the number of days between the epoch and the given day.
+     * Days and months out of range roll over like in the lenient GregorianCalendar.
+     * @param date The date in the format ddMMyy
+     * @param year The full year
+     * @return The days since the 1st of January 1970
+     */
+    private static int daysSinceEpoch(long date, int year) {
+        int day = (int) (date / 10000);
+        int month = (int) (date / 100 % 100) - 1;
+        // The month 0 is the December of the previous year
+        if (month < 0) {
+            year--;
+            month += 12;
+        }
+        year += month / 12;
+        month = month % 12 + 1;
+
+        // The days of the first of the month in the proleptic Gregorian calendar, counting the
+        // years from March so the leap day is the last day of the year
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468 + day - 1;
+    }
+
+    /**
+     * Convert the date and time using a SimpleDateFormat. This is the way it was done before
+     * and is still used for numbers not fitting into the format.
+     * @param date The date in the format ddMMyy
+     * @param time The time in the format HHmmsscc (cc being hundredths of a second)
+     * @return The time in milliseconds since the epoch
+     * @throws ParseException If the date or time are not in the right format
+     */
+    static long decodeWithFormat(long date, long time) throws ParseException {
+        // This is the time format delivered by the TinyGPS++ Library
+        DateFormat format = new SimpleDateFormat("ddMMyyHHmmss", Locale.US);
+        // The time given by the GPS receiver is always the GPS time.
+        // The TinyGPS++ library converts it to the Universal Time Coordinated (UTC)
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        try {
+            // The Locale is not really relevant
+            // Formats the time to the fpr,at given
+            return format.parse(String.format(Locale.GERMANY, "%06d", date) +
+                    String.format(Locale.GERMANY,"%06d", time/100)).getTime();
+        } catch (ParseException e) {
+            // The date format provided by in the Message must be formatted exactly according
+            // to the specificaiton.
+            throw new ParseException("Wrong date format", 0);
+        }
+    }
+}
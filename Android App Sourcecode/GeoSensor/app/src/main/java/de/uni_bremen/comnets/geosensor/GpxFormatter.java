@@ -0,0 +1,106 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.util.List;
+
+/**
+ * The GpxFormatter writes DataRecords as a GPX 1.1 track. Every DataRecord having a location is
+ * a point of the track at its best location and its receive time; the DataRecords must be
+ * exported ordered by the receive time. The accuracy and the measured values are added to the
+ * points as extensions of the GeoSensor namespace, the DataRecords without location are left
+ * out.
+ */
+class GpxFormatter extends GeoFormatter {
+    /** The type of the GPX format in the checkpoint of the ExportEngine */
+    static final int TYPE = 3;
+
+    private static final String NAMESPACE = "https://github.com/ComNets-Bremen/GeoSensor";
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<gpx version=\"1.1\" creator=\"GeoSensor\" " +
+            "xmlns=\"http://www.topografix.com/GPX/1/1\" xmlns:gs=\"" + NAMESPACE + "\">\n" +
+            "<trk><name>GeoSensor</name><trkseg>\n";
+
+    @Override
+    public GpxFormatter copy() {
+        return new GpxFormatter();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    @Override
+    public byte[] getHeader() {
+        return HEADER.getBytes(UTF_8);
+    }
+
+    @Override
+    String getEnd() {
+        return "</trkseg></trk>\n</gpx>\n";
+    }
+
+    @Override
+    void appendRecord(DataRecord dataRecord, StringBuilder result) {
+        Location location = getLocation(dataRecord);
+        if (location == null) {
+            return;
+        }
+        result.append("<trkpt lat=\"");
+        appendNumber(result, location.getLatitude());
+        result.append("\" lon=\"");
+        appendNumber(result, location.getLongitude());
+        result.append("\">");
+        if (location.hasAltitude()) {
+            result.append("<ele>");
+            appendNumber(result, location.getAltitude());
+            result.append("</ele>");
+        }
+        result.append("<time>");
+        appendTime(result, dataRecord.getReceiveTime().getTime());
+        result.append("</time><src>");
+        appendXml(result, location.getProvider());
+        result.append("</src>");
+
+        // GPX has no accuracy in meters, it is an extension like the measured values
+        List<MeasureData> measureDataList = dataRecord.getMeasureData();
+        if (location.hasAccuracy() || !measureDataList.isEmpty()) {
+            result.append("<extensions>");
+            if (location.hasAccuracy()) {
+                result.append("<gs:accuracy>");
+                appendNumber(result, location.getAccuracy());
+                result.append("</gs:accuracy>");
+            }
+            for (MeasureData measureData : measureDataList) {
+                double value = measureData.getValue();
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    continue;
+                }
+                result.append("<gs:measure type=\"");
+                appendXml(result, measureData.getType());
+                result.append("\" name=\"");
+                appendXml(result, measureData.getName());
+                result.append("\" sensor=\"");
+                appendXml(result, measureData.getSensor());
+                result.append("\" unit=\"");
+                appendXml(result, measureData.getUnit());
+                result.append("\">");
+                appendNumber(result, value);
+                result.append("</gs:measure>");
+            }
+            result.append("</extensions>");
+        }
+        result.append("</trkpt>\n");
+    }
+
+    @Override
+    public String getMimeType() {
+        return "application/gpx+xml";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "gpx";
+    }
+}
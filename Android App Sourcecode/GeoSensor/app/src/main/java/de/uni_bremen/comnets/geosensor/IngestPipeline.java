@@ -0,0 +1,379 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The IngestPipeline handles the messages received from the transducer in three stages:
+ *
+ * 1. The reader (the thread calling submit()) receives the messages from the bluetooth socket.
+ * 2. The parser thread parses the messages and hands the result to the writer. Invalid messages
+ *    are answered with a resend request.
+ * 3. The writer thread saves the parsed records. All records waiting at that time are saved
+ *    together in a single batch, so a burst of messages needs only a few database transactions.
+ *    The records are acknowledged once their batch has been saved. If saving fails, they are
+ *    requested again instead, so a message acknowledged is never lost.
+ *
+ * The stages are connected by BoundedQueues. If the database is slow, the writer queue fills up
+ * and the parser waits before it takes further messages. The reader is only blocked when the
+ * parser queue is full as well.
+ *
+ * As a record is only acknowledged once it has been saved, how much a slow write delays the
+ * transducer depends on its protocol. The binary samples are sent within a sliding window, so the
+ * transducer goes on sending while the batches before are written, until the window is full.
+ * A transducer using the JSON protocol waits for the ACK of every message before sending the next
+ * one, so it is held up by every batch written. This is the price for an ACK meaning that the
+ * record has been saved, the transducer does not lose a message the app could not save.
+ *
+ * The pipeline does not depend on Android, everything specific to the app is done by the Handler.
+ *
+ * @param <T> The type of the parsed messages
+ */
+class IngestPipeline<T> {
+    /** The number of raw messages that may wait for the parser */
+    static final int FRAME_QUEUE_CAPACITY = 64;
+    /** The number of parsed messages that may wait for the writer */
+    static final int RECORD_QUEUE_CAPACITY = 256;
+    /** The maximum number of records saved in a single batch */
+    static final int MAX_BATCH_SIZE = 64;
+
+    /** The time the worker threads wait for new data before checking if the pipeline was closed */
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    /**
+     * The Handler does the actual work of the stages.
+     * parse() and requestResend() are called by the parser thread, save(), saved(),
+     * acknowledge(List) and requestResend(List) by the writer thread.
+     * @param <T> The type of the parsed messages
+     */
+    interface Handler<T> {
+        /**
+         * Parse a message. The buffer is recycled by the pipeline afterwards.
+         * @param frame The message as received
+         * @return The parsed message or null if the message should be ignored silently
+         * @throws ParseException If the message is invalid and should be sent again
+         */
+        T parse(FrameBuffer frame) throws ParseException;
+
+        /** Tell the transducer that the last message is invalid and has to be sent again */
+        void requestResend();
+
+        /**
+         * Tell the transducer that the messages of a batch have been saved
+         * @param batch The messages in the order they were received
+         */
+        void acknowledge(List<T> batch);
+
+        /**
+         * Tell the transducer that the messages of a batch could not be saved and have to be sent
+         * again
+         * @param batch The messages in the order they were received
+         */
+        void requestResend(List<T> batch);
+
+        /**
+         * Save a batch of parsed messages
+         * @param batch The messages in the order they were received
+         */
+        void save(List<T> batch);
+
+        /**
+         * Called after a batch has been saved, for example to notify the user interface
+         * @param batch The messages in the order they were received
+         */
+        void saved(List<T> batch);
+
+        /**
+         * Called if one of the other methods threw an exception. The pipeline keeps running.
+         * @param stage The name of the stage that failed
+         * @param e The exception thrown
+         */
+        void failed(String stage, RuntimeException e);
+    }
+
+    /**
+     * The counters of a single stage. They are only written by the thread running the stage, so
+     * volatile is sufficient for other threads to read them.
+     */
+    static class Stage {
+        private final String name;
+        private final BoundedQueue<?> queue;
+
+        private volatile long count = 0;
+        private volatile long errors = 0;
+        private volatile long totalLatencyNanos = 0;
+        private volatile long maxLatencyNanos = 0;
+        private volatile int maxQueueDepth = 0;
+
+        Stage(String name, BoundedQueue<?> queue) {
+            this.name = name;
+            this.queue = queue;
+        }
+
+        private void record(long latencyNanos) {
+            count++;
+            totalLatencyNanos += latencyNanos;
+            if (latencyNanos > maxLatencyNanos) {
+                maxLatencyNanos = latencyNanos;
+            }
+        }
+
+        private void observeQueueDepth(int depth) {
+            // The producer might have added more elements in the meantime
+            depth = Math.min(depth, queue.capacity());
+            if (depth > maxQueueDepth) {
+                maxQueueDepth = depth;
+            }
+        }
+
+        /** @return The number of messages handled by this stage */
+        long getCount() {
+            return count;
+        }
+
+        /** @return The number of exceptions thrown while handling messages */
+        long getErrors() {
+            return errors;
+        }
+
+        /** @return The number of messages currently waiting in front of this stage */
+        int getQueueDepth() {
+            return queue.size();
+        }
+
+        /** @return The largest number of messages waiting in front of this stage so far */
+        int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        /** @return How often the previous stage had to wait because this stage was too slow */
+        long getStalls() {
+            return queue.getStalls();
+        }
+
+        /** @return The average time from entering the queue until the stage finished, in ns */
+        long getAverageLatencyNanos() {
+            long c = count;
+            return c == 0 ? 0 : totalLatencyNanos / c;
+        }
+
+        /** @return The largest time from entering the queue until the stage finished, in ns */
+        long getMaxLatencyNanos() {
+            return maxLatencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d messages, %d errors, queue %d/%d (max %d), " +
+                            "%d stalls, latency avg %.2f ms max %.2f ms", name, count, errors,
+                    queue.size(), queue.capacity(), maxQueueDepth, getStalls(),
+                    getAverageLatencyNanos() / 1e6, maxLatencyNanos / 1e6);
+        }
+    }
+
+    private final Handler<T> handler;
+
+    private final BoundedQueue<FrameBuffer> frameQueue = new BoundedQueue<>(FRAME_QUEUE_CAPACITY);
+    private final BoundedQueue<T> recordQueue = new BoundedQueue<>(RECORD_QUEUE_CAPACITY);
+
+    private final Stage parserStage = new Stage("parser", frameQueue);
+    private final Stage writerStage = new Stage("writer", recordQueue);
+
+    private final Thread parserThread;
+    private final Thread writerThread;
+
+    /** Set when no further messages are submitted, the workers stop once their queue is empty */
+    private volatile boolean closed = false;
+
+    /**
+     * Create the pipeline and start the parser and writer threads
+     * @param handler The Handler doing the actual work
+     */
+    IngestPipeline(Handler<T> handler) {
+        this.handler = handler;
+
+        parserThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runParser();
+            }
+        }, "IngestPipeline parser");
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "IngestPipeline writer");
+
+        parserThread.start();
+        writerThread.start();
+    }
+
+    /**
+     * Hand a received message to the parser. This blocks while the parser queue is full.
+     * Must always be called from the same thread. The pipeline takes care of recycling the buffer.
+     * @param frame The message received
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    void submit(FrameBuffer frame) throws InterruptedException {
+        if (closed) {
+            frame.recycle();
+            throw new IllegalStateException("The pipeline has been closed");
+        }
+        frameQueue.put(frame);
+    }
+
+    /**
+     * Stop accepting messages. The messages already submitted are still parsed and saved.
+     * Must be called from the thread calling submit().
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Wait until all messages submitted have been saved. close() must be called before.
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return true if the pipeline has finished, false if the time has passed
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        parserThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        writerThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        return !parserThread.isAlive() && !writerThread.isAlive();
+    }
+
+    /** @return The counters of the parser stage */
+    Stage getParserStage() {
+        return parserStage;
+    }
+
+    /** @return The counters of the writer stage */
+    Stage getWriterStage() {
+        return writerStage;
+    }
+
+    /**
+     * @return A human readable summary of the counters of all stages
+     */
+    String getStatistics() {
+        return parserStage + "; " + writerStage;
+    }
+
+    /**
+     * The parser stage: parse and hand over to the writer
+     */
+    private void runParser() {
+        try {
+            while (true) {
+                FrameBuffer frame = frameQueue.take(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    if (closed && frameQueue.size() == 0) {
+                        return;
+                    }
+                    continue;
+                }
+                parserStage.observeQueueDepth(frameQueue.size() + 1);
+                long enqueueTime = frameQueue.getLastEnqueueTime();
+
+                T record;
+                try {
+                    record = handler.parse(frame);
+                } catch (ParseException e) {
+                    record = null;
+                    requestResend();
+                } catch (RuntimeException e) {
+                    record = null;
+                    parserStage.errors++;
+                    handler.failed(parserStage.name, e);
+                } finally {
+                    frame.recycle();
+                }
+
+                if (record != null) {
+                    // The message is acknowledged by the writer once it has been saved
+                    recordQueue.put(record);
+                }
+                parserStage.record(System.nanoTime() - enqueueTime);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer stage: save everything waiting in a single batch and acknowledge it
+     */
+    private void runWriter() {
+        List<T> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        long[] enqueueTimes = new long[MAX_BATCH_SIZE];
+        try {
+            while (true) {
+                T record = recordQueue.take(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    if (!parserThread.isAlive() && recordQueue.size() == 0) {
+                        return;
+                    }
+                    continue;
+                }
+                writerStage.observeQueueDepth(recordQueue.size() + 1);
+
+                // Everything that is already waiting is saved together
+                do {
+                    enqueueTimes[batch.size()] = recordQueue.getLastEnqueueTime();
+                    batch.add(record);
+                } while (batch.size() < MAX_BATCH_SIZE && (record = recordQueue.poll()) != null);
+
+                save(batch);
+
+                long now = System.nanoTime();
+                for (int i = 0; i < batch.size(); i++) {
+                    writerStage.record(now - enqueueTimes[i]);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Save a batch and acknowledge it. If saving fails, nothing is acknowledged and the messages
+     * are requested again, as the transducer drops the messages acknowledged.
+     * @param batch The messages in the order they were received
+     */
+    private void save(List<T> batch) {
+        try {
+            handler.save(batch);
+        } catch (RuntimeException e) {
+            writerStage.errors++;
+            handler.failed(writerStage.name, e);
+            try {
+                handler.requestResend(batch);
+            } catch (RuntimeException r) {
+                handler.failed(writerStage.name, r);
+            }
+            return;
+        }
+        try {
+            handler.acknowledge(batch);
+            handler.saved(batch);
+        } catch (RuntimeException e) {
+            writerStage.errors++;
+            handler.failed(writerStage.name, e);
+        }
+    }
+
+    private void requestResend() {
+        try {
+            handler.requestResend();
+        } catch (RuntimeException e) {
+            handler.failed(parserStage.name, e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import java.util.List;
+
+/**
+ * The KmlFormatter writes DataRecords as KML 2.2 placemarks. Every DataRecord having a location
+ * is a placemark at its best location, named and stamped by its receive time. The general
+ * information and the measured values, named by the name of the sensor, are the extended data
+ * of the placemark. The DataRecords without location are left out.
+ */
+class KmlFormatter extends GeoFormatter {
+    /** The type of the KML format in the checkpoint of the ExportEngine */
+    static final int TYPE = 4;
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n" +
+            "<Document><name>GeoSensor</name>\n";
+
+    @Override
+    public KmlFormatter copy() {
+        return new KmlFormatter();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    @Override
+    public byte[] getHeader() {
+        return HEADER.getBytes(UTF_8);
+    }
+
+    @Override
+    String getEnd() {
+        return "</Document>\n</kml>\n";
+    }
+
+    @Override
+    void appendRecord(DataRecord dataRecord, StringBuilder result) {
+        Location location = getLocation(dataRecord);
+        if (location == null) {
+            return;
+        }
+        long receiveTime = dataRecord.getReceiveTime().getTime();
+        result.append("<Placemark><name>");
+        appendTime(result, receiveTime);
+        result.append("</name><TimeStamp><when>");
+        appendTime(result, receiveTime);
+        result.append("</when></TimeStamp><ExtendedData>");
+        appendData(result, DataLab.DataRecordEntry.COLUMN_COMMENT, dataRecord.getComment());
+        appendData(result, DataLab.DataRecordEntry.COLUMN_ARDUINO_SOFTWARE,
+                dataRecord.getArduinoSoftware());
+        result.append("<Data name=\"").append(DataLab.DataRecordEntry.COLUMN_ARDUINO_TIME)
+                .append("\"><value>").append(dataRecord.getArduinoTime()).append("</value></Data>");
+        appendData(result, DataLab.LocationEntry.COLUMN_PROVIDER, location.getProvider());
+        if (location.hasAccuracy()) {
+            result.append("<Data name=\"").append(DataLab.LocationEntry.COLUMN_ACCURACY)
+                    .append("\"><value>");
+            appendNumber(result, location.getAccuracy());
+            result.append("</value></Data>");
+        }
+
+        List<MeasureData> measureDataList = dataRecord.getMeasureData();
+        String[] names = getPropertyNames(measureDataList);
+        for (int i = 0; i < measureDataList.size(); i++) {
+            MeasureData measureData = measureDataList.get(i);
+            double value = measureData.getValue();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            result.append("<Data name=\"");
+            appendXml(result, names[i]);
+            result.append("\"><value>");
+            appendNumber(result, value);
+            result.append("</value></Data>");
+            appendData(result, names[i] + UNIT_SUFFIX, measureData.getUnit());
+        }
+
+        result.append("</ExtendedData><Point><coordinates>");
+        appendNumber(result, location.getLongitude());
+        result.append(',');
+        appendNumber(result, location.getLatitude());
+        if (location.hasAltitude()) {
+            result.append(',');
+            appendNumber(result, location.getAltitude());
+        }
+        result.append("</coordinates></Point></Placemark>\n");
+    }
+
+    /**
+     * Append a text as extended data
+     * @param result The buffer the data is appended to
+     * @param name The name of the data
+     * @param text The text, null is written as an empty text
+     */
+    private static void appendData(StringBuilder result, String name, String text) {
+        result.append("<Data name=\"");
+        appendXml(result, name);
+        result.append("\"><value>");
+        appendXml(result, text);
+        result.append("</value></Data>");
+    }
+
+    @Override
+    public String getMimeType() {
+        return "application/vnd.google-earth.kml+xml";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "kml";
+    }
+}
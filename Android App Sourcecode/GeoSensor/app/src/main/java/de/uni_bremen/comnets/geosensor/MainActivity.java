@@ -61,7 +61,7 @@ public class MainActivity extends GeoSensorActivity{
         mainList.addItemDecoration(dividerItemDecoration);
 
         // Prepare the adapter for the data in the main list
-        DataLab dataLab = new DataLab(this);
+        DataLab dataLab = DataLab.get(this);
         dataAdapter = new DataAdapter(this, dataLab);
         mainList.setAdapter(dataAdapter);
 
@@ -80,12 +80,13 @@ public class MainActivity extends GeoSensorActivity{
     @Override
     public void onResume(){
         super.onResume();
+        dataAdapter.reloadDataRecords();
         dataAdapter.refreshList();
-        dataAdapter.notifyDataSetChanged();
 
         IntentFilter intentFilter = new IntentFilter(
                 BluetoothReceiverService.INTENT_DATA_RECORD_RECEIVED);
         intentFilter.addAction(FilterState.FILTER_CHANGED);
+        intentFilter.addAction(DataLab.INTENT_DATA_RECORDS_DELETED);
         LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver,
                 intentFilter);
     }
@@ -100,6 +101,15 @@ public class MainActivity extends GeoSensorActivity{
         LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
     }
 
+    /**
+     * Stop loading the DataRecords for the list
+     */
+    @Override
+    protected void onDestroy(){
+        dataAdapter.close();
+        super.onDestroy();
+    }
+
     /**
      * Most of the work is done in super, but this class needs to set the visibility for the icons
      * it needs.
@@ -132,13 +142,23 @@ public class MainActivity extends GeoSensorActivity{
 
     /**
      * This BroadcastReceiver handles changes in the data set like new elements, a new filter or a
-     * new sort order by asking the adapter to refresh everything.
+     * new sort order. New elements are added to the list and deleted ones removed, otherwise the
+     * adapter compares all IDs.
      */
     private class MainActivityBroadcastReceiver extends BroadcastReceiver{
         @Override
         public void onReceive(Context context, Intent intent) {
-            dataAdapter.refreshList();
-            dataAdapter.notifyDataSetChanged();
+            long[] ids = intent.getLongArrayExtra(BluetoothReceiverService.EXTRA_DATA_RECORD_IDS);
+            long[] receiveTimes = intent.getLongArrayExtra(BluetoothReceiverService.EXTRA_RECEIVE_TIMES);
+            if (BluetoothReceiverService.INTENT_DATA_RECORD_RECEIVED.equals(intent.getAction())
+                    && ids != null && receiveTimes != null) {
+                dataAdapter.addDataRecords(ids, receiveTimes);
+            } else if (DataLab.INTENT_DATA_RECORDS_DELETED.equals(intent.getAction())
+                    && ids != null) {
+                dataAdapter.removeDataRecords(ids);
+            } else {
+                dataAdapter.refreshList();
+            }
         }
     }
 
@@ -8,6 +8,8 @@ import android.graphics.Color;
 import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.widget.Toolbar;
 import android.view.Gravity;
@@ -21,6 +23,7 @@ import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
@@ -28,21 +31,43 @@ import com.google.android.gms.maps.model.MarkerOptions;
 
 import java.text.DateFormat;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This activity shows markers for the measurements made on a google map.
  *
+ * Only the positions of the DataRecords within the part of the map shown (and a margin around it)
+ * are read from the database, in the background whenever the map has been moved out of the part
+ * read before. Positions close to each other are shown as a single marker with the number of
+ * DataRecords, using a PositionClusterer. The markers which stay the same when the map is moved
+ * or zoomed are kept. The details of a DataRecord are only read when its info window is opened.
+ *
  * @author Eike Trumann
  */
 public class MainMapsActivity extends GeoSensorActivity implements OnMapReadyCallback {
+    /** The part of the visible width and height read in addition on each side */
+    private static final double MARGIN = 0.5;
+    /** The number of zoom levels a click on a cluster zooms in */
+    private static final int CLUSTER_CLICK_ZOOM = 2;
 
     /** The GoogleMap used to show the data*/
     private GoogleMap mMap;
     /** DataLab used to fetch the data from the database */
     DataLab dataLab;
-    /** This map maps the markers on the map to the database IDS of the DataRecords */
-    HashMap<Marker,Long> markerIDs = new HashMap<>();
+    /** The markers on the map by the key of their cluster, each marker has its cluster as tag */
+    private final Map<String, Marker> markers = new HashMap<>();
+    /** The positions read from the database, only accessed on the main thread */
+    private List<RecordPosition> positions = null;
+    /** The part of the map the positions have been read for or null if they have to be read */
+    private LatLngBounds loadedBounds = null;
+    /** Incremented for every update, the results of older updates are dropped */
+    private int updateGeneration = 0;
+    private final Handler handler = new Handler(Looper.getMainLooper());
     /** The BroadcastReceiver is used to get information about changes in the data set */
     private BroadcastReceiver broadcastReceiver = new MainMapsActivityBroadcastReceiver();
 
@@ -58,7 +83,7 @@ public class MainMapsActivity extends GeoSensorActivity implements OnMapReadyCal
         Toolbar myToolbar = (Toolbar) findViewById(R.id.mainToolbar);
         setSupportActionBar(myToolbar);
 
-        dataLab = new DataLab(this);
+        dataLab = DataLab.get(this);
 
         // Obtain the SupportMapFragment and get notified when the map is ready to be used.
         SupportMapFragment mapFragment = (SupportMapFragment) getSupportFragmentManager()
@@ -67,19 +92,19 @@ public class MainMapsActivity extends GeoSensorActivity implements OnMapReadyCal
     }
 
     /**
-     * In onResume, the BroadcastReceiver is registered and the map is refreshed in case it has
-     * been drawn before.
+     * In onResume, the BroadcastReceiver is registered and the markers are updated in case the
+     * map has been drawn before, the data might have changed meanwhile.
      */
     @Override
     public void onResume(){
         super.onResume();
         if(mMap != null){
-            mMap.clear();
-            onMapReady(mMap);
+            invalidatePositions();
         }
 
         IntentFilter intentFilter = new IntentFilter(("dataRecordReceived"));
         intentFilter.addAction(FilterState.FILTER_CHANGED);
+        intentFilter.addAction(DataLab.INTENT_DATA_RECORDS_DELETED);
         LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver,
                 intentFilter);
     }
@@ -110,8 +135,7 @@ public class MainMapsActivity extends GeoSensorActivity implements OnMapReadyCal
     /**
      * Manipulates the map once available.
      * This callback is triggered when the map is ready to be used.
-     * This is where we can add markers or lines, add listeners or move the camera. In this case,
-     * we just add a marker near Sydney, Australia.
+     * The camera is moved to show all DataRecords, the markers are added when the camera stops.
      * If Google Play services is not installed on the device, the user will be prompted to install
      * it inside the SupportMapFragment. This method will only be triggered once the user has
      * installed Google Play services and returned to the app.
@@ -120,55 +144,45 @@ public class MainMapsActivity extends GeoSensorActivity implements OnMapReadyCal
     public void onMapReady(GoogleMap googleMap) {
         mMap = googleMap;
 
-        LatLngBounds latLngBounds = putMarkers();
-        CameraUpdate cameraUpdate = CameraUpdateFactory.newLatLngBounds(latLngBounds,
+        CameraUpdate cameraUpdate = CameraUpdateFactory.newLatLngBounds(getInitialBounds(),
                 getResources().getDisplayMetrics().widthPixels,
                 getResources().getDisplayMetrics().heightPixels,
                 (int) (40 * getResources().getDisplayMetrics().density + 0.5f));
         googleMap.moveCamera(cameraUpdate);
 
-        mMap.setOnInfoWindowClickListener(new GoogleMap.OnInfoWindowClickListener() {
+        mMap.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
             @Override
-            public void onInfoWindowClick(Marker marker) {
-                Intent intent = new Intent(MainMapsActivity.this,DetailsActivity.class);
-                intent.putExtra("id",markerIDs.get(marker).longValue());
-                startActivity(intent);
+            public void onCameraIdle() {
+                updateMarkers();
             }
         });
-    }
 
-    /**
-     * This method reads the DataRecords from the database, adds a marker to the map for each
-     * DataRecord containing location information. DataRecords without location information are not
-     * shown on this map. A BoundsBuilder is used to determine the map zoom level and outer bounds.
-     * @return A LatLngBounds object containing the bounds the map needs to be zoomed to in order to
-     * show all markers put into it. If there are no markers, the University of Bremen will be shown.
-     */
-    private LatLngBounds putMarkers(){
-        Locale locale;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N){
-                locale = getResources().getConfiguration().getLocales().get(0);
-            } else{
-                //noinspection deprecation
-                locale = getResources().getConfiguration().locale;
+        mMap.setOnMarkerClickListener(new GoogleMap.OnMarkerClickListener() {
+            @Override
+            public boolean onMarkerClick(Marker marker) {
+                PositionClusterer.Cluster cluster = (PositionClusterer.Cluster) marker.getTag();
+                float zoom = mMap.getCameraPosition().zoom;
+                if (cluster.getCount() == 1 || zoom >= mMap.getMaxZoomLevel()) {
+                    // Show the info window
+                    return false;
+                }
+                mMap.animateCamera(CameraUpdateFactory.newLatLngZoom(marker.getPosition(),
+                        Math.min(mMap.getMaxZoomLevel(), zoom + CLUSTER_CLICK_ZOOM)));
+                return true;
             }
-        DateFormat df = DateFormat.getDateTimeInstance( DateFormat.MEDIUM, DateFormat.MEDIUM, locale);
+        });
 
-        LatLngBounds.Builder boundsBuilder = new LatLngBounds.Builder();
-        boolean hasMarkers = false;
-
-        long [] data = dataLab.getFilteredIDs();
-        for (long id : data) {
-            DataRecord dataRecord = dataLab.readDataRecordFromDatabase(id);
-            if(dataRecord.hasLocation()){
-                LatLng position = new LatLng(dataRecord.getLatitude(), dataRecord.getLongitude());
-                Marker marker = mMap.addMarker(new MarkerOptions().position(position).title(df.format(dataRecord.getDate()))
-                        .snippet(dataRecord.getSnippet()));
-                boundsBuilder.include(position);
-                hasMarkers = true;
-                markerIDs.put(marker,dataRecord.getDatabaseID());
+        mMap.setOnInfoWindowClickListener(new GoogleMap.OnInfoWindowClickListener() {
+            @Override
+            public void onInfoWindowClick(Marker marker) {
+                PositionClusterer.Cluster cluster = (PositionClusterer.Cluster) marker.getTag();
+                if (cluster.getCount() == 1) {
+                    Intent intent = new Intent(MainMapsActivity.this, DetailsActivity.class);
+                    intent.putExtra("id", cluster.getDatabaseID());
+                    startActivity(intent);
+                }
             }
-        }
+        });
 
         // https://stackoverflow.com/questions/13904651/android-google-maps-v2-how-to-add-marker-with-multiline-snippet
         mMap.setInfoWindowAdapter(new GoogleMap.InfoWindowAdapter() {
@@ -180,6 +194,18 @@ public class MainMapsActivity extends GeoSensorActivity implements OnMapReadyCal
 
             @Override
             public View getInfoContents(Marker marker) {
+                PositionClusterer.Cluster cluster = (PositionClusterer.Cluster) marker.getTag();
+                String titleText = marker.getTitle();
+                String snippetText = null;
+                // The details are only read for the DataRecord whose info window is opened
+                if (cluster.getCount() == 1) {
+                    DataRecord dataRecord = dataLab.readDataRecordFromDatabase(
+                            cluster.getDatabaseID());
+                    if (dataRecord != null) {
+                        titleText = getDateFormat().format(dataRecord.getDate());
+                        snippetText = dataRecord.getSnippet();
+                    }
+                }
 
                 LinearLayout info = new LinearLayout(MainMapsActivity.this);
                 info.setOrientation(LinearLayout.VERTICAL);
@@ -188,39 +214,181 @@ public class MainMapsActivity extends GeoSensorActivity implements OnMapReadyCal
                 title.setTextColor(Color.BLACK);
                 title.setGravity(Gravity.CENTER);
                 title.setTypeface(null, Typeface.BOLD);
-                title.setText(marker.getTitle());
-
-                TextView snippet = new TextView(MainMapsActivity.this);
-                snippet.setTextColor(Color.GRAY);
-                snippet.setText(marker.getSnippet());
-
+                title.setText(titleText);
                 info.addView(title);
-                info.addView(snippet);
+
+                if (snippetText != null) {
+                    TextView snippet = new TextView(MainMapsActivity.this);
+                    snippet.setTextColor(Color.GRAY);
+                    snippet.setText(snippetText);
+                    info.addView(snippet);
+                }
 
                 return info;
             }
         });
+    }
 
-        // If there are no markers, the University of Bremen will be shown.
-        if(!hasMarkers){
+    /**
+     * Get the part of the map the map is zoomed to initially, showing the locations of all
+     * DataRecords. If there are no locations, the University of Bremen will be shown.
+     * @return The bounds
+     */
+    private LatLngBounds getInitialBounds() {
+        LatLngBounds.Builder boundsBuilder = new LatLngBounds.Builder();
+        double[] bounds = dataLab.getPositionBounds();
+        if (bounds != null) {
+            boundsBuilder.include(new LatLng(bounds[0], bounds[1]));
+            boundsBuilder.include(new LatLng(bounds[2], bounds[3]));
+        } else {
             LatLng nw1 = new LatLng(53.103682, 8.850324);
             boundsBuilder.include(nw1);
             LatLng mzh = new LatLng(53.106711, 8.852230);
             boundsBuilder.include(mzh);
         }
-
         return boundsBuilder.build();
     }
 
     /**
-     * If any change in the underlying Data is received, the markers are redrawn.
+     * @return The format of the receive time shown in the info windows
+     */
+    private DateFormat getDateFormat() {
+        Locale locale;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N){
+            locale = getResources().getConfiguration().getLocales().get(0);
+        } else{
+            //noinspection deprecation
+            locale = getResources().getConfiguration().locale;
+        }
+        return DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM, locale);
+    }
+
+    /**
+     * Drop the positions read and read them again for the part of the map shown, for example
+     * because DataRecords have been added or the filter has been changed
+     */
+    private void invalidatePositions() {
+        loadedBounds = null;
+        updateMarkers();
+    }
+
+    /**
+     * Update the markers for the part of the map shown. The positions are read again in the
+     * background if the map has been moved out of the part they have been read for; the
+     * clustering happens in the background as well.
+     */
+    private void updateMarkers() {
+        LatLngBounds visible = mMap.getProjection().getVisibleRegion().latLngBounds;
+        final int zoom = (int) mMap.getCameraPosition().zoom;
+        final boolean load = loadedBounds == null || positions == null
+                || !loadedBounds.contains(visible.southwest)
+                || !loadedBounds.contains(visible.northeast);
+        final LatLngBounds bounds = load ? expand(visible) : loadedBounds;
+        final List<RecordPosition> oldPositions = positions;
+        final int generation = ++updateGeneration;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final List<RecordPosition> newPositions = !load ? oldPositions
+                        : dataLab.readPositions(bounds.southwest.latitude,
+                        bounds.southwest.longitude, bounds.northeast.latitude,
+                        bounds.northeast.longitude);
+                final List<PositionClusterer.Cluster> clusters =
+                        PositionClusterer.cluster(newPositions, zoom);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer update has been started meanwhile
+                        if (generation != updateGeneration || isFinishing()) {
+                            return;
+                        }
+                        positions = newPositions;
+                        loadedBounds = bounds;
+                        showClusters(clusters);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Expand the part of the map shown by the margin, so small movements of the map do not require
+     * reading the positions again
+     * @param visible The part of the map shown
+     * @return The expanded part of the map
+     */
+    private static LatLngBounds expand(LatLngBounds visible) {
+        double south = visible.southwest.latitude;
+        double north = visible.northeast.latitude;
+        double west = visible.southwest.longitude;
+        double east = visible.northeast.longitude;
+        double height = north - south;
+        // The part shown might cross the 180th meridian
+        double width = east >= west ? east - west : east - west + 360;
+
+        south = Math.max(-90, south - height * MARGIN);
+        north = Math.min(90, north + height * MARGIN);
+        if (width * (1 + 2 * MARGIN) >= 360) {
+            west = -180;
+            east = 180;
+        } else {
+            west -= width * MARGIN;
+            east += width * MARGIN;
+            if (west < -180) {
+                west += 360;
+            }
+            if (east > 180) {
+                east -= 360;
+            }
+        }
+        return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+    }
+
+    /**
+     * Show a marker for every cluster. The markers of clusters shown before are kept, the others
+     * are removed.
+     * @param clusters The clusters
+     */
+    private void showClusters(List<PositionClusterer.Cluster> clusters) {
+        Set<String> keys = new HashSet<>();
+        for (PositionClusterer.Cluster cluster : clusters) {
+            keys.add(cluster.getKey());
+            if (markers.containsKey(cluster.getKey())) {
+                continue;
+            }
+            MarkerOptions options = new MarkerOptions()
+                    .position(new LatLng(cluster.getLatitude(), cluster.getLongitude()));
+            if (cluster.getCount() > 1) {
+                options.title(getString(R.string.map_cluster_title, cluster.getCount()))
+                        .icon(BitmapDescriptorFactory.defaultMarker(
+                                BitmapDescriptorFactory.HUE_AZURE));
+            }
+            Marker marker = mMap.addMarker(options);
+            marker.setTag(cluster);
+            markers.put(cluster.getKey(), marker);
+        }
+
+        Iterator<Map.Entry<String, Marker>> iterator = markers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Marker> entry = iterator.next();
+            if (!keys.contains(entry.getKey())) {
+                entry.getValue().remove();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * If any change in the underlying Data is received, the positions are read again.
      * The map is not rezoomed as the user might not expect to have the map moving itself.
      */
     private class MainMapsActivityBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            mMap.clear();
-            putMarkers();
+            if (mMap != null) {
+                invalidatePositions();
+            }
         }
     }
 }
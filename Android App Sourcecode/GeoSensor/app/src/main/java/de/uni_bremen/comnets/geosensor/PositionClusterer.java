@@ -0,0 +1,124 @@
+package de.uni_bremen.comnets.geosensor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The PositionClusterer combines the positions of DataRecords close to each other on the map into
+ * clusters, so the map only has to draw a marker per cluster.
+ *
+ * The map is divided into a grid of square cells in screen pixels, the same projection Google
+ * Maps uses. All positions in a cell form a cluster shown at their mean position. The cells of a
+ * zoom level do not depend on the part of the map shown, so a cluster keeps its key while the
+ * map is moved and only the markers of the cells which changed have to be replaced.
+ */
+class PositionClusterer {
+    /** The size of a cell in pixels of the map at the zoom level */
+    static final int CELL_PIXELS = 64;
+    /** The size of the whole world at zoom level 0 in pixels */
+    private static final double WORLD_PIXELS = 256;
+
+    /**
+     * A cluster of positions
+     */
+    static final class Cluster {
+        private final String key;
+        private final int count;
+        private final double latitude;
+        private final double longitude;
+        private final long databaseID;
+
+        private Cluster(String key, int count, double latitude, double longitude, long databaseID) {
+            this.key = key;
+            this.count = count;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.databaseID = databaseID;
+        }
+
+        /**
+         * @return A key which is the same for the same positions in the same cell
+         */
+        String getKey() {
+            return key;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        double getLatitude() {
+            return latitude;
+        }
+
+        double getLongitude() {
+            return longitude;
+        }
+
+        /**
+         * @return The database ID of the only DataRecord of the cluster or -1 if there are more
+         */
+        long getDatabaseID() {
+            return databaseID;
+        }
+    }
+
+    /**
+     * Combine the positions into clusters
+     * @param positions The positions
+     * @param zoom The zoom level of the map
+     * @return The clusters, each containing at least one position
+     */
+    static List<Cluster> cluster(List<RecordPosition> positions, int zoom) {
+        double scale = WORLD_PIXELS * Math.pow(2, zoom) / CELL_PIXELS;
+        // The sums of the latitudes and longitudes and the count per cell
+        Map<Long, double[]> cells = new HashMap<>();
+        Map<Long, Long> firstIDs = new HashMap<>();
+        for (RecordPosition position : positions) {
+            long x = (long) Math.floor(projectX(position.getLongitude()) * scale);
+            long y = (long) Math.floor(projectY(position.getLatitude()) * scale);
+            Long cell = (x << 32) | (y & 0xffffffffL);
+            double[] sums = cells.get(cell);
+            if (sums == null) {
+                sums = new double[3];
+                cells.put(cell, sums);
+                firstIDs.put(cell, position.getDatabaseID());
+            }
+            sums[0] += position.getLatitude();
+            sums[1] += position.getLongitude();
+            sums[2]++;
+        }
+
+        List<Cluster> clusters = new ArrayList<>(cells.size());
+        for (Map.Entry<Long, double[]> entry : cells.entrySet()) {
+            double[] sums = entry.getValue();
+            int count = (int) sums[2];
+            long id = count == 1 ? firstIDs.get(entry.getKey()) : -1;
+            // A single DataRecord is identified by its ID, the cell might contain another later
+            String key = zoom + "/" + entry.getKey() + "/" + (count == 1 ? "id" + id : count);
+            clusters.add(new Cluster(key, count, sums[0] / count, sums[1] / count, id));
+        }
+        return clusters;
+    }
+
+    /**
+     * @param longitude A longitude in degrees
+     * @return The horizontal position on a world map of size 1
+     */
+    static double projectX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    /**
+     * Web Mercator projection, the poles are cut off at about 85 degrees like on the map
+     * @param latitude A latitude in degrees
+     * @return The vertical position on a world map of size 1, from north to south
+     */
+    static double projectY(double latitude) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return Math.min(1, Math.max(0, y));
+    }
+}
@@ -0,0 +1,1007 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The ProtocolParser reads the JSON messages sent by the transducer.
+ *
+ * The message is parsed directly from the received bytes into the DataRecord, the Locations and
+ * the MeasureData objects. Unlike parsing with org.json no tree of JSONObjects is built and no
+ * strings are created except for the ones stored in the DataRecord.
+ *
+ * The results are the same as with the org.json parser used before (including its conversions
+ * between numbers, strings and booleans). The Android org.json implementation also accepts a
+ * number of non-standard constructs like comments, unquoted strings or semicolons as separators.
+ * Messages containing these are rare, so they are simply given to the org.json parser instead.
+ *
+ * A ProtocolParser is not thread-safe, every thread needs its own instance.
+ */
+class ProtocolParser {
+    /** The kinds of JSON values */
+    private static final int NONE = 0;
+    private static final int STRING = 1;
+    private static final int NUMBER = 2;
+    private static final int TRUE = 3;
+    private static final int FALSE = 4;
+    private static final int NULL = 5;
+    private static final int OBJECT = 6;
+    private static final int ARRAY = 7;
+
+    /** Deeper nested values are left to the org.json parser */
+    private static final int MAX_DEPTH = 32;
+
+    /** Converts the date and time of the positions, shared by all parsers */
+    private static final GpsTimeDecoder GPS_TIME_DECODER = new GpsTimeDecoder();
+
+    /** The powers of ten that can be represented exactly as double */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * This is thrown if the message contains something this parser does not handle itself.
+     * It is only used internally, so a single instance without a stack trace is sufficient.
+     */
+    private static final class UnsupportedSyntaxException extends Exception {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final UnsupportedSyntaxException UNSUPPORTED = new UnsupportedSyntaxException();
+
+    /**
+     * A Field holds the value of a single key of an object until the whole object has been read.
+     * The conversions work like the corresponding methods of org.json.JSONObject.
+     */
+    private static final class Field {
+        int kind = NONE;
+        String string;
+        /** For numbers: true if the number is an integer fitting into a long */
+        boolean isLong;
+        long longValue;
+        double doubleValue;
+        /** The result of asDouble() */
+        double result;
+
+        void clear() {
+            kind = NONE;
+            string = null;
+        }
+
+        /**
+         * Like JSONObject.optString()
+         * @param fallback The value returned if the key was not included in the object
+         * @return The value converted to a string
+         */
+        String asString(String fallback) throws UnsupportedSyntaxException {
+            switch (kind) {
+                case NONE:
+                    return fallback;
+                case STRING:
+                    return string;
+                case NUMBER:
+                    if (!isLong) {
+                        return Double.toString(doubleValue);
+                    }
+                    if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+                        return Integer.toString((int) longValue);
+                    }
+                    return Long.toString(longValue);
+                case TRUE:
+                    return "true";
+                case FALSE:
+                    return "false";
+                case NULL:
+                    return "null";
+                default:
+                    // org.json would serialize the object or array
+                    throw UNSUPPORTED;
+            }
+        }
+
+        /**
+         * Like JSONObject.optLong()
+         * @param fallback The value returned if the key is missing or can not be converted
+         * @return The value converted to a long
+         */
+        long asLong(long fallback) {
+            switch (kind) {
+                case NUMBER:
+                    return isLong ? longValue : (long) doubleValue;
+                case STRING:
+                    try {
+                        return (long) Double.parseDouble(string);
+                    } catch (NumberFormatException e) {
+                        return fallback;
+                    }
+                default:
+                    return fallback;
+            }
+        }
+
+        /**
+         * Like JSONObject.getDouble(), the result is stored in the field result
+         * @return true if the value could be converted
+         */
+        boolean asDouble() {
+            switch (kind) {
+                case NUMBER:
+                    result = isLong ? (double) longValue : doubleValue;
+                    return true;
+                case STRING:
+                    try {
+                        result = Double.valueOf(string);
+                        return true;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Like JSONObject.getBoolean()
+         * @return The value or null if it can not be converted to a boolean
+         */
+        Boolean asBoolean() {
+            switch (kind) {
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case STRING:
+                    if ("true".equalsIgnoreCase(string)) {
+                        return Boolean.TRUE;
+                    }
+                    if ("false".equalsIgnoreCase(string)) {
+                        return Boolean.FALSE;
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /** The fields of the message */
+    private final Field arduinoSoftware = new Field();
+    private final Field arduinoTime = new Field();
+    private final Field comment = new Field();
+
+    /** The fields of the position object */
+    private final Field valid = new Field();
+    private final Field provider = new Field();
+    private final Field latitude = new Field();
+    private final Field longitude = new Field();
+    private final Field altitude = new Field();
+    private final Field accuracy = new Field();
+    private final Field date = new Field();
+    private final Field time = new Field();
+
+    /** The fields of a single sensor object */
+    private final Field type = new Field();
+    private final Field sensor = new Field();
+    private final Field name = new Field();
+    private final Field value = new Field();
+    private final Field unit = new Field();
+
+    /** This is used for values that are not needed */
+    private final Field ignored = new Field();
+
+    /** The names of the sensors of the current message, used to detect duplicates */
+    private final List<String> sensorNames = new ArrayList<>();
+
+    /** The message currently parsed */
+    private byte[] bytes;
+    private int position;
+    private int limit;
+
+    /** Strings with escapes or non-ASCII bytes are decoded into this buffer, it grows if needed */
+    private char[] chars = new char[64];
+    /** The start of the string read last and if it could be used without decoding */
+    private int stringStart;
+    private boolean stringPlain;
+
+    /**
+     * Parse a message received from the transducer.
+     * Everything before the first { is ignored as it might be left over from an earlier message.
+     * @param bytes The array containing the message
+     * @param offset The index of the first byte of the message
+     * @param length The length of the message
+     * @param receiveTime The time the message was received
+     * @return The DataRecord parsed (not yet saved) or null if the message does not contain any
+     *      JSON object
+     * @throws ParseException If the message is invalid
+     */
+    DataRecord parse(byte[] bytes, int offset, int length, Date receiveTime)
+            throws ParseException {
+        int start = -1;
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] == '{') {
+                start = i;
+                break;
+            }
+        }
+        if (start == -1) {
+            return null;
+        }
+
+        this.bytes = bytes;
+        this.position = start;
+        this.limit = offset + length;
+        try {
+            return parseRecord(receiveTime);
+        } catch (UnsupportedSyntaxException e) {
+            // The org.json parser decides how to handle it
+            String jsonString;
+            try {
+                jsonString = new String(bytes, start, offset + length - start, "US-ASCII");
+            } catch (UnsupportedEncodingException u) {
+                throw new IllegalStateException(u);
+            }
+            return parseTree(jsonString, receiveTime);
+        } finally {
+            this.bytes = null;
+            sensorNames.clear();
+        }
+    }
+
+    /**
+     * Parse the message object. The position is at the opening brace.
+     */
+    private DataRecord parseRecord(Date receiveTime)
+            throws ParseException, UnsupportedSyntaxException {
+        arduinoSoftware.clear();
+        arduinoTime.clear();
+        comment.clear();
+        int positionKind = NONE;
+        int sensorsKind = NONE;
+        List<MeasureData> measureDataList = null;
+
+        position++;
+        if (skipWhitespace() == '}') {
+            position++;
+        } else {
+            while (true) {
+                int keyLength = readKey();
+                if (keyEquals("position", keyLength)) {
+                    if (positionKind != NONE) {
+                        throw UNSUPPORTED;
+                    }
+                    if (skipWhitespace() == '{') {
+                        positionKind = OBJECT;
+                        parsePosition();
+                    } else {
+                        positionKind = readValue(ignored, 0);
+                    }
+                } else if (keyEquals("sensors", keyLength)) {
+                    if (sensorsKind != NONE) {
+                        throw UNSUPPORTED;
+                    }
+                    if (skipWhitespace() == '{') {
+                        sensorsKind = OBJECT;
+                        measureDataList = parseSensors();
+                    } else {
+                        sensorsKind = readValue(ignored, 0);
+                    }
+                } else if (keyEquals("arduino_software", keyLength)) {
+                    readField(arduinoSoftware);
+                } else if (keyEquals("arduino_time", keyLength)) {
+                    readField(arduinoTime);
+                } else if (keyEquals("comment", keyLength)) {
+                    readField(comment);
+                } else {
+                    readValue(ignored, 0);
+                }
+                if (endOfObject()) {
+                    break;
+                }
+            }
+        }
+
+        // From here on the message is valid JSON, so the checks are the same as with org.json
+        List<Location> locationList = new ArrayList<>(1);
+        if (positionKind != NONE) {
+            if (positionKind != OBJECT) {
+                Log.w(this.getClass().getSimpleName(), "The position is not a JSON object");
+                throw new ParseException("Invalid JSON string", 0);
+            }
+            Location location = buildLocation();
+            if (location != null) {
+                locationList.add(location);
+            }
+        }
+        if (sensorsKind != OBJECT) {
+            Log.w(this.getClass().getSimpleName(), "The sensors are missing or not a JSON object");
+            throw new ParseException("Invalid JSON string", 0);
+        }
+
+        return new DataRecord(locationList, measureDataList, arduinoSoftware.asString(""),
+                arduinoTime.asLong(0), comment.asString(""), receiveTime, -1);
+    }
+
+    /**
+     * Read the fields of the position object. The position is at the opening brace.
+     */
+    private void parsePosition() throws UnsupportedSyntaxException {
+        valid.clear();
+        provider.clear();
+        latitude.clear();
+        longitude.clear();
+        altitude.clear();
+        accuracy.clear();
+        date.clear();
+        time.clear();
+
+        position++;
+        if (skipWhitespace() == '}') {
+            position++;
+            return;
+        }
+        do {
+            int keyLength = readKey();
+            if (keyEquals("valid", keyLength)) {
+                readField(valid);
+            } else if (keyEquals("provider", keyLength)) {
+                readField(provider);
+            } else if (keyEquals("latitude", keyLength)) {
+                readField(latitude);
+            } else if (keyEquals("longitude", keyLength)) {
+                readField(longitude);
+            } else if (keyEquals("altitude", keyLength)) {
+                readField(altitude);
+            } else if (keyEquals("accuracy", keyLength)) {
+                readField(accuracy);
+            } else if (keyEquals("date", keyLength)) {
+                readField(date);
+            } else if (keyEquals("time", keyLength)) {
+                readField(time);
+            } else {
+                readValue(ignored, 1);
+            }
+        } while (!endOfObject());
+    }
+
+    /**
+     * Build the Location from the fields of the position object
+     * @return The Location or null if the location is marked as invalid
+     * @throws ParseException If a field has an invalid value
+     */
+    @SuppressWarnings("SpellCheckingInspection")
+    private Location buildLocation() throws ParseException, UnsupportedSyntaxException {
+        if (valid.kind != NONE) {
+            Boolean isValid = valid.asBoolean();
+            if (isValid == null) {
+                Log.i(this.getClass().getSimpleName(), "The valid flag is not a boolean");
+                throw new ParseException("Invalid JSON string", 0);
+            }
+            if (!isValid) {
+                return null;
+            }
+        }
+
+        Location loc = new Location("ArduinoGPS");
+        loc.setProvider(provider.asString("ArduinoGPS"));
+        loc.setLatitude(latitude.asDouble() ? latitude.result : 0);
+        loc.setLongitude(longitude.asDouble() ? longitude.result : 0);
+        if (altitude.kind != NONE) {
+            if (!altitude.asDouble()) {
+                Log.i(this.getClass().getSimpleName(), "The altitude is not a number");
+                throw new ParseException("Invalid JSON string", 0);
+            }
+            loc.setAltitude(altitude.result);
+        }
+        if (accuracy.kind != NONE) {
+            if (!accuracy.asDouble()) {
+                Log.i(this.getClass().getSimpleName(), "The accuracy is not a number");
+                throw new ParseException("Invalid JSON string", 0);
+            }
+            loc.setAccuracy((float) accuracy.result);
+        }
+        loc.setTime(GPS_TIME_DECODER.decode(date.asLong(0), time.asLong(0)));
+        return loc;
+    }
+
+    /**
+     * Read the sensors object. The position is at the opening brace.
+     * @return The MeasureData objects in the order of the message
+     */
+    private List<MeasureData> parseSensors() throws UnsupportedSyntaxException {
+        List<MeasureData> list = new ArrayList<>();
+        position++;
+        if (skipWhitespace() == '}') {
+            position++;
+            return list;
+        }
+        do {
+            int keyLength = readKey();
+            String key = stringValue(keyLength);
+            // org.json would replace the earlier sensor, which is not worth handling here
+            if (sensorNames.contains(key)) {
+                throw UNSUPPORTED;
+            }
+            sensorNames.add(key);
+
+            if (skipWhitespace() != '{') {
+                Log.i(this.getClass().getSimpleName(), "The sensor " + key +
+                        " is not a JSON object");
+                readValue(ignored, 1);
+                continue;
+            }
+            type.clear();
+            sensor.clear();
+            name.clear();
+            value.clear();
+            unit.clear();
+
+            position++;
+            if (skipWhitespace() == '}') {
+                position++;
+            } else {
+                do {
+                    int fieldLength = readKey();
+                    if (keyEquals("type", fieldLength)) {
+                        readField(type);
+                    } else if (keyEquals("sensor", fieldLength)) {
+                        readField(sensor);
+                    } else if (keyEquals("name", fieldLength)) {
+                        readField(name);
+                    } else if (keyEquals("value", fieldLength)) {
+                        readField(value);
+                    } else if (keyEquals("unit", fieldLength)) {
+                        readField(unit);
+                    } else {
+                        readValue(ignored, 2);
+                    }
+                } while (!endOfObject());
+            }
+
+            list.add(new MeasureData(type.asString(key), sensor.asString(key), name.asString(key),
+                    value.asDouble() ? value.result : Double.NaN, unit.asString(key)));
+        } while (!endOfObject());
+        return list;
+    }
+
+    /**
+     * Skip the whitespace the way org.json does
+     * @return The next byte or -1 if the end of the message has been reached
+     */
+    private int skipWhitespace() {
+        while (position < limit) {
+            byte b = bytes[position];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return b & 0xFF;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the separator after a key-value pair of an object
+     * @return true if the object has ended, false if another key follows
+     */
+    private boolean endOfObject() throws UnsupportedSyntaxException {
+        int b = skipWhitespace();
+        position++;
+        if (b == ',') {
+            return false;
+        }
+        if (b == '}') {
+            return true;
+        }
+        throw UNSUPPORTED;
+    }
+
+    /**
+     * Read a key and the following colon.
+     * @return The length of the key
+     */
+    private int readKey() throws UnsupportedSyntaxException {
+        if (skipWhitespace() != '"') {
+            throw UNSUPPORTED;
+        }
+        int length = readString();
+        if (skipWhitespace() != ':') {
+            throw UNSUPPORTED;
+        }
+        position++;
+        return length;
+    }
+
+    /**
+     * Compare the key read last with a known key
+     */
+    private boolean keyEquals(String key, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        if (stringPlain) {
+            for (int i = 0; i < length; i++) {
+                if (bytes[stringStart + i] != key.charAt(i)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (chars[i] != key.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the value of a known key. Duplicate keys are left to org.json.
+     */
+    private void readField(Field field) throws UnsupportedSyntaxException {
+        if (field.kind != NONE) {
+            throw UNSUPPORTED;
+        }
+        readValue(field, 1);
+    }
+
+    /**
+     * Read any value. Objects and arrays are only checked for valid syntax but not stored.
+     * @param field The field receiving the value
+     * @param depth The nesting depth of the value
+     * @return The kind of the value
+     */
+    private int readValue(Field field, int depth) throws UnsupportedSyntaxException {
+        if (depth > MAX_DEPTH) {
+            throw UNSUPPORTED;
+        }
+        int b = skipWhitespace();
+        switch (b) {
+            case '"':
+                field.string = stringValue(readString());
+                field.kind = STRING;
+                break;
+            case '{':
+                position++;
+                if (skipWhitespace() == '}') {
+                    position++;
+                } else {
+                    do {
+                        readKey();
+                        readValue(ignored, depth + 1);
+                    } while (!endOfObject());
+                }
+                field.kind = OBJECT;
+                break;
+            case '[':
+                position++;
+                if (skipWhitespace() == ']') {
+                    position++;
+                } else {
+                    while (true) {
+                        readValue(ignored, depth + 1);
+                        int separator = skipWhitespace();
+                        position++;
+                        if (separator == ']') {
+                            break;
+                        }
+                        if (separator != ',') {
+                            throw UNSUPPORTED;
+                        }
+                    }
+                }
+                field.kind = ARRAY;
+                break;
+            case 't':
+                readLiteral("true");
+                field.kind = TRUE;
+                break;
+            case 'f':
+                readLiteral("false");
+                field.kind = FALSE;
+                break;
+            case 'n':
+                readLiteral("null");
+                field.kind = NULL;
+                break;
+            default:
+                if (b != '-' && (b < '0' || b > '9')) {
+                    throw UNSUPPORTED;
+                }
+                readNumber(field);
+                field.kind = NUMBER;
+        }
+        // A value read into the ignored field must not look like a duplicate later on
+        int kind = field.kind;
+        if (field == ignored) {
+            ignored.clear();
+        }
+        return kind;
+    }
+
+    /**
+     * Read a string. The position is at the opening quote.
+     * Most strings consist of plain ASCII characters only, they are not copied but taken directly
+     * from the message bytes. Other strings are decoded into the chars buffer, bytes outside the
+     * ASCII range are replaced like the US-ASCII decoder does.
+     * The string can then be accessed using stringValue() and keyEquals().
+     * @return The length of the string
+     */
+    private int readString() throws UnsupportedSyntaxException {
+        byte[] source = bytes;
+        int start = position + 1;
+        int index = start;
+        while (index < limit) {
+            byte b = source[index];
+            if (b == '"') {
+                stringStart = start;
+                stringPlain = true;
+                position = index + 1;
+                return index - start;
+            }
+            if (b < 0 || b == '\\') {
+                break;
+            }
+            index++;
+        }
+
+        // The plain part is copied, the rest is decoded character by character
+        stringPlain = false;
+        int length = 0;
+        for (int i = start; i < index; i++) {
+            appendChar((char) source[i], length++);
+        }
+        position = index;
+        while (true) {
+            if (position >= limit) {
+                throw UNSUPPORTED;
+            }
+            int b = source[position++];
+            char c;
+            if (b == '"') {
+                return length;
+            } else if (b < 0) {
+                c = '\uFFFD';
+            } else if (b == '\\') {
+                c = readEscapedCharacter();
+            } else {
+                c = (char) b;
+            }
+            appendChar(c, length++);
+        }
+    }
+
+    /**
+     * Put a character into the chars buffer, the buffer grows if necessary
+     */
+    private void appendChar(char c, int index) {
+        if (index == chars.length) {
+            char[] larger = new char[chars.length * 2];
+            System.arraycopy(chars, 0, larger, 0, index);
+            chars = larger;
+        }
+        chars[index] = c;
+    }
+
+    /**
+     * Create the string read last
+     * @param length The length returned by readString()
+     */
+    @SuppressWarnings("deprecation")
+    private String stringValue(int length) {
+        if (stringPlain) {
+            // This constructor is the fastest way to create a string from ASCII bytes
+            return new String(bytes, 0, stringStart, length);
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Read the character following a backslash in a string
+     */
+    private char readEscapedCharacter() throws UnsupportedSyntaxException {
+        if (position >= limit) {
+            throw UNSUPPORTED;
+        }
+        switch (bytes[position++]) {
+            case '"':
+                return '"';
+            case '\\':
+                return '\\';
+            case '/':
+                return '/';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                if (position + 4 > limit) {
+                    throw UNSUPPORTED;
+                }
+                int c = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(bytes[position++], 16);
+                    if (digit == -1) {
+                        throw UNSUPPORTED;
+                    }
+                    c = c * 16 + digit;
+                }
+                return (char) c;
+            default:
+                // org.json accepts any character here
+                throw UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Read true, false or null
+     */
+    private void readLiteral(String literal) throws UnsupportedSyntaxException {
+        if (position + literal.length() > limit) {
+            throw UNSUPPORTED;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (bytes[position++] != literal.charAt(i)) {
+                throw UNSUPPORTED;
+            }
+        }
+        checkEndOfLiteral();
+    }
+
+    /**
+     * org.json reads literals up to the next delimiter. If anything else follows a number or
+     * literal, org.json would read it as a different value.
+     */
+    private void checkEndOfLiteral() throws UnsupportedSyntaxException {
+        if (position == limit) {
+            return;
+        }
+        byte b = bytes[position];
+        if (b != ' ' && b != '\t' && b != '\n' && b != '\r' && b != ',' && b != '}' && b != ']') {
+            throw UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Read a number in the format allowed by the JSON specification.
+     * Like org.json, integers are kept as long if possible. Other numbers are converted to double,
+     * for the typical numbers sent by the transducer this is done directly from the digits.
+     */
+    private void readNumber(Field field) throws UnsupportedSyntaxException {
+        int start = position;
+        boolean negative = false;
+        if (bytes[position] == '-') {
+            negative = true;
+            position++;
+        }
+
+        // The digits are collected as long as they fit into the mantissa
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean overflow = false;
+
+        int integerStart = position;
+        while (position < limit && bytes[position] >= '0' && bytes[position] <= '9') {
+            int digit = bytes[position++] - '0';
+            if (digits < 18) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                overflow = true;
+            }
+        }
+        int integerDigits = position - integerStart;
+        if (integerDigits == 0 || (integerDigits > 1 && bytes[integerStart] == '0')) {
+            // Leading zeros are read as octal numbers by org.json
+            throw UNSUPPORTED;
+        }
+
+        boolean fraction = false;
+        if (position < limit && bytes[position] == '.') {
+            fraction = true;
+            position++;
+            int fractionStart = position;
+            while (position < limit && bytes[position] >= '0' && bytes[position] <= '9') {
+                int digit = bytes[position++] - '0';
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + digit;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    overflow = true;
+                }
+            }
+            if (position == fractionStart) {
+                throw UNSUPPORTED;
+            }
+        }
+
+        boolean hasExponent = false;
+        if (position < limit && (bytes[position] == 'e' || bytes[position] == 'E')) {
+            hasExponent = true;
+            position++;
+            boolean negativeExponent = false;
+            if (position < limit && (bytes[position] == '+' || bytes[position] == '-')) {
+                negativeExponent = bytes[position] == '-';
+                position++;
+            }
+            int exponentStart = position;
+            int explicitExponent = 0;
+            while (position < limit && bytes[position] >= '0' && bytes[position] <= '9') {
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + bytes[position] - '0';
+                }
+                position++;
+            }
+            if (position == exponentStart) {
+                throw UNSUPPORTED;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        checkEndOfLiteral();
+
+        if (!fraction && !hasExponent && !overflow) {
+            // An integer with at most 18 digits always fits into a long
+            field.isLong = true;
+            field.longValue = negative ? -mantissa : mantissa;
+            return;
+        }
+        field.isLong = false;
+
+        if (!overflow && digits <= 15 && exponent >= -22 && exponent <= 22) {
+            // Both the mantissa and the power of ten are exact, so the result is rounded correctly
+            double result = exponent < 0
+                    ? mantissa / POWERS_OF_TEN[-exponent]
+                    : mantissa * POWERS_OF_TEN[exponent];
+            field.doubleValue = negative ? -result : result;
+            return;
+        }
+
+        String literal;
+        try {
+            literal = new String(bytes, start, position - start, "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        if (!fraction && !hasExponent) {
+            // A long integer might still fit into a long
+            try {
+                field.longValue = Long.parseLong(literal);
+                field.isLong = true;
+                return;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        field.doubleValue = Double.parseDouble(literal);
+        if (Double.isInfinite(field.doubleValue)) {
+            // org.json does not accept numbers that are too large for a double
+            throw UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Parse a message using the org.json parser. This accepts some non-standard JSON as well.
+     * @param jsonString the JSON string according to the protocol specification
+     * @param receiveTime the time the JSON string was received
+     * @return The DataRecord parsed
+     * @throws ParseException if the JSON is not formatted right
+     */
+    static DataRecord parseTree(String jsonString, Date receiveTime) throws ParseException{
+        JSONObject json;
+        List<Location> locationList = new ArrayList<>(1);
+        List<MeasureData> measureDataList;
+        try {
+            json = new JSONObject(jsonString);
+
+            if(json.has("position")){
+                JSONObject locationJsonObject = json.getJSONObject("position");
+                Location location = parseLocation(locationJsonObject);
+                if (location != null){
+                    locationList.add(location);
+                }
+            }
+
+            measureDataList = parseMeasureData(json.getJSONObject("sensors"));
+
+            String arduinoSoftware = json.optString("arduino_software", "");
+            Long arduinoTime = json.optLong("arduino_time", 0);
+            String comment = json.optString("comment", "");
+
+            return new DataRecord(locationList,measureDataList,arduinoSoftware,arduinoTime,comment,receiveTime,-1);
+
+        } catch (JSONException e) {
+            Log.w(ProtocolParser.class.getSimpleName(),e.toString());
+            throw new ParseException("Invalid JSON string",0);
+        }
+    }
+
+    /**
+     * This function parses the Location sub-object included in the JSON message received.
+      * @param json A JSON string of the Location JSON object.
+     * @return The Location ocject parsed from the JSON data. Null id the location is invalid.
+     * @throws ParseException Thrown if the message does not conform to the protocol specification
+     */
+    @SuppressWarnings("SpellCheckingInspection")
+    private static Location parseLocation(JSONObject json) throws ParseException  {
+        try {
+            if (json.has("valid") && !json.getBoolean("valid")){
+                return null;
+            }
+
+            Location loc = new Location("ArduinoGPS");
+            loc.setProvider(json.optString("provider", "ArduinoGPS"));
+            loc.setLatitude(json.optDouble("latitude", 0));
+            loc.setLongitude(json.optDouble("longitude", 0));
+            if (json.has("altitude")) {
+                loc.setAltitude(json.getDouble("altitude"));
+            }
+            if (json.has("accuracy")) {
+                loc.setAccuracy((float) json.getDouble("accuracy"));
+            }
+
+            loc.setTime(GPS_TIME_DECODER.decode(json.optLong("date", 0), json.optLong("time", 0)));
+
+            return loc;
+
+        } catch (JSONException e) {
+            Log.i(ProtocolParser.class.getSimpleName(),e.toString());
+            throw new ParseException("Invalid JSON string", 0);
+        }
+    }
+
+    /**
+     * This is a list of all the MeasureData objects that can be read from the sensors object
+     * included in the JSON message
+     * @param json The sensor object included in the JSON message string.
+     * @return A list of MeasureData objects parsed from the sensors JSON sub-object
+     */
+    private static List<MeasureData> parseMeasureData(JSONObject json){
+        List<MeasureData> list = new ArrayList<>();
+
+        Iterator<String> iterator = json.keys();
+        while(iterator.hasNext()){
+            String key = iterator.next();
+            try{
+                JSONObject obj = json.getJSONObject(key);
+                String type = obj.optString("type",key);
+                String sensor = obj.optString("sensor",key);
+                String name = obj.optString("name",key);
+                double value;
+                try {
+                    value = obj.getDouble("value");
+                } catch (JSONException e) {
+                    value = Double.NaN;
+                }
+                String unit = obj.optString("unit",key);
+                list.add(new MeasureData(type,sensor,name,value,unit));
+
+            } catch (JSONException e) {
+                Log.i(ProtocolParser.class.getSimpleName(),e.toString());
+            }
+        }
+
+        return list;
+    }
+}
@@ -0,0 +1,34 @@
+package de.uni_bremen.comnets.geosensor;
+
+/**
+ * The position of a DataRecord on the map: the best location of the DataRecord without the rest
+ * of its data, so the positions of many DataRecords can be kept in memory.
+ */
+final class RecordPosition {
+    private final long databaseID;
+    private final double latitude;
+    private final double longitude;
+
+    /**
+     * @param databaseID The database ID of the DataRecord
+     * @param latitude The latitude of the best location in degrees
+     * @param longitude The longitude of the best location in degrees
+     */
+    RecordPosition(long databaseID, double latitude, double longitude) {
+        this.databaseID = databaseID;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    long getDatabaseID() {
+        return databaseID;
+    }
+
+    double getLatitude() {
+        return latitude;
+    }
+
+    double getLongitude() {
+        return longitude;
+    }
+}
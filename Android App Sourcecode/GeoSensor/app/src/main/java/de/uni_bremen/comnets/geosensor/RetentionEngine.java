@@ -0,0 +1,75 @@
+package de.uni_bremen.comnets.geosensor;
+
+/**
+ * The RetentionEngine applies a RetentionPolicy to the database: old DataRecords are replaced by
+ * rollups per minute and old rollups per minute are merged into rollups per hour. So the size of
+ * the database only grows slowly even if a transducer is connected for months.
+ *
+ * The work is done in small batches, each in a transaction of its own. The receiver can save new
+ * DataRecords in between and the engine can be cancelled after any batch; the next run continues
+ * where the last one stopped.
+ */
+class RetentionEngine {
+    /** The number of DataRecords summarized in a single transaction */
+    static final int BATCH_SIZE = 500;
+    /** The time range of rollups per minute merged in a single transaction */
+    static final long ROLLUP_WINDOW = 24 * DataLab.RollupEntry.RESOLUTION_HOUR;
+
+    private final DataLab dataLab;
+    private final RetentionPolicy policy;
+    private volatile boolean cancelled = false;
+
+    private int dataRecords = 0;
+    private int rollups = 0;
+
+    /**
+     * @param dataLab The database
+     * @param policy The policy to apply
+     */
+    RetentionEngine(DataLab dataLab, RetentionPolicy policy) {
+        this.dataLab = dataLab;
+        this.policy = policy;
+    }
+
+    /**
+     * Apply the policy. This may take a while and must not be called on the main thread.
+     * @param now The current time
+     * @return true if the policy has been applied completely, false if cancelled
+     */
+    boolean run(long now) {
+        if (!policy.isEnabled()) {
+            return true;
+        }
+        long rawCutoff = policy.getRawCutoff(now);
+        int count;
+        while (!cancelled && (count = dataLab.rollUpDataRecords(rawCutoff, BATCH_SIZE)) > 0) {
+            dataRecords += count;
+        }
+        long minuteCutoff = policy.getMinuteCutoff(now);
+        while (!cancelled && (count = dataLab.rollUpRollups(minuteCutoff, ROLLUP_WINDOW)) > 0) {
+            rollups += count;
+        }
+        return !cancelled;
+    }
+
+    /**
+     * Stop the engine after the current batch. May be called by any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return The number of DataRecords replaced by rollups so far
+     */
+    int getDataRecords() {
+        return dataRecords;
+    }
+
+    /**
+     * @return The number of rollups per minute merged into rollups per hour so far
+     */
+    int getRollups() {
+        return rollups;
+    }
+}
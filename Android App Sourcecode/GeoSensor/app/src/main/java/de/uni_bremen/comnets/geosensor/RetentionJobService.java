@@ -0,0 +1,57 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * The RetentionJobService runs the RetentionEngine once a day while the device is idle and
+ * charging, so applying the retention policy does not disturb the user.
+ *
+ * The JobScheduler is available from Android 5.0, the job is scheduled by the RetentionScheduler
+ * which must be used instead of this class on older devices.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class RetentionJobService extends JobService {
+    private volatile RetentionEngine retentionEngine;
+
+    /**
+     * Start the RetentionEngine in a background thread
+     * @param params The parameters of the job
+     * @return true as the work continues in the background
+     */
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        retentionEngine = new RetentionEngine(DataLab.get(this),
+                RetentionPolicy.fromPreferences(this));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RetentionEngine engine = retentionEngine;
+                boolean finished = engine.run(System.currentTimeMillis());
+                Log.i(RetentionJobService.class.getSimpleName(), engine.getDataRecords() +
+                        " DataRecords and " + engine.getRollups() + " rollups per minute " +
+                        "summarized" + (finished ? "" : ", cancelled"));
+                // A cancelled run is continued later
+                jobFinished(params, !finished);
+            }
+        }, "RetentionEngine").start();
+        return true;
+    }
+
+    /**
+     * The device is not idle anymore, so the engine stops after the current batch
+     * @param params The parameters of the job
+     * @return true to run the job again later
+     */
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        RetentionEngine engine = retentionEngine;
+        if (engine != null) {
+            engine.cancel();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.v7.preference.PreferenceManager;
+
+/**
+ * The RetentionPolicy defines how long the measurements are kept in which detail:
+ * The DataRecords are kept for a number of days, afterwards only the rollups per minute of the
+ * measured values are kept. When the data gets older than a second number of days, the rollups
+ * per minute are merged into rollups per hour which are kept forever.
+ *
+ * Both numbers are set by the user in the settings. By default the DataRecords are kept forever,
+ * so nothing is deleted without the user asking for it.
+ */
+class RetentionPolicy {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /** The days the DataRecords are kept, 0 for forever */
+    private final int rawDays;
+    /** The days the rollups per minute are kept */
+    private final int minuteDays;
+
+    /**
+     * @param rawDays The days the DataRecords are kept, 0 for forever
+     * @param minuteDays The age in days the rollups per minute are merged into rollups per hour
+     *                   at, at least the rawDays
+     */
+    RetentionPolicy(int rawDays, int minuteDays) {
+        this.rawDays = rawDays;
+        this.minuteDays = Math.max(rawDays, minuteDays);
+    }
+
+    /**
+     * Read the policy set by the user
+     * @param context A context to access the preferences
+     * @return The policy
+     */
+    static RetentionPolicy fromPreferences(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        int rawDays = Integer.parseInt(preferences.getString(
+                context.getString(R.string.pref_key_retention_raw), "0"));
+        int minuteDays = Integer.parseInt(preferences.getString(
+                context.getString(R.string.pref_key_retention_minute), "365"));
+        return new RetentionPolicy(rawDays, minuteDays);
+    }
+
+    /**
+     * @return false if the DataRecords are kept forever
+     */
+    boolean isEnabled() {
+        return rawDays > 0;
+    }
+
+    /**
+     * The DataRecords received before the time returned are replaced by rollups per minute.
+     * The time is the start of a minute, so the rollups only contain complete minutes.
+     * @param now The current time
+     * @return The receive time limit or 0 if the DataRecords are kept forever
+     */
+    long getRawCutoff(long now) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        return floor(now - rawDays * DAY, DataLab.RollupEntry.RESOLUTION_MINUTE);
+    }
+
+    /**
+     * The rollups per minute starting before the time returned are merged into rollups per hour.
+     * The time is the start of an hour, so the rollups only contain complete hours.
+     * @param now The current time
+     * @return The start time limit or 0 if the DataRecords are kept forever
+     */
+    long getMinuteCutoff(long now) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        return floor(now - minuteDays * DAY, DataLab.RollupEntry.RESOLUTION_HOUR);
+    }
+
+    private static long floor(long time, long resolution) {
+        return Math.max(0, time - time % resolution);
+    }
+}
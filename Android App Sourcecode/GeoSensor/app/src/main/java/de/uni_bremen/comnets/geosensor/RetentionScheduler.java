@@ -0,0 +1,62 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * The RetentionScheduler schedules the RetentionJobService once a day while the device is idle
+ * and charging.
+ *
+ * It is a class of its own as the RetentionJobService extends JobService, which only exists from
+ * Android 5.0. Touching the service class on older devices fails to load it, so the version is
+ * checked here before the JobScheduler or the service are used. On older devices the policy is
+ * not applied automatically, old data can still be deleted in the settings.
+ */
+class RetentionScheduler {
+    private static final int JOB_ID = 1;
+    private static final long INTERVAL = 24 * DataLab.RollupEntry.RESOLUTION_HOUR;
+
+    private RetentionScheduler() {
+    }
+
+    /**
+     * Schedule the job if the user has enabled the retention policy, cancel it otherwise.
+     * A job already scheduled is kept, so this can be called whenever the app is started.
+     * Does nothing before Android 5.0.
+     * @param context A context to access the JobScheduler and the preferences
+     */
+    static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        scheduleJob(context);
+    }
+
+    /**
+     * @param context A context to access the JobScheduler and the preferences
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(
+                Context.JOB_SCHEDULER_SERVICE);
+        if (!RetentionPolicy.fromPreferences(context).isEnabled()) {
+            jobScheduler.cancel(JOB_ID);
+            return;
+        }
+        for (JobInfo jobInfo : jobScheduler.getAllPendingJobs()) {
+            if (jobInfo.getId() == JOB_ID) {
+                return;
+            }
+        }
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, RetentionJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(INTERVAL)
+                .build());
+    }
+}
@@ -74,6 +74,7 @@ public class SettingsActivity extends GeoSensorActivity implements
     /**
      * Handles some of the preference changes.
      * Starts the BluetoothReceiverService if it hasn't been active before.
+     * Schedules or cancels the RetentionJobService if the retention policy has been changed.
      * Warns the user if they want to change both csv separator and decimal mark to comma
      * @param sharedPreferences The applications shared preferences
      * @param key The preference that was changed
@@ -90,6 +91,11 @@ public class SettingsActivity extends GeoSensorActivity implements
             return;
         }
 
+        if (getString(R.string.pref_key_retention_raw).equals(key)) {
+            RetentionScheduler.schedule(this);
+            return;
+        }
+
         if (getString(R.string.pref_key_csv_separator).equals(key)
                 || getString(R.string.pref_key_decimal_mark).equals(key)){
             String csvSeparator = sharedPreferences.getString(getString(R.string.pref_key_csv_separator),",");
@@ -1,11 +1,15 @@
 package de.uni_bremen.comnets.geosensor;
 
 import android.app.Activity;
+import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.content.SharedPreferences;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AlertDialog;
@@ -74,8 +78,7 @@ public class SettingsFragment extends PreferenceFragmentCompat  {
 
                         deleteMessageBuilder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                             public void onClick(DialogInterface dialog, int which) {
-                                DataLab dl = new DataLab(getContext());
-                                dl.deleteOldDataRecords(date);
+                                deleteOldDataRecords(date);
                             }
                         });
 
@@ -103,7 +106,7 @@ public class SettingsFragment extends PreferenceFragmentCompat  {
 
                 deleteMessageBuilder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
-                        DataLab dl = new DataLab(getContext());
+                        DataLab dl = DataLab.get(getContext());
                         dl.rebuildDatabase();
                     }
                 });
@@ -134,6 +137,62 @@ public class SettingsFragment extends PreferenceFragmentCompat  {
         });
     }
 
+    /**
+     * Delete the DataRecords received before a date in a background thread while a dialog shows
+     * the progress. If a large part of the database file is unused afterwards, the space is given
+     * back to the file system.
+     * @param date The threshold date
+     */
+    private void deleteOldDataRecords(final Date date){
+        final Context context = getContext().getApplicationContext();
+        final ProgressDialog progressDialog = new ProgressDialog(getContext());
+        progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progressDialog.setMessage(getString(R.string.deleting_old));
+        progressDialog.setCancelable(false);
+        progressDialog.show();
+
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final DataLab.ProgressListener progressListener = new DataLab.ProgressListener() {
+            @Override
+            public void onProgress(final int done, final int total) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressDialog.setMax(total);
+                        progressDialog.setProgress(done);
+                    }
+                });
+            }
+        };
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DataLab dl = DataLab.get(context);
+                final int deleted = dl.deleteOldDataRecords(date, progressListener);
+                if (dl.isSpaceReclaimable()) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            progressDialog.setMessage(context.getString(R.string.reclaiming_space));
+                        }
+                    });
+                    dl.reclaimSpace(progressListener);
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (progressDialog.isShowing()) {
+                            progressDialog.dismiss();
+                        }
+                        Toast.makeText(context, String.format(context.getString(R.string.deleted_old),
+                                deleted), Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
     /**
      * Apart from the super method, this method associated some preferences to the permissions
      * necessary to use them. We do that in onResume to handle revoked preferences as late as
@@ -0,0 +1,358 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The TransducerReceiver is the app side of the transducer protocol for a single connection.
+ * It reads the messages from the input stream, hands them to an IngestPipeline and answers the
+ * transducer on the output stream.
+ *
+ * The streams are given by the caller: the BluetoothReceiverService passes the ones of the
+ * bluetooth socket, tests can connect the receiver to a simulated transducer instead. Saving the
+ * records is left to a RecordSink, so the whole receive, parse and save path can be run without a
+ * bluetooth module or a database.
+ */
+class TransducerReceiver implements IngestPipeline.Handler<DataRecord> {
+    /** The control characters sent to the transducer */
+    static final byte ACKNOWLEDGE = 0x06;
+    static final byte NEGATIVE_ACKNOWLEDGE = 0x15;
+    static final byte DEVICE_CONTROL_1 = 0x11;
+    /** The sequence numbers following ACK and NAK have the highest bit set */
+    static final int SEQUENCE_FLAG = 0x80;
+
+    /**
+     * The RecordSink saves the records parsed. Both methods are called by the writer thread of the
+     * IngestPipeline.
+     */
+    interface RecordSink {
+        /**
+         * Save a batch of records
+         * @param batch The records parsed, in the order they have been received
+         */
+        void save(List<DataRecord> batch);
+
+        /**
+         * Called after a batch has been saved successfully
+         * @param batch The records saved
+         */
+        void saved(List<DataRecord> batch);
+    }
+
+    private final InputStream inputStream;
+    // The stream the acknowledgements are sent to
+    private final OutputStream outputStream;
+    private final FrameBufferPool frameBufferPool;
+    private final DeliveryWindow deliveryWindow;
+    private final RecordSink recordSink;
+
+    // The parsers are only used by the parser thread of the pipeline
+    private final ProtocolParser protocolParser = new ProtocolParser();
+    // The binary decoder keeps the schema sent by the transducer for this connection
+    private final BinaryMessageDecoder binaryMessageDecoder = new BinaryMessageDecoder();
+    // What to acknowledge for every record handed to the pipeline, in the order they were parsed.
+    // The records are only acknowledged by the writer thread once they have been saved.
+    private final ArrayDeque<Receipt> receipts = new ArrayDeque<>();
+
+    private volatile IngestPipeline<DataRecord> pipeline;
+
+    /**
+     * @param inputStream The stream the messages of the transducer are read from
+     * @param outputStream The stream the answers to the transducer are written to
+     * @param frameBufferPool The pool providing the buffers for the messages
+     * @param deliveryWindow The window recognizing binary samples sent again, it should be kept
+     *                       for all connections to the same transducer
+     * @param recordSink The sink the records are saved to
+     */
+    TransducerReceiver(InputStream inputStream, OutputStream outputStream,
+                       FrameBufferPool frameBufferPool, DeliveryWindow deliveryWindow,
+                       RecordSink recordSink) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.frameBufferPool = frameBufferPool;
+        this.deliveryWindow = deliveryWindow;
+        this.recordSink = recordSink;
+    }
+
+    /**
+     * Receive messages until the input stream ends or the thread is interrupted. This blocks
+     * inside the FrameReader until data arrives, so it does not consume any processing time while
+     * the transducer is silent. The messages already received are still parsed and saved in the
+     * background afterwards.
+     * @throws IOException If the connection has been lost
+     * @throws InterruptedException If the thread has been interrupted while waiting for the parser
+     */
+    void receive() throws IOException, InterruptedException {
+        // The FrameReader reads the stream in chunks and splits it into single messages
+        FrameReader frameReader = new FrameReader(inputStream, frameBufferPool);
+        int droppedFrames = 0;
+        pipeline = new IngestPipeline<>(this);
+        try {
+            // Transducers supporting the binary protocol switch to it, others ignore the offer
+            offerBinaryProtocol(outputStream);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                // This blocks until a complete message has been received
+                FrameBuffer frame = frameReader.readFrame();
+                // null means the stream has ended
+                if (frame == null) {
+                    return;
+                }
+                if (frameReader.getDroppedFrames() != droppedFrames) {
+                    droppedFrames = frameReader.getDroppedFrames();
+                    Log.wtf(this.getClass().getCanonicalName(), "The message sent via " +
+                            "bluetooth was insanely large.");
+                }
+                // This only blocks if the parser is far behind
+                pipeline.submit(frame);
+            }
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * @return The pipeline used by receive() or null if it has not been called yet
+     */
+    IngestPipeline<DataRecord> getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * This method handles the incoming data messages.
+     * The buffer is only valid during this call as it is recycled afterwards.
+     * @param frame The message received via the bluetooth connection
+     * @return The DataRecord parsed or null if the message does not contain any JSON
+     * @throws ParseException If the message is not valid
+     */
+    @Override
+    public DataRecord parse(FrameBuffer frame) throws ParseException {
+        if (BinaryFrameCodec.isBinaryFrame(frame.getBytes(), 0, frame.getLength())) {
+            try {
+                // A schema frame only updates the decoder and is not acknowledged
+                DataRecord dataRecord = binaryMessageDecoder.decode(frame.getBytes(), 0,
+                        frame.getLength(), new Date(frame.getReceiveTime()));
+                if (dataRecord == null) {
+                    return null;
+                }
+                if (!deliveryWindow.receive(binaryMessageDecoder.getSequenceNumber(),
+                        dataRecord.getArduinoTime())) {
+                    // The acknowledgement got lost, only what has been saved is acknowledged
+                    int acknowledgement = deliveryWindow.getSavedAcknowledgement();
+                    if (acknowledgement != -1) {
+                        acknowledgeReceive(outputStream, acknowledgement);
+                    }
+                    return null;
+                }
+                // The missing samples are sent again without waiting for the timeout of the
+                // transducer
+                for (int i = 0; i < deliveryWindow.getMissingCount(); i++) {
+                    requestResend(outputStream, deliveryWindow.getMissing(i));
+                }
+                addReceipt(new Receipt(binaryMessageDecoder.getSequenceNumber(),
+                        deliveryWindow.getAcknowledgement()));
+                return dataRecord;
+            } catch (ParseException p) {
+                Log.w(this.getClass().getSimpleName(), "Binary frame from Bluetooth " +
+                        "invalid. " + p.toString());
+                throw p;
+            }
+        }
+        try {
+            // The message is parsed directly from the buffer, everything before the first {
+            // is garbage and ignored by the parser
+            // A DataRecord which is not jet stored in the database is returned
+            DataRecord dataRecord = protocolParser.parse(frame.getBytes(), 0, frame.getLength(),
+                    new Date(frame.getReceiveTime()));
+            if (dataRecord != null) {
+                addReceipt(new Receipt(Receipt.NO_SEQUENCE, -1));
+            }
+            return dataRecord;
+        } catch (ParseException p) {
+            Log.w(this.getClass().getSimpleName(),"JSON Parsing from Bluetooth failed. "+ p.toString() +" This is the " +
+                    "problematic message: \""+frame.decodeASCII().trim()+"\"");
+            throw p;
+        }
+    }
+
+    /**
+     * Every JSON message of the batch gets an ACK of its own, the binary samples a single
+     * cumulative ACK up to the last of them.
+     * @param batch The records saved
+     */
+    @Override
+    public void acknowledge(List<DataRecord> batch) {
+        int acknowledgement = -1;
+        for (int i = 0; i < batch.size(); i++) {
+            Receipt receipt = takeReceipt();
+            if (receipt == null) {
+                break;
+            }
+            if (receipt.sequence == Receipt.NO_SEQUENCE) {
+                acknowledgeReceive(outputStream);
+            } else {
+                acknowledgement = receipt.acknowledgement;
+            }
+        }
+        if (acknowledgement != -1) {
+            acknowledgement = deliveryWindow.saved(acknowledgement);
+            if (acknowledgement != -1) {
+                acknowledgeReceive(outputStream, acknowledgement);
+            }
+        }
+    }
+
+    /**
+     * The binary samples of the batch are forgotten by the DeliveryWindow, so they are saved when
+     * they arrive again instead of being taken for duplicates.
+     * @param batch The records that could not be saved
+     */
+    @Override
+    public void requestResend(List<DataRecord> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Receipt receipt = takeReceipt();
+            if (receipt == null) {
+                break;
+            }
+            if (receipt.sequence == Receipt.NO_SEQUENCE) {
+                requestResend(outputStream);
+            } else {
+                deliveryWindow.forget(receipt.sequence);
+                requestResend(outputStream, receipt.sequence);
+            }
+        }
+    }
+
+    @Override
+    public void requestResend() {
+        // Without the schema the resent sample could not be decoded either
+        if (binaryMessageDecoder.isSchemaRequired()) {
+            offerBinaryProtocol(outputStream);
+        }
+        // A negative acknowledgement is sent to the Arduino
+        requestResend(outputStream);
+    }
+
+    @Override
+    public void save(List<DataRecord> batch) {
+        recordSink.save(batch);
+    }
+
+    @Override
+    public void saved(List<DataRecord> batch) {
+        recordSink.saved(batch);
+    }
+
+    @Override
+    public void failed(String stage, RuntimeException e) {
+        Log.w(TransducerReceiver.class.getSimpleName(),
+                "Handling a message failed in the " + stage + " stage", e);
+    }
+
+    /**
+     * Remember what to acknowledge for a record parsed. Called by the parser thread.
+     * @param receipt The receipt of the record
+     */
+    private void addReceipt(Receipt receipt) {
+        synchronized (receipts) {
+            receipts.add(receipt);
+        }
+    }
+
+    /**
+     * Called by the writer thread for every record saved or failed, in the order of the batch
+     * @return The receipt of the oldest record not acknowledged yet, null if there is none
+     */
+    private Receipt takeReceipt() {
+        synchronized (receipts) {
+            return receipts.poll();
+        }
+    }
+
+    /**
+     * What has to be acknowledged for a record once it has been saved
+     */
+    private static class Receipt {
+        /** The sequence number of a JSON message, which is acknowledged by a plain ACK */
+        static final int NO_SEQUENCE = -1;
+
+        /** The sequence number of the binary sample */
+        final int sequence;
+        /** The acknowledgement of the DeliveryWindow after the sample has been received */
+        final int acknowledgement;
+
+        Receipt(int sequence, int acknowledgement) {
+            this.sequence = sequence;
+            this.acknowledgement = acknowledgement;
+        }
+    }
+
+    /**
+     * When a message has been received correctly, an acknowledge is sent back to the Arduino
+     * @param outputStream The stream of the connection the message was received from
+     */
+    static void acknowledgeReceive(OutputStream outputStream){
+        try{
+            outputStream.write(ACKNOWLEDGE);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Acknowledge the binary samples up to a sequence number. The sequence number is sent with
+     * the highest bit set, so it can not be confused with the control characters.
+     * @param outputStream The stream of the connection the sample was received from
+     * @param sequenceNumber The sequence number of the sample (see DeliveryWindow)
+     */
+    static void acknowledgeReceive(OutputStream outputStream, int sequenceNumber){
+        try{
+            outputStream.write(new byte[] {ACKNOWLEDGE, (byte) (SEQUENCE_FLAG | sequenceNumber)});
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * When the parsing fails for some reason, the App requests the data to be resend.
+     * The Arduino software may or may not include the means to do so.
+     * @param outputStream The stream of the connection the message was received from
+     */
+    static void requestResend(OutputStream outputStream){
+        try{
+            outputStream.write(NEGATIVE_ACKNOWLEDGE);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Request a single binary sample found missing to be sent again
+     * @param outputStream The stream of the connection
+     * @param sequenceNumber The sequence number of the sample (see DeliveryWindow)
+     */
+    static void requestResend(OutputStream outputStream, int sequenceNumber){
+        try{
+            outputStream.write(new byte[] {NEGATIVE_ACKNOWLEDGE,
+                    (byte) (SEQUENCE_FLAG | sequenceNumber)});
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Offer the compact binary protocol to the Arduino. If it supports the protocol, it answers
+     * with the schema and sends binary frames from then on, otherwise it ignores the offer.
+     * The same is used to request the schema again if it got lost.
+     * @param outputStream The stream of the connection
+     */
+    static void offerBinaryProtocol(OutputStream outputStream){
+        try{
+            outputStream.write(BinaryFrameCodec.DEVICE_CONTROL_2);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the CsvFieldFormatter to the formats used by the csv export before
+ */
+public class CsvFieldFormatterTest {
+    private static final char[] DECIMAL_SEPARATORS = {'.', ','};
+    private static final String[] TIME_ZONES = {"UTC", "Europe/Berlin", "America/St_Johns",
+            "Asia/Kathmandu", "Pacific/Chatham"};
+
+    private final TimeZone defaultTimeZone = TimeZone.getDefault();
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Test
+    public void formatsNumbersLikeTheNumberFormat() {
+        Random random = new Random(42);
+        for (char decimalSeparator : DECIMAL_SEPARATORS) {
+            NumberFormat numberFormat = numberFormat(decimalSeparator);
+            CsvFieldFormatter formatter = new CsvFieldFormatter(numberFormat, dateFormat(),
+                    decimalSeparator);
+
+            double[] values = {0, -0.0, 1, -1, 0.5, -0.5, 0.1, 0.2, 0.3, 1e-12, 5e-13, 1.5e-12,
+                    0.9999999999995, 0.9999999999994, 0.0078125, 0.0078124, 4095.9999999999995,
+                    4096.1, 1e6 + 0.1, 1e15, 1e20, 123456789.123456789, Double.MAX_VALUE,
+                    Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, 3.9f, 12.345678f,
+                    53.0791234, 8.8123456, 1013.25, 101325};
+            for (double value : values) {
+                assertFormatted(numberFormat, formatter, value);
+                assertFormatted(numberFormat, formatter, -value);
+            }
+
+            for (int i = 0; i < 100000; i++) {
+                // Coordinates, altitudes, accuracies, measured values and any doubles
+                assertFormatted(numberFormat, formatter, random.nextDouble() * 180 - 90);
+                assertFormatted(numberFormat, formatter,
+                        Math.round(random.nextDouble() * 1e7) / 1e7 * 360 - 180);
+                assertFormatted(numberFormat, formatter, random.nextInt(5000) / 10.0);
+                assertFormatted(numberFormat, formatter, random.nextFloat() * 50);
+                assertFormatted(numberFormat, formatter, random.nextInt(10000) / 100.0 - 40);
+                assertFormatted(numberFormat, formatter,
+                        Double.longBitsToDouble(random.nextLong()));
+                assertFormatted(numberFormat, formatter,
+                        (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 15));
+            }
+        }
+    }
+
+    @Test
+    public void formatsDatesLikeTheDateFormat() {
+        Random random = new Random(42);
+        for (String timeZone : TIME_ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+            DateFormat dateFormat = dateFormat();
+            CsvFieldFormatter formatter = new CsvFieldFormatter(numberFormat('.'), dateFormat,
+                    '.');
+
+            long[] dates = {0, -1, 1, Long.MIN_VALUE / 2, Long.MAX_VALUE / 2,
+                    // Before and after the calendar changed in 1582, the end of year 9999
+                    -12219292800001L, -12219292800000L, -12212553600000L, 253402300799999L,
+                    253402300800000L,
+                    // A leap day and a change of daylight saving time in Europe
+                    951782400000L, 1521939599999L, 1521939600000L};
+            for (long date : dates) {
+                assertFormatted(dateFormat, formatter, date);
+            }
+
+            // Any time between 1900 and 2100 and DataRecords following each other
+            long date = 0;
+            for (int i = 0; i < 100000; i++) {
+                if (i % 1000 == 0) {
+                    date = (long) ((random.nextDouble() * 200 - 70) * 365.25 * 24 * 3600 * 1000);
+                }
+                date += random.nextInt(120000);
+                assertFormatted(dateFormat, formatter, date);
+            }
+        }
+    }
+
+    private static void assertFormatted(NumberFormat numberFormat, CsvFieldFormatter formatter,
+                                        double value) {
+        StringBuilder line = new StringBuilder("x;");
+        formatter.appendNumber(line, value);
+        assertEquals(Double.toString(value), "x;" + numberFormat.format(value), line.toString());
+    }
+
+    private static void assertFormatted(DateFormat dateFormat, CsvFieldFormatter formatter,
+                                        long date) {
+        StringBuilder line = new StringBuilder("x;");
+        formatter.appendDate(line, date);
+        assertEquals(Long.toString(date), "x;" + dateFormat.format(new Date(date)),
+                line.toString());
+    }
+
+    private static NumberFormat numberFormat(char decimalSeparator) {
+        DecimalFormatSymbols decimalFormatSymbols = new DecimalFormatSymbols();
+        decimalFormatSymbols.setDecimalSeparator(decimalSeparator);
+        return new DecimalFormat("############.############", decimalFormatSymbols);
+    }
+
+    private static DateFormat dateFormat() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    }
+}
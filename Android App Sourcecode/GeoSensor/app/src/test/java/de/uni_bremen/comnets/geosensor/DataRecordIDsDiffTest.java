@@ -0,0 +1,110 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.support.v7.util.ListUpdateCallback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the DataRecordIDsDiff by applying the updates to a list and comparing the result.
+ */
+public class DataRecordIDsDiffTest {
+    @Test
+    public void sameIDsNeedNoUpdates() {
+        DataRecordIDsDiff diff = DataRecordIDsDiff.calculate(new long[]{3, 2, 1},
+                new long[]{3, 2, 1});
+        assertNotNull(diff);
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void joinsNeighbouringUpdates() {
+        final List<String> updates = new ArrayList<>();
+        DataRecordIDsDiff.calculate(new long[]{5, 4, 3, 2, 1}, new long[]{8, 7, 6, 5, 1})
+                .dispatchUpdatesTo(new ListUpdateCallback() {
+                    @Override
+                    public void onInserted(int position, int count) {
+                        updates.add("insert " + position + " " + count);
+                    }
+
+                    @Override
+                    public void onRemoved(int position, int count) {
+                        updates.add("remove " + position + " " + count);
+                    }
+
+                    @Override
+                    public void onMoved(int fromPosition, int toPosition) {
+                        fail();
+                    }
+
+                    @Override
+                    public void onChanged(int position, int count, Object payload) {
+                        fail();
+                    }
+                });
+        assertEquals("[insert 0 3, remove 4 3]", updates.toString());
+    }
+
+    @Test
+    public void reversedOrderIsNoDiff() {
+        assertNull(DataRecordIDsDiff.calculate(new long[]{3, 2, 1}, new long[]{1, 2, 3}));
+    }
+
+    @Test
+    public void turnsOldIntoNewIDs() {
+        Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            List<Long> oldIDs = new ArrayList<>();
+            List<Long> newIDs = new ArrayList<>();
+            // Every ID is shown before, afterwards or both times, like with a changed filter
+            for (long id = 0; id < 1000; id++) {
+                int where = random.nextInt(3);
+                if (where != 1) {
+                    oldIDs.add(id);
+                }
+                if (where != 0) {
+                    newIDs.add(id);
+                }
+            }
+            final List<Long> list = new ArrayList<>(oldIDs);
+            final List<Long> target = newIDs;
+            DataRecordIDsDiff.calculate(toArray(oldIDs), toArray(newIDs))
+                    .dispatchUpdatesTo(new ListUpdateCallback() {
+                        @Override
+                        public void onInserted(int position, int count) {
+                            // The IDs are taken from the target at the same position
+                            list.addAll(position, target.subList(position, position + count));
+                        }
+
+                        @Override
+                        public void onRemoved(int position, int count) {
+                            list.subList(position, position + count).clear();
+                        }
+
+                        @Override
+                        public void onMoved(int fromPosition, int toPosition) {
+                            fail();
+                        }
+
+                        @Override
+                        public void onChanged(int position, int count, Object payload) {
+                            fail();
+                        }
+                    });
+            assertEquals(newIDs, list);
+        }
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
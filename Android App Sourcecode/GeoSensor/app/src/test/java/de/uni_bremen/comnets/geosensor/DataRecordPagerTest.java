@@ -0,0 +1,208 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the DataRecordPager with executors run by hand, so the order of loading and delivering
+ * the pages is under control of the test.
+ */
+public class DataRecordPagerTest {
+    private static final int RECORDS = 1000;
+    private static final int PAGE_SIZE = 10;
+    private static final int PREFETCH_PAGES = 2;
+    private static final int CACHE_SIZE = 100;
+
+    private final Queue<Runnable> background = new LinkedList<>();
+    private final Queue<Runnable> main = new LinkedList<>();
+    private final List<long[]> loads = new ArrayList<>();
+    private final List<int[]> loaded = new ArrayList<>();
+    private DataRecordPager<DataRecord> pager;
+
+    @Before
+    public void createPager() {
+        pager = new DataRecordPager<>(new DataRecordPager.Loader<DataRecord>() {
+            @Override
+            public List<DataRecord> load(long[] ids) {
+                loads.add(ids);
+                List<DataRecord> dataRecords = new ArrayList<>();
+                for (long id : ids) {
+                    // Negative IDs are not in the database
+                    if (id < 0) {
+                        continue;
+                    }
+                    dataRecords.add(new DataRecord(new ArrayList<Location>(),
+                            new ArrayList<MeasureData>(), "Test", id, "", new Date(id), id));
+                }
+                return dataRecords;
+            }
+
+            @Override
+            public long getID(DataRecord dataRecord) {
+                return dataRecord.getDatabaseID();
+            }
+        }, queue(background), queue(main), new DataRecordPager.Listener() {
+            @Override
+            public void onPageLoaded(int from, int to) {
+                loaded.add(new int[]{from, to});
+            }
+        }, PAGE_SIZE, PREFETCH_PAGES, CACHE_SIZE);
+        pager.setIDs(ids(0));
+    }
+
+    @Test
+    public void loadsPagesInTheBackground() {
+        assertEquals(RECORDS, pager.size());
+        assertNull(pager.get(0));
+        // Nothing is loaded on the calling thread
+        assertTrue(loads.isEmpty());
+
+        runAll();
+        // The page itself and the two pages ahead
+        assertEquals(3, loads.size());
+        assertEquals(pager.getID(0), loads.get(0)[0]);
+        assertEquals(PAGE_SIZE, loads.get(0).length);
+        assertArrayEquals(new int[]{0, PAGE_SIZE}, loaded.get(0));
+        for (int i = 0; i < 3 * PAGE_SIZE; i++) {
+            assertEquals(pager.getID(i), pager.get(i).getDatabaseID());
+        }
+    }
+
+    @Test
+    public void requestsEveryPageOnce() {
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertNull(pager.get(i));
+        }
+        runAll();
+        assertEquals(3, loads.size());
+    }
+
+    @Test
+    public void prefetchesInTheScrollDirection() {
+        pager.get(500);
+        pager.get(501);
+        runAll();
+        assertEquals(3, loads.size());
+        assertEquals(pager.getID(500), loads.get(0)[0]);
+        assertEquals(pager.getID(510), loads.get(1)[0]);
+        assertEquals(pager.getID(520), loads.get(2)[0]);
+
+        loads.clear();
+        pager.get(499);
+        runAll();
+        assertEquals(3, loads.size());
+        assertEquals(pager.getID(490), loads.get(0)[0]);
+        assertEquals(pager.getID(480), loads.get(1)[0]);
+        assertEquals(pager.getID(470), loads.get(2)[0]);
+    }
+
+    @Test
+    public void skipsPagesPassedByAFling() {
+        for (int i = 0; i < RECORDS; i += PAGE_SIZE / 2) {
+            pager.get(i);
+        }
+        runAll();
+        // Only the pages around the end of the fling are loaded
+        assertFalse(loaded.isEmpty());
+        for (int[] range : loaded) {
+            assertTrue(range[0] >= RECORDS - (PREFETCH_PAGES + 2) * PAGE_SIZE);
+        }
+        assertNotNull(pager.get(RECORDS - 1));
+
+        // The pages skipped are loaded when the list returns to them
+        assertNull(pager.get(0));
+        runAll();
+        assertNotNull(pager.get(0));
+    }
+
+    @Test
+    public void keepsTheDataRecordsUsedRecently() {
+        for (int i = 0; i < RECORDS; i += PAGE_SIZE) {
+            pager.get(i);
+            runAll();
+        }
+        // The first pages have been dropped, the last ones are kept
+        assertNotNull(pager.get(RECORDS - 1));
+        assertNull(pager.get(0));
+        loads.clear();
+        runAll();
+        assertEquals(pager.getID(0), loads.get(0)[0]);
+    }
+
+    @Test
+    public void reportsPagesAtTheirNewPositions() {
+        pager.get(0);
+        // New DataRecords are shown at the top before the first pages are loaded
+        pager.setIDs(ids(5));
+        runAll();
+        assertArrayEquals(new int[]{5, 5 + PAGE_SIZE}, loaded.get(0));
+        assertEquals(pager.getID(5), pager.get(5).getDatabaseID());
+    }
+
+    @Test
+    public void keepsTheDataRecordsForNewIDs() {
+        pager.get(0);
+        runAll();
+        // The IDs have only moved, the DataRecords loaded are still valid
+        pager.setIDs(ids(5));
+        assertNull(pager.get(0));
+        assertEquals(pager.getID(5), pager.get(5).getDatabaseID());
+    }
+
+    @Test
+    public void doesNotLoadMissingDataRecordsAgain() {
+        pager.setIDs(new long[]{-1, -2, -3});
+        assertNull(pager.get(0));
+        runAll();
+        assertEquals(1, loads.size());
+        assertNull(pager.get(0));
+        runAll();
+        assertEquals(1, loads.size());
+    }
+
+    /**
+     * Run the background and the main thread until there is nothing left to do
+     */
+    private void runAll() {
+        while (!background.isEmpty() || !main.isEmpty()) {
+            while (!background.isEmpty()) {
+                background.poll().run();
+            }
+            while (!main.isEmpty()) {
+                main.poll().run();
+            }
+        }
+    }
+
+    private static Executor queue(final Queue<Runnable> queue) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                queue.add(runnable);
+            }
+        };
+    }
+
+    /**
+     * @param newRecords The number of DataRecords added at the top
+     * @return The IDs shown, newest first
+     */
+    private static long[] ids(int newRecords) {
+        long[] ids = new long[RECORDS + newRecords];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ids.length - 1 - i;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,32 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests rating the locations of a DataRecord. Choosing the best one of the Locations is tested
+ * by the instrumented DataRecordLocationTest, as Locations are not available in local unit tests.
+ */
+public class DataRecordTest {
+    private static final long RECEIVE_TIME = 1500000000000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void prefersCloseAndAccurateLocations() {
+        assertTrue(DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME, true, 5)
+                < DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME, true, 50));
+        assertTrue(DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME - 1000, true, 5)
+                < DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME + 60000, true, 5));
+        assertEquals(DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME, true, 10),
+                DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME, false, 0));
+    }
+
+    @Test
+    public void doesNotOverflowForOldLocations() {
+        // More than 2^31 milliseconds away from the receive time
+        long old = DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME - 30 * DAY, true, 5);
+        assertTrue(old > 0);
+        assertTrue(old > DataRecord.locationScore(RECEIVE_TIME, RECEIVE_TIME, true, 100));
+    }
+}
@@ -0,0 +1,179 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the DeliveryWindow with the sequence numbers a transducer sends over a link that loses
+ * samples and acknowledgements.
+ */
+public class DeliveryWindowTest {
+    @Test
+    public void acknowledgesInOrderDelivery() {
+        DeliveryWindow deliveryWindow = new DeliveryWindow();
+        assertEquals(-1, deliveryWindow.getAcknowledgement());
+        // The numbers wrap around a few times
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(deliveryWindow.receive(i % DeliveryWindow.SEQUENCE_NUMBERS, 1000 + i));
+            assertEquals(i % DeliveryWindow.SEQUENCE_NUMBERS, deliveryWindow.getAcknowledgement());
+            assertEquals(0, deliveryWindow.getMissingCount());
+        }
+        assertEquals(0, deliveryWindow.getDuplicates());
+    }
+
+    @Test
+    public void recognizesDuplicates() {
+        DeliveryWindow deliveryWindow = new DeliveryWindow();
+        assertTrue(deliveryWindow.receive(5, 1000));
+        assertTrue(deliveryWindow.receive(6, 2000));
+        // The acknowledgement of both got lost, so they are sent again
+        assertFalse(deliveryWindow.receive(5, 1000));
+        assertFalse(deliveryWindow.receive(6, 2000));
+        assertEquals(6, deliveryWindow.getAcknowledgement());
+        assertEquals(2, deliveryWindow.getDuplicates());
+        assertTrue(deliveryWindow.receive(7, 3000));
+        assertEquals(7, deliveryWindow.getAcknowledgement());
+    }
+
+    @Test
+    public void reportsMissingSamples() {
+        DeliveryWindow deliveryWindow = new DeliveryWindow();
+        assertTrue(deliveryWindow.receive(126, 1000));
+        // 127 and 0 got lost
+        assertTrue(deliveryWindow.receive(1, 4000));
+        assertEquals(2, deliveryWindow.getMissingCount());
+        assertEquals(127, deliveryWindow.getMissing(0));
+        assertEquals(0, deliveryWindow.getMissing(1));
+        assertEquals(126, deliveryWindow.getAcknowledgement());
+
+        // The missing ones are only reported once
+        assertTrue(deliveryWindow.receive(2, 5000));
+        assertEquals(0, deliveryWindow.getMissingCount());
+        assertTrue(deliveryWindow.receive(0, 3000));
+        assertEquals(0, deliveryWindow.getMissingCount());
+        assertEquals(126, deliveryWindow.getAcknowledgement());
+        assertTrue(deliveryWindow.receive(127, 2000));
+        assertEquals(2, deliveryWindow.getAcknowledgement());
+    }
+
+    @Test
+    public void restartsWithTheTransducer() {
+        DeliveryWindow deliveryWindow = new DeliveryWindow();
+        for (int i = 0; i < 50; i++) {
+            assertTrue(deliveryWindow.receive(i, 100000 + i));
+        }
+        // After a restart the transducer counts from 0 again, far behind the window
+        assertTrue(deliveryWindow.receive(0, 500));
+        assertEquals(0, deliveryWindow.getAcknowledgement());
+        assertEquals(0, deliveryWindow.getMissingCount());
+
+        for (int i = 1; i < 126; i++) {
+            assertTrue(deliveryWindow.receive(i, 1000 + i));
+        }
+        // Just ahead of the window, but the arduino_time shows the restart
+        assertTrue(deliveryWindow.receive(0, 200));
+        assertEquals(0, deliveryWindow.getAcknowledgement());
+        assertEquals(0, deliveryWindow.getMissingCount());
+    }
+
+    @Test
+    public void acceptsSamplesAgainThatCouldNotBeSaved() {
+        DeliveryWindow deliveryWindow = new DeliveryWindow();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(deliveryWindow.receive(i, 1000 + i));
+        }
+        assertEquals(4, deliveryWindow.saved(4));
+        // Saving 5 and 6 failed, 7 to 9 are saved afterwards
+        deliveryWindow.forget(5);
+        deliveryWindow.forget(6);
+        assertEquals(4, deliveryWindow.saved(9));
+        assertEquals(4, deliveryWindow.getSavedAcknowledgement());
+        assertFalse(deliveryWindow.receive(7, 1007));
+
+        assertTrue(deliveryWindow.receive(5, 1005));
+        assertEquals(5, deliveryWindow.getAcknowledgement());
+        assertTrue(deliveryWindow.receive(6, 1006));
+        assertEquals(0, deliveryWindow.getMissingCount());
+        assertEquals(9, deliveryWindow.getAcknowledgement());
+        assertEquals(9, deliveryWindow.saved(9));
+    }
+
+    /**
+     * A transducer with a window of four samples sends over a link losing a fifth of the samples
+     * and of the acknowledgements. Every sample must be saved exactly once.
+     */
+    @Test
+    public void deliversEverySampleOnceOverLossyLink() {
+        final int window = 4;
+        final int samples = 20000;
+        Random random = new Random(11);
+        DeliveryWindow deliveryWindow = new DeliveryWindow();
+        Set<Integer> saved = new HashSet<>();
+
+        // The transducer keeps the samples (given by their index) not acknowledged yet
+        List<Integer> unacknowledged = new ArrayList<>();
+        List<Integer> sent = new ArrayList<>();
+        int next = 0;
+        int transmissions = 0;
+        while (next < samples || !unacknowledged.isEmpty()) {
+            sent.clear();
+            while (next < samples && unacknowledged.size() < window) {
+                unacknowledged.add(next);
+                sent.add(next++);
+            }
+            // The oldest sample is sent again after a timeout
+            if (sent.isEmpty()) {
+                sent.add(unacknowledged.get(0));
+            }
+
+            List<Integer> requested = new ArrayList<>();
+            int acknowledgement = -1;
+            for (int sample : sent) {
+                transmissions++;
+                if (random.nextInt(5) == 0) {
+                    continue;
+                }
+                if (deliveryWindow.receive(sample % DeliveryWindow.SEQUENCE_NUMBERS, sample)) {
+                    assertTrue("Saved twice: " + sample, saved.add(sample));
+                    for (int i = 0; i < deliveryWindow.getMissingCount(); i++) {
+                        requested.add(deliveryWindow.getMissing(i));
+                    }
+                }
+                acknowledgement = deliveryWindow.getAcknowledgement();
+            }
+
+            // The acknowledgements and resend requests are lost as well
+            if (acknowledgement != -1 && random.nextInt(5) != 0) {
+                for (int i = 0; i < unacknowledged.size(); i++) {
+                    if (unacknowledged.get(i) % DeliveryWindow.SEQUENCE_NUMBERS == acknowledgement) {
+                        unacknowledged.subList(0, i + 1).clear();
+                        break;
+                    }
+                }
+            }
+            for (int sequence : requested) {
+                if (random.nextInt(5) == 0) {
+                    continue;
+                }
+                for (int sample : unacknowledged) {
+                    if (sample % DeliveryWindow.SEQUENCE_NUMBERS == sequence) {
+                        transmissions++;
+                        if (random.nextInt(5) != 0 && deliveryWindow.receive(sequence, sample)) {
+                            assertTrue("Saved twice: " + sample, saved.add(sample));
+                        }
+                    }
+                }
+            }
+        }
+
+        assertEquals(samples, saved.size());
+        assertTrue(transmissions < samples * 2);
+    }
+}
@@ -0,0 +1,216 @@
+package de.uni_bremen.comnets.geosensor;
+
+import android.location.Location;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.uni_bremen.comnets.geosensor.archive.ArchiveBlock;
+import de.uni_bremen.comnets.geosensor.archive.ArchiveReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ExportEngine with DataRecords created on the fly instead of reading the database.
+ * The DataRecords have no Locations, which are not available in local unit tests, the formatting
+ * of the locations is tested by the instrumented CsvFormatterTest and GeoFormatterTest.
+ */
+public class ExportEngineTest {
+    private static final int RECORDS = 5 * ExportEngine.CHUNK_SIZE + 123;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CsvFormatter formatter = new CsvFormatter(';', ',', false, 1, 2);
+    private File stateDirectory;
+    private File target;
+    private long[] ids;
+
+    @Before
+    public void createIDs() throws IOException {
+        stateDirectory = new File(folder.getRoot(), "state");
+        target = folder.newFile("export.csv");
+        ids = new long[RECORDS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ids.length - i;
+        }
+    }
+
+    @Test
+    public void writesTheChunksInOrder() throws IOException {
+        final List<Integer> progress = new ArrayList<>();
+        ExportEngine engine = new ExportEngine(stateDirectory, new RecordSource(-1),
+                new ExportEngine.Listener() {
+                    @Override
+                    public void onProgress(int done, int total) {
+                        assertEquals(RECORDS, total);
+                        progress.add(done);
+                    }
+                }, 4);
+        assertTrue(engine.export(ids, formatter, target));
+
+        assertArrayEquals(serial(), read(target));
+        assertEquals(6, progress.size());
+        assertEquals(RECORDS, (int) progress.get(progress.size() - 1));
+        assertFalse(ExportEngine.hasCheckpoint(stateDirectory));
+    }
+
+    @Test
+    public void resumesAfterAFailedChunk() throws IOException {
+        ExportEngine engine = new ExportEngine(stateDirectory, new RecordSource(3),
+                new NoListener(), 2);
+        try {
+            engine.export(ids, formatter, target);
+            fail("The failing chunk has been written");
+        } catch (IllegalStateException e) {
+            // Like the process being killed after the chunks before
+        }
+        assertTrue(ExportEngine.hasCheckpoint(stateDirectory));
+
+        // Some bytes of the next chunk written before the process has been killed
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        file.seek(file.length());
+        file.write("garbage".getBytes());
+        file.close();
+
+        File resumed = new ExportEngine(stateDirectory, new RecordSource(-1),
+                new NoListener(), 2).resume();
+        assertEquals(target.getAbsolutePath(), resumed.getAbsolutePath());
+        assertArrayEquals(serial(), read(target));
+        assertFalse(ExportEngine.hasCheckpoint(stateDirectory));
+    }
+
+    @Test
+    public void resumesAnArchive() throws IOException {
+        ExportEngine engine = new ExportEngine(stateDirectory, new RecordSource(3),
+                new NoListener(), 2);
+        try {
+            engine.export(ids, new ArchiveFormatter(), target);
+            fail("The failing chunk has been written");
+        } catch (IllegalStateException e) {
+            // Like the process being killed after the chunks before
+        }
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        file.seek(file.length());
+        file.write("garbage".getBytes());
+        file.close();
+
+        engine = new ExportEngine(stateDirectory, new RecordSource(-1), new NoListener(), 2);
+        engine.resume();
+        assertEquals(ArchiveFormatter.TYPE, engine.getFormat().getType());
+
+        // The same as written in one go
+        File serial = folder.newFile("serial.gsa");
+        assertTrue(new ExportEngine(stateDirectory, new RecordSource(-1), new NoListener(), 1)
+                .export(ids, new ArchiveFormatter(), serial));
+        assertArrayEquals(read(serial), read(target));
+
+        ArchiveReader reader = new ArchiveReader(target);
+        try {
+            assertEquals(6, reader.getBlockCount());
+            assertEquals(RECORDS, reader.getRecordCount());
+            int index = 0;
+            for (int i = 0; i < reader.getBlockCount(); i++) {
+                ArchiveBlock block = reader.readBlock(i);
+                long[] receiveTimes = block.getReceiveTimes();
+                double[] values = block.getValues();
+                for (int j = 0; j < block.getRecordCount(); j++) {
+                    long id = ids[index++];
+                    assertEquals(id * 1000L, receiveTimes[j]);
+                    assertEquals(id % 30 + 0.25, values[2 * j], 0);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void deletesTheFileWhenCancelled() throws IOException {
+        final AtomicInteger calls = new AtomicInteger();
+        final ExportEngine[] engine = new ExportEngine[1];
+        engine[0] = new ExportEngine(stateDirectory, new RecordSource(-1),
+                new ExportEngine.Listener() {
+                    @Override
+                    public void onProgress(int done, int total) {
+                        if (calls.incrementAndGet() == 2) {
+                            engine[0].cancel();
+                        }
+                    }
+                }, 2);
+        assertFalse(engine[0].export(ids, formatter, target));
+        assertEquals(2, calls.get());
+        assertFalse(target.exists());
+        assertFalse(ExportEngine.hasCheckpoint(stateDirectory));
+    }
+
+    /**
+     * @return The csv table formatted on the calling thread, in the default charset like the
+     *         ExportEngine writes it
+     */
+    private byte[] serial() {
+        StringBuilder table = new StringBuilder(formatter.getTitleLine()).append("\r\n");
+        for (DataRecord dataRecord : new RecordSource(-1).read(ids)) {
+            table.append(formatter.getOneLine(dataRecord)).append("\r\n");
+        }
+        return table.toString().getBytes();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class NoListener implements ExportEngine.Listener {
+        @Override
+        public void onProgress(int done, int total) {
+        }
+    }
+
+    /**
+     * Creates a DataRecord for every ID, failing for one chunk if requested
+     */
+    private static class RecordSource implements ExportEngine.Source {
+        private final int failingChunk;
+
+        /**
+         * @param failingChunk The chunk to fail reading, -1 for none
+         */
+        RecordSource(int failingChunk) {
+            this.failingChunk = failingChunk;
+        }
+
+        @Override
+        public List<DataRecord> read(long[] ids) {
+            List<DataRecord> dataRecords = new ArrayList<>();
+            for (long id : ids) {
+                if (id == RECORDS - failingChunk * ExportEngine.CHUNK_SIZE) {
+                    throw new IllegalStateException("Database not available");
+                }
+                List<MeasureData> measureData = new ArrayList<>();
+                measureData.add(new MeasureData("temperature", "DS18B20", "sensor0",
+                        id % 30 + 0.25, "°C"));
+                measureData.add(new MeasureData("humidity", "DHT22", "sensor1", id % 100, "%"));
+                dataRecords.add(new DataRecord(new ArrayList<Location>(), measureData,
+                        "GeoSensorTemplate", id, "Test", new Date(id * 1000L), id));
+            }
+            return dataRecords;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests the FrameReader with the messages from the protocol test suite (Tests/protocol). The
+ * throughput and the heap use are measured on the device by the FrameReaderBenchmark.
+ */
+public class FrameReaderTest {
+    /** The protocol test suite, relative to the app module (the working directory of unit tests) */
+    static final File PROTOCOL_TESTS = new File("../../../Tests/protocol");
+
+    private List<byte[]> messages;
+
+    @Before
+    public void readMessages() throws IOException {
+        messages = readProtocolMessages();
+        assumeTrue("The protocol test suite is not available", !messages.isEmpty());
+    }
+
+    @Test
+    public void splitsMessagesAcrossArbitraryReads() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        // The transducer sends a single End of Text on startup, which gives an empty message
+        stream.write(FrameReader.END_OF_TEXT);
+        for (byte[] message : messages) {
+            stream.write(message);
+            stream.write(FrameReader.END_OF_TEXT);
+        }
+
+        // The bluetooth stream returns whatever has arrived, so the reads are of random length
+        FrameBufferPool frameBufferPool = new FrameBufferPool(2);
+        FrameReader frameReader = new FrameReader(new TrickleInputStream(
+                new ByteArrayInputStream(stream.toByteArray()), new Random(4711)), frameBufferPool);
+
+        assertEquals(0, readAndRecycle(frameReader).length);
+        for (byte[] message : messages) {
+            assertArrayEquals(message, readAndRecycle(frameReader));
+        }
+        assertNull(frameReader.readFrame());
+        // All messages fit into the initial buffer, so the same one is used for all of them
+        assertEquals(1, frameBufferPool.getAllocatedCount());
+    }
+
+    @Test
+    public void dropsOverlongMessages() throws IOException {
+        byte[] overlong = new byte[FrameReader.MAX_FRAME_SIZE + 1];
+        Arrays.fill(overlong, (byte) '{');
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(overlong);
+        stream.write(FrameReader.END_OF_TEXT);
+        stream.write(messages.get(0));
+        stream.write(FrameReader.END_OF_TEXT);
+
+        FrameReader frameReader = new FrameReader(new ByteArrayInputStream(stream.toByteArray()),
+                new FrameBufferPool(2));
+        assertArrayEquals(messages.get(0), readAndRecycle(frameReader));
+        assertEquals(1, frameReader.getDroppedFrames());
+    }
+
+    @Test
+    public void decodesOnlyTheUsedLength() throws IOException {
+        FrameBufferPool frameBufferPool = new FrameBufferPool(2);
+        FrameBuffer frameBuffer = frameBufferPool.acquire();
+        frameBuffer.append(messages.get(0), 0, messages.get(0).length);
+        assertEquals(new String(messages.get(0), "US-ASCII"), frameBuffer.decodeASCII());
+
+        // A recycled buffer is handed out again and starts empty
+        frameBuffer.recycle();
+        assertSame(frameBuffer, frameBufferPool.acquire());
+        assertEquals(0, frameBuffer.getLength());
+        assertEquals("", frameBuffer.decodeASCII());
+    }
+
+    /**
+     * Read the next message and return the buffer to the pool
+     * @param frameReader The reader to read the message from
+     * @return A copy of the message or null if the stream has ended
+     */
+    private static byte[] readAndRecycle(FrameReader frameReader) throws IOException {
+        FrameBuffer frame = frameReader.readFrame();
+        if (frame == null) {
+            return null;
+        }
+        byte[] result = Arrays.copyOf(frame.getBytes(), frame.getLength());
+        frame.recycle();
+        return result;
+    }
+
+    /**
+     * Read all JSON messages of the protocol test suite
+     * @return The raw bytes of the messages or an empty list if the test suite can not be found
+     */
+    static List<byte[]> readProtocolMessages() throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        File[] files = PROTOCOL_TESTS.listFiles();
+        if (files == null) {
+            return result;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(".json")) {
+                continue;
+            }
+            InputStream inputStream = new FileInputStream(file);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            inputStream.close();
+            result.add(content.toByteArray());
+        }
+        return result;
+    }
+
+    /**
+     * An InputStream returning only a few bytes per read like a serial connection does
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+        private final Random random;
+
+        TrickleInputStream(InputStream in, Random random) {
+            super(in);
+            this.random = random;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1 + random.nextInt(64)));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the geohashes used to find the positions within a bounding box
+ */
+public class GeoHashTest {
+
+    @Test
+    public void interleavesStartingWithTheLongitude() {
+        assertEquals(0, GeoHash.encode(-90, -180));
+        assertEquals((1L << (2 * GeoHash.BITS)) - 1, GeoHash.encode(90, 180));
+        // The highest bit is the one of the longitude
+        assertEquals(1L << (2 * GeoHash.BITS - 1), GeoHash.encode(-90, 0));
+        assertEquals(1L << (2 * GeoHash.BITS - 2), GeoHash.encode(0, -180));
+    }
+
+    @Test
+    public void coversEveryPositionInTheBox() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            double south = random.nextDouble() * 170 - 85;
+            double north = Math.min(90, south + random.nextDouble() * (i % 2 == 0 ? 0.01 : 10));
+            double west = random.nextDouble() * 360 - 180;
+            double east = west + random.nextDouble() * (i % 2 == 0 ? 0.01 : 10);
+            if (east > 180) {
+                east -= 360;
+            }
+            List<long[]> ranges = GeoHash.cover(south, west, north, east);
+            assertTrue(ranges.size() <= GeoHash.MAX_CELLS);
+            for (int j = 0; j < 100; j++) {
+                double latitude = south + random.nextDouble() * (north - south);
+                double width = east >= west ? east - west : east - west + 360;
+                double longitude = west + random.nextDouble() * width;
+                if (longitude > 180) {
+                    longitude -= 360;
+                }
+                assertTrue(contains(ranges, GeoHash.encode(latitude, longitude)));
+            }
+        }
+    }
+
+    @Test
+    public void coversOnlyTheSurroundingsOfASmallBox() {
+        // About 100 by 100 meters in Bremen
+        List<long[]> ranges = GeoHash.cover(53.1030, 8.8500, 53.1039, 8.8515);
+        assertTrue(contains(ranges, GeoHash.encode(53.1035, 8.8510)));
+        assertFalse(contains(ranges, GeoHash.encode(53.1100, 8.8510)));
+        assertFalse(contains(ranges, GeoHash.encode(53.1035, 8.8600)));
+        assertFalse(contains(ranges, GeoHash.encode(-53.1035, 8.8510)));
+    }
+
+    @Test
+    public void coversBothSidesOfTheMeridian() {
+        List<long[]> ranges = GeoHash.cover(-20, 179, -10, -179);
+        assertTrue(contains(ranges, GeoHash.encode(-15, 179.5)));
+        assertTrue(contains(ranges, GeoHash.encode(-15, -179.5)));
+        assertFalse(contains(ranges, GeoHash.encode(-15, 0)));
+        for (int i = 1; i < ranges.size(); i++) {
+            assertTrue(ranges.get(i - 1)[1] < ranges.get(i)[0]);
+        }
+    }
+
+    private static boolean contains(List<long[]> ranges, long geohash) {
+        for (long[] range : ranges) {
+            if (geohash >= range[0] && geohash <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.ParseException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the GpsTimeDecoder with the SimpleDateFormat used before for every possible date and
+ * time and checks that it is faster and does not allocate memory.
+ */
+public class GpsTimeDecoderTest {
+
+    @Test
+    public void sameResultsForAllDates() throws Exception {
+        GpsTimeDecoder decoder = new GpsTimeDecoder();
+        for (long date = 0; date <= 999999; date++) {
+            assertSameResult(decoder, date, 12345678);
+        }
+    }
+
+    @Test
+    public void sameResultsForAllTimes() throws Exception {
+        GpsTimeDecoder decoder = new GpsTimeDecoder();
+        Random random = new Random(5);
+        for (long seconds = 0; seconds <= 999999; seconds++) {
+            assertSameResult(decoder, 290216, seconds * 100 + random.nextInt(100));
+        }
+    }
+
+    @Test
+    public void sameResultsForRandomDatesAndTimes() throws Exception {
+        GpsTimeDecoder decoder = new GpsTimeDecoder();
+        Random random = new Random(5);
+        for (int i = 0; i < 200000; i++) {
+            assertSameResult(decoder, random.nextInt(1000000), random.nextInt(100000000));
+        }
+    }
+
+    /**
+     * Numbers not fitting into the format are given to the SimpleDateFormat, including the
+     * exceptions thrown
+     */
+    @Test
+    public void sameResultsForUnusualValues() throws Exception {
+        GpsTimeDecoder decoder = new GpsTimeDecoder();
+        long[] values = {-1, -99, -100, -101, -999999, -1000000, 999999, 1000000, 9999999,
+                99999999, 100000000, 123456789012L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long date : values) {
+            for (long time : values) {
+                assertSameResult(decoder, date, time);
+            }
+        }
+    }
+
+    /**
+     * A simple benchmark of both implementations with the kind of values sent by the transducer.
+     * The thresholds are far from the numbers measured, the GpsTimeDecoder is about fifty times
+     * as fast; it may only allocate when the window of the two digit years is moved.
+     */
+    @Test
+    public void fasterWithoutAllocating() throws Exception {
+        GpsTimeDecoder decoder = new GpsTimeDecoder();
+        int iterations = 200000;
+        long sum = 0;
+        for (int i = 0; i < iterations / 4; i++) {
+            sum += decoder.decode(170126, i % 8640000 * 100);
+            sum += GpsTimeDecoder.decodeWithFormat(170126, i % 8640000 * 100);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sum += GpsTimeDecoder.decodeWithFormat(170126, i % 8640000 * 100);
+        }
+        long format = System.nanoTime() - start;
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long allocated = allocatedBytes(threadMXBean);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sum += decoder.decode(170126, i % 8640000 * 100);
+        }
+        long decoded = System.nanoTime() - start;
+        allocated = allocatedBytes(threadMXBean) - allocated;
+
+        assertTrue("SimpleDateFormat " + format / iterations + " ns, GpsTimeDecoder "
+                + decoded / iterations + " ns per conversion", decoded * 5 < format);
+        assertTrue(allocated + " bytes allocated", allocated < iterations);
+        // Keeps the conversions from being optimized away
+        assertTrue(sum > 0);
+    }
+
+    private static void assertSameResult(GpsTimeDecoder decoder, long date, long time) {
+        String expected;
+        try {
+            expected = Long.toString(GpsTimeDecoder.decodeWithFormat(date, time));
+        } catch (ParseException e) {
+            expected = e.getMessage();
+        }
+        String actual;
+        try {
+            actual = Long.toString(decoder.decode(date, time));
+        } catch (ParseException e) {
+            actual = e.getMessage();
+        }
+        if (!expected.equals(actual)) {
+            assertEquals("date " + date + ", time " + time, expected, actual);
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far or 0 if unknown
+     */
+    private static long allocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
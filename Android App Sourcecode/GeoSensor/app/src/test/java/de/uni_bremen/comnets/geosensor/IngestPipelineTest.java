@@ -0,0 +1,211 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the IngestPipeline with a Handler that parses numbers and simulates a slow database.
+ */
+public class IngestPipelineTest {
+
+    @Test
+    public void savesAllMessagesInOrder() throws Exception {
+        RecordingHandler handler = new RecordingHandler(0);
+        IngestPipeline<Integer> pipeline = new IngestPipeline<>(handler);
+        FrameBufferPool frameBufferPool = new FrameBufferPool(4);
+
+        for (int i = 0; i < 10000; i++) {
+            pipeline.submit(frame(frameBufferPool, Integer.toString(i)));
+        }
+        pipeline.submit(frame(frameBufferPool, "invalid"));
+        pipeline.submit(frame(frameBufferPool, ""));
+        pipeline.close();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(10000, handler.saved.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, (int) handler.saved.get(i));
+        }
+        assertEquals(10000, handler.acknowledged.get());
+        assertEquals(1, handler.resendRequests.get());
+        assertEquals(10002, pipeline.getParserStage().getCount());
+        assertEquals(10000, pipeline.getWriterStage().getCount());
+    }
+
+    /**
+     * A slow database must not block the reader: the messages are taken while the writer is still
+     * busy, everything waiting is saved in a single batch and acknowledged afterwards.
+     */
+    @Test
+    public void acknowledgesSlowWritesInBatches() throws Exception {
+        RecordingHandler handler = new RecordingHandler(50);
+        IngestPipeline<Integer> pipeline = new IngestPipeline<>(handler);
+        FrameBufferPool frameBufferPool = new FrameBufferPool(4);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            pipeline.submit(frame(frameBufferPool, Integer.toString(i)));
+        }
+        // Submitting takes much less time than a few writes
+        long submitMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Submitted after " + submitMillis + " ms", submitMillis < 150);
+
+        pipeline.close();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(200, handler.saved.size());
+        assertEquals(200, handler.acknowledged.get());
+        assertTrue(handler.batches.get() < 10);
+    }
+
+    /**
+     * A message must only be acknowledged once it has been saved, as the transducer drops it
+     * then. If saving fails, the messages are requested again instead.
+     */
+    @Test
+    public void doesNotAcknowledgeFailedSaves() throws Exception {
+        RecordingHandler handler = new RecordingHandler(0);
+        handler.failSaves = true;
+        IngestPipeline<Integer> pipeline = new IngestPipeline<>(handler);
+        FrameBufferPool frameBufferPool = new FrameBufferPool(4);
+
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit(frame(frameBufferPool, Integer.toString(i)));
+        }
+        pipeline.close();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, handler.acknowledged.get());
+        assertEquals(0, handler.saved.size());
+        assertEquals(100, handler.failedResendRequests.get());
+        assertTrue(pipeline.getWriterStage().getErrors() > 0);
+        assertEquals(pipeline.getWriterStage().getErrors(), handler.failures.get());
+    }
+
+    /**
+     * If the writer can not keep up at all, the queues fill up and the reader is blocked instead
+     * of the memory use growing without limit.
+     */
+    @Test
+    public void appliesBackPressure() throws Exception {
+        RecordingHandler handler = new RecordingHandler(5);
+        // Batches of a single message make the writer as slow as possible
+        handler.maxBatch = 1;
+        final IngestPipeline<Integer> pipeline = new IngestPipeline<>(handler);
+        final FrameBufferPool frameBufferPool = new FrameBufferPool(4);
+
+        final AtomicInteger submitted = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        pipeline.submit(frame(frameBufferPool, Integer.toString(i)));
+                        submitted.incrementAndGet();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(500);
+
+        int limit = IngestPipeline.FRAME_QUEUE_CAPACITY + IngestPipeline.RECORD_QUEUE_CAPACITY
+                + IngestPipeline.MAX_BATCH_SIZE + 2
+                + 500 / 5;
+        assertTrue("Submitted " + submitted.get(), submitted.get() <= limit);
+        assertTrue(pipeline.getParserStage().getStalls() > 0);
+        assertTrue(pipeline.getWriterStage().getStalls() > 0);
+
+        reader.interrupt();
+        reader.join();
+        pipeline.close();
+    }
+
+    private static FrameBuffer frame(FrameBufferPool frameBufferPool, String content) {
+        FrameBuffer frameBuffer = frameBufferPool.acquire();
+        byte[] bytes = content.getBytes();
+        frameBuffer.append(bytes, 0, bytes.length);
+        return frameBuffer;
+    }
+
+    private static class RecordingHandler implements IngestPipeline.Handler<Integer> {
+        private final long saveMillis;
+        private int maxBatch = Integer.MAX_VALUE;
+        private boolean failSaves = false;
+
+        final List<Integer> saved = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger acknowledged = new AtomicInteger();
+        final AtomicInteger resendRequests = new AtomicInteger();
+        final AtomicInteger failedResendRequests = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+
+        RecordingHandler(long saveMillis) {
+            this.saveMillis = saveMillis;
+        }
+
+        @Override
+        public Integer parse(FrameBuffer frame) throws ParseException {
+            String content = frame.decodeASCII();
+            if (content.isEmpty()) {
+                return null;
+            }
+            try {
+                return Integer.valueOf(content);
+            } catch (NumberFormatException e) {
+                throw new ParseException(content, 0);
+            }
+        }
+
+        @Override
+        public void requestResend() {
+            resendRequests.incrementAndGet();
+        }
+
+        @Override
+        public void acknowledge(List<Integer> batch) {
+            acknowledged.addAndGet(batch.size());
+        }
+
+        @Override
+        public void requestResend(List<Integer> batch) {
+            failedResendRequests.addAndGet(batch.size());
+        }
+
+        @Override
+        public void save(List<Integer> batch) {
+            if (failSaves) {
+                throw new IllegalStateException("Database not available");
+            }
+            try {
+                for (int i = 0; i < batch.size(); i += maxBatch) {
+                    Thread.sleep(saveMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.incrementAndGet();
+            saved.addAll(batch);
+        }
+
+        @Override
+        public void saved(List<Integer> batch) {
+        }
+
+        @Override
+        public void failed(String stage, RuntimeException e) {
+            if (!failSaves) {
+                throw new AssertionError(stage, e);
+            }
+            failures.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package de.uni_bremen.comnets.geosensor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the clustering of positions for the map
+ */
+public class PositionClustererTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void combinesClosePositions() {
+        List<RecordPosition> positions = new ArrayList<>();
+        positions.add(new RecordPosition(1, 53.1000, 8.8500));
+        positions.add(new RecordPosition(2, 53.1002, 8.8502));
+        positions.add(new RecordPosition(3, -33.86, 151.21));
+
+        List<PositionClusterer.Cluster> clusters = PositionClusterer.cluster(positions, 10);
+        assertEquals(2, clusters.size());
+        for (PositionClusterer.Cluster cluster : clusters) {
+            if (cluster.getCount() == 2) {
+                assertEquals(-1, cluster.getDatabaseID());
+                assertEquals(53.1001, cluster.getLatitude(), DELTA);
+                assertEquals(8.8501, cluster.getLongitude(), DELTA);
+            } else {
+                assertEquals(1, cluster.getCount());
+                assertEquals(3, cluster.getDatabaseID());
+            }
+        }
+    }
+
+    @Test
+    public void separatesPositionsWhenZoomedIn() {
+        List<RecordPosition> positions = new ArrayList<>();
+        positions.add(new RecordPosition(1, 53.1000, 8.8500));
+        positions.add(new RecordPosition(2, 53.1100, 8.8600));
+
+        assertEquals(1, PositionClusterer.cluster(positions, 5).size());
+        List<PositionClusterer.Cluster> clusters = PositionClusterer.cluster(positions, 18);
+        assertEquals(2, clusters.size());
+        assertNotEquals(clusters.get(0).getKey(), clusters.get(1).getKey());
+    }
+
+    @Test
+    public void keepsTheKeysOfUnchangedClusters() {
+        List<RecordPosition> positions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            positions.add(new RecordPosition(i, 50 + i * 0.05, 5 + i * 0.05));
+        }
+        Set<String> keys = keys(PositionClusterer.cluster(positions, 12));
+
+        // Only the part of the map read changes, the clusters inside stay the same
+        List<RecordPosition> moved = new ArrayList<>(positions.subList(10, 100));
+        Set<String> movedKeys = keys(PositionClusterer.cluster(moved, 12));
+        assertEquals(90, movedKeys.size());
+        assertTrue(keys.containsAll(movedKeys));
+
+        // Another zoom level has other clusters
+        movedKeys.retainAll(keys(PositionClusterer.cluster(moved, 13)));
+        assertTrue(movedKeys.isEmpty());
+    }
+
+    @Test
+    public void projectsLikeTheMap() {
+        assertEquals(0.5, PositionClusterer.projectX(0), DELTA);
+        assertEquals(0, PositionClusterer.projectX(-180), DELTA);
+        assertEquals(0.5, PositionClusterer.projectY(0), DELTA);
+        assertTrue(PositionClusterer.projectY(53) < 0.5);
+        // The poles are outside the map
+        assertEquals(0, PositionClusterer.projectY(90), DELTA);
+        assertEquals(1, PositionClusterer.projectY(-90), DELTA);
+    }
+
+    private static Set<String> keys(List<PositionClusterer.Cluster> clusters) {
+        Set<String> keys = new HashSet<>();
+        for (PositionClusterer.Cluster cluster : clusters) {
+            keys.add(cluster.getKey());
+        }
+        return keys;
+    }
+}
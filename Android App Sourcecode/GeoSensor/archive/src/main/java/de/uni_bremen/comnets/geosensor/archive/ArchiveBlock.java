@@ -0,0 +1,349 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A block of an archive read into memory. The columns are decoded when they are requested
+ * first, so a scan only pays for the columns it uses.
+ *
+ * The columns of the locations and of the measured values contain the ones of all records in
+ * turn. The offsets tell where the ones of a record start: the locations of record i are the
+ * ones from getLocationOffsets()[i] to getLocationOffsets()[i + 1].
+ *
+ * The arrays returned belong to the block and must not be modified.
+ */
+public class ArchiveBlock {
+    private final byte[] bytes;
+    private final BlockStatistics statistics;
+    private final int[] columnOffsets = new int[ArchiveFormat.COLUMN_COUNT];
+    private final int[] columnEncodings = new int[ArchiveFormat.COLUMN_COUNT];
+    private final int[] columnLengths = new int[ArchiveFormat.COLUMN_COUNT];
+    private final int[] storedLengths = new int[ArchiveFormat.COLUMN_COUNT];
+
+    private long[] receiveTimes;
+    private long[] arduinoTimes;
+    private String[] arduinoSoftware;
+    private String[] comments;
+    private int[] locationOffsets;
+    private double[] latitudes;
+    private double[] longitudes;
+    private long[] locationTimes;
+    private String[] providers;
+    private double[] altitudes;
+    private double[] accuracies;
+    private int[] measureDataOffsets;
+    private String[] types;
+    private String[] names;
+    private String[] sensors;
+    private double[] values;
+    private String[] units;
+
+    /**
+     * @param bytes The block without its length
+     * @throws IOException if the block is malformed
+     */
+    ArchiveBlock(byte[] bytes) throws IOException {
+        this.bytes = bytes;
+        ColumnInput in = new ColumnInput(bytes, 0, bytes.length);
+        statistics = BlockStatistics.read(in);
+        int columns = (int) in.readVarLong();
+        int[] ids = new int[columns];
+        int[] encodings = new int[columns];
+        int[] lengths = new int[columns];
+        int[] stored = new int[columns];
+        for (int i = 0; i < columns; i++) {
+            ids[i] = (int) in.readVarLong();
+            encodings[i] = in.readByte();
+            lengths[i] = (int) in.readVarLong();
+            stored[i] = (int) in.readVarLong();
+        }
+        int offset = in.getPosition();
+        for (int i = 0; i < columns; i++) {
+            if (stored[i] < 0 || offset + stored[i] > bytes.length) {
+                throw new IOException("Malformed block");
+            }
+            // Columns of later versions are skipped
+            if (ids[i] >= 0 && ids[i] < ArchiveFormat.COLUMN_COUNT) {
+                columnOffsets[ids[i]] = offset;
+                columnEncodings[ids[i]] = encodings[i];
+                columnLengths[ids[i]] = lengths[i];
+                storedLengths[ids[i]] = stored[i];
+            }
+            offset += stored[i];
+        }
+    }
+
+    public BlockStatistics getStatistics() {
+        return statistics;
+    }
+
+    public int getRecordCount() {
+        return statistics.getRecordCount();
+    }
+
+    /**
+     * @return The time every record has been received in milliseconds since 1970
+     */
+    public long[] getReceiveTimes() throws IOException {
+        if (receiveTimes == null) {
+            receiveTimes = readLongs(ArchiveFormat.COLUMN_RECEIVE_TIME, null);
+        }
+        return receiveTimes;
+    }
+
+    public long[] getArduinoTimes() throws IOException {
+        if (arduinoTimes == null) {
+            arduinoTimes = readLongs(ArchiveFormat.COLUMN_ARDUINO_TIME, null);
+        }
+        return arduinoTimes;
+    }
+
+    public String[] getArduinoSoftware() throws IOException {
+        if (arduinoSoftware == null) {
+            arduinoSoftware = readStrings(ArchiveFormat.COLUMN_ARDUINO_SOFTWARE,
+                    getRecordCount());
+        }
+        return arduinoSoftware;
+    }
+
+    public String[] getComments() throws IOException {
+        if (comments == null) {
+            comments = readStrings(ArchiveFormat.COLUMN_COMMENT, getRecordCount());
+        }
+        return comments;
+    }
+
+    /**
+     * @return The index of the first location of every record, followed by the number of
+     *         locations in the block
+     */
+    public int[] getLocationOffsets() throws IOException {
+        if (locationOffsets == null) {
+            locationOffsets = readOffsets(ArchiveFormat.COLUMN_LOCATION_COUNT);
+        }
+        return locationOffsets;
+    }
+
+    public double[] getLatitudes() throws IOException {
+        if (latitudes == null) {
+            latitudes = readDoubles(ArchiveFormat.COLUMN_LATITUDE, getLocationOffsets());
+        }
+        return latitudes;
+    }
+
+    public double[] getLongitudes() throws IOException {
+        if (longitudes == null) {
+            longitudes = readDoubles(ArchiveFormat.COLUMN_LONGITUDE, getLocationOffsets());
+        }
+        return longitudes;
+    }
+
+    public long[] getLocationTimes() throws IOException {
+        if (locationTimes == null) {
+            locationTimes = readLongs(ArchiveFormat.COLUMN_LOCATION_TIME, getLocationOffsets());
+        }
+        return locationTimes;
+    }
+
+    public String[] getProviders() throws IOException {
+        if (providers == null) {
+            providers = readStrings(ArchiveFormat.COLUMN_PROVIDER, last(getLocationOffsets()));
+        }
+        return providers;
+    }
+
+    public double[] getAltitudes() throws IOException {
+        if (altitudes == null) {
+            altitudes = readDoubles(ArchiveFormat.COLUMN_ALTITUDE, getLocationOffsets());
+        }
+        return altitudes;
+    }
+
+    public double[] getAccuracies() throws IOException {
+        if (accuracies == null) {
+            accuracies = readDoubles(ArchiveFormat.COLUMN_ACCURACY, getLocationOffsets());
+        }
+        return accuracies;
+    }
+
+    /**
+     * @return The index of the first measured value of every record, followed by the number of
+     *         measured values in the block
+     */
+    public int[] getMeasureDataOffsets() throws IOException {
+        if (measureDataOffsets == null) {
+            measureDataOffsets = readOffsets(ArchiveFormat.COLUMN_MEASURE_DATA_COUNT);
+        }
+        return measureDataOffsets;
+    }
+
+    public String[] getTypes() throws IOException {
+        if (types == null) {
+            types = readStrings(ArchiveFormat.COLUMN_TYPE, last(getMeasureDataOffsets()));
+        }
+        return types;
+    }
+
+    public String[] getNames() throws IOException {
+        if (names == null) {
+            names = readStrings(ArchiveFormat.COLUMN_NAME, last(getMeasureDataOffsets()));
+        }
+        return names;
+    }
+
+    public String[] getSensors() throws IOException {
+        if (sensors == null) {
+            sensors = readStrings(ArchiveFormat.COLUMN_SENSOR, last(getMeasureDataOffsets()));
+        }
+        return sensors;
+    }
+
+    public double[] getValues() throws IOException {
+        if (values == null) {
+            values = readDoubles(ArchiveFormat.COLUMN_VALUE, getMeasureDataOffsets());
+        }
+        return values;
+    }
+
+    public String[] getUnits() throws IOException {
+        if (units == null) {
+            units = readStrings(ArchiveFormat.COLUMN_UNIT, last(getMeasureDataOffsets()));
+        }
+        return units;
+    }
+
+    /**
+     * Get a record with all of its columns
+     * @param index The index of the record within the block
+     * @return The record
+     */
+    public ArchiveRecord getRecord(int index) throws IOException {
+        ArchiveRecord record = new ArchiveRecord(getReceiveTimes()[index],
+                getArduinoTimes()[index], getArduinoSoftware()[index], getComments()[index]);
+        int[] locations = getLocationOffsets();
+        for (int i = locations[index]; i < locations[index + 1]; i++) {
+            record.addLocation(getLatitudes()[i], getLongitudes()[i], getLocationTimes()[i],
+                    getProviders()[i], getAltitudes()[i], getAccuracies()[i]);
+        }
+        int[] measureData = getMeasureDataOffsets();
+        for (int i = measureData[index]; i < measureData[index + 1]; i++) {
+            record.addMeasureData(getTypes()[i], getNames()[i], getSensors()[i], getValues()[i],
+                    getUnits()[i]);
+        }
+        return record;
+    }
+
+    /**
+     * @param id The ID of the column
+     * @return The column inflated if necessary
+     */
+    private byte[] column(int id) throws IOException {
+        int offset = columnOffsets[id];
+        int length = columnLengths[id];
+        byte[] column = new byte[length];
+        if (columnEncodings[id] == ArchiveFormat.ENCODING_RAW) {
+            if (storedLengths[id] != length) {
+                throw new IOException("Malformed column");
+            }
+            System.arraycopy(bytes, offset, column, 0, length);
+            return column;
+        }
+        if (columnEncodings[id] != ArchiveFormat.ENCODING_DEFLATE) {
+            throw new IOException("Unknown column encoding " + columnEncodings[id]);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, storedLengths[id]);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(column, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length) {
+                throw new IOException("Malformed column");
+            }
+            return column;
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed column", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param id The ID of a delta encoded column
+     * @param offsets The offsets of the series, null for a single one per record
+     */
+    private long[] readLongs(int id, int[] offsets) throws IOException {
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder(column(id));
+        int records = getRecordCount();
+        if (offsets == null) {
+            long[] result = new long[records];
+            for (int i = 0; i < records; i++) {
+                result[i] = decoder.read(0);
+            }
+            return result;
+        }
+        long[] result = new long[offsets[records]];
+        for (int i = 0; i < records; i++) {
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                result[j] = decoder.read(j - offsets[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id The ID of a XOR compressed column
+     * @param offsets The offsets of the series
+     */
+    private double[] readDoubles(int id, int[] offsets) throws IOException {
+        XorCodec.Decoder decoder = new XorCodec.Decoder(column(id));
+        int records = getRecordCount();
+        double[] result = new double[offsets[records]];
+        for (int i = 0; i < records; i++) {
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                result[j] = decoder.read(j - offsets[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id The ID of a dictionary encoded column
+     * @param count The number of strings in the column
+     */
+    private String[] readStrings(int id, int count) throws IOException {
+        DictionaryCodec.Decoder decoder = new DictionaryCodec.Decoder(column(id));
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = decoder.read();
+        }
+        return result;
+    }
+
+    /**
+     * @param id The ID of a count column
+     * @return The offsets of the records, followed by the sum of the counts
+     */
+    private int[] readOffsets(int id) throws IOException {
+        long[] counts = readLongs(id, null);
+        int[] offsets = new int[counts.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] < 0) {
+                throw new IOException("Malformed count column");
+            }
+            offsets[i + 1] = offsets[i] + (int) counts[i];
+        }
+        return offsets;
+    }
+
+    private static int last(int[] offsets) {
+        return offsets[offsets.length - 1];
+    }
+}
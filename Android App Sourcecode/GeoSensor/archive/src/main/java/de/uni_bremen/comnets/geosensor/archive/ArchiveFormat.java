@@ -0,0 +1,185 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * The layout of an archive file:
+ *
+ * - The header: the magic bytes "GSAR" and the version of the format.
+ * - The blocks: the length of the rest of the block (four bytes), the BlockStatistics, the
+ *   number of columns, for every column its ID, its encoding, its length and its length as
+ *   stored, followed by the columns themselves.
+ * - The index: the number of blocks and for every block its offset and its BlockStatistics.
+ * - The trailer: the offset of the index (eight bytes) and the magic bytes again.
+ *
+ * Every block can be read on its own. An archive which has not been completed, for example
+ * because its export has been interrupted, has no index; it is found by reading the blocks one
+ * after the other then.
+ *
+ * The records of a block are stored column by column. The columns of the locations and of the
+ * measured values contain the ones of all records in turn, the count columns tell how many
+ * belong to each record. Numbers are delta encoded (DeltaCodec), values XOR compressed (XorCodec)
+ * and strings dictionary encoded (DictionaryCodec). The series of a value is its position within
+ * its record, so for example the first temperature of each record is compared to the first
+ * temperature of the previous record. Each column is deflated if that makes it smaller.
+ */
+class ArchiveFormat {
+    static final byte[] MAGIC = {'G', 'S', 'A', 'R'};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 1;
+    static final int TRAILER_LENGTH = 8 + MAGIC.length;
+
+    static final int ENCODING_RAW = 0;
+    static final int ENCODING_DEFLATE = 1;
+
+    static final int COLUMN_RECEIVE_TIME = 0;
+    static final int COLUMN_ARDUINO_TIME = 1;
+    static final int COLUMN_ARDUINO_SOFTWARE = 2;
+    static final int COLUMN_COMMENT = 3;
+    static final int COLUMN_LOCATION_COUNT = 4;
+    static final int COLUMN_LATITUDE = 5;
+    static final int COLUMN_LONGITUDE = 6;
+    static final int COLUMN_LOCATION_TIME = 7;
+    static final int COLUMN_PROVIDER = 8;
+    static final int COLUMN_ALTITUDE = 9;
+    static final int COLUMN_ACCURACY = 10;
+    static final int COLUMN_MEASURE_DATA_COUNT = 11;
+    static final int COLUMN_TYPE = 12;
+    static final int COLUMN_NAME = 13;
+    static final int COLUMN_SENSOR = 14;
+    static final int COLUMN_VALUE = 15;
+    static final int COLUMN_UNIT = 16;
+    static final int COLUMN_COUNT = 17;
+
+    private ArchiveFormat() {}
+
+    /**
+     * @return The header of an archive
+     */
+    static byte[] header() {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        return header;
+    }
+
+    /**
+     * Check the header of an archive
+     * @param file The archive
+     * @throws IOException if the file is no archive of a version known
+     */
+    static void readHeader(RandomAccessFile file) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        file.seek(0);
+        try {
+            file.readFully(header);
+        } catch (EOFException e) {
+            throw new IOException("Not a GeoSensor archive");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new IOException("Not a GeoSensor archive");
+            }
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new IOException("Unknown archive version " + header[MAGIC.length]);
+        }
+    }
+
+    /**
+     * Find the blocks of an archive by reading them one after the other. Reading stops at the
+     * first block which is not complete.
+     * @param file The archive
+     * @param end The end of the blocks, for example the length of the file
+     * @param offsets The offsets of the blocks found are added
+     * @param statistics The statistics of the blocks found are added
+     * @return The end of the last complete block
+     */
+    static long scanBlocks(RandomAccessFile file, long end, List<Long> offsets,
+                           List<BlockStatistics> statistics) throws IOException {
+        long offset = HEADER_LENGTH;
+        byte[] buffer = new byte[1024];
+        while (offset + 4 <= end) {
+            file.seek(offset);
+            long length = file.readInt() & 0xffffffffL;
+            if (offset + 4 + length > end) {
+                break;
+            }
+            // The statistics are at the beginning of the block, a part of it is enough
+            int part = (int) Math.min(length, buffer.length);
+            file.readFully(buffer, 0, part);
+            BlockStatistics blockStatistics;
+            try {
+                blockStatistics = BlockStatistics.read(new ColumnInput(buffer, 0, part));
+            } catch (IOException e) {
+                // More types than fit into the part read
+                byte[] block = new byte[(int) length];
+                file.seek(offset + 4);
+                file.readFully(block);
+                blockStatistics = BlockStatistics.read(new ColumnInput(block, 0, block.length));
+            }
+            offsets.add(offset);
+            statistics.add(blockStatistics);
+            offset += 4 + length;
+        }
+        return offset;
+    }
+
+    /**
+     * @param offsets The offsets of the blocks
+     * @param statistics The statistics of the blocks
+     * @param indexOffset The offset the index is written to
+     * @return The index and the trailer
+     */
+    static byte[] index(List<Long> offsets, List<BlockStatistics> statistics, long indexOffset) {
+        ColumnOutput out = new ColumnOutput(64 * offsets.size() + 32);
+        out.writeVarLong(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            out.writeVarLong(offsets.get(i));
+            statistics.get(i).write(out);
+        }
+        out.writeFixedLong(indexOffset);
+        out.writeBytes(MAGIC, 0, MAGIC.length);
+        byte[] index = new byte[out.length()];
+        System.arraycopy(out.getBytes(), 0, index, 0, index.length);
+        return index;
+    }
+
+    /**
+     * Read the index of a complete archive
+     * @param file The archive
+     * @param offsets The offsets of the blocks are added
+     * @param statistics The statistics of the blocks are added
+     * @return false if the archive has no index
+     */
+    static boolean readIndex(RandomAccessFile file, List<Long> offsets,
+                             List<BlockStatistics> statistics) throws IOException {
+        long length = file.length();
+        if (length < HEADER_LENGTH + TRAILER_LENGTH) {
+            return false;
+        }
+        file.seek(length - TRAILER_LENGTH);
+        long indexOffset = file.readLong();
+        for (byte magic : MAGIC) {
+            if (file.readByte() != magic) {
+                return false;
+            }
+        }
+        if (indexOffset < HEADER_LENGTH || indexOffset > length - TRAILER_LENGTH) {
+            return false;
+        }
+        byte[] index = new byte[(int) (length - TRAILER_LENGTH - indexOffset)];
+        file.seek(indexOffset);
+        file.readFully(index);
+        ColumnInput in = new ColumnInput(index, 0, index.length);
+        int blocks = (int) in.readVarLong();
+        for (int i = 0; i < blocks; i++) {
+            offsets.add(in.readVarLong());
+            statistics.add(BlockStatistics.read(in));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads an archive block by block. The statistics of all blocks are read when the archive is
+ * opened, so the blocks which can not contain the records looked for can be skipped:
+ *
+ * <pre>
+ * ArchiveReader reader = new ArchiveReader(file);
+ * for (int i = 0; i &lt; reader.getBlockCount(); i++) {
+ *     if (reader.getStatistics(i).mayContainValue("temperature", 30, 50)) {
+ *         ArchiveBlock block = reader.readBlock(i);
+ *         String[] types = block.getTypes();
+ *         double[] values = block.getValues();
+ *         ...
+ *     }
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * An archive which has not been completed can be read as well, up to its last complete block.
+ * An ArchiveReader is not thread-safe.
+ */
+public class ArchiveReader implements Closeable {
+    private final RandomAccessFile file;
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<BlockStatistics> statistics = new ArrayList<>();
+
+    /**
+     * @param file The archive
+     * @throws IOException if the file can not be read or is not an archive
+     */
+    public ArchiveReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            ArchiveFormat.readHeader(this.file);
+            if (!ArchiveFormat.readIndex(this.file, offsets, statistics)) {
+                ArchiveFormat.scanBlocks(this.file, this.file.length(), offsets, statistics);
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of blocks in the archive
+     */
+    public int getBlockCount() {
+        return offsets.size();
+    }
+
+    /**
+     * @param block The index of the block
+     * @return The statistics of the block, known without reading it
+     */
+    public BlockStatistics getStatistics(int block) {
+        return statistics.get(block);
+    }
+
+    /**
+     * @return The number of records in the archive
+     */
+    public long getRecordCount() {
+        long records = 0;
+        for (BlockStatistics blockStatistics : statistics) {
+            records += blockStatistics.getRecordCount();
+        }
+        return records;
+    }
+
+    /**
+     * @param block The index of the block
+     * @return The block, its columns are decoded when requested
+     */
+    public ArchiveBlock readBlock(int block) throws IOException {
+        file.seek(offsets.get(block));
+        long length = file.readInt() & 0xffffffffL;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed block");
+        }
+        byte[] bytes = new byte[(int) length];
+        file.readFully(bytes);
+        return new ArchiveBlock(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
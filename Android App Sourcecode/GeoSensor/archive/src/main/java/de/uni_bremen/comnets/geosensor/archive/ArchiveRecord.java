@@ -0,0 +1,195 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.util.Arrays;
+
+/**
+ * A measurement as stored in an archive: the general information of a DataRecord, its locations
+ * and its measured values. An ArchiveRecord can be reused for many records to write, set() clears
+ * the locations and the measured values.
+ */
+public class ArchiveRecord {
+    private long receiveTime;
+    private long arduinoTime;
+    private String arduinoSoftware;
+    private String comment;
+
+    private int locationCount = 0;
+    private double[] latitudes = new double[2];
+    private double[] longitudes = new double[2];
+    private long[] locationTimes = new long[2];
+    private String[] providers = new String[2];
+    private double[] altitudes = new double[2];
+    private double[] accuracies = new double[2];
+
+    private int measureDataCount = 0;
+    private String[] types = new String[4];
+    private String[] names = new String[4];
+    private String[] sensors = new String[4];
+    private double[] values = new double[4];
+    private String[] units = new String[4];
+
+    public ArchiveRecord() {}
+
+    /**
+     * @param receiveTime The time the record has been received in milliseconds since 1970
+     * @param arduinoTime The time of the transducer when sending the record
+     * @param arduinoSoftware The software of the transducer
+     * @param comment The comment of the user
+     */
+    public ArchiveRecord(long receiveTime, long arduinoTime, String arduinoSoftware,
+                         String comment) {
+        set(receiveTime, arduinoTime, arduinoSoftware, comment);
+    }
+
+    /**
+     * Set the general information and remove all locations and measured values
+     * @param receiveTime The time the record has been received in milliseconds since 1970
+     * @param arduinoTime The time of the transducer when sending the record
+     * @param arduinoSoftware The software of the transducer
+     * @param comment The comment of the user
+     */
+    public void set(long receiveTime, long arduinoTime, String arduinoSoftware, String comment) {
+        this.receiveTime = receiveTime;
+        this.arduinoTime = arduinoTime;
+        this.arduinoSoftware = arduinoSoftware;
+        this.comment = comment;
+        locationCount = 0;
+        measureDataCount = 0;
+    }
+
+    /**
+     * @param latitude The latitude in degrees
+     * @param longitude The longitude in degrees
+     * @param time The time of the location in milliseconds since 1970
+     * @param provider The provider of the location, for example the GPS of the transducer
+     * @param altitude The altitude in meters
+     * @param accuracy The accuracy in meters
+     */
+    public void addLocation(double latitude, double longitude, long time, String provider,
+                            double altitude, double accuracy) {
+        if (locationCount == latitudes.length) {
+            int size = locationCount * 2;
+            latitudes = Arrays.copyOf(latitudes, size);
+            longitudes = Arrays.copyOf(longitudes, size);
+            locationTimes = Arrays.copyOf(locationTimes, size);
+            providers = Arrays.copyOf(providers, size);
+            altitudes = Arrays.copyOf(altitudes, size);
+            accuracies = Arrays.copyOf(accuracies, size);
+        }
+        latitudes[locationCount] = latitude;
+        longitudes[locationCount] = longitude;
+        locationTimes[locationCount] = time;
+        providers[locationCount] = provider;
+        altitudes[locationCount] = altitude;
+        accuracies[locationCount] = accuracy;
+        locationCount++;
+    }
+
+    /**
+     * @param type The type of the value, for example temperature
+     * @param name The name of the sensor given by the user of the transducer
+     * @param sensor The type of the sensor
+     * @param value The value measured
+     * @param unit The unit of the value
+     */
+    public void addMeasureData(String type, String name, String sensor, double value,
+                               String unit) {
+        if (measureDataCount == types.length) {
+            int size = measureDataCount * 2;
+            types = Arrays.copyOf(types, size);
+            names = Arrays.copyOf(names, size);
+            sensors = Arrays.copyOf(sensors, size);
+            values = Arrays.copyOf(values, size);
+            units = Arrays.copyOf(units, size);
+        }
+        types[measureDataCount] = type;
+        names[measureDataCount] = name;
+        sensors[measureDataCount] = sensor;
+        values[measureDataCount] = value;
+        units[measureDataCount] = unit;
+        measureDataCount++;
+    }
+
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    public long getArduinoTime() {
+        return arduinoTime;
+    }
+
+    public String getArduinoSoftware() {
+        return arduinoSoftware;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public int getLocationCount() {
+        return locationCount;
+    }
+
+    public double getLatitude(int location) {
+        return latitudes[checkLocation(location)];
+    }
+
+    public double getLongitude(int location) {
+        return longitudes[checkLocation(location)];
+    }
+
+    public long getLocationTime(int location) {
+        return locationTimes[checkLocation(location)];
+    }
+
+    public String getProvider(int location) {
+        return providers[checkLocation(location)];
+    }
+
+    public double getAltitude(int location) {
+        return altitudes[checkLocation(location)];
+    }
+
+    public double getAccuracy(int location) {
+        return accuracies[checkLocation(location)];
+    }
+
+    public int getMeasureDataCount() {
+        return measureDataCount;
+    }
+
+    public String getType(int measureData) {
+        return types[checkMeasureData(measureData)];
+    }
+
+    public String getName(int measureData) {
+        return names[checkMeasureData(measureData)];
+    }
+
+    public String getSensor(int measureData) {
+        return sensors[checkMeasureData(measureData)];
+    }
+
+    public double getValue(int measureData) {
+        return values[checkMeasureData(measureData)];
+    }
+
+    public String getUnit(int measureData) {
+        return units[checkMeasureData(measureData)];
+    }
+
+    private int checkLocation(int location) {
+        if (location < 0 || location >= locationCount) {
+            throw new IndexOutOfBoundsException("Location " + location + " of " + locationCount);
+        }
+        return location;
+    }
+
+    private int checkMeasureData(int measureData) {
+        if (measureData < 0 || measureData >= measureDataCount) {
+            throw new IndexOutOfBoundsException("Measure data " + measureData + " of "
+                    + measureDataCount);
+        }
+        return measureData;
+    }
+}
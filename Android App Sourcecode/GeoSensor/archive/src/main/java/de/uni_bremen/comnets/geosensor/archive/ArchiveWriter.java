@@ -0,0 +1,110 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes records to an archive one after the other. Only the records of the current block are
+ * kept in memory, encoded already, so archives of any size can be written.
+ *
+ * Archives can also be written block by block, for example by several threads: write the
+ * header, the blocks encoded by BlockEncoders in order and finally the index built by reading
+ * the blocks written.
+ */
+public class ArchiveWriter implements Closeable {
+    /** The number of records per block if not given otherwise */
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final BlockEncoder encoder = new BlockEncoder();
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<BlockStatistics> statistics = new ArrayList<>();
+    private long position;
+
+    /**
+     * @param out The stream the archive is written to, should be buffered
+     */
+    public ArchiveWriter(OutputStream out) throws IOException {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param out The stream the archive is written to, should be buffered
+     * @param blockSize The number of records per block
+     */
+    public ArchiveWriter(OutputStream out, int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("The block size must be positive");
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        byte[] header = getHeader();
+        out.write(header);
+        position = header.length;
+    }
+
+    /**
+     * @param record The record to write, may be reused afterwards
+     */
+    public void write(ArchiveRecord record) throws IOException {
+        encoder.add(record);
+        if (encoder.getRecordCount() >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Write the last block and the index and close the stream
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (encoder.getRecordCount() > 0) {
+                writeBlock();
+            }
+            out.write(ArchiveFormat.index(offsets, statistics, position));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        byte[] block = encoder.finish();
+        ColumnInput in = new ColumnInput(block, 4, block.length - 4);
+        offsets.add(position);
+        statistics.add(BlockStatistics.read(in));
+        out.write(block);
+        position += block.length;
+    }
+
+    /**
+     * @return The header an archive starts with
+     */
+    public static byte[] getHeader() {
+        return ArchiveFormat.header();
+    }
+
+    /**
+     * Build the index of an archive written block by block. It is found by reading the blocks
+     * written, so it is complete even if the blocks have been written by several processes.
+     * @param file The archive, the header and the blocks written. The file pointer is left at
+     *             the end of the file, so the index can be written right away.
+     * @return The index, to be written at the end of the file
+     */
+    public static byte[] getIndex(RandomAccessFile file) throws IOException {
+        ArchiveFormat.readHeader(file);
+        List<Long> offsets = new ArrayList<>();
+        List<BlockStatistics> statistics = new ArrayList<>();
+        long end = ArchiveFormat.scanBlocks(file, file.length(), offsets, statistics);
+        if (end != file.length()) {
+            throw new IOException("The archive ends with an incomplete block");
+        }
+        file.seek(end);
+        return ArchiveFormat.index(offsets, statistics, end);
+    }
+}
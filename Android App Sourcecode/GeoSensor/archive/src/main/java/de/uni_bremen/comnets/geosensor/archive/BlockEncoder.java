@@ -0,0 +1,161 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.util.zip.Deflater;
+
+/**
+ * Encodes records into a block of an archive. Blocks are independent of each other, so several
+ * BlockEncoders can encode the blocks of an archive in parallel; the blocks only have to be
+ * written in order. A BlockEncoder is not thread-safe.
+ */
+public class BlockEncoder {
+    private final DeltaCodec.Encoder receiveTimes = new DeltaCodec.Encoder();
+    private final DeltaCodec.Encoder arduinoTimes = new DeltaCodec.Encoder();
+    private final DictionaryCodec.Encoder arduinoSoftware = new DictionaryCodec.Encoder();
+    private final DictionaryCodec.Encoder comments = new DictionaryCodec.Encoder();
+    private final DeltaCodec.Encoder locationCounts = new DeltaCodec.Encoder();
+    private final XorCodec.Encoder latitudes = new XorCodec.Encoder();
+    private final XorCodec.Encoder longitudes = new XorCodec.Encoder();
+    private final DeltaCodec.Encoder locationTimes = new DeltaCodec.Encoder();
+    private final DictionaryCodec.Encoder providers = new DictionaryCodec.Encoder();
+    private final XorCodec.Encoder altitudes = new XorCodec.Encoder();
+    private final XorCodec.Encoder accuracies = new XorCodec.Encoder();
+    private final DeltaCodec.Encoder measureDataCounts = new DeltaCodec.Encoder();
+    private final DictionaryCodec.Encoder types = new DictionaryCodec.Encoder();
+    private final DictionaryCodec.Encoder names = new DictionaryCodec.Encoder();
+    private final DictionaryCodec.Encoder sensors = new DictionaryCodec.Encoder();
+    private final XorCodec.Encoder values = new XorCodec.Encoder();
+    private final DictionaryCodec.Encoder units = new DictionaryCodec.Encoder();
+
+    private byte[] deflated = new byte[1024];
+    private BlockStatistics statistics = new BlockStatistics();
+
+    /**
+     * Add a record to the block
+     * @param record The record, may be reused afterwards
+     */
+    public void add(ArchiveRecord record) {
+        statistics.addRecord(record.getReceiveTime());
+        receiveTimes.write(0, record.getReceiveTime());
+        arduinoTimes.write(0, record.getArduinoTime());
+        arduinoSoftware.write(record.getArduinoSoftware());
+        comments.write(record.getComment());
+
+        int locationCount = record.getLocationCount();
+        locationCounts.write(0, locationCount);
+        for (int i = 0; i < locationCount; i++) {
+            statistics.addLocation(record.getLatitude(i), record.getLongitude(i));
+            latitudes.write(i, record.getLatitude(i));
+            longitudes.write(i, record.getLongitude(i));
+            locationTimes.write(i, record.getLocationTime(i));
+            providers.write(record.getProvider(i));
+            altitudes.write(i, record.getAltitude(i));
+            accuracies.write(i, record.getAccuracy(i));
+        }
+
+        int measureDataCount = record.getMeasureDataCount();
+        measureDataCounts.write(0, measureDataCount);
+        for (int i = 0; i < measureDataCount; i++) {
+            statistics.addValue(record.getType(i), record.getValue(i));
+            types.write(record.getType(i));
+            names.write(record.getName(i));
+            sensors.write(record.getSensor(i));
+            values.write(i, record.getValue(i));
+            units.write(record.getUnit(i));
+        }
+    }
+
+    /**
+     * @return The number of records added to the block
+     */
+    public int getRecordCount() {
+        return statistics.getRecordCount();
+    }
+
+    /**
+     * Encode the records added. The encoder starts a new block afterwards.
+     * @return The block, ready to be written to an archive
+     */
+    public byte[] finish() {
+        byte[][] columns = new byte[ArchiveFormat.COLUMN_COUNT][];
+        columns[ArchiveFormat.COLUMN_RECEIVE_TIME] = receiveTimes.finish();
+        columns[ArchiveFormat.COLUMN_ARDUINO_TIME] = arduinoTimes.finish();
+        columns[ArchiveFormat.COLUMN_ARDUINO_SOFTWARE] = arduinoSoftware.finish();
+        columns[ArchiveFormat.COLUMN_COMMENT] = comments.finish();
+        columns[ArchiveFormat.COLUMN_LOCATION_COUNT] = locationCounts.finish();
+        columns[ArchiveFormat.COLUMN_LATITUDE] = latitudes.finish();
+        columns[ArchiveFormat.COLUMN_LONGITUDE] = longitudes.finish();
+        columns[ArchiveFormat.COLUMN_LOCATION_TIME] = locationTimes.finish();
+        columns[ArchiveFormat.COLUMN_PROVIDER] = providers.finish();
+        columns[ArchiveFormat.COLUMN_ALTITUDE] = altitudes.finish();
+        columns[ArchiveFormat.COLUMN_ACCURACY] = accuracies.finish();
+        columns[ArchiveFormat.COLUMN_MEASURE_DATA_COUNT] = measureDataCounts.finish();
+        columns[ArchiveFormat.COLUMN_TYPE] = types.finish();
+        columns[ArchiveFormat.COLUMN_NAME] = names.finish();
+        columns[ArchiveFormat.COLUMN_SENSOR] = sensors.finish();
+        columns[ArchiveFormat.COLUMN_VALUE] = values.finish();
+        columns[ArchiveFormat.COLUMN_UNIT] = units.finish();
+
+        ColumnOutput header = new ColumnOutput();
+        statistics.write(header);
+        header.writeVarLong(columns.length);
+        ColumnOutput data = new ColumnOutput(4096);
+        // A deflater holds native memory until it is ended, so it is not kept between blocks
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int id = 0; id < columns.length; id++) {
+                byte[] column = columns[id];
+                int storedLength = deflate(deflater, column);
+                header.writeVarLong(id);
+                if (storedLength < column.length) {
+                    header.writeByte(ArchiveFormat.ENCODING_DEFLATE);
+                    data.writeBytes(deflated, 0, storedLength);
+                } else {
+                    header.writeByte(ArchiveFormat.ENCODING_RAW);
+                    storedLength = column.length;
+                    data.writeBytes(column, 0, storedLength);
+                }
+                header.writeVarLong(column.length);
+                header.writeVarLong(storedLength);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // The block starts with the length of the rest of it
+        int length = header.length() + data.length();
+        byte[] block = new byte[4 + length];
+        block[0] = (byte) (length >>> 24);
+        block[1] = (byte) (length >>> 16);
+        block[2] = (byte) (length >>> 8);
+        block[3] = (byte) length;
+        System.arraycopy(header.getBytes(), 0, block, 4, header.length());
+        System.arraycopy(data.getBytes(), 0, block, 4 + header.length(), data.length());
+
+        statistics = new BlockStatistics();
+        return block;
+    }
+
+    /**
+     * Deflate a column into the deflated buffer
+     * @param deflater The deflater to use
+     * @param column The column
+     * @return The length of the deflated column, at least the length of the column if deflating
+     *         does not make it smaller
+     */
+    private int deflate(Deflater deflater, byte[] column) {
+        if (column.length < 16) {
+            return column.length;
+        }
+        if (deflated.length < column.length) {
+            deflated = new byte[column.length];
+        }
+        deflater.reset();
+        deflater.setInput(column);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < column.length) {
+            length += deflater.deflate(deflated, length, column.length - length);
+        }
+        return deflater.finished() ? length : column.length;
+    }
+}
@@ -0,0 +1,189 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The minimum and the maximum of the receive times, the positions and the values of every type
+ * within a block. They are stored with the block and in the index of the archive, so a reader
+ * can skip the blocks which can not contain any record it is looking for without reading them.
+ */
+public class BlockStatistics {
+    private int recordCount = 0;
+    private long minReceiveTime = Long.MAX_VALUE;
+    private long maxReceiveTime = Long.MIN_VALUE;
+    private int locationCount = 0;
+    private double minLatitude = Double.POSITIVE_INFINITY;
+    private double maxLatitude = Double.NEGATIVE_INFINITY;
+    private double minLongitude = Double.POSITIVE_INFINITY;
+    private double maxLongitude = Double.NEGATIVE_INFINITY;
+    /** The minimum and the maximum value of every type */
+    private final Map<String, double[]> values = new LinkedHashMap<>();
+
+    BlockStatistics() {}
+
+    /**
+     * @return The number of records in the block
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public long getMinReceiveTime() {
+        return minReceiveTime;
+    }
+
+    public long getMaxReceiveTime() {
+        return maxReceiveTime;
+    }
+
+    /**
+     * @return The number of locations of all records in the block
+     */
+    public int getLocationCount() {
+        return locationCount;
+    }
+
+    public double getMinLatitude() {
+        return minLatitude;
+    }
+
+    public double getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    public double getMinLongitude() {
+        return minLongitude;
+    }
+
+    public double getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    /**
+     * @return The types of the values in the block
+     */
+    public Set<String> getTypes() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * @param type The type of the values
+     * @return The smallest value of the type, NaN if there is none
+     */
+    public double getMinValue(String type) {
+        double[] range = values.get(type);
+        return range == null ? Double.NaN : range[0];
+    }
+
+    /**
+     * @param type The type of the values
+     * @return The largest value of the type, NaN if there is none
+     */
+    public double getMaxValue(String type) {
+        double[] range = values.get(type);
+        return range == null ? Double.NaN : range[1];
+    }
+
+    /**
+     * @param from The earliest time in milliseconds since 1970
+     * @param to The latest time in milliseconds since 1970
+     * @return false if no record of the block has been received within the time range
+     */
+    public boolean mayContainReceiveTime(long from, long to) {
+        return recordCount > 0 && minReceiveTime <= to && maxReceiveTime >= from;
+    }
+
+    /**
+     * @param south The southern bound of the box in degrees
+     * @param west The western bound of the box in degrees
+     * @param north The northern bound of the box in degrees
+     * @param east The eastern bound of the box in degrees
+     * @return false if no location of the block is within the box
+     */
+    public boolean mayContainPosition(double south, double west, double north, double east) {
+        return locationCount > 0 && minLatitude <= north && maxLatitude >= south
+                && minLongitude <= east && maxLongitude >= west;
+    }
+
+    /**
+     * @param type The type of the values
+     * @param min The smallest value looked for
+     * @param max The largest value looked for
+     * @return false if no value of the type within the range is in the block
+     */
+    public boolean mayContainValue(String type, double min, double max) {
+        double[] range = values.get(type);
+        return range != null && range[0] <= max && range[1] >= min;
+    }
+
+    void addRecord(long receiveTime) {
+        recordCount++;
+        minReceiveTime = Math.min(minReceiveTime, receiveTime);
+        maxReceiveTime = Math.max(maxReceiveTime, receiveTime);
+    }
+
+    void addLocation(double latitude, double longitude) {
+        locationCount++;
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return;
+        }
+        minLatitude = Math.min(minLatitude, latitude);
+        maxLatitude = Math.max(maxLatitude, latitude);
+        minLongitude = Math.min(minLongitude, longitude);
+        maxLongitude = Math.max(maxLongitude, longitude);
+    }
+
+    void addValue(String type, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        double[] range = values.get(type);
+        if (range == null) {
+            values.put(type, new double[]{value, value});
+        } else {
+            range[0] = Math.min(range[0], value);
+            range[1] = Math.max(range[1], value);
+        }
+    }
+
+    void write(ColumnOutput out) {
+        out.writeVarLong(recordCount);
+        out.writeSignedVarLong(minReceiveTime);
+        out.writeSignedVarLong(maxReceiveTime);
+        out.writeVarLong(locationCount);
+        out.writeFixedLong(Double.doubleToRawLongBits(minLatitude));
+        out.writeFixedLong(Double.doubleToRawLongBits(maxLatitude));
+        out.writeFixedLong(Double.doubleToRawLongBits(minLongitude));
+        out.writeFixedLong(Double.doubleToRawLongBits(maxLongitude));
+        out.writeVarLong(values.size());
+        for (Map.Entry<String, double[]> entry : values.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeFixedLong(Double.doubleToRawLongBits(entry.getValue()[0]));
+            out.writeFixedLong(Double.doubleToRawLongBits(entry.getValue()[1]));
+        }
+    }
+
+    static BlockStatistics read(ColumnInput in) throws IOException {
+        BlockStatistics statistics = new BlockStatistics();
+        statistics.recordCount = (int) in.readVarLong();
+        statistics.minReceiveTime = in.readSignedVarLong();
+        statistics.maxReceiveTime = in.readSignedVarLong();
+        statistics.locationCount = (int) in.readVarLong();
+        statistics.minLatitude = Double.longBitsToDouble(in.readFixedLong());
+        statistics.maxLatitude = Double.longBitsToDouble(in.readFixedLong());
+        statistics.minLongitude = Double.longBitsToDouble(in.readFixedLong());
+        statistics.maxLongitude = Double.longBitsToDouble(in.readFixedLong());
+        int types = (int) in.readVarLong();
+        for (int i = 0; i < types; i++) {
+            String type = in.readString();
+            double min = Double.longBitsToDouble(in.readFixedLong());
+            double max = Double.longBitsToDouble(in.readFixedLong());
+            statistics.values.put(type, new double[]{min, max});
+        }
+        return statistics;
+    }
+}
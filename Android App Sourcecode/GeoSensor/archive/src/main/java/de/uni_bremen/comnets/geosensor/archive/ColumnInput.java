@@ -0,0 +1,115 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.IOException;
+
+/**
+ * Reads what a ColumnOutput has written
+ */
+class ColumnInput {
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+    private long bits = 0;
+    private int bitCount = 0;
+
+    /**
+     * @param bytes The bytes to read
+     * @param offset The first byte to read
+     * @param length The number of bytes to read
+     */
+    ColumnInput(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    int readByte() throws IOException {
+        bitCount = 0;
+        if (position >= end) {
+            throw new IOException("Unexpected end of column");
+        }
+        return bytes[position++] & 0xff;
+    }
+
+    void readBytes(byte[] values, int offset, int count) throws IOException {
+        bitCount = 0;
+        if (position + count > end) {
+            throw new IOException("Unexpected end of column");
+        }
+        System.arraycopy(bytes, position, values, offset, count);
+        position += count;
+    }
+
+    long readFixedLong() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    String readString() throws IOException {
+        int length = (int) readVarLong();
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        if (position + length > end) {
+            throw new IOException("Unexpected end of column");
+        }
+        String value = new String(bytes, position, length, ColumnOutput.UTF_8);
+        position += length;
+        return value;
+    }
+
+    /**
+     * @param count The number of bits from 1 to 64
+     * @return The bits in the lowest bits of the number
+     */
+    long readBits(int count) throws IOException {
+        long value = 0;
+        while (count > 0) {
+            if (bitCount == 0) {
+                if (position >= end) {
+                    throw new IOException("Unexpected end of column");
+                }
+                bits = bytes[position++] & 0xff;
+                bitCount = 8;
+            }
+            int now = Math.min(bitCount, count);
+            long part = (bits >>> (bitCount - now)) & ((1L << now) - 1);
+            value = (value << now) | part;
+            bitCount -= now;
+            count -= now;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if everything has been read
+     */
+    boolean isAtEnd() {
+        return position >= end;
+    }
+
+    int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,157 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.nio.charset.Charset;
+
+/**
+ * A growing byte buffer the columns of a block are encoded into. Numbers are written as
+ * variable length integers: seven bits per byte, the highest bit set if more bytes follow.
+ * Signed numbers are zigzag encoded first, so small negative numbers stay short as well.
+ *
+ * Bits can be written too, the most significant first. The bits are completed to a whole byte
+ * before anything else is written.
+ */
+class ColumnOutput {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] bytes;
+    private int length = 0;
+    private long bits = 0;
+    private int bitCount = 0;
+
+    ColumnOutput() {
+        this(256);
+    }
+
+    /**
+     * @param capacity The number of bytes expected
+     */
+    ColumnOutput(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    /**
+     * @param value The lowest eight bits are written
+     */
+    void writeByte(int value) {
+        flushBits();
+        ensureCapacity(1);
+        bytes[length++] = (byte) value;
+    }
+
+    void writeBytes(byte[] values, int offset, int count) {
+        flushBits();
+        ensureCapacity(count);
+        System.arraycopy(values, offset, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * Write a number of eight bytes, the most significant first
+     */
+    void writeFixedLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            writeByte((int) (value >>> shift));
+        }
+    }
+
+    /**
+     * @param value The number, interpreted as unsigned
+     */
+    void writeVarLong(long value) {
+        flushBits();
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * @param value A string or null
+     */
+    void writeString(String value) {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        byte[] utf8 = value.getBytes(UTF_8);
+        writeVarLong(utf8.length + 1);
+        writeBytes(utf8, 0, utf8.length);
+    }
+
+    /**
+     * @param value The bits, in the lowest bits of the number
+     * @param count The number of bits from 1 to 64
+     */
+    void writeBits(long value, int count) {
+        while (count > 0) {
+            int free = 64 - bitCount;
+            int now = Math.min(free, count);
+            long part = (value >>> (count - now)) & (now == 64 ? -1L : (1L << now) - 1);
+            bits = now == 64 ? part : (bits << now) | part;
+            bitCount += now;
+            count -= now;
+            if (bitCount == 64) {
+                emitBits();
+            }
+        }
+    }
+
+    /**
+     * Write the bits pending, filled up with zeros to a whole byte
+     */
+    void flushBits() {
+        if (bitCount > 0) {
+            int padding = (8 - bitCount % 8) % 8;
+            bits <<= padding;
+            bitCount += padding;
+            emitBits();
+        }
+    }
+
+    /**
+     * @return The number of bytes written, pending bits are not counted
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return The bytes written so far, pending bits included. The array may be longer.
+     */
+    byte[] getBytes() {
+        flushBits();
+        return bytes;
+    }
+
+    /**
+     * Forget everything written, keeping the buffer
+     */
+    void reset() {
+        length = 0;
+        bits = 0;
+        bitCount = 0;
+    }
+
+    private void emitBits() {
+        ensureCapacity(8);
+        for (int shift = bitCount - 8; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (bits >>> shift);
+        }
+        bits = 0;
+        bitCount = 0;
+    }
+
+    private void ensureCapacity(int count) {
+        if (length + count > bytes.length) {
+            byte[] larger = new byte[Math.max(bytes.length * 2, length + count)];
+            System.arraycopy(bytes, 0, larger, 0, length);
+            bytes = larger;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes numbers as the difference to the previous number of their series, as a variable length
+ * integer. Timestamps following each other at a regular interval take a byte or two each.
+ *
+ * Like the XorCodec, several series can be written to the same column and every series starts
+ * at zero.
+ */
+class DeltaCodec {
+    private DeltaCodec() {}
+
+    static class Encoder {
+        private final ColumnOutput out = new ColumnOutput();
+        private long[] previous = new long[4];
+
+        /**
+         * @param series The series the value belongs to, counted from 0
+         * @param value The value
+         */
+        void write(int series, long value) {
+            if (series >= previous.length) {
+                previous = Arrays.copyOf(previous, Math.max(series + 1, previous.length * 2));
+            }
+            out.writeSignedVarLong(value - previous[series]);
+            previous[series] = value;
+        }
+
+        /**
+         * @return The column, the encoder starts a new one
+         */
+        byte[] finish() {
+            byte[] column = Arrays.copyOf(out.getBytes(), out.length());
+            out.reset();
+            Arrays.fill(previous, 0);
+            return column;
+        }
+    }
+
+    static class Decoder {
+        private final ColumnInput in;
+        private long[] previous = new long[4];
+
+        /**
+         * @param column The column written by an encoder
+         */
+        Decoder(byte[] column) {
+            in = new ColumnInput(column, 0, column.length);
+        }
+
+        /**
+         * @param series The series of the next value, as written
+         * @return The value
+         */
+        long read(int series) throws IOException {
+            if (series >= previous.length) {
+                previous = Arrays.copyOf(previous, Math.max(series + 1, previous.length * 2));
+            }
+            previous[series] += in.readSignedVarLong();
+            return previous[series];
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes strings as numbers referring to a dictionary of the strings of the column. The names,
+ * types and units of the sensors repeat in every record, so each of them is stored only once per
+ * block. The dictionary is written in front of the numbers; 0 stands for null.
+ */
+class DictionaryCodec {
+    private DictionaryCodec() {}
+
+    static class Encoder {
+        private final ColumnOutput out = new ColumnOutput();
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final List<String> dictionary = new ArrayList<>();
+
+        /**
+         * @param value A string or null
+         */
+        void write(String value) {
+            if (value == null) {
+                out.writeVarLong(0);
+                return;
+            }
+            Integer number = numbers.get(value);
+            if (number == null) {
+                dictionary.add(value);
+                number = dictionary.size();
+                numbers.put(value, number);
+            }
+            out.writeVarLong(number);
+        }
+
+        /**
+         * @return The column, the encoder starts a new one
+         */
+        byte[] finish() {
+            ColumnOutput column = new ColumnOutput(out.length() + 16 * dictionary.size() + 8);
+            column.writeVarLong(dictionary.size());
+            for (String value : dictionary) {
+                column.writeString(value);
+            }
+            column.writeBytes(out.getBytes(), 0, out.length());
+            out.reset();
+            numbers.clear();
+            dictionary.clear();
+            return Arrays.copyOf(column.getBytes(), column.length());
+        }
+    }
+
+    static class Decoder {
+        private final ColumnInput in;
+        private final String[] dictionary;
+
+        /**
+         * @param column The column written by an encoder
+         */
+        Decoder(byte[] column) throws IOException {
+            in = new ColumnInput(column, 0, column.length);
+            int size = (int) in.readVarLong();
+            if (size < 0 || size > column.length) {
+                throw new IOException("Malformed dictionary");
+            }
+            dictionary = new String[size + 1];
+            for (int i = 1; i <= size; i++) {
+                dictionary[i] = in.readString();
+            }
+        }
+
+        /**
+         * @return The next string, the same object for equal strings
+         */
+        String read() throws IOException {
+            long number = in.readVarLong();
+            if (number < 0 || number >= dictionary.length) {
+                throw new IOException("Malformed dictionary column");
+            }
+            return dictionary[(int) number];
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compresses doubles like the Gorilla time series database does: every value is combined with
+ * the previous value of its series by XOR. Values of a slowly changing series share the sign,
+ * the exponent and the leading bits of the mantissa, so only a few bits in the middle differ.
+ *
+ * - The first value of a series is written as is, 64 bits.
+ * - A value equal to the previous one is written as a single 0 bit.
+ * - Otherwise 10 is written if the bits differing fit into the window of the previous value
+ *   written, followed by the bits of the window.
+ * - Otherwise 11 is written, followed by the number of leading zeros (5 bits), the number of bits
+ *   differing minus one (6 bits) and the bits differing. This is the new window.
+ *
+ * The values of several series can be written to the same column, for example the values of the
+ * first, the second and the third sensor of every record. Each series is compared to itself.
+ */
+class XorCodec {
+    private static final int MAX_LEADING_ZEROS = 31;
+
+    private XorCodec() {}
+
+    /**
+     * The state of the series, shared by the encoder and the decoder
+     */
+    private static class Series {
+        long[] previous = new long[4];
+        int[] leadingZeros = new int[4];
+        int[] trailingZeros = new int[4];
+        boolean[] started = new boolean[4];
+
+        void ensure(int series) {
+            if (series >= previous.length) {
+                int size = Math.max(series + 1, previous.length * 2);
+                previous = Arrays.copyOf(previous, size);
+                leadingZeros = Arrays.copyOf(leadingZeros, size);
+                trailingZeros = Arrays.copyOf(trailingZeros, size);
+                started = Arrays.copyOf(started, size);
+            }
+        }
+
+        void reset() {
+            Arrays.fill(started, false);
+        }
+    }
+
+    static class Encoder {
+        private final ColumnOutput out = new ColumnOutput();
+        private final Series state = new Series();
+
+        /**
+         * @param series The series the value belongs to, counted from 0
+         * @param value The value
+         */
+        void write(int series, double value) {
+            state.ensure(series);
+            long bits = Double.doubleToRawLongBits(value);
+            if (!state.started[series]) {
+                state.started[series] = true;
+                state.previous[series] = bits;
+                // No window yet, the first value differing starts one
+                state.leadingZeros[series] = -1;
+                out.writeBits(bits, 64);
+                return;
+            }
+
+            long xor = bits ^ state.previous[series];
+            state.previous[series] = bits;
+            if (xor == 0) {
+                out.writeBits(0, 1);
+                return;
+            }
+            int leadingZeros = Math.min(MAX_LEADING_ZEROS, Long.numberOfLeadingZeros(xor));
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            int windowLeading = state.leadingZeros[series];
+            int windowTrailing = state.trailingZeros[series];
+            if (windowLeading >= 0 && leadingZeros >= windowLeading
+                    && trailingZeros >= windowTrailing) {
+                out.writeBits(2, 2);
+                out.writeBits(xor >>> windowTrailing, 64 - windowLeading - windowTrailing);
+            } else {
+                int significant = 64 - leadingZeros - trailingZeros;
+                out.writeBits(3, 2);
+                out.writeBits(leadingZeros, 5);
+                out.writeBits(significant - 1, 6);
+                out.writeBits(xor >>> trailingZeros, significant);
+                state.leadingZeros[series] = leadingZeros;
+                state.trailingZeros[series] = trailingZeros;
+            }
+        }
+
+        /**
+         * @return The column, the encoder starts a new one
+         */
+        byte[] finish() {
+            byte[] column = Arrays.copyOf(out.getBytes(), out.length());
+            out.reset();
+            state.reset();
+            return column;
+        }
+    }
+
+    static class Decoder {
+        private final ColumnInput in;
+        private final Series state = new Series();
+
+        /**
+         * @param column The column written by an encoder
+         */
+        Decoder(byte[] column) {
+            in = new ColumnInput(column, 0, column.length);
+        }
+
+        /**
+         * @param series The series of the next value, as written
+         * @return The value
+         */
+        double read(int series) throws IOException {
+            state.ensure(series);
+            long bits;
+            if (!state.started[series]) {
+                state.started[series] = true;
+                state.leadingZeros[series] = -1;
+                bits = in.readBits(64);
+            } else if (in.readBits(1) == 0) {
+                bits = state.previous[series];
+            } else if (in.readBits(1) == 0) {
+                int windowLeading = state.leadingZeros[series];
+                int windowTrailing = state.trailingZeros[series];
+                if (windowLeading < 0) {
+                    throw new IOException("Malformed value column");
+                }
+                long xor = in.readBits(64 - windowLeading - windowTrailing) << windowTrailing;
+                bits = state.previous[series] ^ xor;
+            } else {
+                int leadingZeros = (int) in.readBits(5);
+                int significant = (int) in.readBits(6) + 1;
+                int trailingZeros = 64 - leadingZeros - significant;
+                if (trailingZeros < 0) {
+                    throw new IOException("Malformed value column");
+                }
+                long xor = in.readBits(significant) << trailingZeros;
+                bits = state.previous[series] ^ xor;
+                state.leadingZeros[series] = leadingZeros;
+                state.trailingZeros[series] = trailingZeros;
+            }
+            state.previous[series] = bits;
+            return Double.longBitsToDouble(bits);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package de.uni_bremen.comnets.geosensor.archive;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes archives and reads them again
+ */
+public class ArchiveTest {
+    private static final int RECORDS = 2500;
+    private static final int BLOCK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatHasBeenWritten() throws IOException {
+        List<ArchiveRecord> records = records(RECORDS);
+        File file = write(records, BLOCK_SIZE);
+
+        ArchiveReader reader = new ArchiveReader(file);
+        assertEquals(3, reader.getBlockCount());
+        assertEquals(RECORDS, reader.getRecordCount());
+        int index = 0;
+        for (int i = 0; i < reader.getBlockCount(); i++) {
+            ArchiveBlock block = reader.readBlock(i);
+            assertEquals(reader.getStatistics(i).getRecordCount(), block.getRecordCount());
+            for (int j = 0; j < block.getRecordCount(); j++) {
+                assertRecordEquals(records.get(index++), block.getRecord(j));
+            }
+        }
+        reader.close();
+        assertEquals(RECORDS, index);
+    }
+
+    @Test
+    public void keepsEveryDouble() throws IOException {
+        Random random = new Random(42);
+        double[] special = {0, -0.0, Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE, 1, 1, 1.5};
+        List<ArchiveRecord> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            ArchiveRecord record = new ArchiveRecord(i, -i, null, i % 2 == 0 ? null : "");
+            double value = i < special.length ? special[i]
+                    : Double.longBitsToDouble(random.nextLong());
+            record.addMeasureData("random", null, "sensor", value, null);
+            records.add(record);
+        }
+        File file = write(records, 100);
+
+        ArchiveReader reader = new ArchiveReader(file);
+        int index = 0;
+        for (int i = 0; i < reader.getBlockCount(); i++) {
+            ArchiveBlock block = reader.readBlock(i);
+            for (int j = 0; j < block.getRecordCount(); j++) {
+                assertRecordEquals(records.get(index++), block.getRecord(j));
+            }
+        }
+        reader.close();
+    }
+
+    @Test
+    public void skipsBlocksByTheirStatistics() throws IOException {
+        List<ArchiveRecord> records = records(RECORDS);
+        File file = write(records, BLOCK_SIZE);
+
+        ArchiveReader reader = new ArchiveReader(file);
+        BlockStatistics first = reader.getStatistics(0);
+        assertEquals(records.get(0).getReceiveTime(), first.getMinReceiveTime());
+        assertEquals(records.get(BLOCK_SIZE - 1).getReceiveTime(), first.getMaxReceiveTime());
+        long middle = records.get(BLOCK_SIZE + BLOCK_SIZE / 2).getReceiveTime();
+        assertFalse(first.mayContainReceiveTime(middle, middle));
+        assertTrue(reader.getStatistics(1).mayContainReceiveTime(middle, middle));
+        assertFalse(reader.getStatistics(2).mayContainReceiveTime(middle, middle));
+
+        // Every value of a type is within the range of its block
+        for (int i = 0; i < reader.getBlockCount(); i++) {
+            BlockStatistics statistics = reader.getStatistics(i);
+            ArchiveBlock block = reader.readBlock(i);
+            String[] types = block.getTypes();
+            double[] values = block.getValues();
+            for (int j = 0; j < values.length; j++) {
+                assertTrue(statistics.mayContainValue(types[j], values[j], values[j]));
+            }
+            double[] latitudes = block.getLatitudes();
+            double[] longitudes = block.getLongitudes();
+            for (int j = 0; j < latitudes.length; j++) {
+                assertTrue(statistics.mayContainPosition(latitudes[j], longitudes[j],
+                        latitudes[j], longitudes[j]));
+            }
+            assertFalse(statistics.mayContainValue("temperature", 1000, 2000));
+            assertFalse(statistics.mayContainValue("pressure", 0, 2000));
+            assertFalse(statistics.mayContainPosition(-10, -10, 10, 10));
+        }
+        reader.close();
+    }
+
+    @Test
+    public void readsAnArchiveWrittenBlockByBlock() throws IOException {
+        List<ArchiveRecord> records = records(RECORDS);
+        File file = folder.newFile("blocks.gsa");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.write(ArchiveWriter.getHeader());
+        BlockEncoder encoder = new BlockEncoder();
+        for (int i = 0; i < records.size(); i++) {
+            encoder.add(records.get(i));
+            if (encoder.getRecordCount() == BLOCK_SIZE || i == records.size() - 1) {
+                out.write(encoder.finish());
+            }
+        }
+        long blocksEnd = out.length();
+        out.write("incomplete block".getBytes());
+
+        // An archive without index is read up to its last complete block
+        ArchiveReader incomplete = new ArchiveReader(file);
+        assertEquals(3, incomplete.getBlockCount());
+        assertRecordEquals(records.get(RECORDS - 1),
+                incomplete.readBlock(2).getRecord(RECORDS - 1 - 2 * BLOCK_SIZE));
+        incomplete.close();
+
+        out.setLength(blocksEnd);
+        out.write(ArchiveWriter.getIndex(out));
+        out.close();
+
+        // The same as written in one go
+        File written = write(records, BLOCK_SIZE);
+        assertEquals(written.length(), file.length());
+        ArchiveReader reader = new ArchiveReader(file);
+        assertEquals(RECORDS, reader.getRecordCount());
+        assertRecordEquals(records.get(1234), reader.readBlock(1).getRecord(234));
+        reader.close();
+    }
+
+    @Test
+    public void isSmallerThanTheRecords() throws IOException {
+        File file = write(records(RECORDS), BLOCK_SIZE);
+        // Two locations and three values per record, 10 bytes each would be 50 bytes
+        assertTrue(file.length() < 50 * RECORDS);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.csv");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("receive_time,comment\n".getBytes());
+        out.close();
+        new ArchiveReader(file);
+    }
+
+    private File write(List<ArchiveRecord> records, int blockSize) throws IOException {
+        File file = File.createTempFile("archive", ".gsa", folder.getRoot());
+        ArchiveWriter writer = new ArchiveWriter(new BufferedOutputStream(
+                new FileOutputStream(file)), blockSize);
+        for (ArchiveRecord record : records) {
+            writer.write(record);
+        }
+        writer.close();
+        return file;
+    }
+
+    /**
+     * @param count The number of records
+     * @return Records like a transducer sends them every few seconds while being carried around
+     */
+    private static List<ArchiveRecord> records(int count) {
+        Random random = new Random(42);
+        List<ArchiveRecord> records = new ArrayList<>();
+        long time = 1496311200000L;
+        double latitude = 53.1;
+        double longitude = 8.8;
+        for (int i = 0; i < count; i++) {
+            time += 1000 + random.nextInt(5000);
+            latitude += random.nextGaussian() * 1e-5;
+            longitude += random.nextGaussian() * 1e-5;
+            ArchiveRecord record = new ArchiveRecord(time, time / 3, "GeoSensor Template",
+                    i % 100 == 0 ? "test comment" : "");
+            record.addLocation(Math.round(latitude * 1e8) / 1e8, Math.round(longitude * 1e8) / 1e8,
+                    time - 1000, "ArduinoGPS", random.nextInt(100) / 10.0, 0);
+            if (i % 3 != 0) {
+                record.addLocation(latitude, longitude, time - 500, "fused",
+                        40 + random.nextDouble() * 10, random.nextFloat() * 20);
+            }
+            record.addMeasureData("temperature", "air-temperature", "DHT11",
+                    20 + random.nextInt(5), "deg C");
+            record.addMeasureData("humidity", "air-humidity", "DHT11", 30 + random.nextInt(5),
+                    "%");
+            record.addMeasureData("temperature", "soil-temperature", "DS18B20",
+                    18 + random.nextInt(20) / 4.0, "deg C");
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static void assertRecordEquals(ArchiveRecord expected, ArchiveRecord actual) {
+        assertEquals(expected.getReceiveTime(), actual.getReceiveTime());
+        assertEquals(expected.getArduinoTime(), actual.getArduinoTime());
+        assertEquals(expected.getArduinoSoftware(), actual.getArduinoSoftware());
+        assertEquals(expected.getComment(), actual.getComment());
+        assertEquals(expected.getLocationCount(), actual.getLocationCount());
+        for (int i = 0; i < expected.getLocationCount(); i++) {
+            assertBitsEqual(expected.getLatitude(i), actual.getLatitude(i));
+            assertBitsEqual(expected.getLongitude(i), actual.getLongitude(i));
+            assertEquals(expected.getLocationTime(i), actual.getLocationTime(i));
+            assertEquals(expected.getProvider(i), actual.getProvider(i));
+            assertBitsEqual(expected.getAltitude(i), actual.getAltitude(i));
+            assertBitsEqual(expected.getAccuracy(i), actual.getAccuracy(i));
+        }
+        assertEquals(expected.getMeasureDataCount(), actual.getMeasureDataCount());
+        for (int i = 0; i < expected.getMeasureDataCount(); i++) {
+            assertEquals(expected.getType(i), actual.getType(i));
+            assertEquals(expected.getName(i), actual.getName(i));
+            assertEquals(expected.getSensor(i), actual.getSensor(i));
+            assertBitsEqual(expected.getValue(i), actual.getValue(i));
+            assertEquals(expected.getUnit(i), actual.getUnit(i));
+        }
+    }
+
+    private static void assertBitsEqual(double expected, double actual) {
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+}
@@ -58,6 +58,18 @@
   Most problems that might occur in this program are releated to buffer sizes.*/
 #define JSON_BUFFER_SIZE 800
 
+/** If BINARY_PROTOCOL is defined, the compact binary protocol is used if the app offers it.
+  Only numbers are sent then, the names and units of the sensors are sent once per connection.
+  Older versions of the app do not offer it and still receive JSON.*/
+#define BINARY_PROTOCOL
+/** The number of decimals of the sensor values sent using the binary protocol */
+#define BINARY_DECIMALS 4
+/** The maximum number of sensors sent using the binary protocol. Every sensor needs 8 Bytes of SRAM.*/
+#define BINARY_MAX_SENSORS 8
+/** The number of binary samples sent without waiting for an acknowledgement (at most 64).
+  Every sample needs 4 Bytes of SRAM per sensor plus 26 Bytes.*/
+#define BINARY_WINDOW 4
+
 /**
   Imports used for basic functionality.
   Make sure the librarys are avaliable.
@@ -73,6 +85,11 @@
 #include <TinyGPS++.h>
 #endif
 
+#ifdef BINARY_PROTOCOL
+/** The AVR libc provides the CRC calculation used for the binary frames */
+#include <util/crc16.h>
+#endif
+
 #ifdef EEPROM_RESEND
 /** The core EEPROM library */
 #include <EEPROM.h>
@@ -82,13 +99,15 @@
 #endif
 
 /** This characters are defined by the ASCII table and used in the bluetooth protocol. Do not change.*/
-#define SOT 0x03 // Start of Text - Reserved for future Use
+#define SOH 0x01 // Start of Heading - Starts a frame of the binary protocol
+#define SOT 0x02 // Start of Text - Reserved for future Use
 #define EOT 0x03 // End of Text - Used to end a transmission message produced by this program
 #define ACK 0x06 // Acknowledge - Returned from the receiver if the message was received without detected problems
+#define DLE 0x10 // Data Link Escape - Precedes escaped bytes inside of binary frames
 #define DC1 0x11 // Device Control 1 - Used to trigger a measurement
-#define DC2 0x11 // Device Control 2 - Reserved for future use
-#define DC3 0x11 // Device Control 3 - Reserved for future use
-#define DC4 0x11 // Device Control 4 - Reserved for future use
+#define DC2 0x12 // Device Control 2 - Offers the binary protocol or requests the binary schema again
+#define DC3 0x13 // Device Control 3 - Reserved for future use
+#define DC4 0x14 // Device Control 4 - Reserved for future use
 #define NAK 0x15 // Negative Acknowledge - Triggers a resend of the last message
 
 /**
@@ -227,6 +246,67 @@ bool receiveConfirmed = true;
 String lastOutput = "";
 #endif
 
+/**
+   The state of the binary protocol. The format is described in the app (BinaryFrameCodec and BinaryMessageDecoder).
+   The numbers of a sample are arduino_time, latitude, longitude, altitude, date, time and the sensor values.
+   The samples not acknowledged yet are kept in a window for resending, so up to BINARY_WINDOW samples can be on
+   the way. They are numbered modulo 128 and sent as differences to the last sample acknowledged.
+   The app acknowledges cumulatively (ACK and a sequence number) and requests single samples found missing
+   (NAK and a sequence number), the oldest sample is sent again after a timeout.
+*/
+#ifdef BINARY_PROTOCOL
+#define BINARY_VERSION 1
+#define BINARY_SCHEMA 'S'
+#define BINARY_SAMPLE 'D'
+#define BINARY_FLAG_POSITION 0x01
+#define BINARY_FLAG_DELTA 0x02
+#define BINARY_SENSORS 6
+#define BINARY_NUMBERS (BINARY_SENSORS + BINARY_MAX_SENSORS)
+/** After this many unsuccessful transmissions of a sample the receiver is assumed to not understand the binary protocol */
+#define BINARY_MAX_FAILURES 3
+#define BINARY_SEQUENCE_NUMBERS 128
+/** In binary mode ACK and NAK are followed by a sequence number with the highest bit set */
+#define BINARY_SEQUENCE_FLAG 0x80
+/** The time to wait for the sequence number following an ACK or NAK */
+#define BINARY_COMMAND_TIMEOUT 50
+#if BINARY_WINDOW > BINARY_SEQUENCE_NUMBERS / 2
+#error "The app does not support a BINARY_WINDOW larger than 64"
+#endif
+
+/** Set when the app has offered the binary protocol */
+bool binaryMode = false;
+byte binaryFailures = 0;
+byte binaryNextNumber = 0;
+byte binarySensorCount = 0;
+
+/** The samples not acknowledged yet, the oldest one is at binaryFirst */
+int32_t binaryWindow[BINARY_WINDOW][BINARY_NUMBERS];
+byte binaryWindowNumber[BINARY_WINDOW];
+bool binaryWindowPosition[BINARY_WINDOW];
+byte binaryFirst = 0;
+byte binaryCount = 0;
+/** The time the oldest sample has been sent */
+unsigned long binarySentMillis = 0;
+/** The index of the sample currently written */
+byte binaryCurrent;
+
+/** An ACK or NAK waiting for the sequence number */
+char binaryPendingCommand = 0;
+unsigned long binaryPendingMillis;
+
+int32_t binaryReference[BINARY_NUMBERS];
+byte binaryReferenceNumber;
+bool binaryReferencePosition;
+bool binaryReferenceValid = false;
+
+/** Every frame is written twice: the first time the bytes are only counted to determine the length */
+bool binaryCounting;
+uint16_t binaryLength;
+uint16_t binaryCrc;
+/** The sensors included in the schema currently sent */
+JsonObject* binarySensors;
+#endif
+
 /**
    The serial connections are set to the required baudrate and the button pin is configured as an input
 */
@@ -255,6 +335,12 @@ void setup() {
 
 // the loop function runs over and over again until power down or reset
 void loop() {
+#ifdef BINARY_PROTOCOL
+  if (binaryMode && binaryCount > 0 && millis() - binarySentMillis > 5000) {
+    resend();
+  }
+#endif
+
 #ifdef EEPROM_RESEND
   if (millis() - lastSentMillis > 5000 && EEPROM.read(0x00) == true) {
     resend();
@@ -267,7 +353,7 @@ void loop() {
 
 
 
-  if (acquireTag) {
+  if (acquireTag && !sendingBlocked()) {
     // this signalises to the user we are handling the request
     digitalWrite(STATUS_LED_PIN, HIGH);
     // the data is acquired and sent
@@ -312,32 +398,82 @@ void loop() {
     // As the protocol only uses one-byte-messages, only one char is evaluated at a time
     char incoming = BLUETOOTH_SERIAL.read();
 
-    switch (incoming) {
-      case ACK: // ACK Acknowledgement
-      case 'a': // for debug purposes
+#ifdef BINARY_PROTOCOL
+    if (binaryPendingCommand != 0) {
+      char command = binaryPendingCommand;
+      binaryPendingCommand = 0;
+      if (incoming & BINARY_SEQUENCE_FLAG) {
+        binaryCommand(command, incoming & ~BINARY_SEQUENCE_FLAG);
+        continue;
+      }
+      handleCommand(command);
+    }
+    // In binary mode a sequence number might follow
+    if (binaryMode && (incoming == ACK || incoming == NAK)) {
+      binaryPendingCommand = incoming;
+      binaryPendingMillis = millis();
+      continue;
+    }
+#endif
+    handleCommand(incoming);
+  }
+
+#ifdef BINARY_PROTOCOL
+  // Without a sequence number it is a plain ACK or NAK
+  if (binaryPendingCommand != 0 && millis() - binaryPendingMillis > BINARY_COMMAND_TIMEOUT) {
+    char command = binaryPendingCommand;
+    binaryPendingCommand = 0;
+    handleCommand(command);
+  }
+#endif
+}
+
+/**
+   Handle a command received from the app
+*/
+void handleCommand(char incoming) {
+  switch (incoming) {
+    case ACK: // ACK Acknowledgement
+    case 'a': // for debug purposes
 #ifdef EEPROM_RESEND
-        // the first EEPROM cell contains a boolean persisting in case the message has never been received
-        EEPROM.write(0x00, false);
+      // the first EEPROM cell contains a boolean persisting in case the message has never been received
+      EEPROM.write(0x00, false);
 #endif
 #ifdef SRAM_RESEND
-        receiveConfirmed = true;
-#endif
-        // the status LED is turned off
-        digitalWrite(STATUS_LED_PIN, LOW);
-        break;
-      case NAK: // NAK Negative Acknowledgement
-      case 'b':
-        resend();
-        break;
-      // DC1 is a request equivalent to pushing the trigger button.
-      case DC1: // DC1 Device Control 1
-      case 'c':
-        setAcquireTag();
-        break;
-    }
+      receiveConfirmed = true;
+#endif
+      // the status LED is turned off
+      digitalWrite(STATUS_LED_PIN, LOW);
+      break;
+    case NAK: // NAK Negative Acknowledgement
+    case 'b':
+      resend();
+      break;
+    // DC1 is a request equivalent to pushing the trigger button.
+    case DC1: // DC1 Device Control 1
+    case 'c':
+      setAcquireTag();
+      break;
+#ifdef BINARY_PROTOCOL
+    // DC2 is sent by apps supporting the binary protocol
+    case DC2: // DC2 Device Control 2
+      startBinaryMode();
+      break;
+#endif
   }
 }
 
+/**
+   In binary mode a new measurement has to wait while the window is full
+*/
+bool sendingBlocked() {
+#ifdef BINARY_PROTOCOL
+  return binaryMode && binaryCount >= BINARY_WINDOW;
+#else
+  return false;
+#endif
+}
+
 /**
    This is the interrupt service routine for the button press.
    It only sets a flag in order to not block other interrupts.
@@ -350,9 +486,20 @@ void setAcquireTag() {
    The resend method is different for the different types of data buffers.
    Therefore there is a version for EEPROM, one for SRAM and one mockup that does nothing.
    The method will repeat writing out the whole 0last message to the serial transceiver.
+   In binary mode the oldest sample not acknowledged is sent again instead.
 */
-#ifdef EEPROM_RESEND
 void resend() {
+#ifdef BINARY_PROTOCOL
+  if (binaryMode) {
+    resendBinarySample();
+    return;
+  }
+#endif
+  resendMessage();
+}
+
+#ifdef EEPROM_RESEND
+void resendMessage() {
   // This will save SRAM as we do not need a copy in memory
   for (int i = 5; true; i++) {
     byte c = EEPROM.read(i);
@@ -375,7 +522,7 @@ void resend() {
 #endif
 
 #ifdef SRAM_RESEND
-void resend() {
+void resendMessage() {
   BLUETOOTH_SERIAL.print(lastOutput);
 
   BLUETOOTH_SERIAL.println("");
@@ -387,7 +534,7 @@ void resend() {
 #endif
 
 #if !defined(EEPROM_RESEND) && !defined(SRAM_RESEND)
-void resend() {
+void resendMessage() {
   // We can not resend if we do not have a buffer
 }
 #endif
@@ -417,6 +564,15 @@ void buildDataPacket() {
   JsonObject& sensors = message.createNestedObject(F("sensors"));
   buildSensorJson(sensors);
 
+#ifdef BINARY_PROTOCOL
+  // If the app supports it, only the numbers are sent
+  if (binaryMode) {
+    binaryStoreSample(sensors);
+    binaryFrame(BINARY_SAMPLE, binaryWriteSample);
+    return;
+  }
+#endif
+
   // The message is written out to the serial transmitter (pretty format is for easier debugging, might be changed to prontTo()
   message.prettyPrintTo(BLUETOOTH_SERIAL);
 
@@ -460,5 +616,287 @@ void buildPositionJson(JsonObject& position) {
 }
 #endif
 
+#ifdef BINARY_PROTOCOL
+/**
+   The app offers the binary protocol (or requests the schema again). The schema containing the
+   descriptions of the sensors is sent, followed by the samples not acknowledged yet without differences.
+   A JSON message still waiting for an acknowledgement is sent again before as it would be lost otherwise.
+*/
+void startBinaryMode() {
+#ifdef EEPROM_RESEND
+  if (!binaryMode && EEPROM.read(0x00) == true) {
+    resendMessage();
+  }
+#elif defined SRAM_RESEND
+  if (!binaryMode && !receiveConfirmed) {
+    resendMessage();
+  }
+#endif
 
+  binaryMode = true;
+  binaryFailures = 0;
+  binaryReferenceValid = false;
+
+  // The sensor descriptions are taken from the JSON objects, so they only need to be defined once
+  StaticJsonBuffer<JSON_BUFFER_SIZE> jsonBuffer;
+  JsonObject& sensors = jsonBuffer.createObject();
+  buildSensorJson(sensors);
+  binarySensors = &sensors;
+  binaryFrame(BINARY_SCHEMA, binaryWriteSchema);
+  binarySensors = NULL;
+
+  for (byte i = 0; i < binaryCount; i++) {
+    binaryCurrent = (binaryFirst + i) % BINARY_WINDOW;
+    binaryFrame(BINARY_SAMPLE, binaryWriteSample);
+  }
+  binarySentMillis = millis();
+}
+
+/**
+   Handle an ACK or NAK followed by a sequence number
+*/
+void binaryCommand(char command, byte number) {
+  if (command == ACK) {
+    binaryAcknowledge(number);
+  } else if (command == NAK) {
+    binaryResend(number);
+  }
+}
+
+/**
+   Find a sample in the window
+   @return The number of samples before it in the window or -1 if it is not in the window
+*/
+int binaryFind(byte number) {
+  for (byte i = 0; i < binaryCount; i++) {
+    if (binaryWindowNumber[(binaryFirst + i) % BINARY_WINDOW] == number) {
+      return i;
+    }
+  }
+  return -1;
+}
 
+/**
+   The sample and all samples before it have been acknowledged. They are removed from the window and the
+   next samples are sent as differences to it.
+*/
+void binaryAcknowledge(byte number) {
+  int found = binaryFind(number);
+  if (found < 0) {
+    // The acknowledgement of a sample sent again
+    return;
+  }
+  binaryFailures = 0;
+  byte index = (binaryFirst + found) % BINARY_WINDOW;
+  memcpy(binaryReference, binaryWindow[index], sizeof(binaryReference));
+  binaryReferenceNumber = number;
+  binaryReferencePosition = binaryWindowPosition[index];
+  binaryReferenceValid = true;
+
+  binaryFirst = (index + 1) % BINARY_WINDOW;
+  binaryCount -= found + 1;
+  // The timeout starts again for the next sample
+  binarySentMillis = millis();
+  if (binaryCount == 0) {
+    digitalWrite(STATUS_LED_PIN, LOW);
+  }
+}
+
+/**
+   The app has found a sample missing, it is sent again
+*/
+void binaryResend(byte number) {
+  int found = binaryFind(number);
+  if (found >= 0) {
+    binaryCurrent = (binaryFirst + found) % BINARY_WINDOW;
+    binaryFrame(BINARY_SAMPLE, binaryWriteSample);
+  }
+}
+
+/**
+   Send the oldest sample not acknowledged again. If this fails too often, the receiver probably does not
+   understand the binary protocol (for example an older version of the app), so JSON is used again until the
+   next DC2.
+*/
+void resendBinarySample() {
+  binarySentMillis = millis();
+  if (binaryCount == 0) {
+    return;
+  }
+  if (++binaryFailures >= BINARY_MAX_FAILURES) {
+    binaryMode = false;
+    binaryCount = 0;
+    return;
+  }
+  binaryCurrent = binaryFirst;
+  binaryFrame(BINARY_SAMPLE, binaryWriteSample);
+}
+
+/**
+   Store the numbers of a new sample at the end of the window. The caller makes sure the window is not full.
+*/
+void binaryStoreSample(JsonObject& sensors) {
+  binaryCurrent = (binaryFirst + binaryCount) % BINARY_WINDOW;
+  int32_t* sample = binaryWindow[binaryCurrent];
+  sample[0] = millis();
+  binaryWindowPosition[binaryCurrent] = false;
+#ifdef GPS_ENABLED
+  if (gps.location.isValid()) {
+    binaryWindowPosition[binaryCurrent] = true;
+    sample[1] = binaryDegrees(gps.location.rawLat());
+    sample[2] = binaryDegrees(gps.location.rawLng());
+    // TinyGPS++ gives the altitude in centimeters
+    sample[3] = gps.altitude.value();
+    sample[4] = gps.date.value();
+    sample[5] = gps.time.value();
+  }
+#endif
+  binarySensorCount = 0;
+  for (JsonObject::iterator it = sensors.begin(); it != sensors.end() && binarySensorCount < BINARY_MAX_SENSORS; ++it) {
+    JsonObject& sensor = it->value.as<JsonObject&>();
+    sample[BINARY_SENSORS + binarySensorCount++] = binaryQuantize(sensor[F("value")].as<double>());
+  }
+  binaryWindowNumber[binaryCurrent] = binaryNextNumber;
+  binaryNextNumber = (binaryNextNumber + 1) % BINARY_SEQUENCE_NUMBERS;
+  if (binaryCount++ == 0) {
+    binarySentMillis = millis();
+  }
+}
+
+#ifdef GPS_ENABLED
+/** Convert degrees to 1e-7 degrees */
+int32_t binaryDegrees(const RawDegrees& degrees) {
+  int32_t value = degrees.deg * 10000000L + degrees.billionths / 100;
+  return degrees.negative ? -value : value;
+}
+#endif
+
+/** Convert a sensor value to an integer. Values that are not a number or too large are sent as the smallest integer. */
+int32_t binaryQuantize(double value) {
+  double scaled = value * pow(10, BINARY_DECIMALS);
+  if (scaled != scaled || scaled <= -2147483648.0 || scaled >= 2147483647.0) {
+    return INT32_MIN;
+  }
+  return lround(scaled);
+}
+
+/** Write a byte to the serial transceiver, escaping EOT and DLE */
+void binaryWriteEscaped(byte b) {
+  if (b == EOT || b == DLE) {
+    BLUETOOTH_SERIAL.write(DLE);
+    BLUETOOTH_SERIAL.write(b ^ 0x20);
+  } else {
+    BLUETOOTH_SERIAL.write(b);
+  }
+}
+
+/** Write a byte covered by the CRC or only count it */
+void binaryWrite(byte b) {
+  if (binaryCounting) {
+    binaryLength++;
+  } else {
+    binaryCrc = _crc_xmodem_update(binaryCrc, b);
+    binaryWriteEscaped(b);
+  }
+}
+
+/** Strings are written as a length byte followed by the characters */
+void binaryWriteString(const char* string) {
+  size_t length = string == NULL ? 0 : strlen(string);
+  if (length > 255) {
+    length = 255;
+  }
+  binaryWrite(length);
+  for (size_t i = 0; i < length; i++) {
+    binaryWrite(string[i]);
+  }
+}
+
+/** Numbers are written zigzag encoded with 7 bits per byte, least significant first */
+void binaryWriteNumber(int32_t number) {
+  uint32_t zigzag = ((uint32_t) number << 1) ^ (uint32_t) (number >> 31);
+  while (zigzag >= 0x80) {
+    binaryWrite((zigzag & 0x7F) | 0x80);
+    zigzag >>= 7;
+  }
+  binaryWrite(zigzag);
+}
+
+/**
+   Send a frame: SOH, type, length, payload, CRC and EOT.
+   The payload is written by the given function, which is called twice as the length has to be sent first.
+*/
+void binaryFrame(byte type, void (*writePayload)()) {
+  binaryCounting = true;
+  binaryLength = 0;
+  writePayload();
+  binaryCounting = false;
+
+  binaryCrc = 0xFFFF;
+  BLUETOOTH_SERIAL.write(SOH);
+  binaryWrite(type);
+  binaryWrite(binaryLength & 0xFF);
+  binaryWrite(binaryLength >> 8);
+  writePayload();
+  uint16_t crc = binaryCrc;
+  binaryWriteEscaped(crc & 0xFF);
+  binaryWriteEscaped(crc >> 8);
+  BLUETOOTH_SERIAL.write(EOT);
+  BLUETOOTH_SERIAL.flush();
+}
+
+/** Get a string of a sensor object, the key of the object is used if it is missing */
+const char* binarySensorString(JsonObject& sensor, const __FlashStringHelper* key, const char* fallback) {
+  const char* value = sensor[key].as<const char*>();
+  return value != NULL ? value : fallback;
+}
+
+void binaryWriteSchema() {
+  binaryWrite(BINARY_VERSION);
+  binaryWriteString(VERSION);
+  String comment = getComment();
+  binaryWriteString(comment.c_str());
+
+  byte count = 0;
+  for (JsonObject::iterator it = binarySensors->begin(); it != binarySensors->end() && count < BINARY_MAX_SENSORS; ++it) {
+    count++;
+  }
+  binaryWrite(count);
+
+  count = 0;
+  for (JsonObject::iterator it = binarySensors->begin(); it != binarySensors->end() && count < BINARY_MAX_SENSORS; ++it) {
+    JsonObject& sensor = it->value.as<JsonObject&>();
+    binaryWriteString(binarySensorString(sensor, F("type"), it->key));
+    binaryWriteString(binarySensorString(sensor, F("sensor"), it->key));
+    binaryWriteString(binarySensorString(sensor, F("name"), it->key));
+    binaryWriteString(binarySensorString(sensor, F("unit"), it->key));
+    binaryWrite(BINARY_DECIMALS);
+    count++;
+  }
+}
+
+/** Write a number of the current sample, as difference to the reference if delta is set */
+void binaryWriteDelta(byte index, bool delta) {
+  int32_t* sample = binaryWindow[binaryCurrent];
+  binaryWriteNumber(delta ? (int32_t) ((uint32_t) sample[index] - (uint32_t) binaryReference[index]) : sample[index]);
+}
+
+void binaryWriteSample() {
+  bool delta = binaryReferenceValid;
+  bool position = binaryWindowPosition[binaryCurrent];
+  binaryWrite(binaryWindowNumber[binaryCurrent]);
+  binaryWrite((position ? BINARY_FLAG_POSITION : 0) | (delta ? BINARY_FLAG_DELTA : 0));
+  if (delta) {
+    binaryWrite(binaryReferenceNumber);
+  }
+  binaryWriteDelta(0, delta);
+  if (position) {
+    for (byte i = 1; i < BINARY_SENSORS; i++) {
+      binaryWriteDelta(i, delta && binaryReferencePosition);
+    }
+  }
+  for (byte i = 0; i < binarySensorCount; i++) {
+    binaryWriteDelta(BINARY_SENSORS + i, delta);
+  }
+}
+#endif